@@ -1,11 +1,11 @@
 package client;
 
 import server.models.User;
+import server.utils.FrameOutputStream;
 import server.utils.InputUtils;
 
 import javax.net.ssl.SSLSocket;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
@@ -23,9 +23,11 @@ public class CommandLineInterface {
      *
      * @param in the input stream
      * @param out the output stream
+     * @param protocolVersion the protocol version agreed at login
      */
-    public CommandLineInterface(SSLSocket socket, DataInputStream in, DataOutputStream out, String authenticatedUserId) {
-        this.networkManager = new NetworkManager(in, out);
+    public CommandLineInterface(SSLSocket socket, DataInputStream in, FrameOutputStream out, String authenticatedUserId,
+                                int protocolVersion) {
+        this.networkManager = new NetworkManager(in, out, protocolVersion);
         this.scanner = new Scanner(System.in);
         this.socket = socket;
         this.authenticatedUserId = authenticatedUserId;
@@ -35,6 +37,8 @@ public class CommandLineInterface {
      * Start the command line interface.
      */
     public void start() {
+        networkManager.startHeartbeat();
+
         while (true) {
             System.out.println("\n[CLIENT] Comandos disponiveis para uso:");
             System.out.println("[CLIENT] CREATE <ws> <password> # Criar um novo workspace - utilizador é Owner.");
@@ -44,7 +48,8 @@ public class CommandLineInterface {
             System.out.println("[CLIENT] DW <ws> <file1> ... <filen> # Download de ficheiros do workspace para a maquina local.");
             System.out.println("[CLIENT] RM <ws> <file1> ... <filen> # Apagar ficheiros do workspace.");
             System.out.println("[CLIENT] LW # Lista os workspaces associados ao utilizador.");
-            System.out.println("[CLIENT] LS <ws> # Lista os ficheiros dentro de um workspace.\n");
+            System.out.println("[CLIENT] LS <ws> # Lista os ficheiros dentro de um workspace.");
+            System.out.println("[CLIENT] CHECK # Mostra o relatório de integridade dos workspaces do utilizador.\n");
 
             System.out.print("Comando: ");
             String input = scanner.nextLine();
@@ -147,6 +152,13 @@ public class CommandLineInterface {
                             System.err.println("[CLIENT] Uso incorreto do comando: LS");
                         }
                         break;
+                    case "CHECK":
+                        if (commandParts.length == 1) {
+                            networkManager.showIntegrityReport();
+                        } else {
+                            System.err.println("[CLIENT] Uso incorreto do comando: CHECK");
+                        }
+                        break;
                     default:
                         System.err.println("[CLIENT] Comando invalido: " + commandAction);
                 }
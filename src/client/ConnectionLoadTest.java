@@ -0,0 +1,240 @@
+package client;
+
+import server.models.BodyFormat;
+import server.models.BodyJSON;
+import server.models.Request;
+import server.models.Response;
+import server.models.StatusCode;
+import server.utils.FrameOutputStream;
+import server.utils.FrameOutputStream.FlushPolicy;
+import server.utils.NetworkUtils;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens many sessions against a running server and keeps them all open, to
+ * check how a connection mode copes with them:
+ *
+ * java -cp build client.ConnectionLoadTest <server:port> <user-id> <password> [connections] [rounds]
+ *
+ * The user logs in once with the password and every session then logs in
+ * with the session ticket, so the test measures connections and not password
+ * hashing. Once all sessions are open, every session sends a heartbeat per
+ * round. The time to open a session (TCP, TLS and login) and the heartbeat
+ * round trips are reported as percentiles, with the sessions lost. The
+ * defaults open 10000 sessions, which needs a file descriptor limit above
+ * that on both sides.
+ */
+public class ConnectionLoadTest {
+    private static final int DEFAULT_CONNECTIONS = 10_000;
+    private static final int DEFAULT_ROUNDS = 3;
+    // sessions opened at the same time, so the accept backlog does not overflow
+    private static final int OPENERS = 32;
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    private final String host;
+    private final int port;
+    private final String userId;
+    private final SSLSocketFactory factory;
+
+    private ConnectionLoadTest(String host, int port, String userId) {
+        this.host = host;
+        this.port = port;
+        this.userId = userId;
+        this.factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Uso: java client.ConnectionLoadTest <servidor:porto> <user-id> <password> [ligações] [rondas]");
+            System.exit(1);
+        }
+
+        String[] address = args[0].split(":");
+        int connections = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CONNECTIONS;
+        int rounds = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_ROUNDS;
+
+        System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+        System.setProperty("javax.net.ssl.trustStore", "client_keys/" + args[1] + "/" + args[1] + ".truststore");
+        System.setProperty("javax.net.ssl.trustStorePassword", "123456");
+
+        ConnectionLoadTest test = new ConnectionLoadTest(address[0], Integer.parseInt(address[1]), args[1]);
+        String ticket;
+        try (Session session = test.open(args[2], null)) {
+            ticket = session.ticket;
+        }
+        if (ticket == null) {
+            System.err.println("[LOADTEST] O servidor não emitiu um ticket de sessão.");
+            System.exit(1);
+        }
+
+        test.run(args[2], ticket, connections, rounds);
+    }
+
+    private void run(String password, String ticket, int connections, int rounds) throws InterruptedException {
+        System.out.println("[LOADTEST] A abrir " + connections + " sessões em " + host + ":" + port);
+        List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
+        long[] openMicros = new long[connections];
+        AtomicInteger failed = new AtomicInteger();
+        AtomicInteger next = new AtomicInteger();
+
+        ExecutorService openers = Executors.newFixedThreadPool(OPENERS);
+        long startedAt = System.nanoTime();
+        for (int i = 0; i < OPENERS; i++) {
+            openers.execute(() -> {
+                int n;
+                while ((n = next.getAndIncrement()) < connections) {
+                    long start = System.nanoTime();
+                    try {
+                        sessions.add(open(password, ticket));
+                        openMicros[n] = (System.nanoTime() - start) / 1000;
+                    } catch (IOException e) {
+                        openMicros[n] = -1;
+                        if (failed.incrementAndGet() <= 5) {
+                            System.err.println("[LOADTEST] Erro ao abrir sessão: " + e.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+        openers.shutdown();
+        openers.awaitTermination(1, TimeUnit.HOURS);
+        double openSeconds = (System.nanoTime() - startedAt) / 1e9;
+
+        System.out.printf("[LOADTEST] %d sessões abertas, %d falhadas, em %.1f s (%.0f/s)%n",
+                sessions.size(), failed.get(), openSeconds, sessions.size() / openSeconds);
+        System.out.println("[LOADTEST] Abrir sessão: " + percentiles(openMicros));
+
+        for (int round = 1; round <= rounds; round++) {
+            heartbeatRound(round, sessions);
+        }
+
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Send a heartbeat on every open session, from a few threads.
+     */
+    private void heartbeatRound(int round, List<Session> sessions) throws InterruptedException {
+        long[] micros = new long[sessions.size()];
+        AtomicInteger lost = new AtomicInteger();
+        ExecutorService senders = Executors.newFixedThreadPool(OPENERS);
+        for (int i = 0; i < OPENERS; i++) {
+            int first = i;
+            senders.execute(() -> {
+                for (int n = first; n < micros.length; n += OPENERS) {
+                    Session session = sessions.get(n);
+                    long start = System.nanoTime();
+                    if (session.heartbeat()) {
+                        micros[n] = (System.nanoTime() - start) / 1000;
+                    } else {
+                        micros[n] = -1;
+                        lost.incrementAndGet();
+                    }
+                }
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(1, TimeUnit.HOURS);
+
+        System.out.println("[LOADTEST] Ronda " + round + ": " + lost.get() + " sessões perdidas, heartbeat: "
+                + percentiles(micros));
+    }
+
+    /**
+     * Open a session and log in, with the ticket if there is one.
+     */
+    private Session open(String password, String ticket) throws IOException {
+        SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
+        try {
+            Session session = new Session(socket);
+            BodyJSON body = new BodyJSON();
+            body.put("userId", userId);
+            body.put("password", password);
+            if (ticket != null) {
+                body.put("ticket", ticket);
+            }
+
+            Response response = session.send("authenticate", body);
+            if (response.getStatus() != StatusCode.OK_USER && response.getStatus() != StatusCode.OK_NEW_USER) {
+                throw new IOException("autenticação recusada: " + response.getStatus());
+            }
+            if (response.getBody().getFormat() == BodyFormat.JSON) {
+                session.ticket = response.getBodyJSON().get("ticket");
+            }
+            return session;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Format the 50th, 99th and 100th percentiles of times in microseconds,
+     * ignoring the failed ones.
+     */
+    private static String percentiles(long[] micros) {
+        long[] sorted = Arrays.stream(micros).filter(value -> value >= 0).sorted().toArray();
+        if (sorted.length == 0) {
+            return "sem amostras";
+        }
+        return String.format("p50 %.2f ms, p99 %.2f ms, máx %.2f ms",
+                sorted[(int) (sorted.length * 0.50)] / 1000.0,
+                sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1000.0,
+                sorted[sorted.length - 1] / 1000.0);
+    }
+
+    /**
+     * One open session, used by one thread at a time.
+     */
+    private static final class Session implements AutoCloseable {
+        private final SSLSocket socket;
+        private final DataInputStream in;
+        private final FrameOutputStream out;
+        private String ticket;
+
+        private Session(SSLSocket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new FrameOutputStream(socket.getOutputStream(), FlushPolicy.FRAME, BUFFER_SIZE,
+                    FrameOutputStream.DEFAULT_BATCH_SIZE);
+        }
+
+        private Response send(String route, BodyJSON body) throws IOException {
+            Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, route, body);
+            request.writeTo(out);
+            out.endFrame(false);
+            return Response.fromStream(in);
+        }
+
+        private boolean heartbeat() {
+            try {
+                return send("heartbeat", new BodyJSON()).getStatus() == StatusCode.OK;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // the session is being dropped anyway
+            }
+        }
+    }
+}
@@ -2,9 +2,15 @@ package client;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 import server.models.*;
+import server.utils.FrameOutputStream;
+import server.utils.FrameOutputStream.FlushPolicy;
 import server.utils.InputUtils;
 import server.utils.NetworkUtils;
 
@@ -17,6 +23,14 @@ import javax.net.ssl.SSLSocketFactory;
  */
 public class MySharingClient {
     private static final int DEFAULT_PORT = 12345;
+    static final String PROTOCOL_PROPERTY = "mysharing.client.protocol";
+    static final String FLUSH_PROPERTY = "mysharing.client.flush";
+    static final String FLUSH_BATCH_PROPERTY = "mysharing.client.flushBatch";
+    static final String TCP_NO_DELAY_PROPERTY = "mysharing.client.tcpNoDelay";
+    static final String TLS_PACKET_SIZE_PROPERTY = "mysharing.client.tlsPacketSize";
+    private static final String TICKETS_PROPERTY = "mysharing.client.tickets";
+    private static final int MAX_BUSY_RETRIES = 5;
+    private static final long BUSY_RETRY_DELAY_MILLIS = 200;
     private final String serverAddress;
     private final int port;
     private final String userId;
@@ -24,7 +38,8 @@ public class MySharingClient {
 
     private SSLSocket sslSocket;
     private DataInputStream in;
-    private DataOutputStream out;
+    private FrameOutputStream out;
+    private int protocolVersion = BinaryFrame.VERSION_1;
 
     public static void main(String[] args) {
         MySharingClient client = parseArgs(args);
@@ -103,7 +118,7 @@ public class MySharingClient {
 
             System.out.println("[CLIENT] " + statusCode + "\n[CLIENT] Autenticação bem sucedida.");
 
-            CommandLineInterface cli = new CommandLineInterface(sslSocket, in, out, userId);
+            CommandLineInterface cli = new CommandLineInterface(sslSocket, in, out, userId, protocolVersion);
             cli.start();
 
         } catch (Exception e) {
@@ -116,8 +131,16 @@ public class MySharingClient {
      */
     private void openStreams() {
         try {
+            String tcpNoDelay = System.getProperty(TCP_NO_DELAY_PROPERTY, "true");
+            NetworkUtils.configureSocket(sslSocket, Boolean.parseBoolean(tcpNoDelay),
+                    Integer.getInteger(TLS_PACKET_SIZE_PROPERTY, 0));
+
+            FlushPolicy flushPolicy = FlushPolicy.parse(System.getProperty(FLUSH_PROPERTY), FlushPolicy.IDLE);
+            int flushBatch = Integer.getInteger(FLUSH_BATCH_PROPERTY, FrameOutputStream.DEFAULT_BATCH_SIZE);
+
             this.in = new DataInputStream(sslSocket.getInputStream());
-            this.out = new DataOutputStream(sslSocket.getOutputStream());
+            this.out = new FrameOutputStream(sslSocket.getOutputStream(), flushPolicy,
+                    FrameOutputStream.DEFAULT_BUFFER_SIZE, flushBatch);
 
             System.out.println("[CLIENT] Streams abertas.");
         } catch (IOException e) {
@@ -142,22 +165,20 @@ public class MySharingClient {
             BodyJSON body = new BodyJSON();
             body.put("userId", userId);
             body.put("password", password);
+            String ticket = readTicket();
+            if (ticket != null) {
+                body.put("ticket", ticket);
+            }
 
-            Request request = new Request(
-                    NetworkUtils.randomUUID(),
-                    BodyFormat.JSON,
-                    "authenticate",
-                    body
-            );
-
-            this.out.write(request.toByteArray());
-            Response response = Response.fromStream(in);
+            Response response = sendAuthentication(body);
 
             //System.out.println("[CLIENT] Resposta: " + response);
 
             List<StatusCode> OK_CODES = List.of(StatusCode.OK_USER, StatusCode.OK_NEW_USER);
 
             if (OK_CODES.contains(response.getStatus())) {
+                readProtocolVersion(response);
+                saveTicket(response);
                 return response.getStatus();
             } else if (response.getStatus() == StatusCode.WRONG_PWD) {
                 
@@ -167,18 +188,17 @@ public class MySharingClient {
                 String newPassword = s.nextLine();
 
                 body.put("password", newPassword);
-                request = new Request(
-                        NetworkUtils.randomUUID(),
-                        BodyFormat.JSON,
-                        "authenticate",
-                        body
-                );
-
-                this.out.write(request.toByteArray());
-                response = Response.fromStream(in);
+                response = sendAuthentication(body);
 
                 //System.out.println("[CLIENT] Resposta Segunda Tentativa: " + response);
 
+                if (OK_CODES.contains(response.getStatus())) {
+                    readProtocolVersion(response);
+                    saveTicket(response);
+                }
+                return response.getStatus();
+            } else if (response.getStatus() == StatusCode.BUSY) {
+                System.err.println("[CLIENT] Servidor ocupado. Tente mais tarde.");
                 return response.getStatus();
             }
         } catch (Exception e) {
@@ -188,6 +208,121 @@ public class MySharingClient {
         return StatusCode.NOK;
     }
 
+    /**
+     * Send an authentication request and read the answer. While the server
+     * answers BUSY the request is sent again, waiting longer each time.
+     *
+     * @param body the user ID and credentials
+     * @return the response of the server
+     */
+    private Response sendAuthentication(BodyJSON body) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            Request request = new Request(
+                    NetworkUtils.newRequestId(),
+                    BodyFormat.JSON,
+                    "authenticate",
+                    body
+            );
+            request.addHeader("PROTOCOL", String.valueOf(getWantedProtocolVersion()));
+
+            request.writeTo(this.out);
+            this.out.endFrame(false);
+            Response response = Response.fromStream(in);
+            if (response.getStatus() != StatusCode.BUSY || attempt > MAX_BUSY_RETRIES) {
+                return response;
+            }
+
+            // random part so clients refused together do not come back together
+            long delay = (BUSY_RETRY_DELAY_MILLIS << (attempt - 1))
+                    + ThreadLocalRandom.current().nextLong(BUSY_RETRY_DELAY_MILLIS);
+            System.out.println("[CLIENT] Servidor ocupado. Nova tentativa em " + delay + " ms...");
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * Get the path where the session ticket of the user is kept between runs.
+     *
+     * @return the path of the ticket file
+     */
+    private Path getTicketPath() {
+        return Path.of("client_keys", userId, userId + ".ticket");
+    }
+
+    /**
+     * Read the session ticket of an earlier login, so the server does not
+     * have to hash the password again.
+     *
+     * @return the ticket, or null if there is none or tickets are disabled
+     */
+    private String readTicket() {
+        if (!Boolean.parseBoolean(System.getProperty(TICKETS_PROPERTY, "true"))) {
+            return null;
+        }
+
+        try {
+            Path path = getTicketPath();
+            if (!Files.exists(path)) {
+                return null;
+            }
+            String ticket = Files.readString(path, StandardCharsets.UTF_8).trim();
+            return ticket.isEmpty() ? null : ticket;
+        } catch (IOException e) {
+            System.err.println("[CLIENT] Erro ao ler o ticket de sessão: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Keep the session ticket sent by the server, if it sent a new one.
+     *
+     * @param response the successful authentication response
+     */
+    private void saveTicket(Response response) {
+        if (!Boolean.parseBoolean(System.getProperty(TICKETS_PROPERTY, "true"))
+                || response.getBody().getFormat() != BodyFormat.JSON) {
+            return;
+        }
+
+        String ticket = response.getBodyJSON().get("ticket");
+        if (ticket == null) {
+            return;
+        }
+
+        try {
+            Path path = getTicketPath();
+            if (Files.isDirectory(path.getParent())) {
+                Files.writeString(path, ticket, StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            System.err.println("[CLIENT] Erro ao guardar o ticket de sessão: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the highest protocol version this client offers at login.
+     * Setting it to 1 keeps the client on the text framing.
+     *
+     * @return the protocol version
+     */
+    static int getWantedProtocolVersion() {
+        int version = Integer.getInteger(PROTOCOL_PROPERTY, BinaryFrame.VERSION_2);
+        return Math.max(BinaryFrame.VERSION_1, Math.min(BinaryFrame.VERSION_2, version));
+    }
+
+    /**
+     * Read the protocol version chosen by the server. Servers that do not
+     * know about versions leave the header out and stay on version 1.
+     *
+     * @param response the successful authentication response
+     */
+    private void readProtocolVersion(Response response) {
+        String version = response.getHeader("PROTOCOL");
+        if (version != null && version.equals(String.valueOf(BinaryFrame.VERSION_2))) {
+            this.protocolVersion = BinaryFrame.VERSION_2;
+        }
+    }
+
     /**
      * Stop the client.
      */
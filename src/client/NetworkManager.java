@@ -1,6 +1,7 @@
 package client;
 
 import server.models.*;
+import server.utils.FrameOutputStream;
 import server.utils.NetworkUtils;
 //import shared.FileSecurityUtils;
 
@@ -15,22 +16,33 @@ import java.nio.file.Paths;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 public class NetworkManager {
+    private static final String HEARTBEAT_PROPERTY = "mysharing.client.heartbeat";
+    private static final int DEFAULT_HEARTBEAT_SECONDS = 60;
+
     private final DataInputStream in;
-    private final DataOutputStream out;
+    private final FrameOutputStream out;
+    private final int protocolVersion;
 
     /**
      * Create a new network manager.
      *
      * @param in the input stream
      * @param out the output stream
+     * @param protocolVersion the protocol version agreed at login
      */
-    public NetworkManager(DataInputStream in, DataOutputStream out) {
+    public NetworkManager(DataInputStream in, FrameOutputStream out, int protocolVersion) {
         this.in = in;
         this.out = out;
+        this.protocolVersion = protocolVersion;
     }
 
     /**
@@ -38,7 +50,7 @@ public class NetworkManager {
      *
      * @param workspaceName the workspace name
      */
-    public void createWorkspace(String workspaceName, String workspacePassword) {
+    public synchronized void createWorkspace(String workspaceName, String workspacePassword) {
         BodyJSON body = new BodyJSON();
         body.put("workspaceName", workspaceName);
         body.put("workspacePassword", workspacePassword);
@@ -63,7 +75,7 @@ public class NetworkManager {
      * @param user the user
      * @param workspaceId the workspace ID
      */
-    public void addUserToWorkspace(String user, String workspaceId, String ownerId) {
+    public synchronized void addUserToWorkspace(String user, String workspaceId, String ownerId) {
         // get key from the server
         BodyJSON bodyKey = new BodyJSON();
         bodyKey.put("action", "init");
@@ -179,7 +191,7 @@ public class NetworkManager {
      * @param workspaceId the workspace ID
      * @param files the files
      */
-    public void uploadFilesToWorkspace(String userId, String workspaceId, String[] files) {
+    public synchronized void uploadFilesToWorkspace(String userId, String workspaceId, String[] files) {
         // 1. check if the user has permission to upload files to the workspace
         BodyJSON verifyBody = new BodyJSON();
         verifyBody.put("action", "verify");
@@ -193,8 +205,9 @@ public class NetworkManager {
             }
         }
 
-        // 2. send files to the server
-        boolean first = true;
+        // 2. encrypt and sign every file and open its upload sessions
+        TransferMultiplexer multiplexer = new TransferMultiplexer(in, out, protocolVersion);
+        List<UploadTransfer> transfers = new ArrayList<>();
         for (String file : files) {
             try {
 
@@ -212,14 +225,14 @@ public class NetworkManager {
                         StatusCode status = responseKey.getStatus();
                         if (status != StatusCode.OK) {
                             System.out.println("Resposta: " + responseKey.getStatus());
-                            return;
+                            break;
                         }
 
                         String fileName = workspaceId + ".key." + userId;
                         StatusCode statusKey = receiveKeyFromServer(fileName, workspaceId, in, out);
                         if (statusKey != StatusCode.OK) {
                             System.out.println("Resposta: " + statusKey);
-                            return;
+                            break;
                         }
 
                         keyFile = new File(fileName);
@@ -234,33 +247,60 @@ public class NetworkManager {
                 String encryptedFile = ClientSecurityUtils.encryptFile(file, keyFile, userId);
                 File signatureFile = ClientSecurityUtils.createSignedFile(encryptedFile, userId, privateKey);
 
-                StatusCode fileStatus = sendFileToServerWithSignature(file, encryptedFile, signatureFile.getPath(), workspaceId, in, out);
-                if (!signatureFile.delete()) {
-                    System.err.println("[CLIENT] Erro ao apagar o ficheiro de assinatura: " + signatureFile.getPath());
-                }
-
-                // remove encrypted file
-                assert encryptedFile != null;
-                if (!new File(encryptedFile).delete()) {
-                    System.err.println("[CLIENT] Erro ao apagar o ficheiro encriptado: " + encryptedFile);
-                }
-
                 // remove key file
                 if (keyFile != null && !keyFile.delete()) {
                     System.err.println("[CLIENT] Erro ao apagar o ficheiro de chave: " + keyFile.getPath());
                 }
 
-                //System.out.print("\t" + file + ": " + status);
-                if (!first) {
-                    System.out.println("\t  " + file + ": " + fileStatus);
-                } else {
-                    first = false;
-                    System.out.println("Resposta: " + file + ": " + fileStatus);
+                assert encryptedFile != null;
+                UploadTransfer transfer = new UploadTransfer(file, new File(encryptedFile), signatureFile);
+                transfers.add(transfer);
+                startUploadWithSignature(transfer, workspaceId, in, out);
+                if (transfer.status == StatusCode.OK) {
+                    multiplexer.add(transfer.fileStream);
+                    multiplexer.add(transfer.signatureStream);
                 }
             } catch (IOException e) {
                 System.err.println("[CLIENT] Erro ao enviar ficheiro: " + e.getMessage());
             }
         }
+
+        // 3. send the chunks of all files at the same time
+        try {
+            multiplexer.run();
+        } catch (IOException e) {
+            System.err.println("[CLIENT] Erro ao enviar ficheiro: " + e.getMessage());
+            return;
+        }
+
+        // 4. complete each upload
+        boolean first = true;
+        for (UploadTransfer transfer : transfers) {
+            StatusCode fileStatus;
+            try {
+                fileStatus = finishUploadWithSignature(transfer, in, out);
+            } catch (IOException e) {
+                System.err.println("[CLIENT] Erro ao enviar ficheiro: " + e.getMessage());
+                fileStatus = StatusCode.NOK;
+            }
+
+            if (!transfer.signatureFile.delete()) {
+                System.err.println("[CLIENT] Erro ao apagar o ficheiro de assinatura: " + transfer.signatureFile.getPath());
+            }
+
+            // remove encrypted file
+            if (!transfer.encryptedFile.delete()) {
+                System.err.println("[CLIENT] Erro ao apagar o ficheiro encriptado: " + transfer.encryptedFile.getPath());
+            }
+
+            //System.out.print("\t" + file + ": " + status);
+            if (!first) {
+                System.out.println("\t  " + transfer.fileName + ": " + fileStatus);
+            } else {
+                first = false;
+                System.out.println("Resposta: " + transfer.fileName + ": " + fileStatus);
+            }
+        }
     }
 
     /**
@@ -269,7 +309,7 @@ public class NetworkManager {
      * @param workspaceId the workspace id
      * @param files the files
      */
-    public void downloadFilesFromWorkspace(String user,String workspaceId, String[] files) {
+    public synchronized void downloadFilesFromWorkspace(String user,String workspaceId, String[] files) {
         BodyJSON body = new BodyJSON();
         body.put("workspaceId", workspaceId);
         body.put("action", "verify");
@@ -283,15 +323,41 @@ public class NetworkManager {
             }
         }
 
-        boolean first = true;
+        // open the download sessions of every file
+        TransferMultiplexer multiplexer = new TransferMultiplexer(in, out, protocolVersion);
+        List<DownloadTransfer> transfers = new ArrayList<>();
         for (String file : files) {
+            DownloadTransfer transfer = new DownloadTransfer(file);
+            transfers.add(transfer);
+            try {
+                startDownloadWithSignature(transfer, workspaceId, in, out);
+                if (transfer.status == StatusCode.OK) {
+                    multiplexer.add(transfer.fileStream);
+                    multiplexer.add(transfer.signatureStream);
+                }
+            } catch (IOException e) {
+                System.err.println("[CLIENT] Erro ao receber ficheiro: " + e.getMessage());
+                transfer.status = StatusCode.NOK;
+            }
+        }
+
+        // receive the chunks of all files at the same time
+        try {
+            multiplexer.run();
+        } catch (IOException e) {
+            System.err.println("[CLIENT] Erro ao receber ficheiro: " + e.getMessage());
+            return;
+        }
+
+        boolean first = true;
+        for (DownloadTransfer transfer : transfers) {
             try {
-                StatusCode status = receiveFileFromServerWithSignature(user,file, workspaceId, in, out);
+                StatusCode status = finishDownloadWithSignature(user, transfer, workspaceId, in, out);
                 if (!first) {
-                    System.out.println("\t  " + file + ": " + status);
+                    System.out.println("\t  " + transfer.fileName + ": " + status);
                 } else {
                     first = false;
-                    System.out.println("Resposta: " + file + ": " + status);
+                    System.out.println("Resposta: " + transfer.fileName + ": " + status);
                 }
 
             } catch (IOException e) {
@@ -306,7 +372,7 @@ public class NetworkManager {
      * @param workspaceId the workspace id
      * @param files the files
      */
-    public void removeFilesFromWorkspace(String workspaceId, String[] files) {
+    public synchronized void removeFilesFromWorkspace(String workspaceId, String[] files) {
         BodyJSON bodyVerify = new BodyJSON();
         bodyVerify.put("workspaceId", workspaceId);
 
@@ -320,26 +386,39 @@ public class NetworkManager {
             }
         }
 
+        // The removals do not depend on each other, so send them without
+        // waiting for each response
+        RequestPipeline pipeline = new RequestPipeline(in, out, protocolVersion);
+        int sent = 0;
         boolean first = true;
         for (String file : files) {
-            BodyJSON body = new BodyJSON();
-            body.put("workspaceId", workspaceId);
-            body.put("fileName", file);
-
-            Response response = sendRequest(body, "removefilefromworkspace");
-            if (response != null) {
-                try {
-                    //System.out.println("Resposta: (" + response.getStatus() + ") " + message);
-                    if (!first) {
-                        System.out.println("\t  " + file + ": " + response.getStatus());
-                    } else {
-                        first = false;
-                        System.out.println("Resposta: " + file + ": " + response.getStatus());
-                    }
-
-                } catch (Exception e) {
-                    System.err.println("[CLIENT] Erro ao processar resposta: " + e.getMessage());
+            Response response;
+            try {
+                while (sent < files.length && pipeline.canSend()) {
+                    BodyJSON body = new BodyJSON();
+                    body.put("workspaceId", workspaceId);
+                    body.put("fileName", files[sent++]);
+
+                    pipeline.send(new Request(
+                            NetworkUtils.newRequestId(),
+                            BodyFormat.JSON,
+                            "removefilefromworkspace",
+                            body
+                    ));
                 }
+
+                response = pipeline.receive();
+            } catch (IOException e) {
+                System.err.println("[CLIENT] Erro ao processar pedido: " + e.getMessage());
+                return;
+            }
+
+            //System.out.println("Resposta: (" + response.getStatus() + ") " + message);
+            if (!first) {
+                System.out.println("\t  " + file + ": " + response.getStatus());
+            } else {
+                first = false;
+                System.out.println("Resposta: " + file + ": " + response.getStatus());
             }
         }
     }
@@ -347,7 +426,7 @@ public class NetworkManager {
     /**
      * Sends a request to the server to list workspaces.
      */
-    public void listWorkspaces() {
+    public synchronized void listWorkspaces() {
         Response response = sendRequest(new BodyJSON(), "listworkspaces");
         if (response != null) {
             try {
@@ -362,12 +441,31 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Sends a request to the server for the report of the integrity scrubber.
+     */
+    public synchronized void showIntegrityReport() {
+        Response response = sendRequest(new BodyJSON(), "integrityreport");
+        if (response != null) {
+            try {
+                BodyJSON responseBody = response.getBodyJSON();
+                System.out.println("Resposta: " + responseBody.get("passes") + " verificações concluídas"
+                        + " (última: " + responseBody.get("lastPass") + ", a decorrer: " + responseBody.get("running") + ")");
+                System.out.println("\t  " + responseBody.get("checkedFiles") + " ficheiros e "
+                        + responseBody.get("checkedBytes") + " bytes verificados");
+                System.out.println("\t  Problemas: " + responseBody.get("problems"));
+            } catch (Exception e) {
+                System.err.println("[CLIENT] Erro ao processar resposta: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Sends a request to the server to list the files in a workspace.
      *
      * @param workspaceId the workspace ID
      */
-    public void listFilesWorkspace(String workspaceId) {
+    public synchronized void listFilesWorkspace(String workspaceId) {
         BodyJSON body = new BodyJSON();
         body.put("workspaceId", workspaceId);
 
@@ -390,6 +488,39 @@ public class NetworkManager {
         }
     }
 
+    /**
+     * Sends a heartbeat so the server does not close an idle connection.
+     *
+     * @return true if the server answered, false otherwise
+     */
+    public synchronized boolean sendHeartbeat() {
+        Response response = sendRequest(new BodyJSON(), "heartbeat");
+        return response != null && response.getStatus() == StatusCode.OK;
+    }
+
+    /**
+     * Starts sending heartbeats in the background while the user is idle.
+     * Stops on the first failed heartbeat.
+     */
+    public void startHeartbeat() {
+        int interval = Integer.getInteger(HEARTBEAT_PROPERTY, DEFAULT_HEARTBEAT_SECONDS);
+        if (interval <= 0) {
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            if (!sendHeartbeat()) {
+                System.err.println("[CLIENT] Ligação ao servidor perdida.");
+                scheduler.shutdown();
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
     /**
      * Sends a request to the server and returns the response.
      *
@@ -401,13 +532,13 @@ public class NetworkManager {
     private Response sendRequest(BodyJSON body, String route) {
         try {
             Request request = new Request(
-                    NetworkUtils.randomUUID(),
+                    NetworkUtils.newRequestId(),
                     BodyFormat.JSON,
                     route,
                     body
             );
 
-            out.write(request.toByteArray());
+            send(request, out);
 
             return Response.fromStream(in);
         } catch (IOException e) {
@@ -418,203 +549,133 @@ public class NetworkManager {
     }
 
     /**
-     * Receives a file from the server.
+     * Writes a request and sends it right away, since its response is
+     * awaited next.
      *
-     * @param fileName the file name
+     * @param request the request
+     * @param out the output stream
+     * @throws IOException if the request cannot be written
+     */
+    private void send(Request request, FrameOutputStream out) throws IOException {
+        request.writeTo(out, protocolVersion);
+        out.endFrame(false);
+    }
+
+    /**
+     * Opens the download sessions of a file and of its signature.
+     *
+     * @param transfer the transfer
      * @param workspaceId the workspace ID
      * @param in the input stream
      * @param out the output stream
      */
-    private static StatusCode receiveFileFromServerWithSignature(String user,String fileName, String workspaceId, DataInputStream in, DataOutputStream out) throws IOException {
+    private void startDownloadWithSignature(DownloadTransfer transfer, String workspaceId, DataInputStream in, FrameOutputStream out) throws IOException {
         // Step 1: Initialize the download
         BodyJSON initBody = new BodyJSON();
         initBody.put("action", "init");
-        initBody.put("fileName", fileName);
+        initBody.put("fileName", transfer.fileName);
         initBody.put("workspaceId", workspaceId);
 
         Request initRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "downloadfilefromworkspace",
                 initBody
         );
 
-        out.write(initRequest.toByteArray());
+        send(initRequest, out);
         Response initResponse = Response.fromStream(in);
         //System.out.println("[CLIENT] Resposta de inicialização: " + initResponse);
 
         if (initResponse.getStatus() != StatusCode.OK) {
             //System.err.println("[CLIENT] Erro ao inicializar download");
-            return StatusCode.NOT_FOUND;
+            transfer.status = StatusCode.NOT_FOUND;
+            return;
         }
 
         BodyJSON initResponseBody = initResponse.getBodyJSON();
         int totalChunks = Integer.parseInt(initResponseBody.get("chunks"));
-        int fileSize = Integer.parseInt(initResponseBody.get("size"));
-        String fileId = initResponseBody.get("fileId");
-
-        // Step 2: Receive file chunks
-        try (FileOutputStream fileOut = new FileOutputStream(fileName)) {
-            for (int chunkId = 0; chunkId < totalChunks; chunkId++) {
-                BodyJSON chunkBody = new BodyJSON();
-                chunkBody.put("action", "chunk");
-                chunkBody.put("chunkId", String.valueOf(chunkId));
-                chunkBody.put("fileId", fileId);
-
-                Request chunkRequest = new Request(
-                        NetworkUtils.randomUUID(),
-                        BodyFormat.JSON,
-                        "downloadfilefromworkspace",
-                        chunkBody
-                );
-
-                out.write(chunkRequest.toByteArray());
-                Response chunkResponse = Response.fromStream(in);
-                if (!String.valueOf(chunkId).equals(chunkResponse.getHeader("CHUNK-ID"))) {
-                    System.err.println("[CLIENT] Erro ao receber chunk " + chunkId);
-                    Files.deleteIfExists(Paths.get(fileName));
-                    return chunkResponse.getStatus();
-                }
-
-                if (!fileId.equals(chunkResponse.getHeader("FILE-ID"))) {
-                    System.err.println("[CLIENT] Erro ao receber chunk " + chunkId);
-                    Files.deleteIfExists(Paths.get(fileName));
-                    return chunkResponse.getStatus();
-                }
-
-                //System.out.println("[CLIENT] Resposta de chunk " + chunkId + ": " + chunkResponse);
-
-                if (chunkResponse.getStatus() != StatusCode.OK) {
-                    System.err.println("[CLIENT] Erro ao receber chunk " + chunkId);
-                    Files.deleteIfExists(Paths.get(fileName));
-                    return chunkResponse.getStatus();
-                }
+        transfer.fileId = initResponseBody.get("fileId");
 
-                BodyRaw chunkData = chunkResponse.getBodyRaw();
-                fileOut.write(chunkData.toBytes());
-            }
-        } catch (IOException e) {
-            System.err.println("[CLIENT] Erro ao receber ficheiro: " + e.getMessage());
-            Files.deleteIfExists(Paths.get(fileName));
-            return StatusCode.NOK;
-        }
-
-        // Step 3: Complete the download
-        BodyJSON completeBody = new BodyJSON();
-        completeBody.put("action", "complete");
-        completeBody.put("fileId", fileId);
-
-        Request completeRequest = new Request(
-                NetworkUtils.randomUUID(),
-                BodyFormat.JSON,
-                "downloadfilefromworkspace",
-                completeBody
-        );
-
-        out.write(completeRequest.toByteArray());
-
-        Response completeResponse = Response.fromStream(in);
-        if (completeResponse.getStatus() != StatusCode.OK) {
-            System.err.println("[CLIENT] Erro ao finalizar download!");
-            Files.deleteIfExists(Paths.get(fileName));
-
-            return completeResponse.getStatus();
-        }
-
-        
-        // Step 4: Init the signature file
+        // Step 2: Init the signature file
         initBody = new BodyJSON();
         initBody.put("action", "signature_init");
-        initBody.put("fileName", fileName);
+        initBody.put("fileName", transfer.fileName);
         initBody.put("workspaceId", workspaceId);
 
         initRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "downloadfilefromworkspace",
                 initBody
         );
 
-        out.write(initRequest.toByteArray());
+        send(initRequest, out);
         initResponse = Response.fromStream(in);
         //System.out.println("[CLIENT] Resposta de inicialização: " + initResponse);
 
         if (initResponse.getStatus() != StatusCode.OK) {
             //System.err.println("[CLIENT] Erro ao inicializar download");
-            return StatusCode.NOT_FOUND;
+            transfer.status = StatusCode.NOT_FOUND;
+            return;
         }
 
         initResponseBody = initResponse.getBodyJSON();
-        totalChunks = Integer.parseInt(initResponseBody.get("chunks"));
-        fileSize = Integer.parseInt(initResponseBody.get("size"));
-        String signatureFileName = initResponseBody.get("fileName");
-        fileId = initResponseBody.get("fileId");
-
-
-        // Step 5 : Receive signature file chunks
-        try (FileOutputStream fileOut2 = new FileOutputStream(signatureFileName)) {
-            for (int chunkId = 0; chunkId < totalChunks; chunkId++) {
-                BodyJSON chunkBody = new BodyJSON();
-                chunkBody.put("action", "signature_chunk");
-                chunkBody.put("chunkId", String.valueOf(chunkId));
-                chunkBody.put("fileId", fileId);
-
-                Request chunkRequest = new Request(
-                        NetworkUtils.randomUUID(),
-                        BodyFormat.JSON,
-                        "downloadfilefromworkspace",
-                        chunkBody
-                );
-
-                out.write(chunkRequest.toByteArray());
-                Response chunkResponse = Response.fromStream(in);
-                if (!String.valueOf(chunkId).equals(chunkResponse.getHeader("CHUNK-ID"))) {
-                    System.err.println("[CLIENT] Erro ao receber chunk " + chunkId);
-                    Files.deleteIfExists(Paths.get(signatureFileName));
-                    return chunkResponse.getStatus();
-                }
-
-                if (!fileId.equals(chunkResponse.getHeader("FILE-ID"))) {
-                    System.err.println("[CLIENT] Erro ao receber chunk " + chunkId);
-                    Files.deleteIfExists(Paths.get(signatureFileName));
-                    return chunkResponse.getStatus();
-                }
+        int totalSignatureChunks = Integer.parseInt(initResponseBody.get("chunks"));
+        transfer.signatureFileName = initResponseBody.get("fileName");
+        transfer.signatureFileId = initResponseBody.get("fileId");
+
+        // the chunks of both files are received later, together with the other transfers
+        transfer.fileStream = new TransferMultiplexer.DownloadStream(
+                transfer.fileId, "chunk", totalChunks, transfer.fileName);
+        transfer.signatureStream = new TransferMultiplexer.DownloadStream(
+                transfer.signatureFileId, "signature_chunk", totalSignatureChunks, transfer.signatureFileName);
+    }
 
-                //System.out.println("[CLIENT] Resposta de chunk " + chunkId + ": " + chunkResponse);
+    /**
+     * Completes a download whose chunks have been received, verifies the
+     * signature and decrypts the file.
+     *
+     * @param user the user
+     * @param transfer the transfer
+     * @param workspaceId the workspace ID
+     * @param in the input stream
+     * @param out the output stream
+     * @return the status of the download
+     */
+    private StatusCode finishDownloadWithSignature(String user, DownloadTransfer transfer, String workspaceId, DataInputStream in, FrameOutputStream out) throws IOException {
+        if (transfer.status != StatusCode.OK) {
+            return transfer.status;
+        }
 
-                if (chunkResponse.getStatus() != StatusCode.OK) {
-                    System.err.println("[CLIENT] Erro ao receber chunk " + chunkId);
-                    Files.deleteIfExists(Paths.get(signatureFileName));
-                    return chunkResponse.getStatus();
-                }
+        String fileName = transfer.fileName;
+        String signatureFileName = transfer.signatureFileName;
 
-                BodyRaw chunkData = chunkResponse.getBodyRaw();
-                fileOut2.write(chunkData.toBytes());
-            }
-        } catch (IOException e) {
-            System.err.println("[CLIENT] Erro ao receber ficheiro: " + e.getMessage());
+        StatusCode chunksStatus = transfer.fileStream.getStatus();
+        if (chunksStatus == StatusCode.OK) {
+            chunksStatus = transfer.signatureStream.getStatus();
+        }
+        if (chunksStatus != StatusCode.OK) {
             Files.deleteIfExists(Paths.get(fileName));
             Files.deleteIfExists(Paths.get(signatureFileName));
-            return StatusCode.NOK;
+            return chunksStatus;
         }
 
-
-        //Step 6: Receive signature file completion
-
-        completeBody = new BodyJSON();
+        // Step 3: Complete the download
+        BodyJSON completeBody = new BodyJSON();
         completeBody.put("action", "complete");
-        completeBody.put("fileId", fileId);
+        completeBody.put("fileId", transfer.fileId);
 
-        completeRequest = new Request(
-                NetworkUtils.randomUUID(),
+        Request completeRequest = new Request(
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "downloadfilefromworkspace",
                 completeBody
         );
 
-        out.write(completeRequest.toByteArray());
+        send(completeRequest, out);
 
-        completeResponse = Response.fromStream(in);
+        Response completeResponse = Response.fromStream(in);
         if (completeResponse.getStatus() != StatusCode.OK) {
             System.err.println("[CLIENT] Erro ao finalizar download!");
             Files.deleteIfExists(Paths.get(fileName));
@@ -623,7 +684,21 @@ public class NetworkManager {
             return completeResponse.getStatus();
         }
 
+        // Step 4: Complete the signature file download
+        completeBody = new BodyJSON();
+        completeBody.put("action", "complete");
+        completeBody.put("fileId", transfer.signatureFileId);
+
+        completeRequest = new Request(
+                NetworkUtils.newRequestId(),
+                BodyFormat.JSON,
+                "downloadfilefromworkspace",
+                completeBody
+        );
+
+        send(completeRequest, out);
 
+        completeResponse = Response.fromStream(in);
         if (completeResponse.getStatus() != StatusCode.OK) {
             System.err.println("[CLIENT] Erro ao finalizar download!");
             Files.deleteIfExists(Paths.get(fileName));
@@ -673,22 +748,25 @@ public class NetworkManager {
     }
 
     /**
-     * Sends a file to the server.
+     * Opens the upload sessions of an encrypted file and of its signature.
      *
-     * @param filePath the file path
+     * @param transfer the transfer
+     * @param workspaceId the workspace ID
      * @param in the input stream
      * @param out the output stream
      */
-    private static StatusCode sendFileToServerWithSignature(String fileName, String filePath,String signatureFilePath, String workspaceId, DataInputStream in, DataOutputStream out) throws IOException {
-        File file = new File(filePath);
-        File signatureFile = new File(signatureFilePath);
+    private void startUploadWithSignature(UploadTransfer transfer, String workspaceId, DataInputStream in, FrameOutputStream out) throws IOException {
+        File file = transfer.encryptedFile;
+        File signatureFile = transfer.signatureFile;
         if (!file.exists()) {
-            System.err.println("[CLIENT] Ficheiro não encontrado: " + filePath);
-            return StatusCode.NOT_FOUND;
+            System.err.println("[CLIENT] Ficheiro não encontrado: " + file.getPath());
+            transfer.status = StatusCode.NOT_FOUND;
+            return;
         }
         if (!signatureFile.exists()) {
-            System.err.println("[CLIENT] Assinatura não encontrado: " + filePath);
-            return StatusCode.NOT_FOUND;
+            System.err.println("[CLIENT] Assinatura não encontrado: " + file.getPath());
+            transfer.status = StatusCode.NOT_FOUND;
+            return;
         }
 
         // Step 1: Initialize the upload
@@ -697,92 +775,34 @@ public class NetworkManager {
         BodyJSON initBody = new BodyJSON();
         initBody.put("action", "init");
         initBody.put("workspaceId", workspaceId);
-        initBody.put("fileName", fileName);
+        initBody.put("fileName", transfer.fileName);
         initBody.put("size", String.valueOf(file.length()));
 
-        int chunkSize = 1024 * 64; // 64KB chunks
+        int chunkSize = TransferMultiplexer.CHUNK_SIZE;
         int totalChunks = (int) Math.ceil((double) file.length() / chunkSize);
         initBody.put("chunks", String.valueOf(totalChunks));
 
         Request initRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "uploadfiletoworkspace",
                 initBody
         );
 
-        out.write(initRequest.toByteArray());
+        send(initRequest, out);
         Response initResponse = Response.fromStream(in);
         //System.out.println("[CLIENT] Resposta de inicialização: " + initResponse);
 
         if (initResponse.getStatus() != StatusCode.OK) {
             System.err.println("[CLIENT] Erro ao inicializar upload");
-            return initResponse.getStatus();
+            transfer.status = initResponse.getStatus();
+            return;
         }
 
         BodyJSON initResponseBody = initResponse.getBodyJSON();
-        String fileId = initResponseBody.get("fileId");
-
-        // Step 2: Send file chunks
-        try (FileInputStream fileIn = new FileInputStream(file)) {
-            byte[] buffer = new byte[chunkSize];
-            int chunkId = 0;
-            int bytesRead;
-
-            while ((bytesRead = fileIn.read(buffer)) > 0) {
-                byte[] chunkData;
-                if (bytesRead < buffer.length) {
-                    chunkData = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
-                } else {
-                    chunkData = buffer;
-                }
-
-                BodyRaw chunkBody = new BodyRaw(chunkData);
-                Request chunkRequest = new Request(
-                        NetworkUtils.randomUUID(),
-                        BodyFormat.RAW,
-                        "uploadfiletoworkspace",
-                        chunkBody
-                );
-                chunkRequest.addHeader("FILE-ID", fileId);
-                chunkRequest.addHeader("CHUNK-ID", String.valueOf(chunkId));
-                chunkRequest.addHeader("TYPE", "CHUNK");
-
-                //System.out.println("[CLIENT] Enviando chunk " + (chunkId + 1) + "/" + (totalChunks));
-                out.write(chunkRequest.toByteArray());
+        transfer.fileId = initResponseBody.get("fileId");
 
-                Response chunkResponse = Response.fromStream(in);
-                if (chunkResponse.getStatus() != StatusCode.OK) {
-                    System.err.println("[CLIENT] Erro ao enviar chunk " + chunkId);
-                    return chunkResponse.getStatus();
-                }
-
-                chunkId++;
-            }
-        }
-
-        // Step 3: Complete the file upload
-        BodyJSON completeBody = new BodyJSON();
-        completeBody.put("action", "complete");
-        completeBody.put("fileId", fileId);
-
-        Request completeRequest = new Request(
-                NetworkUtils.randomUUID(),
-                BodyFormat.JSON,
-                "uploadfiletoworkspace",
-                completeBody
-        );
-
-        out.write(completeRequest.toByteArray());
-        Response completeResponse = Response.fromStream(in);
-
-        if (completeResponse.getStatus() != StatusCode.OK) {
-            System.err.println("[CLIENT] Erro ao finalizar upload");
-            return completeResponse.getStatus();
-        }
-
-        // Step 4: Send the signature file init
+        // Step 2: Send the signature file init
         BodyJSON initSignatureBody = new BodyJSON();
         initSignatureBody.put("action", "signature_init");
         initSignatureBody.put("workspaceId", workspaceId);
@@ -793,77 +813,84 @@ public class NetworkManager {
         initSignatureBody.put("chunks", String.valueOf(totalSignatureChunks));
 
         Request initSingatureRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "uploadfiletoworkspace",
                 initSignatureBody
         );
 
-        out.write(initSingatureRequest.toByteArray());
+        send(initSingatureRequest, out);
         Response initSignatureResponse = Response.fromStream(in);
-        //System.out.println("[CLIENT] Resposta de inicialização: " + initResponse);
 
-        if (initResponse.getStatus() != StatusCode.OK) {
+        if (initSignatureResponse.getStatus() != StatusCode.OK) {
             System.err.println("[CLIENT] Erro ao inicializar upload");
-            return initResponse.getStatus();
+            transfer.status = initSignatureResponse.getStatus();
+            return;
         }
 
         BodyJSON initSignatureResponseBody = initSignatureResponse.getBodyJSON();
-        String signatureFileId = initSignatureResponseBody.get("signatureFileId");
+        transfer.signatureFileId = initSignatureResponseBody.get("signatureFileId");
 
-        // Step 5: Send signature file chunks
-        try (FileInputStream fileIn = new FileInputStream(signatureFile)) {
-            byte[] buffer = new byte[chunkSize];
-            int chunkId = 0;
-            int bytesRead;
+        // the chunks of both files are sent later, together with the other transfers
+        transfer.fileStream = new TransferMultiplexer.UploadStream(
+                transfer.fileId, "FILE-ID", "CHUNK", file);
+        transfer.signatureStream = new TransferMultiplexer.UploadStream(
+                transfer.signatureFileId, "SIGNATURE-FILE-ID", "SIGNATURE-CHUNK", signatureFile);
+    }
 
-            while ((bytesRead = fileIn.read(buffer)) > 0) {
-                byte[] chunkData;
-                if (bytesRead < buffer.length) {
-                    chunkData = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
-                } else {
-                    chunkData = buffer;
-                }
+    /**
+     * Completes an upload whose chunks have been sent.
+     *
+     * @param transfer the transfer
+     * @param in the input stream
+     * @param out the output stream
+     * @return the status of the upload
+     */
+    private StatusCode finishUploadWithSignature(UploadTransfer transfer, DataInputStream in, FrameOutputStream out) throws IOException {
+        if (transfer.status != StatusCode.OK) {
+            return transfer.status;
+        }
+        if (transfer.fileStream.getStatus() != StatusCode.OK) {
+            return transfer.fileStream.getStatus();
+        }
+        if (transfer.signatureStream.getStatus() != StatusCode.OK) {
+            return transfer.signatureStream.getStatus();
+        }
 
-                BodyRaw chunkBody = new BodyRaw(chunkData);
-                Request chunkRequest = new Request(
-                        NetworkUtils.randomUUID(),
-                        BodyFormat.RAW,
-                        "uploadfiletoworkspace",
-                        chunkBody
-                );
-                chunkRequest.addHeader("SIGNATURE-FILE-ID", signatureFileId);
-                chunkRequest.addHeader("CHUNK-ID", String.valueOf(chunkId));
-                chunkRequest.addHeader("TYPE", "SIGNATURE-CHUNK");
+        // Step 3: Complete the file upload
+        BodyJSON completeBody = new BodyJSON();
+        completeBody.put("action", "complete");
+        completeBody.put("fileId", transfer.fileId);
 
-                //System.out.println("[CLIENT] Enviando chunk " + (chunkId + 1) + "/" + (totalChunks));
-                out.write(chunkRequest.toByteArray());
+        Request completeRequest = new Request(
+                NetworkUtils.newRequestId(),
+                BodyFormat.JSON,
+                "uploadfiletoworkspace",
+                completeBody
+        );
 
-                Response chunkResponse = Response.fromStream(in);
-                if (chunkResponse.getStatus() != StatusCode.OK) {
-                    System.err.println("[CLIENT] Erro ao enviar chunk " + chunkId);
-                    return chunkResponse.getStatus();
-                }
+        send(completeRequest, out);
+        Response completeResponse = Response.fromStream(in);
 
-                chunkId++;
-            }
+        if (completeResponse.getStatus() != StatusCode.OK) {
+            System.err.println("[CLIENT] Erro ao finalizar upload");
+            return completeResponse.getStatus();
         }
 
-        // Step 6: Complete the signature file upload
+        // Step 4: Complete the signature file upload
         BodyJSON completeSignatureBody = new BodyJSON();
         completeSignatureBody.put("action", "signature_complete");
-        completeSignatureBody.put("fileId", fileId);
-        completeSignatureBody.put("signatureFileId", signatureFileId);
+        completeSignatureBody.put("fileId", transfer.fileId);
+        completeSignatureBody.put("signatureFileId", transfer.signatureFileId);
 
         Request completeRSignatureRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "uploadfiletoworkspace",
                 completeSignatureBody
         );
 
-        out.write(completeRSignatureRequest.toByteArray());
+        send(completeRSignatureRequest, out);
         Response completeSignatureResponse = Response.fromStream(in);
 
         if (completeSignatureResponse.getStatus() != StatusCode.OK) {
@@ -884,20 +911,20 @@ public class NetworkManager {
      * @param in the input stream
      * @param out the output stream
      */
-    private static StatusCode receiveKeyFromServer(String fileName, String workspaceId, DataInputStream in, DataOutputStream out) throws IOException {
+    private StatusCode receiveKeyFromServer(String fileName, String workspaceId, DataInputStream in, FrameOutputStream out) throws IOException {
         // Step 1: Initialize the download
         BodyJSON initBody = new BodyJSON();
         initBody.put("action", "init");
         initBody.put("workspaceId", workspaceId);
 
         Request initRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "downloadkeyfromworkspace",
                 initBody
         );
 
-        out.write(initRequest.toByteArray());
+        send(initRequest, out);
         Response initResponse = Response.fromStream(in);
         //System.out.println("[CLIENT] Resposta de inicialização: " + initResponse);
 
@@ -920,13 +947,13 @@ public class NetworkManager {
                 chunkBody.put("fileId", fileId);
 
                 Request chunkRequest = new Request(
-                        NetworkUtils.randomUUID(),
+                        NetworkUtils.newRequestId(),
                         BodyFormat.JSON,
                         "downloadkeyfromworkspace",
                         chunkBody
                 );
 
-                out.write(chunkRequest.toByteArray());
+                send(chunkRequest, out);
                 Response chunkResponse = Response.fromStream(in);
                 if (!String.valueOf(chunkId).equals(chunkResponse.getHeader("CHUNK-ID"))) {
                     System.err.println("[CLIENT] Erro ao receber chunk " + chunkId);
@@ -949,7 +976,8 @@ public class NetworkManager {
                 }
 
                 BodyRaw chunkData = chunkResponse.getBodyRaw();
-                fileOut.write(chunkData.toBytes());
+                chunkData.writeTo(fileOut);
+                chunkResponse.release();
             }
         } catch (IOException e) {
             System.err.println("[CLIENT] Erro ao receber ficheiro: " + e.getMessage());
@@ -963,13 +991,13 @@ public class NetworkManager {
         completeBody.put("fileId", fileId);
 
         Request completeRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "downloadkeyfromworkspace",
                 completeBody
         );
 
-        out.write(completeRequest.toByteArray());
+        send(completeRequest, out);
         Response completeResponse = Response.fromStream(in);
 
         if (completeResponse.getStatus() != StatusCode.OK) {
@@ -990,7 +1018,7 @@ public class NetworkManager {
      * @param in the input stream
      * @param out the output stream
      */
-    private static String sendKeyToServer(String filePath, String workspaceId, DataInputStream in, DataOutputStream out) throws IOException {
+    private String sendKeyToServer(String filePath, String workspaceId, DataInputStream in, FrameOutputStream out) throws IOException {
         File file = new File(filePath);
         if (!file.exists()) {
             //System.err.println("[CLIENT] Ficheiro não encontrado: " + filePath);
@@ -1011,13 +1039,13 @@ public class NetworkManager {
         initBody.put("chunks", String.valueOf(totalChunks));
 
         Request initRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "uploadkeytoworkspace",
                 initBody
         );
 
-        out.write(initRequest.toByteArray());
+        send(initRequest, out);
         Response initResponse = Response.fromStream(in);
         //System.out.println("[CLIENT] Resposta de inicialização: " + initResponse);
 
@@ -1030,24 +1058,18 @@ public class NetworkManager {
         BodyJSON initResponseBody = initResponse.getBodyJSON();
         String fileId = initResponseBody.get("fileId");
 
-        // Step 2: Send file chunks
+        // Step 2: Send file chunks, without waiting for each acknowledgement
+        RequestPipeline pipeline = new RequestPipeline(in, out, protocolVersion);
         try (FileInputStream fileIn = new FileInputStream(file)) {
             byte[] buffer = new byte[chunkSize];
             int chunkId = 0;
             int bytesRead;
 
             while ((bytesRead = fileIn.read(buffer)) > 0) {
-                byte[] chunkData;
-                if (bytesRead < buffer.length) {
-                    chunkData = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
-                } else {
-                    chunkData = buffer;
-                }
-
-                BodyRaw chunkBody = new BodyRaw(chunkData);
+                // the request is written before the buffer is read into again
+                BodyRaw chunkBody = BodyRaw.wrap(buffer, 0, bytesRead);
                 Request chunkRequest = new Request(
-                        NetworkUtils.randomUUID(),
+                        NetworkUtils.newRequestId(),
                         BodyFormat.RAW,
                         "uploadkeytoworkspace",
                         chunkBody
@@ -1057,7 +1079,7 @@ public class NetworkManager {
                 chunkRequest.addHeader("TYPE", "CHUNK");
 
                 //System.out.println("[CLIENT] Enviando chunk " + (chunkId + 1) + "/" + (totalChunks));
-                out.write(chunkRequest.toByteArray());
+                send(chunkRequest, out);
 
                 Response chunkResponse = Response.fromStream(in);
                 if (chunkResponse.getStatus() != StatusCode.OK) {
@@ -1076,13 +1098,13 @@ public class NetworkManager {
         completeBody.put("fileId", fileId);
 
         Request completeRequest = new Request(
-                NetworkUtils.randomUUID(),
+                NetworkUtils.newRequestId(),
                 BodyFormat.JSON,
                 "uploadkeytoworkspace",
                 completeBody
         );
 
-        out.write(completeRequest.toByteArray());
+        send(completeRequest, out);
         Response completeResponse = Response.fromStream(in);
 
         if (completeResponse.getStatus() != StatusCode.OK) {
@@ -1096,4 +1118,41 @@ public class NetworkManager {
 
         return fileId;
     }
-}
\ No newline at end of file
+
+    /**
+     * A file being uploaded together with its signature.
+     */
+    private static class UploadTransfer {
+        private final String fileName;
+        private final File encryptedFile;
+        private final File signatureFile;
+        private StatusCode status = StatusCode.OK;
+        private String fileId;
+        private String signatureFileId;
+        private TransferMultiplexer.UploadStream fileStream;
+        private TransferMultiplexer.UploadStream signatureStream;
+
+        private UploadTransfer(String fileName, File encryptedFile, File signatureFile) {
+            this.fileName = fileName;
+            this.encryptedFile = encryptedFile;
+            this.signatureFile = signatureFile;
+        }
+    }
+
+    /**
+     * A file being downloaded together with its signature.
+     */
+    private static class DownloadTransfer {
+        private final String fileName;
+        private StatusCode status = StatusCode.OK;
+        private String fileId;
+        private String signatureFileName;
+        private String signatureFileId;
+        private TransferMultiplexer.DownloadStream fileStream;
+        private TransferMultiplexer.DownloadStream signatureStream;
+
+        private DownloadTransfer(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+}
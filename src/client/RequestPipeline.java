@@ -0,0 +1,104 @@
+package client;
+
+import server.models.Request;
+import server.models.Response;
+import server.utils.FrameOutputStream;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Keeps several requests in flight on one connection.
+ * The server answers in the order it received the requests, so each response
+ * is matched against the UUID of the oldest request still waiting.
+ */
+class RequestPipeline {
+    private static final String DEPTH_PROPERTY = "mysharing.client.pipelineDepth";
+    private static final int DEFAULT_DEPTH = 8;
+
+    private final DataInputStream in;
+    private final FrameOutputStream out;
+    private final int depth;
+    private final int protocolVersion;
+    private final Queue<String> inFlight = new ArrayDeque<>();
+
+    /**
+     * Create a new pipeline with the configured depth.
+     *
+     * @param in the input stream
+     * @param out the output stream
+     * @param protocolVersion the protocol version agreed at login
+     */
+    RequestPipeline(DataInputStream in, FrameOutputStream out, int protocolVersion) {
+        this.in = in;
+        this.out = out;
+        this.protocolVersion = protocolVersion;
+        this.depth = Math.max(1, Integer.getInteger(DEPTH_PROPERTY, DEFAULT_DEPTH));
+    }
+
+    /**
+     * Check if another request can be sent without waiting for a response.
+     *
+     * @return true if the pipeline is not full
+     */
+    boolean canSend() {
+        return inFlight.size() < depth;
+    }
+
+    /**
+     * Check if there are responses still to be read.
+     *
+     * @return true if at least one request is waiting for its response
+     */
+    boolean hasPending() {
+        return !inFlight.isEmpty();
+    }
+
+    /**
+     * Send a request without waiting for its response.
+     *
+     * @param request the request
+     * @throws IOException if the request cannot be written
+     */
+    void send(Request request) throws IOException {
+        request.writeTo(out, protocolVersion);
+        // may stay buffered until the next receive
+        out.endFrame(true);
+        inFlight.add(request.getUUID());
+    }
+
+    /**
+     * Read the response to the oldest request in flight.
+     *
+     * @return the response
+     * @throws IOException if the response cannot be read or does not match the request
+     */
+    Response receive() throws IOException {
+        String expected = inFlight.poll();
+        if (expected == null) {
+            throw new IllegalStateException("Nenhum pedido pendente");
+        }
+
+        out.flush();
+        Response response = Response.fromStream(in);
+        if (!expected.equals(response.getUUID())) {
+            throw new IOException("Resposta fora de ordem: esperado " + expected + ", recebido " + response.getUUID());
+        }
+
+        return response;
+    }
+
+    /**
+     * Read and discard the responses still in flight, so the next exchange
+     * starts in sync with the server.
+     *
+     * @throws IOException if a response cannot be read
+     */
+    void drain() throws IOException {
+        while (hasPending()) {
+            receive();
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package client;
+
+import server.models.BinaryFrame;
+import server.models.BodyFormat;
+import server.models.BodyJSON;
+import server.models.Request;
+import server.models.Response;
+import server.models.StatusCode;
+import server.utils.FrameOutputStream;
+import server.utils.FrameOutputStream.FlushPolicy;
+import server.utils.NetworkUtils;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of one connection to a running server and how
+ * many TLS records each frame takes, for small JSON requests and for 64 KB
+ * download chunks:
+ *
+ * java -cp build client.ThroughputBenchmark <server:port> <user-id> <password> <workspace> <file> [requests] [chunks] [in-flight]
+ *
+ * The client connects through a relay on the loopback that reads the TLS
+ * record headers going each way, so the records are counted as they are on
+ * the wire. Requests are pipelined, at most [in-flight] at a time. The
+ * client uses the same -Dmysharing.client.* settings as MySharingClient;
+ * to compare flush policies or connection modes, restart the server with
+ * another -Dmysharing.server.flush or -Dmysharing.server.mode and run again.
+ * The file must already be in the workspace, ideally a few MB long.
+ */
+public class ThroughputBenchmark {
+    private static final int DEFAULT_REQUESTS = 10_000;
+    private static final int DEFAULT_CHUNKS = 2_000;
+    private static final int DEFAULT_IN_FLIGHT = 16;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Relay relay;
+    private final SSLSocket socket;
+    private final DataInputStream in;
+    private final FrameOutputStream out;
+    private int protocolVersion = BinaryFrame.VERSION_1;
+
+    private ThroughputBenchmark(Relay relay, SSLSocket socket) throws IOException {
+        this.relay = relay;
+        this.socket = socket;
+
+        NetworkUtils.configureSocket(socket,
+                Boolean.parseBoolean(System.getProperty(MySharingClient.TCP_NO_DELAY_PROPERTY, "true")),
+                Integer.getInteger(MySharingClient.TLS_PACKET_SIZE_PROPERTY, 0));
+        FlushPolicy policy = FlushPolicy.parse(System.getProperty(MySharingClient.FLUSH_PROPERTY), FlushPolicy.IDLE);
+        this.in = new DataInputStream(socket.getInputStream());
+        this.out = new FrameOutputStream(socket.getOutputStream(), policy, FrameOutputStream.DEFAULT_BUFFER_SIZE,
+                Integer.getInteger(MySharingClient.FLUSH_BATCH_PROPERTY, FrameOutputStream.DEFAULT_BATCH_SIZE));
+        System.out.println("[BENCHMARK] Política de flush do cliente: " + policy);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 5) {
+            System.err.println("Uso: java client.ThroughputBenchmark <servidor:porto> <user-id> <password> <workspace> "
+                    + "<ficheiro> [pedidos] [chunks] [em-voo]");
+            System.exit(1);
+        }
+
+        String[] address = args[0].split(":");
+        int requests = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_REQUESTS;
+        int chunks = args.length > 6 ? Integer.parseInt(args[6]) : DEFAULT_CHUNKS;
+        int inFlight = args.length > 7 ? Integer.parseInt(args[7]) : DEFAULT_IN_FLIGHT;
+
+        System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+        System.setProperty("javax.net.ssl.trustStore", "client_keys/" + args[1] + "/" + args[1] + ".truststore");
+        System.setProperty("javax.net.ssl.trustStorePassword", "123456");
+
+        try (Relay relay = new Relay(address[0], Integer.parseInt(address[1]))) {
+            SSLSocket socket = (SSLSocket) SSLSocketFactory.getDefault()
+                    .createSocket(InetAddress.getLoopbackAddress(), relay.getPort());
+            try {
+                ThroughputBenchmark benchmark = new ThroughputBenchmark(relay, socket);
+                benchmark.login(args[1], args[2]);
+                benchmark.heartbeats(requests, inFlight);
+                benchmark.downloads(args[3], args[4], chunks, inFlight);
+            } finally {
+                socket.close();
+            }
+        }
+    }
+
+    private void login(String userId, String password) throws IOException {
+        BodyJSON body = new BodyJSON();
+        body.put("userId", userId);
+        body.put("password", password);
+        Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "authenticate", body);
+        request.addHeader("PROTOCOL", String.valueOf(MySharingClient.getWantedProtocolVersion()));
+
+        Response response = call(request);
+        if (response.getStatus() != StatusCode.OK_USER && response.getStatus() != StatusCode.OK_NEW_USER) {
+            throw new IOException("autenticação recusada: " + response.getStatus());
+        }
+        if (String.valueOf(BinaryFrame.VERSION_2).equals(response.getHeader("PROTOCOL"))) {
+            protocolVersion = BinaryFrame.VERSION_2;
+        }
+        System.out.println("[BENCHMARK] Protocolo versão " + protocolVersion);
+    }
+
+    /**
+     * Send heartbeats, the smallest JSON request and response there is.
+     */
+    private void heartbeats(int count, int inFlight) throws IOException {
+        Measurement measurement = new Measurement();
+        pipeline(count, inFlight, n -> new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "heartbeat",
+                new BodyJSON()), StatusCode.OK);
+        measurement.report("JSON pequeno", count);
+    }
+
+    /**
+     * Download the file over and over until the given number of chunks came in.
+     */
+    private void downloads(String workspaceId, String fileName, int count, int inFlight) throws IOException {
+        Measurement measurement = new Measurement();
+        int received = 0;
+        while (received < count) {
+            BodyJSON init = new BodyJSON();
+            init.put("action", "init");
+            init.put("workspaceId", workspaceId);
+            init.put("fileName", fileName);
+            Response response = call(download(init));
+            if (response.getStatus() != StatusCode.OK) {
+                throw new IOException("download recusado: " + response.getStatus());
+            }
+
+            String fileId = response.getBodyJSON().get("fileId");
+            int chunks = Math.min(Integer.parseInt(response.getBodyJSON().get("chunks")), count - received);
+            if (chunks == 0) {
+                throw new IOException("o ficheiro está vazio");
+            }
+            pipeline(chunks, inFlight, n -> {
+                BodyJSON chunk = new BodyJSON();
+                chunk.put("action", "chunk");
+                chunk.put("fileId", fileId);
+                chunk.put("chunkId", String.valueOf(n));
+                return download(chunk);
+            }, StatusCode.OK);
+            received += chunks;
+
+            BodyJSON complete = new BodyJSON();
+            complete.put("action", "complete");
+            complete.put("fileId", fileId);
+            call(download(complete));
+        }
+        measurement.report("chunks 64 KB", received);
+    }
+
+    private static Request download(BodyJSON body) {
+        return new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "downloadfilefromworkspace", body);
+    }
+
+    /**
+     * Send requests with at most inFlight of them unanswered. A burst of
+     * requests is marked as such, so the flush policy sees it.
+     */
+    private void pipeline(int count, int inFlight, RequestFactory factory, StatusCode expected) throws IOException {
+        int sent = 0;
+        int received = 0;
+        while (received < count) {
+            while (sent < count && sent - received < inFlight) {
+                factory.create(sent).writeTo(out, protocolVersion);
+                sent++;
+                out.endFrame(sent < count && sent - received < inFlight);
+            }
+
+            Response response = Response.fromStream(in);
+            try {
+                if (response.getStatus() != expected) {
+                    throw new IOException("resposta inesperada: " + response.getStatus());
+                }
+            } finally {
+                response.release();
+            }
+            received++;
+        }
+    }
+
+    private Response call(Request request) throws IOException {
+        request.writeTo(out, protocolVersion);
+        out.endFrame(false);
+        return Response.fromStream(in);
+    }
+
+    private interface RequestFactory {
+        Request create(int n);
+    }
+
+    /**
+     * Counters taken at the start of a run, to report what it added.
+     */
+    private final class Measurement {
+        private final long startedAt = System.nanoTime();
+        private final long requestRecords = relay.toServer.records.get();
+        private final long requestBytes = relay.toServer.bytes.get();
+        private final long responseRecords = relay.toClient.records.get();
+        private final long responseBytes = relay.toClient.bytes.get();
+
+        private void report(String name, int frames) {
+            double seconds = (System.nanoTime() - startedAt) / 1e9;
+            long bytes = relay.toClient.bytes.get() - responseBytes;
+            System.out.printf("[BENCHMARK] %-13s %7d frames em %6.2f s: %9.0f frames/s, %7.1f MB/s recebidos, "
+                            + "registos TLS por pedido %.2f, por resposta %.2f%n",
+                    name, frames, seconds, frames / seconds, bytes / seconds / (1024 * 1024),
+                    (relay.toServer.records.get() - requestRecords) / (double) frames,
+                    (relay.toClient.records.get() - responseRecords) / (double) frames);
+        }
+    }
+
+    /**
+     * Forwards one connection to the server and counts the TLS records
+     * going each way.
+     */
+    private static final class Relay implements AutoCloseable {
+        private final ServerSocket listener;
+        private final String host;
+        private final int port;
+        private final Counter toServer = new Counter();
+        private final Counter toClient = new Counter();
+        private volatile Socket client;
+        private volatile Socket server;
+
+        private Relay(String host, int port) throws IOException {
+            this.host = host;
+            this.port = port;
+            this.listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+
+            Thread acceptor = new Thread(this::accept, "benchmark-relay");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        private int getPort() {
+            return listener.getLocalPort();
+        }
+
+        private void accept() {
+            try {
+                client = listener.accept();
+                server = new Socket(host, port);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                forward(client.getInputStream(), server.getOutputStream(), toServer);
+                forward(server.getInputStream(), client.getOutputStream(), toClient);
+            } catch (IOException e) {
+                System.err.println("[BENCHMARK] Erro no relay: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void forward(InputStream from, OutputStream to, Counter counter) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    int read;
+                    while ((read = from.read(buffer)) > 0) {
+                        counter.count(buffer, read);
+                        to.write(buffer, 0, read);
+                    }
+                } catch (IOException ignored) {
+                    // the connection is gone
+                } finally {
+                    close();
+                }
+            }, "benchmark-relay");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(listener);
+            closeQuietly(client);
+            closeQuietly(server);
+        }
+
+        private static void closeQuietly(AutoCloseable closeable) {
+            try {
+                if (closeable != null) {
+                    closeable.close();
+                }
+            } catch (Exception ignored) {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Follows the TLS records in a byte stream: a 5-byte header (type,
+     * version, length) and then length bytes. Used by one thread, read by
+     * another.
+     */
+    private static final class Counter {
+        private static final int HEADER_LENGTH = 5;
+
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final byte[] header = new byte[HEADER_LENGTH];
+        private int headerRead = 0;
+        private int bodyLeft = 0;
+
+        private void count(byte[] buffer, int length) {
+            int i = 0;
+            while (i < length) {
+                if (bodyLeft > 0) {
+                    int n = Math.min(bodyLeft, length - i);
+                    bodyLeft -= n;
+                    i += n;
+                    continue;
+                }
+
+                header[headerRead++] = buffer[i++];
+                if (headerRead == HEADER_LENGTH) {
+                    bodyLeft = (header[3] & 0xFF) << 8 | header[4] & 0xFF;
+                    headerRead = 0;
+                    records.incrementAndGet();
+                }
+            }
+            bytes.addAndGet(length);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package client;
+
+import server.models.*;
+import server.utils.FrameOutputStream;
+import server.utils.NetworkUtils;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Runs several chunked transfers at the same time over one connection.
+ * Every chunk frame carries the FILE-ID of its transfer, so the server can
+ * tell the streams apart. Streams take turns sending one chunk each, and a
+ * stream never has more than its window of chunks waiting for an answer.
+ */
+class TransferMultiplexer {
+    private static final String WINDOW_PROPERTY = "mysharing.client.streamWindow";
+    private static final int DEFAULT_WINDOW = 4;
+    static final int CHUNK_SIZE = 1024 * 64; // 64KB chunks
+
+    private final RequestPipeline pipeline;
+    private final int window;
+    private final List<ChunkStream> streams = new ArrayList<>();
+
+    /**
+     * Create a new multiplexer.
+     *
+     * @param in the input stream
+     * @param out the output stream
+     * @param protocolVersion the protocol version agreed at login
+     */
+    TransferMultiplexer(DataInputStream in, FrameOutputStream out, int protocolVersion) {
+        this.pipeline = new RequestPipeline(in, out, protocolVersion);
+        this.window = Math.max(1, Integer.getInteger(WINDOW_PROPERTY, DEFAULT_WINDOW));
+    }
+
+    /**
+     * Add a stream to be transferred by {@link #run()}.
+     *
+     * @param stream the stream
+     */
+    void add(ChunkStream stream) {
+        streams.add(stream);
+    }
+
+    /**
+     * Transfer every stream, interleaving their chunks.
+     * A stream that fails stops sending; the others carry on.
+     *
+     * @throws IOException if the connection fails
+     */
+    void run() throws IOException {
+        Queue<ChunkStream> owners = new ArrayDeque<>();
+        int turn = 0;
+
+        try {
+            while (true) {
+                ChunkStream next = null;
+                if (pipeline.canSend()) {
+                    for (int i = 0; i < streams.size() && next == null; i++) {
+                        ChunkStream candidate = streams.get((turn + i) % streams.size());
+                        if (candidate.canSend(window)) {
+                            next = candidate;
+                            turn = (turn + i + 1) % streams.size();
+                        }
+                    }
+                }
+
+                if (next != null) {
+                    Request request = next.nextRequest();
+                    try {
+                        pipeline.send(request);
+                    } finally {
+                        request.release();
+                    }
+                    next.inFlight++;
+                    owners.add(next);
+                } else if (!owners.isEmpty()) {
+                    ChunkStream owner = owners.poll();
+                    owner.inFlight--;
+                    Response response = pipeline.receive();
+                    try {
+                        if (owner.status == StatusCode.OK) {
+                            owner.onResponse(response);
+                        }
+                    } finally {
+                        response.release();
+                    }
+                } else {
+                    return;
+                }
+            }
+        } finally {
+            for (ChunkStream stream : streams) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * One direction of one file, split in chunks.
+     */
+    abstract static class ChunkStream implements Closeable {
+        protected final String fileId;
+        protected final int totalChunks;
+        protected int nextChunk = 0;
+        private int inFlight = 0;
+        private StatusCode status = StatusCode.OK;
+
+        ChunkStream(String fileId, int totalChunks) {
+            this.fileId = fileId;
+            this.totalChunks = totalChunks;
+        }
+
+        /**
+         * Get the result of the stream.
+         *
+         * @return OK if every chunk was transferred, the error otherwise
+         */
+        StatusCode getStatus() {
+            return status;
+        }
+
+        protected void fail(StatusCode status) {
+            this.status = status == StatusCode.OK ? StatusCode.NOK : status;
+        }
+
+        private boolean canSend(int window) {
+            return status == StatusCode.OK && nextChunk < totalChunks && inFlight < window;
+        }
+
+        abstract Request nextRequest() throws IOException;
+
+        abstract void onResponse(Response response) throws IOException;
+    }
+
+    /**
+     * Sends a local file to an upload session.
+     */
+    static class UploadStream extends ChunkStream {
+        private final String idHeader;
+        private final String type;
+        private final File file;
+        private FileInputStream fileIn;
+
+        /**
+         * Create a new upload stream.
+         *
+         * @param fileId the upload session ID given by the server
+         * @param idHeader the header carrying the ID ("FILE-ID" or "SIGNATURE-FILE-ID")
+         * @param type the chunk type ("CHUNK" or "SIGNATURE-CHUNK")
+         * @param file the file to send
+         */
+        UploadStream(String fileId, String idHeader, String type, File file) {
+            super(fileId, (int) Math.ceil((double) file.length() / CHUNK_SIZE));
+            this.idHeader = idHeader;
+            this.type = type;
+            this.file = file;
+        }
+
+        @Override
+        Request nextRequest() throws IOException {
+            if (fileIn == null) {
+                fileIn = new FileInputStream(file);
+            }
+
+            // pooled, released once the request has been sent
+            BodyRaw chunkBody = BodyRaw.readFrom(fileIn.getChannel(), (long) nextChunk * CHUNK_SIZE, CHUNK_SIZE);
+            Request chunkRequest = new Request(
+                    NetworkUtils.newRequestId(),
+                    BodyFormat.RAW,
+                    "uploadfiletoworkspace",
+                    chunkBody
+            );
+            chunkRequest.addHeader(idHeader, fileId);
+            chunkRequest.addHeader("CHUNK-ID", String.valueOf(nextChunk++));
+            chunkRequest.addHeader("TYPE", type);
+
+            return chunkRequest;
+        }
+
+        @Override
+        void onResponse(Response response) {
+            if (response.getStatus() != StatusCode.OK) {
+                System.err.println("[CLIENT] Erro ao enviar chunk de " + file.getName());
+                fail(response.getStatus());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileIn != null) {
+                fileIn.close();
+            }
+        }
+    }
+
+    /**
+     * Receives a download session into a local file.
+     */
+    static class DownloadStream extends ChunkStream {
+        private final String action;
+        private final String fileName;
+        private final OutputStream fileOut;
+        private int nextExpectedChunk = 0;
+
+        /**
+         * Create a new download stream.
+         *
+         * @param fileId the download session ID given by the server
+         * @param action the chunk action ("chunk" or "signature_chunk")
+         * @param totalChunks the number of chunks announced by the server
+         * @param fileName the local file to write
+         */
+        DownloadStream(String fileId, String action, int totalChunks, String fileName) throws IOException {
+            super(fileId, totalChunks);
+            this.action = action;
+            this.fileName = fileName;
+            this.fileOut = new FileOutputStream(fileName);
+        }
+
+        @Override
+        Request nextRequest() {
+            BodyJSON chunkBody = new BodyJSON();
+            chunkBody.put("action", action);
+            chunkBody.put("chunkId", String.valueOf(nextChunk++));
+            chunkBody.put("fileId", fileId);
+
+            return new Request(
+                    NetworkUtils.newRequestId(),
+                    BodyFormat.JSON,
+                    "downloadfilefromworkspace",
+                    chunkBody
+            );
+        }
+
+        @Override
+        void onResponse(Response response) throws IOException {
+            if (response.getStatus() != StatusCode.OK
+                    || !String.valueOf(nextExpectedChunk).equals(response.getHeader("CHUNK-ID"))
+                    || !fileId.equals(response.getHeader("FILE-ID"))) {
+                System.err.println("[CLIENT] Erro ao receber chunk " + nextExpectedChunk + " de " + fileName);
+                fail(response.getStatus());
+                return;
+            }
+
+            response.getBodyRaw().writeTo(fileOut);
+            nextExpectedChunk++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            fileOut.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package server;
+
+import server.utils.LockStats;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The threads that check passwords and create new users, kept apart from the
+ * threads that serve uploads and downloads so a burst of logins only uses
+ * its own threads. Logins wait in a bounded queue; when it is full they are
+ * refused at once with BUSY and the client tries again later.
+ *
+ * The time a login waits in the queue and the time it runs are reported with
+ * the lock statistics.
+ */
+public class AuthenticationExecutor {
+    private static AuthenticationExecutor INSTANCE;
+    private static final long BUSY_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ThreadPoolExecutor executor;
+    private final LockStats stats = LockStats.register("fila de autenticação");
+    private final LongAdder refused = new LongAdder();
+    private final AtomicLong nextBusyLogAt = new AtomicLong(System.nanoTime());
+
+    private AuthenticationExecutor() {
+        int threads = ServerConfig.getAuthThreads();
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ServerConfig.getAuthQueueLimit()), task -> {
+                    Thread thread = new Thread(task, "auth-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        System.out.println("[SERVER] Autenticação com " + threads + " threads e fila de "
+                + ServerConfig.getAuthQueueLimit());
+    }
+
+    /**
+     * Get the instance of the authentication executor.
+     *
+     * @return the instance
+     */
+    public synchronized static AuthenticationExecutor getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new AuthenticationExecutor();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Queue an authentication task.
+     *
+     * @param task the task
+     * @return true if the task was queued, false if the queue is full
+     */
+    public boolean execute(Runnable task) {
+        long queuedAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long startedAt = stats.acquired(queuedAt);
+                try {
+                    task.run();
+                } finally {
+                    stats.released(startedAt);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            refused();
+            return false;
+        }
+    }
+
+    /**
+     * Run an authentication task and wait for its result, for connections
+     * served by a thread of their own.
+     *
+     * @param task the task, must not return null
+     * @return the result, or null if the queue is full
+     */
+    public <T> T call(Callable<T> task) throws InterruptedException, ExecutionException {
+        FutureTask<T> future = new FutureTask<>(task);
+        if (!execute(future)) {
+            return null;
+        }
+        return future.get();
+    }
+
+    /**
+     * Count a refused login, and log how many were refused at most once per
+     * second so a burst does not flood the log.
+     */
+    private void refused() {
+        refused.increment();
+        long now = System.nanoTime();
+        long next = nextBusyLogAt.get();
+        if (now - next >= 0 && nextBusyLogAt.compareAndSet(next, now + BUSY_LOG_INTERVAL_NANOS)) {
+            System.err.println("[SERVER] Servidor ocupado: " + refused.sumThenReset()
+                    + " autenticações recusadas com a fila cheia");
+        }
+    }
+}
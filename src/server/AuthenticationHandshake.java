@@ -0,0 +1,181 @@
+package server;
+
+import server.models.*;
+import server.utils.InputUtils;
+import server.utils.NetworkUtils;
+
+import java.util.List;
+
+/**
+ * The authentication exchange of a single connection.
+ * It does not touch the socket, so the same state machine is used by the
+ * blocking {@link ClientHandler} and by the {@link NioServer}.
+ */
+public class AuthenticationHandshake {
+    private static final List<StatusCode> OK_CODES = List.of(StatusCode.OK_USER, StatusCode.OK_NEW_USER);
+
+    private enum State {
+        WAITING,
+        WAITING_RETRY,
+        AUTHENTICATED,
+        FAILED
+    }
+
+    private final AuthenticationManager authManager;
+    private State state = State.WAITING;
+    private String userId;
+    private User authenticatedUser;
+    private int protocolVersion = BinaryFrame.VERSION_1;
+
+    /**
+     * Create a new authentication handshake.
+     */
+    public AuthenticationHandshake() {
+        this.authManager = AuthenticationManager.getInstance();
+    }
+
+    /**
+     * Handle an authentication request.
+     * The client is allowed to retry once after a wrong password.
+     *
+     * @param request the authentication request
+     * @return the response to send to the client
+     */
+    public Response handle(Request request) {
+        if (state == State.AUTHENTICATED || state == State.FAILED) {
+            throw new IllegalStateException("Autenticação já terminada");
+        }
+
+        // only the user ID is logged, the body carries the password or a ticket
+        if (request.getBody().getFormat() != BodyFormat.JSON) {
+            return fail(StatusCode.BAD_REQUEST);
+        }
+
+        BodyJSON json = request.getBodyJSON();
+        String password = json.get("password");
+
+        if (state == State.WAITING) {
+            userId = json.get("userId");
+
+            if (!InputUtils.isValidUsernameAndPassword(userId, password)) {
+                return fail(StatusCode.BAD_REQUEST);
+            }
+
+            System.out.println("[SERVER] Autenticar cliente: " + userId);
+        } else {
+            System.out.println("[SERVER] Resposta Segunda Tentativa: " + userId);
+        }
+
+        // a valid ticket spares hashing the password, otherwise fall back to it
+        String ticket = state == State.WAITING ? json.get("ticket") : null;
+        boolean ticketAccepted = ticket != null && authManager.authenticateTicket(userId, ticket);
+        StatusCode status = ticketAccepted ? StatusCode.OK_USER : authManager.authenticate(userId, password);
+
+        if (OK_CODES.contains(status)) {
+            this.authenticatedUser = authManager.getUser(userId);
+            this.state = State.AUTHENTICATED;
+            this.protocolVersion = negotiateProtocolVersion(request);
+
+            // still sent in version 1, the client switches after reading it
+            Response response = createAuthResponse(request.getUUID(), status);
+            if (protocolVersion > BinaryFrame.VERSION_1) {
+                response.addHeader("PROTOCOL", String.valueOf(protocolVersion));
+            }
+            if (!ticketAccepted || SessionTicketManager.getInstance().shouldRenew(ticket)) {
+                // added after the response was logged, a ticket is as good as the password
+                String newTicket = authManager.issueTicket(userId);
+                if (newTicket != null) {
+                    response.getBodyJSON().put("ticket", newTicket);
+                }
+            }
+            return response;
+        }
+
+        if (status == StatusCode.WRONG_PWD && state == State.WAITING) {
+            // allow the client to retry once
+            this.state = State.WAITING_RETRY;
+            return createAuthResponse(request.getUUID(), status);
+        }
+
+        return fail(status);
+    }
+
+    /**
+     * Answer an authentication request that could not be handled because the
+     * server is busy. The client may send it again.
+     *
+     * @param request the authentication request
+     * @return the response to send to the client
+     */
+    public Response busy(Request request) {
+        return createAuthResponse(request.getUUID(), StatusCode.BUSY);
+    }
+
+    /**
+     * Check if the client is authenticated.
+     *
+     * @return true if the client is authenticated, false otherwise
+     */
+    public boolean isAuthenticated() {
+        return state == State.AUTHENTICATED;
+    }
+
+    /**
+     * Check if the handshake has finished, successfully or not.
+     *
+     * @return true if no more authentication requests are expected
+     */
+    public boolean isFinished() {
+        return state == State.AUTHENTICATED || state == State.FAILED;
+    }
+
+    /**
+     * Get the authenticated user.
+     *
+     * @return the authenticated user, or null if the client is not authenticated
+     */
+    public User getAuthenticatedUser() {
+        return authenticatedUser;
+    }
+
+    /**
+     * Get the protocol version agreed with the client, used for every
+     * response after the handshake.
+     *
+     * @return the protocol version
+     */
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    private static int negotiateProtocolVersion(Request request) {
+        String wanted = request.getHeader("PROTOCOL");
+        if (wanted == null) {
+            return BinaryFrame.VERSION_1;
+        }
+
+        try {
+            int version = Integer.parseInt(wanted);
+            return Math.max(BinaryFrame.VERSION_1, Math.min(version, ServerConfig.getMaxProtocolVersion()));
+        } catch (NumberFormatException e) {
+            return BinaryFrame.VERSION_1;
+        }
+    }
+
+    private Response fail(StatusCode status) {
+        this.state = State.FAILED;
+        return createAuthResponse(NetworkUtils.newRequestId(), status);
+    }
+
+    private Response createAuthResponse(String uuid, StatusCode status) {
+        Response response = new Response(
+                uuid,
+                status,
+                BodyFormat.JSON,
+                new BodyJSON()
+        );
+        System.out.println(response);
+
+        return response;
+    }
+}
@@ -53,14 +53,43 @@ public class AuthenticationManager {
                 }
             }
 
-            return StatusCode.INTERNAL_SERVER_ERROR;
-        } else if (this.checkPassword(userId, password)) {
+            if (this.getUser(userId) == null) {
+                return StatusCode.INTERNAL_SERVER_ERROR;
+            }
+            // created meanwhile by another login of the same user
+        }
+
+        if (this.checkPassword(userId, password)) {
+            SessionTicketManager.getInstance().passwordLogin();
             return StatusCode.OK_USER;
         } else {
             return StatusCode.WRONG_PWD;
         }
     }
 
+    /**
+     * Authenticate a user with a session ticket, without hashing its password.
+     *
+     * @param userId the user ID
+     * @param ticket the ticket the server issued at an earlier login
+     * @return true if the ticket is valid for the user
+     */
+    public boolean authenticateTicket(String userId, String ticket) {
+        return SessionTicketManager.getInstance().verify(ticket, this.getUser(userId));
+    }
+
+    /**
+     * Issue a session ticket to a user that has just logged in.
+     *
+     * @param userId the user ID
+     * @return the ticket, or null if the user does not exist or the ticket
+     *         could not be created
+     */
+    public String issueTicket(String userId) {
+        User user = this.getUser(userId);
+        return user == null ? null : SessionTicketManager.getInstance().issue(user);
+    }
+
     /**
      * Add a user to the storage.
      *
@@ -69,7 +98,16 @@ public class AuthenticationManager {
      * @return true if the user was added, false otherwise
      */
     public boolean addUser(String userId, String password) {
-        return this.userStorageManager.addUser(userId, password);
+        // hashed before the users file is locked, so new users are hashed in parallel
+        User record;
+        try {
+            record = PasswordPolicy.getInstance().hash(userId, password);
+        } catch (Exception e) {
+            System.err.println("[AUTHENTICATION MANAGER] Erro ao calcular o hash da password: " + e.getMessage());
+            return false;
+        }
+
+        return this.userStorageManager.addUser(record);
     }
 
     /**
@@ -96,11 +134,36 @@ public class AuthenticationManager {
         }
 
         try {
-            return ServerSecurityUtils.verifyPassword(passwd, user.toString());
+            if (!ServerSecurityUtils.verifyPassword(passwd, user)) {
+                return false;
+            }
         } catch (Exception e) {
             System.err.println("[AUTHENTICATION MANAGER] Erro ao verificar a password: " + e.getMessage());
             return false;
         }
+
+        PasswordPolicy policy = PasswordPolicy.getInstance();
+        if (policy.needsRehash(user)) {
+            rehash(user, passwd, policy);
+        }
+        return true;
+    }
+
+    /**
+     * Hash the password of a user again with the current cost, now that it is
+     * known to be correct. A failure leaves the old hash in use.
+     */
+    private void rehash(User user, String passwd, PasswordPolicy policy) {
+        try {
+            User updated = policy.hash(user.getUserId(), passwd);
+            if (this.userStorageManager.updateUser(user, updated)) {
+                System.out.println("[AUTHENTICATION MANAGER] Password de " + user.getUserId() + " atualizada de "
+                        + user.getAlgorithm() + "/" + user.getIterations() + " para "
+                        + updated.getAlgorithm() + "/" + updated.getIterations());
+            }
+        } catch (Exception e) {
+            System.err.println("[AUTHENTICATION MANAGER] Erro ao atualizar a password: " + e.getMessage());
+        }
     }
 
     /**
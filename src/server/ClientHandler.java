@@ -1,63 +1,81 @@
 package server;
 
 import server.models.*;
-import server.utils.InputUtils;
+import server.utils.FrameOutputStream;
 import server.utils.NetworkUtils;
 
-import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLSocket;
 import java.io.*;
-import java.net.Socket;
-import java.util.List;
+import java.util.concurrent.Executor;
 
-public class ClientHandler extends Thread {
+public class ClientHandler implements Runnable {
     private final SSLSocket sslClientSocket;
+    private final Executor readerExecutor;
     private DataInputStream in;
-    private DataOutputStream out;
+    private FrameOutputStream out;
 
-    private final AuthenticationManager authManager;
     private User authenticatedUser;
+    private int protocolVersion;
 
 
     /**
      * Create a new client handler.
      *
      * @param sslClientSocket the client socket
+     * @param readerExecutor the executor running the request reader of the connection
      */
-    public ClientHandler(SSLSocket sslClientSocket) {
+    public ClientHandler(SSLSocket sslClientSocket, Executor readerExecutor) {
         this.sslClientSocket = sslClientSocket;
-        this.authManager = AuthenticationManager.getInstance();
+        this.readerExecutor = readerExecutor;
     }
 
     @Override
     public void run() {
         System.out.println("[SERVER] Cliente conectado: " + sslClientSocket);
 
-        this.openStreams();
+        ConnectionManager connectionManager = ConnectionManager.getInstance();
+        String connectionId = connectionManager.open(String.valueOf(sslClientSocket.getRemoteSocketAddress()));
 
-        if (!authenticateClient()) {
-            System.out.println("[SERVER] Autenticação falhou. A fechar a ligação.");
-            this.closeSocket();
-            return;
-        }
+        try {
+            if (!this.openStreams()) {
+                return;
+            }
 
-        System.out.println("[SERVER] Autenticação bem sucedida.");
+            if (!authenticateClient()) {
+                System.out.println("[SERVER] Autenticação falhou. A fechar a ligação.");
+                return;
+            }
+
+            System.out.println("[SERVER] Autenticação bem sucedida.");
 
-        Router router = new Router(sslClientSocket, in, out, authenticatedUser);
-        router.handleRequests();
+            Router router = new Router(sslClientSocket, in, out, authenticatedUser, connectionId, readerExecutor,
+                    protocolVersion);
+            router.handleRequests();
+        } finally {
+            this.closeSocket();
+            connectionManager.close(connectionId);
+        }
     }
 
     /**
      * Open the input and output streams.
+     * Reads block for at most the idle timeout, so silent clients are dropped.
+     *
+     * @return true if the streams were opened, false otherwise
      */
-    private void openStreams() {
+    private boolean openStreams() {
         try {
+            sslClientSocket.setSoTimeout(ServerConfig.getIdleTimeoutMillis());
+            NetworkUtils.configureSocket(sslClientSocket, ServerConfig.isTcpNoDelay(), ServerConfig.getTlsPacketSize());
             this.in = new DataInputStream(sslClientSocket.getInputStream());
-            this.out = new DataOutputStream(sslClientSocket.getOutputStream());
+            this.out = new FrameOutputStream(sslClientSocket.getOutputStream(), ServerConfig.getFlushPolicy(),
+                    FrameOutputStream.DEFAULT_BUFFER_SIZE, ServerConfig.getFlushBatch());
 
             System.out.println("[SERVER] Streams abertas.");
+            return true;
         } catch (IOException e) {
             System.err.println("[SERVER] Erro ao abrir streams: " + e.getMessage());
+            return false;
         }
     }
 
@@ -67,86 +85,22 @@ public class ClientHandler extends Thread {
      * @return true if the client is authenticated, false otherwise
      */
     private boolean authenticateClient() {
-        try {
-            Request request = Request.fromStream(in);
-            Body body = request.getBody();
-            System.out.println(request);
+        AuthenticationHandshake handshake = new AuthenticationHandshake();
 
-            if (body.getFormat() != BodyFormat.JSON) {
-                this.createErrorAuthResponse(StatusCode.BAD_REQUEST);
-                return false;
-            }
-
-            BodyJSON json = request.getBodyJSON();
-            String userId = json.get("userId");
-            String password = json.get("password");
-
-            if (!InputUtils.isValidUsernameAndPassword(userId, password)) {
-                this.createErrorAuthResponse(StatusCode.BAD_REQUEST);
-                return false;
-            }
-
-            System.out.println("[SERVER] Autenticar cliente: " + userId);
-
-            StatusCode status = authManager.authenticate(userId, password);
-            List<StatusCode> OK_CODES = List.of(StatusCode.OK_USER, StatusCode.OK_NEW_USER);
-
-            if (OK_CODES.contains(status)) {
-                this.authenticatedUser = authManager.getUser(userId);
-                Response response = new Response(
-                        request.getUUID(),
-                        status,
-                        BodyFormat.JSON,
-                        new BodyJSON()
-                );
-                System.out.println(response);
-                this.out.write(response.toByteArray());
-
-                return true;
-            } else if (status == StatusCode.WRONG_PWD) {
-                Response response = new Response(
-                        request.getUUID(),
-                        status,
-                        BodyFormat.JSON,
-                        new BodyJSON()
-                );
-                System.out.println(response);
-                this.out.write(response.toByteArray());
-
-                // allow the client to retry once
-                Request retryRequest = Request.fromStream(in);
-                Body retryBody = retryRequest.getBody();
-                System.out.println(request);
-
-                System.out.println("[SERVER] Resposta Segunda Tentativa: " + retryRequest);
-
-                if (retryBody.getFormat() != BodyFormat.JSON) {
-                    this.createErrorAuthResponse(StatusCode.BAD_REQUEST);
-                    return false;
-                }
-
-                BodyJSON retryJson = retryRequest.getBodyJSON();
-                String retryPassword = retryJson.get("password");
-
-                status = authManager.authenticate(userId, retryPassword);
-
-                if (OK_CODES.contains(status)) {
-                    this.authenticatedUser = authManager.getUser(userId);
-                    response = new Response(
-                            retryRequest.getUUID(),
-                            status,
-                            BodyFormat.JSON,
-                            new BodyJSON()
-                    );
-                    System.out.println(response);
-                    this.out.write(response.toByteArray());
-
-                    return true;
+        try {
+            while (!handshake.isFinished()) {
+                Request request = Request.fromStream(in);
+                Response response = AuthenticationExecutor.getInstance().call(() -> handshake.handle(request));
+                if (response == null) {
+                    response = handshake.busy(request);
                 }
+                response.writeTo(this.out);
+                this.out.endFrame(false);
             }
 
-            this.createErrorAuthResponse(status);
-            return false;
+            this.authenticatedUser = handshake.getAuthenticatedUser();
+            this.protocolVersion = handshake.getProtocolVersion();
+            return handshake.isAuthenticated();
         } catch (Exception e) {
             System.err.println("[SERVER] Erro ao autenticar cliente: " + e.getMessage());
         }
@@ -154,23 +108,11 @@ public class ClientHandler extends Thread {
         return false;
     }
 
-    private void createErrorAuthResponse(StatusCode status) {
-        try {
-            Response response = new Response(
-                    NetworkUtils.randomUUID(),
-                    status,
-                    BodyFormat.JSON,
-                    new BodyJSON()
-            );
-            System.out.println(response);
-            this.out.write(response.toByteArray());
-        } catch (IOException e) {
-            System.err.println("[SERVER] Erro ao criar resposta de autenticação: " + e.getMessage());
-        }
-    }
-
     private void closeSocket() {
         try {
+            if (sslClientSocket.isClosed()) {
+                return;
+            }
             sslClientSocket.close();
         } catch (Exception e) {
             System.err.println("[SERVER] Erro ao fechar socket: " + e.getMessage());
@@ -0,0 +1,82 @@
+package server;
+
+import server.routes.DownloadFileFromWorkspaceHandler;
+import server.routes.DownloadKeyFromWorkspaceHandler;
+import server.routes.UploadFileToWorkspaceHandler;
+import server.routes.UploadKeyToWorkspaceHandler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the open client connections.
+ * When a connection closes, the upload and download sessions it owned are
+ * released so their temporary files and open handles do not leak.
+ */
+public class ConnectionManager {
+    private static ConnectionManager INSTANCE;
+
+    private final Map<String, String> connections = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong();
+
+    private ConnectionManager() {
+    }
+
+    /**
+     * Get the instance of the connection manager.
+     *
+     * @return the instance
+     */
+    public synchronized static ConnectionManager getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new ConnectionManager();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Register a new connection.
+     *
+     * @param remoteAddress the address of the client
+     * @return the connection ID
+     */
+    public String open(String remoteAddress) {
+        String connectionId = "conn-" + nextId.incrementAndGet();
+        connections.put(connectionId, remoteAddress);
+
+        System.out.println("[CONNECTIONS] Ligação " + connectionId + " aberta (" + remoteAddress
+                + "). Ligações ativas: " + connections.size());
+        return connectionId;
+    }
+
+    /**
+     * Unregister a closed connection and release its sessions.
+     * Calling it more than once for the same connection has no effect.
+     *
+     * @param connectionId the connection ID
+     */
+    public void close(String connectionId) {
+        if (connectionId == null || connections.remove(connectionId) == null) {
+            return;
+        }
+
+        UploadFileToWorkspaceHandler.releaseSessions(connectionId);
+        UploadKeyToWorkspaceHandler.releaseSessions(connectionId);
+        DownloadFileFromWorkspaceHandler.releaseSessions(connectionId);
+        DownloadKeyFromWorkspaceHandler.releaseSessions(connectionId);
+
+        System.out.println("[CONNECTIONS] Ligação " + connectionId + " fechada. Ligações ativas: "
+                + connections.size());
+    }
+
+    /**
+     * Get the number of open connections.
+     *
+     * @return the number of open connections
+     */
+    public int getLiveConnections() {
+        return connections.size();
+    }
+}
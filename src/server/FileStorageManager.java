@@ -1,24 +1,42 @@
 package server;
 
+import javax.crypto.SecretKey;
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import server.models.Workspace;
+import server.utils.LockStats;
+import server.utils.ServerSecurityUtils;
 
 /*
-* workspaces.txt example:
-* id:owner_username:user1,user2,user3,user4
-* workspace001:owner_username:user1,user2,user3,user4
+* workspaces.txt example (index of the workspaces, changed only on create):
+* id:owner_username
+* workspace001:owner_username
 *
+* workspaces.meta/workspace001 example (record of one workspace and the MAC of
+* the record):
+* workspace001:owner_username:user1,user2,user3,user4
+* <base64 MAC>
 *
+* workspaces.files/workspace001 and workspaces.files.log/workspace001: index
+* of the files of the workspace and the changes made since it was saved, see
+* WorkspaceFileIndex
 */
 
 public class FileStorageManager {
@@ -26,14 +44,89 @@ public class FileStorageManager {
     private static final String DATA_DIR_PATH = "data/";
     private static final String WORKSPACES_FILE_PATH = "data/workspaces.txt";
     private static final String WORKSPACES_DIR_PATH = "data/workspaces/";
+    private static final String WORKSPACES_META_DIR_PATH = "data/workspaces.meta/";
+    private static final String WORKSPACES_FILES_DIR_PATH = "data/workspaces.files/";
+    private static final String WORKSPACES_FILES_LOG_DIR_PATH = "data/workspaces.files.log/";
+    private static final String WORKSPACES_MAC_FILE_PATH = "data/workspaces.mac";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final LockStats FILE_LOCK_STATS = LockStats.register("ficheiros de workspaces");
+    private static final LockStats INDEX_LOCK_STATS = LockStats.register("índice de workspaces");
+    private static final LockStats SHARD_LOCK_STATS = LockStats.register("registos de workspaces");
+
+    // Where the files of a workspace are inside its directory
+    private final WorkspaceLayout layout;
+
+    // Locks of the files of each workspace, created on first use and dropped
+    // once idle, so the map only holds the workspaces in use
+    private final ConcurrentMap<String, FilesLockEntry> wsLocks = new ConcurrentHashMap<>();
+    private final long lockIdleNanos = TimeUnit.SECONDS.toNanos(ServerConfig.getLockIdleSeconds());
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    // Guards workspaces.txt: creating a workspace takes the write lock,
+    // checking the file against its MAC the read lock
+    private final StampedLock indexLock = new StampedLock();
+
+    // Catalog of the workspaces, one record each. Readers use it without locks;
+    // writers of a record hold its lock, so writers of different workspaces
+    // never wait for each other.
+    private final ConcurrentMap<String, Shard> shards = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> workspaceIdsByUser = new ConcurrentHashMap<>();
+
+    // Index of the files of each workspace used so far. Readers use it without
+    // locks; holders of the write lock of the workspace's files change it in
+    // place, each change appended to its MAC-chained log first. It is only
+    // replaced here when the directory is scanned again.
+    private final ConcurrentMap<String, WorkspaceFileIndex> fileIndexes = new ConcurrentHashMap<>();
 
-    private final ReadWriteLock metaLock = new ReentrantReadWriteLock();
-    private final ConcurrentMap<String, ReadWriteLock> wsLocks = new ConcurrentHashMap<>();
+    /**
+     * The record of one workspace.
+     */
+    private static final class Shard {
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Workspace workspace;
+
+        private Shard(Workspace workspace) {
+            this.workspace = workspace;
+        }
+    }
+
+    /**
+     * The lock of the files of one workspace. Uploads and deletes hold the
+     * write lock; lookups read the file index instead and never take it.
+     */
+    private static final class FilesLockEntry {
+        private final StampedLock lock = new StampedLock();
+        private volatile long lastUsed = System.nanoTime();
+    }
+
+    /**
+     * A read or write lock held on the files of a workspace. StampedLock is
+     * not reentrant, so the holder must not lock the same workspace again.
+     */
+    static final class FilesLock {
+        private final FilesLockEntry entry;
+        private final long stamp;
+        private final long acquiredAt;
+
+        private FilesLock(FilesLockEntry entry, long stamp, long acquiredAt) {
+            this.entry = entry;
+            this.stamp = stamp;
+            this.acquiredAt = acquiredAt;
+        }
+
+        void unlock() {
+            entry.lastUsed = System.nanoTime();
+            entry.lock.unlock(stamp);
+            FILE_LOCK_STATS.released(acquiredAt);
+        }
+    }
 
     /**
      * Create a new file storage manager.
      */
     private FileStorageManager() {
+        WorkspaceLayout chosen = WorkspaceLayout.FLAT;
         try {
             // Create directory paths if they don't exist
             Path dataDir = Paths.get(DATA_DIR_PATH);
@@ -41,15 +134,88 @@ public class FileStorageManager {
             Path workspacesFile = Paths.get(WORKSPACES_FILE_PATH);
 
             Files.createDirectories(dataDir);
+            boolean fresh = !Files.exists(workspacesDir) || isEmptyDirectory(workspacesDir);
             Files.createDirectories(workspacesDir);
+            Files.createDirectories(Paths.get(WORKSPACES_META_DIR_PATH));
+            Files.createDirectories(Paths.get(WORKSPACES_FILES_DIR_PATH));
+            Files.createDirectories(Paths.get(WORKSPACES_FILES_LOG_DIR_PATH));
 
             // Create workspaces file only if it doesn't exist
             if (!Files.exists(workspacesFile)) {
                 Files.createFile(workspacesFile);
             }
+
+            recoverIndex();
+            chosen = chooseLayout(fresh);
         } catch (IOException e){
             System.out.println("[FILE STORAGE] Erro ao criar diretórios e arquivos: " + e.getMessage());
         }
+        layout = chosen;
+    }
+
+    private static boolean isEmptyDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            return !entries.iterator().hasNext();
+        }
+    }
+
+    /**
+     * Use the layout recorded for the data directory. A new data directory
+     * gets the layout asked for in the configuration; an existing one is
+     * only changed by LayoutMigrator, with the server stopped.
+     *
+     * @param fresh whether the data directory has no workspaces yet
+     * @return the layout of the workspaces
+     */
+    private WorkspaceLayout chooseLayout(boolean fresh) throws IOException {
+        WorkspaceLayout wanted = ServerConfig.getWorkspaceLayout();
+        if (!Files.exists(WorkspaceLayout.LAYOUT_FILE_PATH)) {
+            WorkspaceLayout.write(fresh && wanted != null ? wanted : WorkspaceLayout.FLAT, false);
+        }
+
+        WorkspaceLayout recorded = WorkspaceLayout.read();
+        if (recorded == null) {
+            System.err.println("[FILE STORAGE] Migração de layout interrompida. Corra de novo: java server.LayoutMigrator <flat|fanout>");
+            System.exit(1);
+        }
+        if (wanted != null && wanted != recorded) {
+            System.err.println("[FILE STORAGE] Os workspaces usam o layout " + recorded.name().toLowerCase()
+                    + ". Para mudar corra: java server.LayoutMigrator " + wanted.name().toLowerCase());
+            System.exit(1);
+        }
+
+        System.out.println("[FILE STORAGE] Layout dos workspaces: " + recorded.name().toLowerCase());
+        return recorded;
+    }
+
+    /**
+     * Get the layout of the files in the workspace directories.
+     *
+     * @return the layout
+     */
+    WorkspaceLayout getLayout() {
+        return layout;
+    }
+
+    private static Path workspaceDir(String workspaceId) {
+        return Paths.get(WORKSPACES_DIR_PATH + workspaceId);
+    }
+
+    /**
+     * Finish or undo a change of workspaces.txt that stopped before the file
+     * and its MAC were both in place, before the MAC is checked. A MAC of the
+     * whole file, written by older versions, is replaced by the chained one.
+     */
+    private void recoverIndex() {
+        try {
+            Files.deleteIfExists(Paths.get(WORKSPACES_FILE_PATH + TEMP_SUFFIX));
+        } catch (IOException e) {
+            System.err.println("[FILE STORAGE] Erro ao recuperar índice de workspaces: " + e.getMessage());
+        }
+        PendingMac.recover(Paths.get(WORKSPACES_FILE_PATH), Paths.get(WORKSPACES_MAC_FILE_PATH),
+                MySharingServer.getServerKey());
+        PendingMac.upgrade(Paths.get(WORKSPACES_FILE_PATH), Paths.get(WORKSPACES_MAC_FILE_PATH),
+                MySharingServer.getServerKey());
     }
 
     /**
@@ -65,81 +231,331 @@ public class FileStorageManager {
         return INSTANCE;
     }
 
-    private ReadWriteLock getWorkspaceLock(String workspaceId) {
-        return wsLocks.computeIfAbsent(workspaceId, k -> new ReentrantReadWriteLock());
+    /**
+     * Lock the files of a workspace.
+     *
+     * @param workspaceId the workspace ID
+     * @param write true for the write lock, false for the read lock
+     * @return the lock held
+     */
+    private FilesLock lockFiles(String workspaceId, boolean write) {
+        sweepIdleLocks();
+
+        long waitStart = System.nanoTime();
+        while (true) {
+            FilesLockEntry entry = wsLocks.computeIfAbsent(workspaceId, k -> new FilesLockEntry());
+            long stamp = write ? entry.lock.writeLock() : entry.lock.readLock();
+            if (wsLocks.get(workspaceId) == entry) {
+                return new FilesLock(entry, stamp, FILE_LOCK_STATS.acquired(waitStart));
+            }
+
+            // dropped while we waited, a newer lock guards the workspace now
+            entry.lock.unlock(stamp);
+        }
     }
 
     /**
-     * Gets a workspace from the file.
+     * Get the read lock of a workspace, which keeps its files from being
+     * replaced or deleted while held.
      *
      * @param workspaceId the workspace ID
-     * @return the workspace, or null if the workspace does not exist
+     * @return the lock held, to be unlocked by the caller
      */
-    public Workspace getWorkspace(String workspaceId) {
-        metaLock.readLock().lock();
+    FilesLock lockFilesForRead(String workspaceId) {
+        return lockFiles(workspaceId, false);
+    }
+
+    /**
+     * Get the index of the files of a workspace, loading it on first use.
+     *
+     * @param workspaceId the workspace ID
+     * @return the index, empty if the workspace does not exist
+     */
+    private WorkspaceFileIndex files(String workspaceId) {
+        WorkspaceFileIndex index = fileIndexes.get(workspaceId);
+        if (index != null) {
+            return index;
+        }
+        if (getWorkspace(workspaceId) == null) {
+            return WorkspaceFileIndex.EMPTY;
+        }
+
+        FilesLock lock = lockFiles(workspaceId, true);
         try {
-            MySharingServer.verifyWorkspacesMac();
+            return loadedFiles(workspaceId);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            try (Scanner scanner = new Scanner(new File(WORKSPACES_FILE_PATH))) {
-                while (scanner.hasNextLine()) {
-                    String line = scanner.nextLine();
-                    String[] parts = line.split(":");
+    /**
+     * Get the index of the files of a workspace, loading it on first use.
+     * Must be called with the write lock of the workspace's files held.
+     */
+    private WorkspaceFileIndex loadedFiles(String workspaceId) {
+        WorkspaceFileIndex index = fileIndexes.get(workspaceId);
+        if (index != null) {
+            return index;
+        }
 
-                    int NUM_PARTS = 3;
-                    if (parts.length != NUM_PARTS) {
-                        System.out.println("[FILE STORAGE] Erro ao ler workspace: Formato inválido");
-                        continue;
-                    }
+        Path indexPath = fileIndexPath(workspaceId);
+        try {
+            WorkspaceFileIndex saved = WorkspaceFileIndex.load(indexPath, fileLogPath(workspaceId),
+                    MySharingServer.getServerKey(), MySharingServer.isWorkspacesMacEnabled());
+            if (saved == null && Files.exists(indexPath)) {
+                System.err.println("[FILE STORAGE] Índice de ficheiros inválido. A reconstruir: " + workspaceId);
+            }
 
-                    String id = parts[0];
-                    String ownerUsername = parts[1];
-                    List<String> members = Arrays.asList(parts[2].split(","));
+            index = WorkspaceFileIndex.scan(workspaceId, workspaceDir(workspaceId), layout, saved);
+            if (index.sameAs(saved)) {
+                index = saved;
+            } else {
+                saveFiles(workspaceId, index);
+            }
+        } catch (IOException e) {
+            System.err.println("[FILE STORAGE] Erro ao carregar índice de ficheiros: " + e.getMessage());
+            return WorkspaceFileIndex.EMPTY;
+        }
 
-                    if (id.equals(workspaceId)) {
-                        return new Workspace(id, ownerUsername, members);
-                    }
+        fileIndexes.put(workspaceId, index);
+        return index;
+    }
+
+    private void saveFiles(String workspaceId, WorkspaceFileIndex index) throws IOException {
+        index.save(fileIndexPath(workspaceId), fileLogPath(workspaceId), MySharingServer.getServerKey(),
+                MySharingServer.isWorkspacesMacEnabled());
+    }
+
+    /**
+     * Forget the index of the files of a workspace whose change could not be
+     * saved, so it falls behind the directory only until it is loaded again.
+     * Must be called with the write lock of the workspace's files held.
+     */
+    private void dropFiles(String workspaceId, IOException e) {
+        System.err.println("[FILE STORAGE] Erro ao guardar índice de ficheiros: " + e.getMessage());
+        fileIndexes.remove(workspaceId);
+    }
+
+    /**
+     * Index the files of a workspace again from its directory, after an
+     * upload or delete that failed halfway. Must be called with the write
+     * lock of the workspace's files held.
+     */
+    private void rescanFiles(String workspaceId) {
+        try {
+            WorkspaceFileIndex index = WorkspaceFileIndex.scan(workspaceId, workspaceDir(workspaceId), layout,
+                    fileIndexes.get(workspaceId));
+            saveFiles(workspaceId, index);
+            fileIndexes.put(workspaceId, index);
+        } catch (IOException e) {
+            System.err.println("[FILE STORAGE] Erro ao indexar ficheiros: " + e.getMessage());
+            fileIndexes.remove(workspaceId);
+        }
+    }
+
+    private static Path fileIndexPath(String workspaceId) {
+        return Paths.get(WORKSPACES_FILES_DIR_PATH + workspaceId);
+    }
+
+    private static Path fileLogPath(String workspaceId) {
+        return Paths.get(WORKSPACES_FILES_LOG_DIR_PATH + workspaceId);
+    }
+
+    /**
+     * Drop the locks of workspaces not used for a while, at most once per
+     * idle interval. A lock is only dropped while the sweeper holds its
+     * write lock, which makes threads waiting for it retry on a new one.
+     */
+    private void sweepIdleLocks() {
+        long now = System.nanoTime();
+        long last = lastSweep.get();
+        if (now - last < lockIdleNanos || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+
+        for (Map.Entry<String, FilesLockEntry> idle : wsLocks.entrySet()) {
+            FilesLockEntry entry = idle.getValue();
+            if (now - entry.lastUsed < lockIdleNanos) {
+                continue;
+            }
+
+            long stamp = entry.lock.tryWriteLock();
+            if (stamp != 0) {
+                wsLocks.remove(idle.getKey(), entry);
+                entry.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Load the workspaces into memory. Called once at startup, after the
+     * integrity of workspaces.txt has been verified: every workspace listed
+     * there is read from its own record, which is checked against its MAC.
+     * Data directories written by older versions, with the whole catalog in
+     * workspaces.txt, are converted first.
+     */
+    public void loadWorkspaces() {
+        long waitStart = System.nanoTime();
+        long stamp = indexLock.writeLock();
+        long acquiredAt = INDEX_LOCK_STATS.acquired(waitStart);
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(WORKSPACES_FILE_PATH), StandardCharsets.UTF_8);
+            if (lines.stream().anyMatch(line -> line.split(":").length == 3)) {
+                lines = convertCatalog(lines);
+            }
+
+            Set<String> listed = new LinkedHashSet<>();
+            for (String line : lines) {
+                String[] parts = line.split(":");
+
+                int NUM_PARTS = 2;
+                if (parts.length != NUM_PARTS) {
+                    System.out.println("[FILE STORAGE] Erro ao ler workspace: Formato inválido");
+                    continue;
                 }
 
-            } catch (IOException e) {
-                System.err.println("[FILE STORAGE] Erro ao carregar workspaces: " + e.getMessage());
+                Workspace workspace = readRecord(parts[0]);
+                if (workspace == null || !workspace.getOwnerUsername().equals(parts[1])) {
+                    System.err.println("[SERVER] MAC inválido para o ficheiro: " + recordPath(parts[0]));
+                    System.err.println("[SERVER] Sistema comprometido! A encerrar...");
+                    System.exit(1);
+                }
+
+                shards.put(workspace.getId(), new Shard(workspace));
+                index(workspace);
+                guardRecord(workspace.getId());
+                listed.add(workspace.getId());
             }
 
-            return null;
+            dropUnlisted(listed);
+            System.out.println("[FILE STORAGE] Workspaces carregados: " + shards.size());
+        } catch (IOException e) {
+            System.err.println("[FILE STORAGE] Erro ao carregar workspaces: " + e.getMessage());
+            System.exit(1);
         } finally {
-            metaLock.readLock().unlock();
+            indexLock.unlockWrite(stamp);
+            INDEX_LOCK_STATS.released(acquiredAt);
+        }
+    }
+
+    /**
+     * Split a catalog written by an older version (workspaces.txt with every
+     * member) into one record per workspace, and rewrite workspaces.txt as
+     * the index. Lines already converted keep their record, so a conversion
+     * cut short is simply done again.
+     *
+     * @param lines the lines of workspaces.txt
+     * @return the lines of the new index
+     */
+    private List<String> convertCatalog(List<String> lines) throws IOException {
+        System.out.println("[FILE STORAGE] A converter workspaces.txt para um registo por workspace...");
+
+        List<String> indexLines = new ArrayList<>();
+        for (String line : lines) {
+            String[] parts = line.split(":");
+            if (parts.length == 3) {
+                writeRecord(new Workspace(parts[0], parts[1], Arrays.asList(parts[2].split(","))));
+            } else if (parts.length != 2) {
+                continue;
+            }
+            indexLines.add(parts[0] + ":" + parts[1]);
+        }
+
+        // the new MAC is staged first, recoverIndex() finishes the swap after a crash
+        Path pendingIndex = Paths.get(WORKSPACES_FILE_PATH + TEMP_SUFFIX);
+        PendingMac pendingMac = null;
+        try {
+            Files.write(pendingIndex, indexLines, StandardCharsets.UTF_8);
+            if (MySharingServer.isWorkspacesMacEnabled()) {
+                pendingMac = PendingMac.stage(Paths.get(WORKSPACES_MAC_FILE_PATH),
+                        ServerSecurityUtils.genChainedFileMac(pendingIndex, MySharingServer.getServerKey()));
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Erro ao calcular MAC do índice de workspaces: " + e.getMessage(), e);
+        }
+
+        Files.move(pendingIndex, Paths.get(WORKSPACES_FILE_PATH),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (pendingMac != null) {
+            pendingMac.commit();
+        }
+        IntegrityManager.getInstance().written(MySharingServer.WORKSPACES_GUARD);
+        return indexLines;
+    }
+
+    /**
+     * Delete records that are not in the index. They are left by a create
+     * that stopped before the index was written, so the directory of the
+     * workspace, if any, is still empty.
+     */
+    private void dropUnlisted(Set<String> listed) throws IOException {
+        try (DirectoryStream<Path> records = Files.newDirectoryStream(Paths.get(WORKSPACES_META_DIR_PATH))) {
+            for (Path record : records) {
+                String workspaceId = record.getFileName().toString();
+                if (listed.contains(workspaceId)) {
+                    continue;
+                }
+
+                System.err.println("[FILE STORAGE] Registo de workspace fora do índice. A descartar: " + workspaceId);
+                Files.delete(record);
+                if (!workspaceId.endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(fileIndexPath(workspaceId));
+                    Files.deleteIfExists(fileLogPath(workspaceId));
+                    try {
+                        Files.deleteIfExists(Paths.get(WORKSPACES_DIR_PATH + workspaceId));
+                    } catch (DirectoryNotEmptyException e) {
+                        System.err.println("[FILE STORAGE] Diretório do workspace não está vazio: " + workspaceId);
+                    }
+                }
+            }
         }
     }
 
     /**
-     * Create a new workspace.
+     * Gets a workspace.
+     *
+     * @param workspaceId the workspace ID
+     * @return the workspace, or null if the workspace does not exist
+     */
+    public Workspace getWorkspace(String workspaceId) {
+        Shard shard = shards.get(workspaceId);
+        return shard == null ? null : shard.workspace;
+    }
+
+    /**
+     * Create a new workspace. The record is written before the index, so a
+     * workspace is never listed without one.
      *
      * @param userId the user ID of the owner
      * @param name the name of the workspace
      * @return true if the workspace was created, false otherwise
      */
     public boolean createWorkspace(String userId, String name) {
-        metaLock.writeLock().lock();
+        long waitStart = System.nanoTime();
+        long stamp = indexLock.writeLock();
+        long acquiredAt = INDEX_LOCK_STATS.acquired(waitStart);
         try {
-            MySharingServer.verifyWorkspacesMac();
-
             String workspaceId = userId + "_" + name;
 
-            if (this.getWorkspace(workspaceId) != null) {
+            if (shards.containsKey(workspaceId)) {
                 System.err.println("[FILE STORAGE] Workspace já existe: " + workspaceId);
                 return false;
             }
 
-            try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(WORKSPACES_FILE_PATH, true))) {
+            Workspace workspace = new Workspace(workspaceId, userId, Set.of(userId));
+            try {
                 //creating the dir for the workspace
                 Files.createDirectory(Paths.get(WORKSPACES_DIR_PATH + workspaceId));
 
-                //adding the workspace to the workspace.txt file
-                String newLine = workspaceId + ":" + userId + ":" + userId;
-                bufferedWriter.write(newLine);
-                bufferedWriter.newLine();
+                //recording the workspace and listing it in the index
+                writeRecord(workspace);
+                appendToIndex(workspaceId + ":" + userId);
             } catch (IOException e) {
-                // Remove dir if it was created
+                // Remove dir and record if they were created
                 try {
+                    Files.deleteIfExists(recordPath(workspaceId));
                     Files.delete(Paths.get(WORKSPACES_DIR_PATH + workspaceId));
                 } catch (IOException ex) {
                     System.out.println("[FILE STORAGE] Erro ao apagar workspace: " + ex.getMessage());
@@ -149,14 +565,60 @@ public class FileStorageManager {
                 return false;
             }
 
-            MySharingServer.updateWorkspacesMac();
+            guardRecord(workspaceId);
+            shards.put(workspaceId, new Shard(workspace));
+            index(workspace);
             return true;
         } finally {
-            metaLock.writeLock().unlock();
+            indexLock.unlockWrite(stamp);
+            INDEX_LOCK_STATS.released(acquiredAt);
         }
     }
 
-
+    /**
+     * Append a line to workspaces.txt. Its MAC is chained line by line, so
+     * the new MAC is computed from the one in use and the line alone, without
+     * reading the file. It is staged before the line is written and put in
+     * place right after, and the file is cut back to its old size if either
+     * step fails, so the file always matches the MAC in use or the staged
+     * one. Called with the index write lock held.
+     *
+     * @param line the line
+     * @throws IOException if the line could not be added
+     */
+    private void appendToIndex(String line) throws IOException {
+        Path index = Paths.get(WORKSPACES_FILE_PATH);
+        Path macFile = Paths.get(WORKSPACES_MAC_FILE_PATH);
+        byte[] appended = (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        long size = Files.size(index);
+        PendingMac pendingMac = null;
+        try {
+            if (MySharingServer.isWorkspacesMacEnabled()) {
+                // the chain must go on from a MAC that matches the file
+                MySharingServer.verifyWorkspacesMac();
+                SecretKey key = MySharingServer.getServerKey();
+                byte[] previous = ServerSecurityUtils.readMacFromMacFile(macFile);
+                if (previous == null) {
+                    previous = ServerSecurityUtils.genChainedFileMac(index, key);
+                }
+                pendingMac = PendingMac.stage(macFile, ServerSecurityUtils.chainMac(previous, line, key));
+            }
+            Files.write(index, appended, StandardOpenOption.APPEND);
+            if (pendingMac != null) {
+                pendingMac.commit();
+            }
+        } catch (Exception e) {
+            try (FileChannel channel = FileChannel.open(index, StandardOpenOption.WRITE)) {
+                channel.truncate(size);
+            }
+            if (pendingMac != null) {
+                pendingMac.discard();
+            }
+            throw e instanceof IOException ? (IOException) e
+                    : new IOException("Erro ao calcular MAC do índice de workspaces: " + e.getMessage(), e);
+        }
+        IntegrityManager.getInstance().written(MySharingServer.WORKSPACES_GUARD);
+    }
 
     /**
      * Saves a workspace key file (e.g. "workspace001.key.userId") into the workspace directory.
@@ -167,8 +629,7 @@ public class FileStorageManager {
      * @return true if the file was saved successfully, false otherwise
      */
     public boolean saveWorkspaceKey(String workspaceId, String keyFileName, byte[] data) {
-        Path workspaceDir = Paths.get(WORKSPACES_DIR_PATH + workspaceId);
-        Path keyFilePath = workspaceDir.resolve(keyFileName);
+        Path workspaceDir = workspaceDir(workspaceId);
 
         // Check if the workspace directory exists
         if (!Files.exists(workspaceDir)) {
@@ -176,22 +637,36 @@ public class FileStorageManager {
             return false;
         }
 
-        // Check if the key file already exists
-        if (Files.exists(keyFilePath)) {
-            System.err.println("[FILE STORAGE] Arquivo de chave já existe: " + keyFileName);
-            return false;
-        }
-
+        FilesLock lock = lockFiles(workspaceId, true);
         try {
-            // Write the data to the key file
-            Files.write(keyFilePath, data);
+            // Check if the key file already exists
+            WorkspaceFileIndex index = loadedFiles(workspaceId);
+            if (index.contains(keyFileName) || Files.exists(layout.resolve(workspaceDir, keyFileName))) {
+                System.err.println("[FILE STORAGE] Arquivo de chave já existe: " + keyFileName);
+                return false;
+            }
+
+            try {
+                // Write the data to the key file
+                Files.write(layout.prepare(workspaceDir, keyFileName), data);
+            } catch (IOException e) {
+                System.err.println("[FILE STORAGE] Erro ao salvar arquivo de chave: " + e.getMessage());
+                rescanFiles(workspaceId);
+                return false;
+            }
+
+            try {
+                index.putKey(keyFileName);
+            } catch (IOException e) {
+                dropFiles(workspaceId, e);
+            }
             return true;
-        } catch (IOException e) {
-            System.err.println("[FILE STORAGE] Erro ao salvar arquivo de chave: " + e.getMessage());
-            return false;
+        } finally {
+            lock.unlock();
         }
     }
 
+
     /**
      * Add a user to the workspace.
      *
@@ -200,73 +675,77 @@ public class FileStorageManager {
      * @return true if the user was added, false otherwise
      */
     public boolean addUserToWorkspace(String workspaceId, String userId)  {
-        ReadWriteLock lock = getWorkspaceLock(workspaceId);
-        lock.writeLock().lock();
+        Shard shard = shards.get(workspaceId);
+        if (shard == null) {
+            System.err.println("[FILE STORAGE] Workspace não encontrado: " + workspaceId);
+            return false;
+        }
+
+        long waitStart = System.nanoTime();
+        shard.lock.lock();
+        long acquiredAt = SHARD_LOCK_STATS.acquired(waitStart);
         try {
-            MySharingServer.verifyWorkspacesMac();
+            Workspace workspace = shard.workspace;
+            if (workspace.hasMember(userId)) {
+                System.err.println("[FILE STORAGE] Usuário já é membro do workspace: " + userId);
+                return false;
+            }
 
+            Workspace updated = workspace.withMember(userId);
             try {
-                File file = new File(WORKSPACES_FILE_PATH);
-                Scanner scanner = new Scanner(file);
-                StringBuilder newContent = new StringBuilder();
-                boolean workspaceFound = false;
-
-                while (scanner.hasNextLine()) {
-                    String line = scanner.nextLine();
-                    String[] parts = line.split(":");
-
-                    int NUM_PARTS = 3;
-                    if (parts.length != NUM_PARTS) {
-                        System.out.println("[FILE STORAGE] Erro ao ler workspace: Formato inválido");
-                        continue;
-                    }
-
-                    String id = parts[0];
-                    String ownerUsername = parts[1];
-                    List<String> members = new ArrayList<>(Arrays.asList(parts[2].split(",")));
-
-                    if (id.equals(workspaceId)) {
-                        workspaceFound = true;
-
-                        if (members.contains(userId)) {
-                            System.err.println("[FILE STORAGE] Usuário já é membro do workspace: " + userId);
-                            return false;
-                        }
-
-                        members.add(userId);
-                        newContent
-                                .append(id)
-                                .append(":")
-                                .append(ownerUsername)
-                                .append(":");
-                        for (String member : members) {
-                            newContent.append(member).append(",");
-                        }
-                        newContent.deleteCharAt(newContent.length() - 1);
-                    } else {
-                        newContent.append(line);
-                    }
+                writeRecord(updated);
+            } catch (IOException e) {
+                System.err.println("[FILE STORAGE] Erro ao adicionar usuário ao workspace: " + e.getMessage());
+                return false;
+            }
 
-                    newContent.append("\n");
-                }
+            shard.workspace = updated;
+            addToUserIndex(userId, workspaceId);
+            return true;
+        } finally {
+            shard.lock.unlock();
+            SHARD_LOCK_STATS.released(acquiredAt);
+        }
+    }
 
-                if (!workspaceFound) {
-                    System.err.println("[FILE STORAGE] Workspace não encontrado: " + workspaceId);
-                    return false;
-                }
+    /**
+     * Remove a user from the workspace. The owner cannot be removed.
+     *
+     * @param workspaceId the workspace ID
+     * @param userId the user ID to remove from the workspace
+     * @return true if the user was removed, false otherwise
+     */
+    public boolean removeUserFromWorkspace(String workspaceId, String userId) {
+        Shard shard = shards.get(workspaceId);
+        if (shard == null) {
+            System.err.println("[FILE STORAGE] Workspace não encontrado: " + workspaceId);
+            return false;
+        }
 
-                FileWriter fileWriter = new FileWriter(file);
-                fileWriter.write(newContent.toString());
-                fileWriter.close();
+        long waitStart = System.nanoTime();
+        shard.lock.lock();
+        long acquiredAt = SHARD_LOCK_STATS.acquired(waitStart);
+        try {
+            Workspace workspace = shard.workspace;
+            if (workspace.isOwner(userId) || !workspace.hasMember(userId)) {
+                System.err.println("[FILE STORAGE] Usuário não pode ser removido do workspace: " + userId);
+                return false;
+            }
 
-                MySharingServer.updateWorkspacesMac();
-                return true;
+            Workspace updated = workspace.withoutMember(userId);
+            try {
+                writeRecord(updated);
             } catch (IOException e) {
-                System.err.println("[FILE STORAGE] Erro ao adicionar usuário ao workspace: " + e.getMessage());
+                System.err.println("[FILE STORAGE] Erro ao remover usuário do workspace: " + e.getMessage());
                 return false;
             }
+
+            shard.workspace = updated;
+            removeFromUserIndex(userId, workspaceId);
+            return true;
         } finally {
-            lock.writeLock().unlock();
+            shard.lock.unlock();
+            SHARD_LOCK_STATS.released(acquiredAt);
         }
     }
 
@@ -277,66 +756,180 @@ public class FileStorageManager {
      * @return an array of workspace IDs
      */
     public String[] listWorkspaceIds(String usernameId) {
-        metaLock.readLock().lock();
+        Set<String> workspaceIds = workspaceIdsByUser.get(usernameId);
+        if (workspaceIds == null) {
+            return new String[0];
+        }
 
-        try {
-            MySharingServer.verifyWorkspacesMac();
+        return workspaceIds.toArray(new String[0]);
+    }
 
-            try (Scanner scanner = new Scanner(new File(WORKSPACES_FILE_PATH))) {
-                List<String> workspaceIds = new ArrayList<>();
+    /**
+     * Add a workspace to the index of its owner and members.
+     */
+    private void index(Workspace workspace) {
+        addToUserIndex(workspace.getOwnerUsername(), workspace.getId());
+        for (String member : workspace.getMembers()) {
+            addToUserIndex(member, workspace.getId());
+        }
+    }
 
-                while (scanner.hasNextLine()) {
-                    String line = scanner.nextLine();
-                    String[] parts = line.split(":");
+    /**
+     * The workspaces of a user are kept in an immutable set, replaced on
+     * every change, so readers never see it half updated.
+     */
+    private void addToUserIndex(String userId, String workspaceId) {
+        workspaceIdsByUser.compute(userId, (k, workspaceIds) -> {
+            Set<String> updated = workspaceIds == null ? new LinkedHashSet<>() : new LinkedHashSet<>(workspaceIds);
+            updated.add(workspaceId);
+            return Collections.unmodifiableSet(updated);
+        });
+    }
 
-                    int NUM_PARTS = 3;
-                    if (parts.length != NUM_PARTS) {
-                        System.out.println("[FILE STORAGE] Erro ao ler workspace: Formato inválido");
-                        continue;
-                    }
+    private void removeFromUserIndex(String userId, String workspaceId) {
+        workspaceIdsByUser.computeIfPresent(userId, (k, workspaceIds) -> {
+            Set<String> updated = new LinkedHashSet<>(workspaceIds);
+            updated.remove(workspaceId);
+            return updated.isEmpty() ? null : Collections.unmodifiableSet(updated);
+        });
+    }
 
-                    String id = parts[0];
-                    String ownerUsername = parts[1];
-                    List<String> members = Arrays.asList(parts[2].split(","));
+    private static Path recordPath(String workspaceId) {
+        return Paths.get(WORKSPACES_META_DIR_PATH + workspaceId);
+    }
 
-                    if (ownerUsername.equals(usernameId) || members.contains(usernameId)) {
-                        workspaceIds.add(id);
-                    }
-                }
+    private static String toLine(Workspace workspace) {
+        return workspace.getId() + ":" + workspace.getOwnerUsername() + ":"
+                + String.join(",", workspace.getMembers());
+    }
 
-                return workspaceIds.toArray(new String[0]);
-            } catch (IOException e) {
-                System.err.println("[FILE STORAGE] Erro ao listar workspaces: " + e.getMessage());
+    /**
+     * Write the record of a workspace with its MAC, replacing the previous
+     * one in a single move. Must be called by the only writer of the record.
+     */
+    private void writeRecord(Workspace workspace) throws IOException {
+        String line = toLine(workspace);
+        String mac = "";
+        if (MySharingServer.isWorkspacesMacEnabled()) {
+            try {
+                mac = Base64.getEncoder().encodeToString(ServerSecurityUtils.genMac(
+                        line.getBytes(StandardCharsets.UTF_8), MySharingServer.getServerKey()));
+            } catch (Exception e) {
+                throw new IOException("Erro ao calcular MAC do workspace: " + e.getMessage(), e);
+            }
+        }
+
+        Path record = recordPath(workspace.getId());
+        Path pending = Paths.get(record + TEMP_SUFFIX);
+        Files.write(pending, List.of(line, mac), StandardCharsets.UTF_8);
+        Files.move(pending, record, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        IntegrityManager.getInstance().written(recordGuard(workspace.getId()));
+    }
+
+    /**
+     * Read the record of a workspace and check it against its MAC.
+     *
+     * @return the workspace, or null if the record is missing, does not
+     *         belong to the workspace or does not match its MAC
+     */
+    private static Workspace readRecord(String workspaceId) throws IOException {
+        Path record = recordPath(workspaceId);
+        if (!Files.exists(record)) {
+            return null;
+        }
+
+        List<String> lines = Files.readAllLines(record, StandardCharsets.UTF_8);
+        if (lines.size() != 2) {
+            return null;
+        }
+
+        String line = lines.get(0);
+        String[] parts = line.split(":");
+        if (parts.length != 3 || !parts[0].equals(workspaceId)) {
+            return null;
+        }
 
-                return new String[0];
+        if (MySharingServer.isWorkspacesMacEnabled()) {
+            try {
+                byte[] expected = ServerSecurityUtils.genMac(line.getBytes(StandardCharsets.UTF_8),
+                        MySharingServer.getServerKey());
+                if (!ServerSecurityUtils.verifyMac(expected, Base64.getDecoder().decode(lines.get(1)))) {
+                    return null;
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            } catch (Exception e) {
+                throw new IOException("Erro ao verificar MAC do workspace: " + e.getMessage(), e);
             }
+        }
+
+        return new Workspace(parts[0], parts[1], Arrays.asList(parts[2].split(",")));
+    }
+
+    private static String recordGuard(String workspaceId) {
+        return "workspaces.meta/" + workspaceId;
+    }
+
+    /**
+     * Let the integrity manager check the record of a workspace when it
+     * changes outside the server.
+     */
+    private void guardRecord(String workspaceId) {
+        if (MySharingServer.isWorkspacesMacEnabled()) {
+            IntegrityManager.getInstance().register(recordGuard(workspaceId),
+                    () -> readRecord(workspaceId) != null, recordPath(workspaceId));
+        }
+    }
+
+    private void verifyIndex() {
+        long waitStart = System.nanoTime();
+        long stamp = indexLock.readLock();
+        long acquiredAt = INDEX_LOCK_STATS.acquired(waitStart);
+        try {
+            MySharingServer.verifyWorkspacesMac();
         } finally {
-            metaLock.readLock().unlock();
+            indexLock.unlockRead(stamp);
+            INDEX_LOCK_STATS.released(acquiredAt);
         }
     }
 
     /**
-     * List all files in a workspace.
+     * Check workspaces.txt and the record of a workspace against their MACs,
+     * if they changed outside the server since they were last checked.
      *
      * @param workspaceId the workspace ID
-     * @return an array of file names
      */
-    public String[] listWorkspaceFiles(String workspaceId) {
-        ReadWriteLock lock = getWorkspaceLock(workspaceId);
-        lock.readLock().lock();
+    void verifyIntegrity(String workspaceId) {
+        verifyIndex();
 
-        try {
-            MySharingServer.verifyWorkspacesMac();
+        IntegrityManager.getInstance().verify(recordGuard(workspaceId));
+    }
 
-            File workspaceDir = new File(WORKSPACES_DIR_PATH + workspaceId);
-            return workspaceDir.list();
-        } finally {
-            lock.readLock().unlock();
+    /**
+     * Check workspaces.txt and every record against their MACs, if they
+     * changed outside the server since they were last checked.
+     */
+    void verifyIntegrity() {
+        verifyIndex();
+
+        for (String workspaceId : shards.keySet()) {
+            IntegrityManager.getInstance().verify(recordGuard(workspaceId));
         }
     }
 
     /**
-     * Upload a file to a workspace.
+     * List all files in a workspace, from its file index.
+     *
+     * @param workspaceId the workspace ID
+     * @return an array of file names
+     */
+    public String[] listWorkspaceFiles(String workspaceId) {
+        return files(workspaceId).names();
+    }
+
+    /**
+     * Upload a file to a workspace. Key files of the workspace are indexed as
+     * keys, other files as uploaded files without a signature.
      *
      * @param workspaceId the workspace ID
      * @param file the file to upload
@@ -344,154 +937,213 @@ public class FileStorageManager {
      * @return true if the file was uploaded, false otherwise
      */
     public boolean uploadFile(String workspaceId, File file, String fileName) {
-        ReadWriteLock lock = getWorkspaceLock(workspaceId);
-        lock.writeLock().lock();
+        FilesLock lock = lockFiles(workspaceId, true);
 
         try {
-            MySharingServer.verifyWorkspacesMac();
+            verifyIntegrity(workspaceId);
 
-            try {
-                // workspace path
-                Path workspacePath = Paths.get(WORKSPACES_DIR_PATH + workspaceId);
-                if (!Files.exists(workspacePath)) {
-                    System.err.println("[FILE STORAGE] Workspace não encontrado: " + workspaceId);
-                    return false;
-                }
+            // workspace path
+            Path workspacePath = workspaceDir(workspaceId);
+            if (!Files.exists(workspacePath)) {
+                System.err.println("[FILE STORAGE] Workspace não encontrado: " + workspaceId);
+                return false;
+            }
 
+            WorkspaceFileIndex index = loadedFiles(workspaceId);
+            boolean keyFile = fileName.startsWith(workspaceId + WorkspaceFileIndex.KEY_MARK);
+            long size;
+            try {
                 // file path
-                Path filePath = Paths.get(WORKSPACES_DIR_PATH + workspaceId + "/" + fileName);
+                Path filePath = layout.prepare(workspacePath, fileName);
 
                 // move file to workspace
                 Files.move(file.toPath(), filePath, StandardCopyOption.REPLACE_EXISTING);
+                size = Files.size(filePath);
+            } catch (IOException e) {
+                System.err.println("[FILE STORAGE] Erro ao fazer upload do arquivo: " + e.getMessage());
+                rescanFiles(workspaceId);
+                return false;
+            }
+
+            try {
+                if (keyFile) {
+                    index.putKey(fileName);
+                } else {
+                    index.putFile(new WorkspaceFileIndex.Entry(fileName, size, System.currentTimeMillis(),
+                            null, null));
+                }
+            } catch (IOException e) {
+                dropFiles(workspaceId, e);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Upload a file to a workspace together with its signature, which is
+     * stored as "fileName.signed.uploader". A signature of the previous
+     * version of the file by another user no longer matches it, so it is
+     * deleted.
+     *
+     * @param workspaceId the workspace ID
+     * @param file the file to upload
+     * @param fileName the name of the file
+     * @param signatureFile the signature of the file
+     * @param uploader the user ID of the uploader, who signed the file
+     * @return true if both files were uploaded, false otherwise
+     */
+    public boolean uploadSignedFile(String workspaceId, File file, String fileName, File signatureFile,
+                                    String uploader) {
+        FilesLock lock = lockFiles(workspaceId, true);
+
+        try {
+            verifyIntegrity(workspaceId);
+
+            Path workspacePath = workspaceDir(workspaceId);
+            if (!Files.exists(workspacePath)) {
+                System.err.println("[FILE STORAGE] Workspace não encontrado: " + workspaceId);
+                return false;
+            }
+
+            WorkspaceFileIndex index = loadedFiles(workspaceId);
+            WorkspaceFileIndex.Entry previous = index.get(fileName);
+            String signatureFileName = fileName + WorkspaceFileIndex.SIGNATURE_MARK + uploader;
+            long size;
+            try {
+                Path filePath = layout.prepare(workspacePath, fileName);
+                Files.move(file.toPath(), filePath, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(signatureFile.toPath(), layout.prepare(workspacePath, signatureFileName),
+                        StandardCopyOption.REPLACE_EXISTING);
+                if (previous != null && previous.getSignature() != null
+                        && !previous.getSignature().equals(signatureFileName)) {
+                    Files.deleteIfExists(layout.resolve(workspacePath, previous.getSignature()));
+                }
 
-                MySharingServer.updateWorkspacesMac();
-                return true;
+                size = Files.size(filePath);
             } catch (IOException e) {
                 System.err.println("[FILE STORAGE] Erro ao fazer upload do arquivo: " + e.getMessage());
+                rescanFiles(workspaceId);
                 return false;
             }
+
+            try {
+                // the previous signature is gone, so it must not be kept as another file
+                index.replaceFile(new WorkspaceFileIndex.Entry(fileName, size, System.currentTimeMillis(),
+                        uploader, signatureFileName));
+            } catch (IOException e) {
+                dropFiles(workspaceId, e);
+            }
+            return true;
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
     /**
-     * Check if a file is in a workspace.
+     * Check if a file is in a workspace, from its file index.
      *
      * @param fileName the name of the file
      * @param workspaceId the workspace ID
      * @return true if the file is in the workspace, false otherwise
      */
     public boolean isFileInWorkspace(String fileName, String workspaceId) {
-        MySharingServer.verifyWorkspacesMac();
-
-        File file = getFile(fileName, workspaceId);
-        if (file == null) {
+        if (fileName == null || workspaceId == null) {
             return false;
         }
 
-        return file.exists();
+        return files(workspaceId).contains(fileName);
     }
 
     /**
-     * Get a file from a workspace.
+     * Get a file from a workspace, wherever the layout puts it. Only the path
+     * is built, so no lock is needed.
      *
      * @param fileName the name of the file
      * @param workspaceId the workspace ID
      * @return the file if it exists, null otherwise
      */
     public File getFile(String fileName, String workspaceId) {
-        ReadWriteLock lock = getWorkspaceLock(workspaceId);
-        lock.readLock().lock();
-
-        try {
-            MySharingServer.verifyWorkspacesMac();
-
-            if (fileName == null || workspaceId == null) {
-                return null;
-            }
-
-            String dir = WORKSPACES_DIR_PATH + workspaceId;
-            return new File(dir, fileName);
-        } finally {
-            lock.readLock().unlock();
+        if (fileName == null || workspaceId == null) {
+            return null;
         }
+
+        return layout.resolve(workspaceDir(workspaceId), fileName).toFile();
     }
 
     /**
-     * Delete a file from a workspace.
+     * Delete a file from a workspace, with its signature.
      *
      * @param fileName the name of the file
      * @param workspaceId the workspace ID
      * @return true if the file was deleted, false otherwise
      */
     public boolean deleteFile(String fileName, String workspaceId) {
-        ReadWriteLock lock = getWorkspaceLock(workspaceId);
-        lock.writeLock().lock();
+        if (fileName == null || workspaceId == null) {
+            return false;
+        }
+
+        FilesLock lock = lockFiles(workspaceId, true);
 
         try {
-            MySharingServer.verifyWorkspacesMac();
+            verifyIntegrity(workspaceId);
 
-            File file = getFile(fileName, workspaceId);
-            if (file == null) {
+            WorkspaceFileIndex index = loadedFiles(workspaceId);
+            if (!index.contains(fileName)) {
                 return false;
             }
 
-            File signatureFile = getSignatureFile(fileName, workspaceId);
-            if (signatureFile != null) {
-                signatureFile.delete();
+            WorkspaceFileIndex.Entry entry = index.get(fileName);
+            if (entry != null && entry.getSignature() != null) {
+                getFile(entry.getSignature(), workspaceId).delete();
+            }
+
+            boolean deleted = getFile(fileName, workspaceId).delete();
+            if (!deleted) {
+                rescanFiles(workspaceId);
+                return false;
             }
 
-            MySharingServer.updateWorkspacesMac();
-            return file.delete();
+            try {
+                index.remove(fileName);
+            } catch (IOException e) {
+                dropFiles(workspaceId, e);
+            }
+            return true;
         } finally {
-            lock.writeLock().unlock();
+            lock.unlock();
         }
     }
 
-
-    //TODO
-    //REDO THIS
+    /**
+     * Check if a file of a workspace has a signature, from its file index.
+     *
+     * @param fileName the name of the signed file
+     * @param workspaceId the workspace ID
+     * @return true if the file has a signature, false otherwise
+     */
     public boolean isSignatureFileInWorkspace(String fileName, String workspaceId) {
-        if (fileName == null || workspaceId == null) {
-            return false;
-        }
-        if (getSignatureFile(fileName, workspaceId) == null) {
-            return false;
-        } else {
-            return true;
-        }
+        return getSignatureFile(fileName, workspaceId) != null;
     }
 
+    /**
+     * Get the signature of a file of a workspace, from its file index.
+     *
+     * @param fileName the name of the signed file
+     * @param workspaceId the workspace ID
+     * @return the signature file, or null if the file has none
+     */
     public File getSignatureFile(String fileName, String workspaceId) {
-        ReadWriteLock lock = getWorkspaceLock(workspaceId);
-        lock.readLock().lock();
-
-        try {
-            MySharingServer.verifyWorkspacesMac();
-
-            String signatureFileName = fileName + ".signed";
-
-            File baseFile = getFile(signatureFileName, workspaceId);
-            if (baseFile == null) {
-                return null;
-            }
-
-            File directory = baseFile.getParentFile();
-            if (directory == null || !directory.isDirectory()) {
-                return null;
-            }
-
-            String baseName = baseFile.getName();
-
-            File[] matches = directory.listFiles((dir, name) -> name.startsWith(baseName));
-            if (matches != null && matches.length > 0) {
-                return matches[0];
-            }
+        if (fileName == null || workspaceId == null) {
+            return null;
+        }
 
+        WorkspaceFileIndex.Entry entry = files(workspaceId).get(fileName);
+        if (entry == null || entry.getSignature() == null) {
             return null;
-        } finally {
-            lock.readLock().unlock();
         }
+
+        return getFile(entry.getSignature(), workspaceId);
     }
-}
\ No newline at end of file
+}
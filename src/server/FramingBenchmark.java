@@ -0,0 +1,177 @@
+package server;
+
+import server.models.BinaryFrame;
+import server.models.BodyFormat;
+import server.models.BodyJSON;
+import server.models.BodyRaw;
+import server.models.Request;
+import server.models.Response;
+import server.models.StatusCode;
+import server.utils.BufferPool;
+import server.utils.NetworkUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Measures the time and the memory allocated per frame when frames are read
+ * and written in each protocol version:
+ *
+ * java -cp build server.FramingBenchmark [seconds]
+ *
+ * A 64 KB upload chunk is read from a stream and written to a file, as the
+ * upload handler does, and a 64 KB download chunk is written to a stream. A
+ * small JSON request and response are measured the same way. Frames come
+ * from the BufferPool, so a chunk should allocate only a few hundred bytes
+ * of headers and objects, not the chunk itself.
+ *
+ * Each case runs in a single thread, which is the one whose allocations
+ * are counted, after the same time of warm up.
+ */
+public class FramingBenchmark {
+    private static final int DEFAULT_SECONDS = 3;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // the same array for every chunk, as a download reads into a pooled buffer
+    private static final byte[] DOWNLOAD_DATA = new byte[CHUNK_SIZE];
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException {
+        int seconds = DEFAULT_SECONDS;
+        try {
+            if (args.length > 0) {
+                seconds = Integer.parseInt(args[0]);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Uso: java server.FramingBenchmark [segundos]");
+            System.exit(1);
+        }
+
+        Path file = Files.createTempFile("framing", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            System.out.println("[BENCHMARK] " + seconds + " s por caso");
+            System.out.printf("%-24s %7s %10s %10s %14s%n", "caso", "versão", "µs/frame", "MB/s", "bytes alocados");
+
+            for (int version : new int[]{BinaryFrame.VERSION_1, BinaryFrame.VERSION_2}) {
+                byte[] chunkFrame = uploadChunk().toByteArray(version);
+                run("receber chunk 64 KB", version, CHUNK_SIZE, seconds,
+                        new Reader(chunkFrame, request -> request.getBodyRaw().writeTo(channel, 0)));
+                run("enviar chunk 64 KB", version, CHUNK_SIZE, seconds,
+                        () -> downloadChunk().writeTo(OutputStream.nullOutputStream(), version));
+
+                byte[] jsonFrame = listRequest().toByteArray(version);
+                run("receber pedido JSON", version, jsonFrame.length, seconds,
+                        new Reader(jsonFrame, request -> request.getBodyJSON()));
+                run("enviar resposta JSON", version, listResponse().toByteArray(version).length, seconds,
+                        () -> listResponse().writeTo(OutputStream.nullOutputStream(), version));
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        System.out.println(BufferPool.getInstance().getStats());
+    }
+
+    /**
+     * Run a case for the given time after warming it up for the same time.
+     */
+    private static void run(String name, int version, int bytesPerFrame, int seconds, Step step) throws IOException {
+        loop(step, seconds);
+
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+        long startedAt = System.nanoTime();
+        long frames = loop(step, seconds);
+        long elapsed = System.nanoTime() - startedAt;
+        long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+        System.out.printf("%-24s %7d %10.2f %10.1f %14d%n", name, version, elapsed / 1000.0 / frames,
+                bytesPerFrame * (double) frames / (elapsed / 1e9) / (1024 * 1024), allocated / frames);
+    }
+
+    private static long loop(Step step, int seconds) throws IOException {
+        long frames = 0;
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            // check the clock only every few frames, so it is not measured
+            for (int i = 0; i < 64; i++) {
+                step.run();
+            }
+            frames += 64;
+        }
+        return frames;
+    }
+
+    private static Request uploadChunk() {
+        Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.RAW, "uploadfiletoworkspace",
+                BodyRaw.wrap(new byte[CHUNK_SIZE]));
+        request.addHeader("FILE-ID", NetworkUtils.newRequestId());
+        request.addHeader("CHUNK-ID", "12");
+        request.addHeader("TYPE", "CHUNK");
+        return request;
+    }
+
+    private static Response downloadChunk() {
+        Response response = new Response(NetworkUtils.newRequestId(), StatusCode.OK, BodyFormat.RAW,
+                BodyRaw.wrap(DOWNLOAD_DATA));
+        response.addHeader("FILE-ID", "7c9e6679-7425-40de-944b-e07fc1f90ae7");
+        response.addHeader("CHUNK-ID", "12");
+        response.addHeader("TYPE", "CHUNK");
+        return response;
+    }
+
+    private static Request listRequest() {
+        BodyJSON body = new BodyJSON();
+        body.put("workspaceId", "diogo_ws1");
+        return new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "listworkspacefiles", body);
+    }
+
+    private static Response listResponse() {
+        BodyJSON body = new BodyJSON();
+        body.put("files", "[ficheiro.txt, ficheiro.txt.signed.diogo, diogo_ws1.key.diogo]");
+        return new Response(NetworkUtils.newRequestId(), StatusCode.OK, BodyFormat.JSON, body);
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    private interface Handler {
+        void handle(Request request) throws IOException;
+    }
+
+    /**
+     * Read the same frame over and over, as a connection reads from its
+     * socket, and hand each request to a handler before releasing it.
+     */
+    private static final class Reader implements Step {
+        private final ByteArrayInputStream bytes;
+        private final DataInputStream in;
+        private final Handler handler;
+
+        private Reader(byte[] frame, Handler handler) {
+            this.bytes = new ByteArrayInputStream(frame);
+            this.in = new DataInputStream(bytes);
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() throws IOException {
+            bytes.reset();
+            Request request = Request.fromStream(in);
+            try {
+                handler.handle(request);
+            } finally {
+                request.release();
+            }
+        }
+    }
+}
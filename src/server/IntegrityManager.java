@@ -0,0 +1,235 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps track of which metadata files are known to match their MACs, so the
+ * MACs are only checked again when needed.
+ *
+ * The server is the only writer of these files. Every change it makes bumps
+ * the generation of the file, and every check or recompute of a MAC records
+ * the generation and the size, modification time and file key of the files it
+ * covered. A file is checked again only if one of those changed, which means
+ * it was modified outside the server, or once the verify interval expires.
+ * While neither happens a check is a counter compare and a stat.
+ *
+ * The owner of the files writes their MAC together with every change, under
+ * the lock that excludes other writers, and then calls
+ * {@link #written(String)}; see {@link PendingMac}.
+ */
+class IntegrityManager {
+    private static IntegrityManager INSTANCE;
+
+    /**
+     * Checks a file against its MAC.
+     */
+    interface Check {
+        boolean verify() throws Exception;
+    }
+
+    private final Map<String, Guard> guards = new ConcurrentHashMap<>();
+    private final long verifyIntervalNanos;
+
+    private IntegrityManager() {
+        verifyIntervalNanos = TimeUnit.SECONDS.toNanos(ServerConfig.getVerifyIntervalSeconds());
+    }
+
+    /**
+     * Get the instance of the integrity manager.
+     *
+     * @return the instance
+     */
+    public synchronized static IntegrityManager getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new IntegrityManager();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Start tracking files that were just verified. Files that are not
+     * registered, e.g. because their MAC was declined, are never checked.
+     *
+     * @param name the name of the guard
+     * @param check checks the files against their MAC
+     * @param files the files covered, including the MAC file
+     */
+    void register(String name, Check check, Path... files) {
+        Guard guard = new Guard(name, check, files);
+        guard.trust(guard.generation);
+        guards.put(name, guard);
+    }
+
+    /**
+     * Check files against their MAC if they may have changed since the last
+     * check. Exits the server if they do not match.
+     *
+     * @param name the name of the guard
+     */
+    void verify(String name) {
+        Guard guard = guards.get(name);
+        if (guard == null || guard.isFresh()) {
+            return;
+        }
+
+        guard.lock.lock();
+        try {
+            if (guard.isFresh()) {
+                return;
+            }
+
+            long generation = guard.generation;
+            try {
+                if (!guard.check.verify()) {
+                    System.err.println("[SERVER] MAC inválido. O ficheiro " + guard.name + " pode ter sido comprometido.");
+                    System.err.println("[SERVER] Sistema comprometido! A encerrar...");
+                    System.exit(1);
+                }
+                guard.trust(generation);
+            } catch (Exception e) {
+                System.err.println("[SERVER] Erro ao verificar MAC de " + guard.name + ": " + e.getMessage());
+            }
+        } finally {
+            guard.lock.unlock();
+        }
+    }
+
+    /**
+     * Note that the server wrote files together with their MAC. Must be
+     * called while the owner still excludes other writers of the files.
+     *
+     * @param name the name of the guard
+     */
+    void written(String name) {
+        Guard guard = guards.get(name);
+        if (guard == null) {
+            return;
+        }
+
+        guard.lock.lock();
+        try {
+            guard.generation++;
+            guard.trust(guard.generation);
+        } finally {
+            guard.lock.unlock();
+        }
+    }
+
+    /**
+     * Make every guard check its files again on the next verification, even
+     * if they look unchanged.
+     */
+    void expireAll() {
+        long now = System.nanoTime();
+        for (Guard guard : guards.values()) {
+            guard.expiresAt = now;
+        }
+    }
+
+    /**
+     * What is known about one set of files. The fields written under the
+     * lock are volatile so the fast path can read them without it. The lock
+     * is a ReentrantLock rather than a monitor because a check reads the
+     * files, which would pin a virtual thread.
+     */
+    private final class Guard {
+        private final String name;
+        private final Check check;
+        private final Path[] files;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile long generation = 0;
+        private volatile long verifiedGeneration = -1;
+        private volatile FileState[] states;
+        private volatile long expiresAt;
+
+        private Guard(String name, Check check, Path[] files) {
+            this.name = name;
+            this.check = check;
+            this.files = files;
+        }
+
+        private boolean isFresh() {
+            if (verifiedGeneration != generation || System.nanoTime() - expiresAt >= 0) {
+                return false;
+            }
+
+            FileState[] known = states;
+            for (int i = 0; i < files.length; i++) {
+                if (!Objects.equals(known[i], FileState.of(files[i]))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Record the current state of the files as matching the given
+         * generation. Must be called with the lock held.
+         */
+        private void trust(long generation) {
+            FileState[] current = new FileState[files.length];
+            for (int i = 0; i < files.length; i++) {
+                current[i] = FileState.of(files[i]);
+            }
+            states = current;
+            expiresAt = System.nanoTime() + verifyIntervalNanos;
+            verifiedGeneration = generation;
+        }
+    }
+
+    /**
+     * Size, modification time and identity of a file, or null if it does
+     * not exist.
+     */
+    private static final class FileState {
+        // never equal to any state, so the file is checked again
+        private static final FileState UNKNOWN = new FileState(-1, null, null);
+
+        private final long size;
+        private final FileTime modified;
+        private final Object fileKey;
+
+        private FileState(long size, FileTime modified, Object fileKey) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+        }
+
+        private static FileState of(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return new FileState(attributes.size(), attributes.lastModifiedTime(), attributes.fileKey());
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                return UNKNOWN;
+            }
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == UNKNOWN || other == UNKNOWN || !(other instanceof FileState)) {
+                return false;
+            }
+            FileState state = (FileState) other;
+            return size == state.size && modified.equals(state.modified) && Objects.equals(fileKey, state.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, fileKey);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package server;
+
+import server.utils.ServerSecurityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background task that checks what the request path no longer checks on
+ * every access: the MACs of the metadata files, and every stored file
+ * against the signatures uploaded with it (file.signed.user), using the
+ * public key of the signer.
+ *
+ * Files are read within a budget of bytes per second so the scrubber does not
+ * compete with clients for the disk. Its position is saved to a checkpoint
+ * file, so a pass interrupted by a restart resumes where it stopped.
+ * A failed check is repeated under the read lock of the workspace before it
+ * is reported, and files written since the pass started are left to the next
+ * pass, so a file being replaced by an upload is not mistaken for a corrupted
+ * one.
+ */
+public class IntegrityScrubber {
+    private static IntegrityScrubber INSTANCE;
+    private static final Path WORKSPACES_DIR_PATH = Paths.get("data/workspaces");
+    private static final Path CHECKPOINT_PATH = Paths.get("data/scrubber.checkpoint");
+    private static final String SIGNATURE_MARK = ".signed.";
+    private static final String KEY_MARK = ".key.";
+    private static final int PIECE_LENGTH = 64 * 1024;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private final int intervalSeconds;
+
+    // "workspace/file" -> reason, for the files that failed their last check
+    private final Map<String, String> problems = Collections.synchronizedMap(new TreeMap<>());
+    private final AtomicLong checkedFiles = new AtomicLong();
+    private final AtomicLong checkedBytes = new AtomicLong();
+    private volatile int passes = 0;
+    private volatile Instant lastPass;
+    private volatile boolean running = false;
+
+    // Only used by the scrubber thread
+    private long nextReadAt = 0;
+    private long lastCheckpointAt = 0;
+    private FileTime passStartedAt;
+
+    private IntegrityScrubber() {
+        bytesPerSecond = ServerConfig.getScrubBytesPerSecond();
+        intervalSeconds = ServerConfig.getScrubIntervalSeconds();
+    }
+
+    /**
+     * Get the instance of the integrity scrubber.
+     *
+     * @return the instance
+     */
+    public synchronized static IntegrityScrubber getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new IntegrityScrubber();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Run the scrubber in the background. An interrupted pass is resumed
+     * right away, otherwise the first pass starts after one interval.
+     */
+    void start() {
+        ScheduledExecutorService scrubber = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "integrity-scrubber");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+
+        long initialDelay = Files.exists(CHECKPOINT_PATH) ? 0 : intervalSeconds;
+        scrubber.scheduleWithFixedDelay(this::runPass, initialDelay, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Check the metadata files and then every stored file once.
+     */
+    void runPass() {
+        running = true;
+        passStartedAt = FileTime.from(Instant.now());
+        try {
+            // the metadata is small, it is checked in full every pass
+            IntegrityManager.getInstance().expireAll();
+            UserStorageManager.getInstance().verifyIntegrity();
+            FileStorageManager.getInstance().verifyIntegrity();
+
+            String[] checkpoint = readCheckpoint();
+            if (checkpoint != null) {
+                System.out.println("[SCRUBBER] A retomar verificação após " + checkpoint[0] + "/" + checkpoint[1]);
+            }
+
+            for (String workspaceId : list(WORKSPACES_DIR_PATH)) {
+                if (checkpoint != null && workspaceId.compareTo(checkpoint[0]) < 0) {
+                    continue;
+                }
+
+                Path dir = WORKSPACES_DIR_PATH.resolve(workspaceId);
+                if (!Files.isDirectory(dir)) {
+                    continue;
+                }
+
+                NavigableSet<String> names = listFiles(dir);
+                for (String fileName : names) {
+                    if (checkpoint != null && workspaceId.equals(checkpoint[0])
+                            && fileName.compareTo(checkpoint[1]) <= 0) {
+                        continue;
+                    }
+                    if (!isDataFile(workspaceId, fileName, names)) {
+                        continue;
+                    }
+
+                    scrubFile(workspaceId, fileName, names);
+                    saveCheckpoint(workspaceId, fileName);
+                }
+            }
+
+            Files.deleteIfExists(CHECKPOINT_PATH);
+            dropVanished();
+            passes++;
+            lastPass = Instant.now();
+            System.out.println("[SCRUBBER] Verificação concluída: " + checkedFiles.get() + " ficheiros verificados, "
+                    + problems.size() + " com problemas");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("[SCRUBBER] Erro na verificação: " + e.getMessage());
+        } finally {
+            running = false;
+        }
+    }
+
+    /**
+     * Check a file against each of its signatures.
+     */
+    private void scrubFile(String workspaceId, String fileName, NavigableSet<String> names)
+            throws InterruptedException {
+        String entry = workspaceId + "/" + fileName;
+        WorkspaceLayout layout = FileStorageManager.getInstance().getLayout();
+        Path dir = WORKSPACES_DIR_PATH.resolve(workspaceId);
+        Path file = layout.resolve(dir, fileName);
+
+        // the signatures of the file follow it in the sorted names
+        List<String> signers = new ArrayList<>();
+        String prefix = fileName + SIGNATURE_MARK;
+        for (String name : names.tailSet(prefix, false)) {
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            signers.add(name.substring(prefix.length()));
+        }
+
+        String problem = null;
+        if (signers.isEmpty() && !changedDuringPass(file)) {
+            problem = "sem assinatura";
+        }
+
+        for (String signer : signers) {
+            PublicKey publicKey = PublicKeyRegistry.getInstance().getPublicKey(signer);
+            if (publicKey == null) {
+                problem = "chave pública de " + signer + " não encontrada";
+                continue;
+            }
+
+            Path signatureFile = layout.resolve(dir, prefix + signer);
+            if (verifySignature(file, signatureFile, publicKey, true)) {
+                continue;
+            }
+
+            FileStorageManager.FilesLock lock = FileStorageManager.getInstance().lockFilesForRead(workspaceId);
+            try {
+                if (!Files.exists(file) || !Files.exists(signatureFile) || changedDuringPass(file, signatureFile)) {
+                    // removed or replaced meanwhile
+                    continue;
+                }
+                if (!verifySignature(file, signatureFile, publicKey, false)) {
+                    problem = "assinatura de " + signer + " inválida";
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        checkedFiles.incrementAndGet();
+        if (problem == null) {
+            problems.remove(entry);
+        } else {
+            System.err.println("[SCRUBBER] Ficheiro comprometido: " + entry + " (" + problem + ")");
+            problems.put(entry, problem);
+        }
+    }
+
+    /**
+     * Verify a signature while reading the file in pieces.
+     *
+     * @param throttled true to keep within the budget of bytes per second
+     * @return true if the signature is valid, false if it is not or the files cannot be read
+     */
+    private boolean verifySignature(Path file, Path signatureFile, PublicKey publicKey, boolean throttled)
+            throws InterruptedException {
+        try {
+            Signature signature = Signature.getInstance(ServerSecurityUtils.ALGORITHM);
+            signature.initVerify(publicKey);
+
+            byte[] piece = new byte[PIECE_LENGTH];
+            try (InputStream in = Files.newInputStream(file)) {
+                int n;
+                while ((n = in.read(piece)) > 0) {
+                    if (throttled) {
+                        throttle(n);
+                    }
+                    signature.update(piece, 0, n);
+                    checkedBytes.addAndGet(n);
+                }
+            }
+
+            return signature.verify(Files.readAllBytes(signatureFile));
+        } catch (IOException | GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Check if any of the files was written after the pass started, or can
+     * no longer be read.
+     */
+    private boolean changedDuringPass(Path... files) {
+        try {
+            for (Path file : files) {
+                if (Files.getLastModifiedTime(file).compareTo(passStartedAt) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Wait until reading the given number of bytes fits the budget.
+     */
+    private void throttle(int bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        if (nextReadAt - now < 0) {
+            nextReadAt = now;
+        }
+
+        long wait = nextReadAt - now;
+        nextReadAt += bytes * 1_000_000_000L / bytesPerSecond;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Check if a file holds data, as opposed to a signature or a workspace key.
+     */
+    private static boolean isDataFile(String workspaceId, String fileName, Set<String> names) {
+        if (fileName.startsWith(workspaceId + KEY_MARK) || fileName.endsWith(".tmp")) {
+            return false;
+        }
+
+        int mark = fileName.lastIndexOf(SIGNATURE_MARK);
+        return mark < 0 || !names.contains(fileName.substring(0, mark));
+    }
+
+    /**
+     * Forget the problems of files that were deleted.
+     */
+    private void dropVanished() {
+        synchronized (problems) {
+            WorkspaceLayout layout = FileStorageManager.getInstance().getLayout();
+            problems.keySet().removeIf(entry -> {
+                int slash = entry.indexOf('/');
+                return !Files.exists(layout.resolve(WORKSPACES_DIR_PATH.resolve(entry.substring(0, slash)),
+                        entry.substring(slash + 1)));
+            });
+        }
+    }
+
+    /**
+     * Get the names of the files of a workspace, sorted.
+     */
+    private static NavigableSet<String> listFiles(Path dir) throws IOException {
+        NavigableSet<String> names = new TreeSet<>();
+        for (Path path : FileStorageManager.getInstance().getLayout().files(dir)) {
+            names.add(path.getFileName().toString());
+        }
+        return names;
+    }
+
+    private static List<String> list(Path dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return names;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * Read the position where an interrupted pass stopped.
+     *
+     * @return the workspace and file last checked, or null to start from the beginning
+     */
+    private static String[] readCheckpoint() {
+        try {
+            if (!Files.exists(CHECKPOINT_PATH)) {
+                return null;
+            }
+
+            List<String> lines = Files.readAllLines(CHECKPOINT_PATH, StandardCharsets.UTF_8);
+            if (lines.size() != 2) {
+                return null;
+            }
+            return new String[]{lines.get(0), lines.get(1)};
+        } catch (IOException e) {
+            System.err.println("[SCRUBBER] Erro ao ler ponto de retoma: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Save the position of the pass, at most once a second.
+     */
+    private void saveCheckpoint(String workspaceId, String fileName) {
+        long now = System.nanoTime();
+        if (now - lastCheckpointAt < CHECKPOINT_INTERVAL_NANOS) {
+            return;
+        }
+        lastCheckpointAt = now;
+
+        Path temp = CHECKPOINT_PATH.resolveSibling(CHECKPOINT_PATH.getFileName() + ".tmp");
+        try {
+            Files.write(temp, List.of(workspaceId, fileName), StandardCharsets.UTF_8);
+            Files.move(temp, CHECKPOINT_PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("[SCRUBBER] Erro ao guardar ponto de retoma: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the problems found in the given workspaces.
+     *
+     * @param workspaceIds the workspaces
+     * @return "workspace/file: reason" for every file that failed its last check
+     */
+    public List<String> getProblems(Set<String> workspaceIds) {
+        List<String> found = new ArrayList<>();
+        synchronized (problems) {
+            for (Map.Entry<String, String> problem : problems.entrySet()) {
+                String workspaceId = problem.getKey().substring(0, problem.getKey().indexOf('/'));
+                if (workspaceIds.contains(workspaceId)) {
+                    found.add(problem.getKey() + ": " + problem.getValue());
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Get the number of complete passes since the server started.
+     *
+     * @return the number of passes
+     */
+    public int getPasses() {
+        return passes;
+    }
+
+    /**
+     * Get when the last pass ended.
+     *
+     * @return the time, or null if no pass ended yet
+     */
+    public Instant getLastPass() {
+        return lastPass;
+    }
+
+    /**
+     * Get the number of files checked since the server started.
+     *
+     * @return the number of files
+     */
+    public long getCheckedFiles() {
+        return checkedFiles.get();
+    }
+
+    /**
+     * Get the number of bytes read since the server started.
+     *
+     * @return the number of bytes
+     */
+    public long getCheckedBytes() {
+        return checkedBytes.get();
+    }
+
+    /**
+     * Check if a pass is in progress.
+     *
+     * @return true if the scrubber is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+}
@@ -0,0 +1,116 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Moves the files of every workspace to another layout. Must be run in the
+ * directory of the server, with the server stopped:
+ *
+ * java -cp build server.LayoutMigrator fanout
+ *
+ * Files are only renamed, so their MACs, signatures and the file indexes stay
+ * valid. The data directory is marked as migrating until every file was
+ * moved, so the server refuses to start on a migration cut short, and running
+ * the migrator again finishes it.
+ */
+public class LayoutMigrator {
+    private static final Path WORKSPACES_DIR_PATH = Paths.get("data/workspaces");
+    private static final String BUCKET_PATTERN = "[0-9a-f]{2}";
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.err.println("Uso: java server.LayoutMigrator <flat|fanout>");
+            System.exit(1);
+        }
+        WorkspaceLayout target = WorkspaceLayout.parse(args[0], null);
+        if (target == null) {
+            System.exit(1);
+        }
+
+        try {
+            migrate(target);
+        } catch (IOException e) {
+            System.err.println("[MIGRATOR] Erro ao migrar: " + e.getMessage());
+            System.err.println("[MIGRATOR] Corra o migrador de novo para concluir.");
+            System.exit(1);
+        }
+    }
+
+    private static void migrate(WorkspaceLayout target) throws IOException {
+        WorkspaceLayout current = WorkspaceLayout.read();
+        if (current == target) {
+            System.out.println("[MIGRATOR] Os workspaces já usam o layout " + target.name().toLowerCase());
+            return;
+        }
+
+        WorkspaceLayout.write(target, true);
+        long moved = 0;
+        List<Path> workspaces = new ArrayList<>();
+        if (Files.isDirectory(WORKSPACES_DIR_PATH)) {
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(WORKSPACES_DIR_PATH, Files::isDirectory)) {
+                dirs.forEach(workspaces::add);
+            }
+        }
+
+        for (Path dir : workspaces) {
+            // files of either layout, a previous run may have stopped halfway
+            List<Path> files;
+            try (Stream<Path> paths = Files.walk(dir, 3)) {
+                files = paths.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+
+            for (Path file : files) {
+                Path destination = target.prepare(dir, file.getFileName().toString());
+                if (destination.equals(file)) {
+                    continue;
+                }
+
+                // a rename may replace an existing file, so never rename onto one
+                if (Files.exists(destination)) {
+                    System.err.println("[MIGRATOR] Ficheiro em duplicado, deixado em " + file);
+                    continue;
+                }
+                Files.move(file, destination, StandardCopyOption.ATOMIC_MOVE);
+                moved++;
+            }
+
+            removeEmptyBuckets(dir);
+            System.out.println("[MIGRATOR] Workspace migrado: " + dir.getFileName());
+        }
+
+        WorkspaceLayout.write(target, false);
+        System.out.println("[MIGRATOR] " + moved + " ficheiros movidos para o layout " + target.name().toLowerCase());
+    }
+
+    /**
+     * Delete the subdirectories of the fan-out layout that no file uses.
+     */
+    private static void removeEmptyBuckets(Path dir) throws IOException {
+        List<Path> buckets;
+        try (Stream<Path> paths = Files.walk(dir, 2)) {
+            buckets = paths.filter(path -> !path.equals(dir) && Files.isDirectory(path)
+                            && path.getFileName().toString().matches(BUCKET_PATTERN))
+                    .sorted(Comparator.comparingInt(Path::getNameCount).reversed())
+                    .collect(Collectors.toList());
+        }
+
+        for (Path bucket : buckets) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(bucket)) {
+                if (entries.iterator().hasNext()) {
+                    continue;
+                }
+            }
+            Files.delete(bucket);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package server;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how changes to the workspace metadata scale with concurrent
+ * writers and with the number of workspaces. It creates its own data
+ * directory, so it must be run in an empty directory, ideally on the same
+ * kind of disk as the server:
+ *
+ * java -cp build server.MetadataBenchmark [writers] [changes] [workspaces...]
+ *
+ * First every writer adds and removes members of its own workspace, then
+ * all writers do the same on one workspace. Writers of different workspaces
+ * never share a lock, so only the second run should show time spent waiting.
+ * Then workspaces are created up to each of the given counts, and the time
+ * to create one and to change a member of a random one is measured at each
+ * count. A change only rewrites the record of its workspace, so its cost
+ * must not grow with the number of workspaces.
+ */
+public class MetadataBenchmark {
+    private static final int DEFAULT_WRITERS = 64;
+    private static final int DEFAULT_CHANGES = 50;
+    private static final int[] DEFAULT_WORKSPACES = {100, 1_000, 10_000};
+    // samples per workspace count
+    private static final int SAMPLES = 200;
+
+    public static void main(String[] args) throws InterruptedException {
+        int writers = DEFAULT_WRITERS;
+        int changes = DEFAULT_CHANGES;
+        int[] workspaces = DEFAULT_WORKSPACES;
+        try {
+            if (args.length > 0) {
+                writers = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                changes = Integer.parseInt(args[1]);
+            }
+            if (args.length > 2) {
+                workspaces = Arrays.stream(args, 2, args.length).mapToInt(Integer::parseInt).sorted().toArray();
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Uso: java server.MetadataBenchmark [escritores] [alterações] [workspaces...]");
+            System.exit(1);
+        }
+
+        if (Files.exists(Paths.get("data"))) {
+            System.err.println("[BENCHMARK] Já existe uma pasta data aqui. Corra o benchmark numa pasta vazia.");
+            System.exit(1);
+        }
+
+        MySharingServer.setServerKey(new SecretKeySpec("benchmark".getBytes(StandardCharsets.UTF_8), "AES"));
+        FileStorageManager storage = FileStorageManager.getInstance();
+        storage.loadWorkspaces();
+
+        System.out.println("[BENCHMARK] " + writers + " escritores, " + changes + " alterações cada");
+        List<String> own = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            storage.createWorkspace("writer" + i, "ws");
+            own.add("writer" + i + "_ws");
+        }
+        storage.createWorkspace("shared", "ws");
+        List<String> shared = Collections.nCopies(writers, "shared_ws");
+
+        // warm up, so the first run is not measured before the JIT compiled the writes
+        writers(storage, own, changes);
+        writers(storage, shared, changes);
+        System.out.println("[BENCHMARK] Workspaces diferentes: " + writers(storage, own, changes));
+        System.out.println("[BENCHMARK] O mesmo workspace:     " + writers(storage, shared, changes));
+
+        System.out.printf("%12s %20s %20s%n", "workspaces", "criar (ms)", "alterar (ms)");
+        int created = 0;
+        for (int count : workspaces) {
+            // create all but the last samples without measuring them
+            while (created < count - SAMPLES) {
+                storage.createWorkspace("user" + created++, "ws");
+            }
+            long[] creates = new long[Math.max(0, count - created)];
+            for (int i = 0; i < creates.length; i++) {
+                long start = System.nanoTime();
+                storage.createWorkspace("user" + created++, "ws");
+                creates[i] = System.nanoTime() - start;
+            }
+
+            long[] changesNanos = new long[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++) {
+                String workspaceId = "user" + ThreadLocalRandom.current().nextInt(created) + "_ws";
+                long start = System.nanoTime();
+                storage.addUserToWorkspace(workspaceId, "member");
+                storage.removeUserFromWorkspace(workspaceId, "member");
+                changesNanos[i] = (System.nanoTime() - start) / 2;
+            }
+
+            System.out.printf("%12d %20s %20s%n", created, percentiles(creates), percentiles(changesNanos));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Have one thread per entry add and remove members of the given workspace.
+     *
+     * @return the summary of the run
+     */
+    private static String writers(FileStorageManager storage, List<String> workspaceIds, int changes)
+            throws InterruptedException {
+        long[] nanos = new long[workspaceIds.size() * changes];
+        AtomicInteger failed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < workspaceIds.size(); t++) {
+            String workspaceId = workspaceIds.get(t);
+            String member = "member" + t;
+            int first = t * changes;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < changes; i++) {
+                    long begin = System.nanoTime();
+                    boolean done = i % 2 == 0
+                            ? storage.addUserToWorkspace(workspaceId, member)
+                            : storage.removeUserFromWorkspace(workspaceId, member);
+                    nanos[first + i] = System.nanoTime() - begin;
+                    if (!done) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        long startedAt = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - startedAt) / 1e9;
+
+        return String.format("%8.0f alterações/s, %d falhadas, por alteração %s ms",
+                nanos.length / seconds, failed.get(), percentiles(nanos));
+    }
+
+    /**
+     * Format the 50th and 99th percentiles of times in nanoseconds, in milliseconds.
+     */
+    private static String percentiles(long[] nanos) {
+        if (nanos.length == 0) {
+            return "-";
+        }
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return String.format("p50 %.2f p99 %.2f", sorted[sorted.length / 2] / 1e6,
+                sorted[Math.min(sorted.length - 1, (int) (sorted.length * 0.99))] / 1e6);
+    }
+}
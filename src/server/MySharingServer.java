@@ -7,9 +7,14 @@ import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import server.utils.LockStats;
 import server.utils.ServerSecurityUtils;
 
 /**
@@ -24,7 +29,11 @@ public class MySharingServer {
     private static final Path USERS_MAC_FILE_PATH = Path.of("data/users.mac");
     private static final Path WORKSPACES_FILE_PATH = Path.of("data/workspaces.txt");
     private static final Path WORKSPACES_MAC_FILE_PATH = Path.of("data/workspaces.mac");
-    private final SSLServerSocket sslServerSocket;
+    private static final String USERS_GUARD = "users.txt";
+    static final String WORKSPACES_GUARD = "workspaces.txt";
+    private final int port;
+    private final String mode;
+    private SSLServerSocket sslServerSocket;
 
     public static void main(String[] args) {
         int port = parsePortArgs(args);
@@ -41,10 +50,27 @@ public class MySharingServer {
         byte[] bytesKey = password.getBytes();
         serverKey = new SecretKeySpec(bytesKey, 0, bytesKey.length, "AES");
 
+        // Calibrar o custo das passwords antes de aceitar logins
+        PasswordPolicy.getInstance();
+
         // Verificar integridade dos ficheiros
         FileStorageManager.getInstance();
         UserStorageManager.getInstance();
         verifyFilesIntegrity();
+        registerIntegrityGuards();
+        FileStorageManager.getInstance().loadWorkspaces();
+        UserStorageManager.getInstance().loadUsers();
+        IntegrityScrubber.getInstance().start();
+        LockStats.startReporter(ServerConfig.getLockStatsIntervalSeconds());
+
+        // Criar os restantes singletons antes de aceitar ligações, para que os
+        // getInstance() synchronized nunca bloqueiem (nem prendam virtual threads)
+        PublicKeyRegistry.getInstance();
+        WorkspaceManager.getInstance();
+        AuthenticationManager.getInstance();
+        SessionTicketManager.getInstance();
+        AuthenticationExecutor.getInstance();
+        ConnectionManager.getInstance();
         scanner.close();
 
         try {
@@ -79,10 +105,10 @@ public class MySharingServer {
      */
     private static void verifyFilesIntegrity() {
         try {
-            if (!ServerSecurityUtils.verifyFileMac(USERS_FILE_PATH, USERS_MAC_FILE_PATH, serverKey)) {
+            if (!ServerSecurityUtils.verifyChainedFileMac(USERS_FILE_PATH, USERS_MAC_FILE_PATH, serverKey)) {
                 handleMacIssue(USERS_FILE_PATH, USERS_MAC_FILE_PATH, "users");
             }
-            if (!ServerSecurityUtils.verifyFileMac(WORKSPACES_FILE_PATH, WORKSPACES_MAC_FILE_PATH, serverKey)) {
+            if (!ServerSecurityUtils.verifyChainedFileMac(WORKSPACES_FILE_PATH, WORKSPACES_MAC_FILE_PATH, serverKey)) {
                 handleMacIssue(WORKSPACES_FILE_PATH, WORKSPACES_MAC_FILE_PATH, "workspaces");
             }
         } catch (Exception e) {
@@ -93,69 +119,83 @@ public class MySharingServer {
     }
 
     /**
-     * Verify the MAC of the users file.
+     * Hand the verified users and workspaces files to the integrity manager,
+     * which checks them again only when they change.
      */
-    public static void verifyUsersMac() {
-        if (!verifyUsersMacFlag) {
-            return;
+    private static void registerIntegrityGuards() {
+        IntegrityManager integrity = IntegrityManager.getInstance();
+        if (verifyUsersMacFlag) {
+            integrity.register(USERS_GUARD,
+                    () -> ServerSecurityUtils.verifyChainedFileMac(USERS_FILE_PATH, USERS_MAC_FILE_PATH, serverKey),
+                    USERS_FILE_PATH, USERS_MAC_FILE_PATH);
         }
-        try {
-            if (!ServerSecurityUtils.verifyFileMac(USERS_FILE_PATH, USERS_MAC_FILE_PATH, serverKey)) {
-                System.err.println("[SERVER] MAC inválido. O arquivo de usuários pode ter sido comprometido.");
-                System.err.println("[SERVER] Sistema comprometido! A encerrar...");
-                System.exit(1);
-            }
-        } catch (Exception e) {
-            System.err.println("[SERVER] Erro ao verificar MAC do arquivo Users: " + e.getMessage());
+        if (verifyWorkspacesMacFlag) {
+            integrity.register(WORKSPACES_GUARD,
+                    () -> ServerSecurityUtils.verifyChainedFileMac(WORKSPACES_FILE_PATH, WORKSPACES_MAC_FILE_PATH, serverKey),
+                    WORKSPACES_FILE_PATH, WORKSPACES_MAC_FILE_PATH);
         }
     }
 
     /**
-     * Update the MAC of the users file.
+     * Verify the MAC of the users file, if it may have changed since it was
+     * last verified.
      */
-    public static void updateUsersMac() {
-        if (!verifyUsersMacFlag) {
-            return;
-        }
-        try {
-            byte[] mac = ServerSecurityUtils.genFileMac(USERS_FILE_PATH, serverKey);
-            ServerSecurityUtils.writeMacOnMacFile(USERS_MAC_FILE_PATH, mac);
-        } catch (Exception e) {
-            System.err.println("[SERVER] Erro ao atualizar MAC do arquivo de Users: " + e.getMessage());
-        }
+    public static void verifyUsersMac() {
+        IntegrityManager.getInstance().verify(USERS_GUARD);
     }
-    
+
+    /**
+     * Note that the users file was written together with its MAC.
+     */
+    static void usersMacWritten() {
+        IntegrityManager.getInstance().written(USERS_GUARD);
+    }
+
     /**
-     * Verify the MAC of the workspaces file.
+     * Verify the MAC of the workspaces file, if it may have changed since it
+     * was last verified.
      */
     public static void verifyWorkspacesMac() {
-        if (!verifyWorkspacesMacFlag) {
-            return;
-        }
-        try {
-            if (!ServerSecurityUtils.verifyFileMac(WORKSPACES_FILE_PATH, WORKSPACES_MAC_FILE_PATH, serverKey)) {
-                System.err.println("[SERVER] MAC inválido. O arquivo de workspaces pode ter sido comprometido.");
-                System.err.println("[SERVER] Sistema comprometido! A encerrar...");
-                System.exit(1);
-            }
-        } catch (Exception e) {
-            System.err.println("[SERVER] Erro ao verificar MAC do arquivo Workspaces: " + e.getMessage());
-        }
+        IntegrityManager.getInstance().verify(WORKSPACES_GUARD);
     }
 
     /**
-     * Update the MAC of the workspaces file.
+     * Get the key used for the MACs of the metadata files.
+     *
+     * @return the server key
      */
-    public static void updateWorkspacesMac() {
-        if (!verifyWorkspacesMacFlag) {
-            return;
-        }
-        try {
-            byte[] mac = ServerSecurityUtils.genFileMac(WORKSPACES_FILE_PATH, serverKey);
-            ServerSecurityUtils.writeMacOnMacFile(WORKSPACES_MAC_FILE_PATH, mac);
-        } catch (Exception e) {
-            System.err.println("[SERVER] Erro ao atualizar MAC do arquivo de Workspaces: " + e.getMessage());
-        }
+    static SecretKey getServerKey() {
+        return serverKey;
+    }
+
+    /**
+     * Set the key used for the MACs of the metadata files, for tools that use
+     * the storage without starting the server.
+     *
+     * @param key the server key
+     */
+    static void setServerKey(SecretKey key) {
+        serverKey = key;
+    }
+
+    /**
+     * Check if the workspaces metadata is protected by MACs. The administrator
+     * may decline to create a missing MAC at startup.
+     *
+     * @return true if the MACs are verified and updated
+     */
+    static boolean isWorkspacesMacEnabled() {
+        return verifyWorkspacesMacFlag;
+    }
+
+    /**
+     * Check if the users file is protected by a MAC. The administrator may
+     * decline to create a missing MAC at startup.
+     *
+     * @return true if the MAC is verified and updated
+     */
+    static boolean isUsersMacEnabled() {
+        return verifyUsersMacFlag;
     }
 
     /**
@@ -173,7 +213,8 @@ public class MySharingServer {
             Scanner scanner = new Scanner(System.in); // Nao fechar este scanner
             String answer = scanner.nextLine();
             if (answer.equalsIgnoreCase("s")) {
-                byte[] mac = ServerSecurityUtils.genFileMac(filePath, serverKey);
+                // both files grow by appended lines, so their MACs are chained line by line
+                byte[] mac = ServerSecurityUtils.genChainedFileMac(filePath, serverKey);
                 ServerSecurityUtils.writeMacOnMacFile(macFilePath, mac);
                 System.out.println("[SERVER] MAC calculado e armazenado com sucesso.");
             } else {
@@ -240,26 +281,89 @@ public class MySharingServer {
         System.setProperty("javax.net.ssl.trustStore", "server_keys/server.truststore");
         System.setProperty("javax.net.ssl.trustStorePassword", "123456");
 
-        ServerSocketFactory ssf = SSLServerSocketFactory.getDefault();
-        this.sslServerSocket = (SSLServerSocket) ssf.createServerSocket(port);
-        System.out.println("[SERVER] Servidor iniciado na porta " + port);
+        this.port = port;
+        this.mode = ServerConfig.getServerMode();
+        if (!mode.equals(ServerConfig.MODE_NIO)) {
+            ServerSocketFactory ssf = SSLServerSocketFactory.getDefault();
+            this.sslServerSocket = (SSLServerSocket) ssf.createServerSocket(port);
+            System.out.println("[SERVER] Servidor iniciado na porta " + port);
+        }
     }
 
     /**
      * Start the server.
      */
     public void start() {
+        if (sslServerSocket == null) {
+            startNio();
+            return;
+        }
+
+        ExecutorService executor = createConnectionExecutor();
+        Semaphore connectionPermits = new Semaphore(ServerConfig.getMaxConnections());
+
         try {
             while (true) {
-                new ClientHandler((SSLSocket) sslServerSocket.accept()).start();
+                connectionPermits.acquire();
+                SSLSocket socket;
+                try {
+                    socket = (SSLSocket) sslServerSocket.accept();
+                } catch (IOException e) {
+                    connectionPermits.release();
+                    throw e;
+                }
+
+                ClientHandler handler = new ClientHandler(socket, executor);
+                executor.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        connectionPermits.release();
+                    }
+                });
             }
         } catch (IOException e) {
             System.err.println("[SERVER] Erro ao aceitar conexão: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
+            executor.shutdown();
             stop();
         }
     }
 
+    /**
+     * Create the executor running the blocking client handlers.
+     * In "virtual" mode each connection gets a JDK virtual thread; the executor
+     * is looked up reflectively so the server still builds on JDKs without them.
+     *
+     * @return the executor
+     */
+    private ExecutorService createConnectionExecutor() {
+        if (mode.equals(ServerConfig.MODE_VIRTUAL)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                System.out.println("[SERVER] A usar virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("[SERVER] Virtual threads indisponíveis neste JDK. A usar platform threads.");
+            }
+        }
+
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Start the selector based server.
+     */
+    private void startNio() {
+        try {
+            new NioServer(port, ServerConfig.getNioWorkers(), ServerConfig.getIdleTimeoutMillis()).start();
+        } catch (IOException e) {
+            System.err.println("[SERVER] Erro ao iniciar o servidor NIO: " + e.getMessage());
+        }
+    }
+
     /**
      * Stop the server.
      */
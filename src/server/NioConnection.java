@@ -0,0 +1,589 @@
+package server;
+
+import server.models.BinaryFrame;
+import server.models.Request;
+import server.models.RequestConstants;
+import server.models.Response;
+import server.models.StatusCode;
+import server.models.User;
+import server.utils.BufferPool;
+import server.utils.FrameOutputStream.FlushPolicy;
+import server.utils.NetworkUtils;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A TLS connection driven by the {@link NioServer} selector.
+ * All socket and SSLEngine work happens on the selector thread. Decoded
+ * requests are handled one at a time, in arrival order, on the worker pool,
+ * because upload and download sessions rely on chunk order.
+ */
+class NioConnection {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final NioServer server;
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final String connectionId;
+    private final int maxPendingRequests = ServerConfig.getPipelineDepth();
+    private final int maxGatheredFrames;
+    private SelectionKey key;
+
+    // Selector thread only
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+    private boolean readPaused = false;
+    private long lastActivity = System.currentTimeMillis();
+
+    // Written by the selector thread, read by workers and authentication threads
+    private volatile boolean closed = false;
+
+    // Filled by workers, drained by the selector thread
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private volatile boolean taskRunning = false;
+    private volatile boolean closeAfterFlush = false;
+
+    // Guarded by this
+    private final Queue<Request> inbound = new ArrayDeque<>();
+    private boolean processing = false;
+
+    // Workers and authentication threads, one at a time
+    private final AuthenticationHandshake handshake = new AuthenticationHandshake();
+    private User authenticatedUser;
+
+    /**
+     * Create a new connection.
+     *
+     * @param server the server owning the selector
+     * @param channel the accepted channel
+     * @param engine the server side SSL engine
+     * @param connectionId the ID given by the ConnectionManager
+     */
+    NioConnection(NioServer server, SocketChannel channel, SSLEngine engine, String connectionId) {
+        this.server = server;
+        this.channel = channel;
+        this.engine = engine;
+        this.connectionId = connectionId;
+
+        // How many queued responses one TLS record may gather
+        FlushPolicy flushPolicy = ServerConfig.getFlushPolicy();
+        this.maxGatheredFrames = flushPolicy == FlushPolicy.FRAME ? 1
+                : flushPolicy == FlushPolicy.BATCH ? ServerConfig.getFlushBatch()
+                : maxPendingRequests;
+
+        // Socket buffers are direct, so channel reads and writes skip a copy
+        SSLSession session = engine.getSession();
+        this.netIn = BufferPool.getDirectInstance().acquire(session.getPacketBufferSize());
+        this.netOut = BufferPool.getDirectInstance().acquire(session.getPacketBufferSize());
+        this.appIn = BufferPool.getInstance().acquire(session.getApplicationBufferSize());
+        netIn.clear();
+        netOut.clear();
+        appIn.clear();
+    }
+
+    /**
+     * Register the channel with the selector.
+     *
+     * @param selector the selector
+     * @throws IOException if the channel cannot be registered
+     */
+    void register(Selector selector) throws IOException {
+        this.key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    void onReadable() throws IOException {
+        int read = channel.read(netIn);
+        if (read < 0) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException ignored) {
+                // the client went away without close_notify
+            }
+            close();
+            return;
+        }
+        if (read > 0) {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        process();
+    }
+
+    /**
+     * Check if the client has sent nothing for longer than the idle timeout.
+     *
+     * @param now the current time in milliseconds
+     * @param idleTimeoutMillis the idle timeout in milliseconds
+     * @return true if the connection is idle
+     */
+    boolean isIdle(long now, long idleTimeoutMillis) {
+        return !closed && now - lastActivity > idleTimeoutMillis;
+    }
+
+    void onWritable() throws IOException {
+        if (flushNetOut()) {
+            process();
+        }
+    }
+
+    void onWakeup() throws IOException {
+        if (closed || taskRunning) {
+            return;
+        }
+
+        synchronized (this) {
+            if (readPaused && inbound.size() < maxPendingRequests / 2) {
+                readPaused = false;
+            }
+        }
+
+        process();
+    }
+
+    /**
+     * Drive the handshake, decode incoming frames and encrypt queued responses.
+     */
+    private void process() throws IOException {
+        while (!closed) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    return;
+                case NEED_WRAP:
+                    if (!wrap(EMPTY)) {
+                        updateInterest();
+                        return;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (!unwrap()) {
+                        updateInterest();
+                        return;
+                    }
+                    break;
+                default:
+                    while (!closed && unwrap()) {
+                        if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                            break;
+                        }
+                    }
+                    if (closed || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        break;
+                    }
+
+                    writeOutbound();
+                    if (!closed) {
+                        updateInterest();
+                    }
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Unwrap buffered network data.
+     *
+     * @return true if the engine made progress
+     */
+    private boolean unwrap() throws IOException {
+        netIn.flip();
+        SSLEngineResult result;
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+        }
+
+        switch (result.getStatus()) {
+            case OK:
+                if (result.bytesProduced() > 0) {
+                    decodeFrames();
+                }
+                return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+            case BUFFER_OVERFLOW:
+                appIn = enlarge(BufferPool.getInstance(), appIn,
+                        appIn.position() + engine.getSession().getApplicationBufferSize());
+                return true;
+            case BUFFER_UNDERFLOW:
+                int packetSize = engine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < packetSize) {
+                    netIn = enlarge(BufferPool.getDirectInstance(), netIn, packetSize);
+                }
+                return false;
+            default:
+                close();
+                return false;
+        }
+    }
+
+    /**
+     * Wrap application data and write it to the channel.
+     *
+     * @param sources the data to wrap, gathered into one record where it fits
+     * @return true if everything produced was written to the channel
+     */
+    private boolean wrap(ByteBuffer... sources) throws IOException {
+        if (!flushNetOut()) {
+            return false;
+        }
+
+        SSLEngineResult result = engine.wrap(sources, netOut);
+        switch (result.getStatus()) {
+            case OK:
+                break;
+            case BUFFER_OVERFLOW:
+                netOut = enlarge(BufferPool.getDirectInstance(), netOut,
+                        netOut.position() + engine.getSession().getPacketBufferSize());
+                return true;
+            default:
+                flushNetOut();
+                close();
+                return false;
+        }
+
+        return flushNetOut();
+    }
+
+    private void writeOutbound() throws IOException {
+        while (!closed && !outbound.isEmpty()) {
+            if (!wrap(gatherOutbound())) {
+                return;
+            }
+
+            ByteBuffer head;
+            while ((head = outbound.peek()) != null && !head.hasRemaining()) {
+                BufferPool.getInstance().release(outbound.poll());
+            }
+        }
+
+        boolean idle;
+        synchronized (this) {
+            idle = !processing && inbound.isEmpty();
+        }
+        if (closeAfterFlush && idle && outbound.isEmpty() && netOut.position() == 0) {
+            close();
+        }
+    }
+
+    /**
+     * Take the first queued responses, so small ones share a record.
+     */
+    private ByteBuffer[] gatherOutbound() {
+        List<ByteBuffer> gathered = new ArrayList<>(Math.min(maxGatheredFrames, 8));
+        for (ByteBuffer frame : outbound) {
+            gathered.add(frame);
+            if (gathered.size() == maxGatheredFrames) {
+                break;
+            }
+        }
+
+        return gathered.toArray(new ByteBuffer[0]);
+    }
+
+    /**
+     * Write pending encrypted bytes.
+     *
+     * @return true if nothing is left to write
+     */
+    private boolean flushNetOut() throws IOException {
+        netOut.flip();
+        try {
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    break;
+                }
+            }
+            return !netOut.hasRemaining();
+        } finally {
+            netOut.compact();
+        }
+    }
+
+    /**
+     * Split the decrypted stream into request frames.
+     */
+    private void decodeFrames() {
+        appIn.flip();
+        int pendingSize = 0;
+
+        while (appIn.remaining() >= RequestConstants.SIZE_LENGTH) {
+            int size = appIn.getInt(appIn.position());
+            Request.checkFrameSize(size);
+
+            if (appIn.remaining() < size) {
+                pendingSize = size;
+                break;
+            }
+
+            ByteBuffer frame = BufferPool.getInstance().acquire(size);
+            appIn.get(frame.array(), frame.arrayOffset(), size);
+            enqueue(Request.fromPooledBuffer(frame));
+        }
+
+        appIn.compact();
+        if (pendingSize > appIn.capacity()) {
+            appIn = enlarge(BufferPool.getInstance(), appIn,
+                    pendingSize + engine.getSession().getApplicationBufferSize());
+        }
+    }
+
+    private void enqueue(Request request) {
+        synchronized (this) {
+            inbound.add(request);
+            if (inbound.size() >= maxPendingRequests) {
+                readPaused = true;
+            }
+            if (processing) {
+                return;
+            }
+            processing = true;
+        }
+
+        server.execute(this::processInbound);
+    }
+
+    /**
+     * Handle queued requests in order. Runs on a worker thread.
+     */
+    private void processInbound() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                request = inbound.poll();
+                if (request == null) {
+                    processing = false;
+                    break;
+                }
+            }
+
+            if (closed || closeAfterFlush) {
+                request.release();
+                continue;
+            }
+
+            if (!handshake.isFinished()) {
+                // passwords are hashed on the authentication threads, never on a worker
+                Request authRequest = request;
+                if (AuthenticationExecutor.getInstance().execute(() -> authenticate(authRequest))) {
+                    // still processing, so the next request waits for the answer
+                    return;
+                }
+
+                Response response = handshake.busy(request);
+                request.release();
+                respond(request, response, BinaryFrame.VERSION_1, false);
+                continue;
+            }
+
+            Response response;
+            try {
+                response = Router.dispatch(request, authenticatedUser, connectionId);
+            } catch (RuntimeException e) {
+                System.err.println("[SERVER] Erro ao processar pedido: " + e.getMessage());
+                response = NetworkUtils.createErrorResponse(request, StatusCode.INTERNAL_SERVER_ERROR);
+            } finally {
+                request.release();
+            }
+
+            respond(request, response, handshake.getProtocolVersion(), false);
+        }
+
+        if (closed) {
+            // the selector closed the connection while this worker used its sessions
+            ConnectionManager.getInstance().close(connectionId);
+            return;
+        }
+        server.wakeup(this);
+    }
+
+    /**
+     * Handle an authentication request, then go back to the queued requests
+     * on a worker. Runs on an authentication thread.
+     */
+    private void authenticate(Request request) {
+        boolean closeRequested = false;
+        Response response;
+        try {
+            response = handshake.handle(request);
+            if (handshake.isAuthenticated()) {
+                authenticatedUser = handshake.getAuthenticatedUser();
+                System.out.println("[SERVER] Autenticação bem sucedida.");
+            } else if (handshake.isFinished()) {
+                System.out.println("[SERVER] Autenticação falhou. A fechar a ligação.");
+                closeRequested = true;
+            }
+        } catch (RuntimeException e) {
+            System.err.println("[SERVER] Erro ao processar pedido: " + e.getMessage());
+            response = NetworkUtils.createErrorResponse(request, StatusCode.INTERNAL_SERVER_ERROR);
+            closeRequested = true;
+        } finally {
+            request.release();
+        }
+
+        // the handshake answers in version 1, the agreed version applies afterwards
+        respond(request, response, BinaryFrame.VERSION_1, closeRequested);
+        server.execute(this::processInbound);
+    }
+
+    /**
+     * Encode a response and queue it for the selector thread.
+     *
+     * @param request the request answered
+     * @param response the response
+     * @param version the protocol version of the connection
+     * @param closeRequested true to close the connection once it is sent
+     */
+    private void respond(Request request, Response response, int version, boolean closeRequested) {
+        ByteBuffer frame;
+        try {
+            frame = response.encode(version);
+        } catch (RuntimeException e) {
+            // e.g. a file region that can no longer be read
+            System.err.println("[SERVER] Erro ao codificar resposta: " + e.getMessage());
+            frame = NetworkUtils.createErrorResponse(request, StatusCode.INTERNAL_SERVER_ERROR).encode(version);
+        } finally {
+            response.release();
+        }
+
+        outbound.add(frame);
+        if (closeRequested) {
+            closeAfterFlush = true;
+        }
+        server.wakeup(this);
+    }
+
+    private void runDelegatedTasks() {
+        taskRunning = true;
+        key.interestOps(0);
+
+        server.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            taskRunning = false;
+            server.wakeup(this);
+        });
+    }
+
+    private void updateInterest() {
+        if (closed || !key.isValid()) {
+            return;
+        }
+
+        int ops = 0;
+        synchronized (this) {
+            if (!readPaused) {
+                ops |= SelectionKey.OP_READ;
+            }
+        }
+        if (netOut.position() > 0) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * Close the connection. Selector thread only.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            engine.closeOutbound();
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            flushNetOut();
+        } catch (IOException | RuntimeException ignored) {
+            // best effort close_notify
+        }
+
+        try {
+            if (key != null) {
+                key.cancel();
+            }
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("[SERVER] Erro ao fechar socket: " + e.getMessage());
+        }
+
+        releaseBuffers();
+
+        System.out.println("[SERVER] Cliente desconectado.");
+        releaseSessions();
+    }
+
+    /**
+     * Release the upload and download sessions of the closed connection,
+     * unless a worker is still handling one of its requests and may be
+     * writing a chunk to a session file. That worker releases them when it
+     * stops, in {@link #processInbound()}.
+     */
+    private void releaseSessions() {
+        synchronized (this) {
+            if (processing) {
+                return;
+            }
+        }
+
+        ConnectionManager.getInstance().close(connectionId);
+    }
+
+    /**
+     * Give the connection buffers back to the pool. Requests still queued are
+     * dropped; a worker may still add a response, which is then left to the
+     * garbage collector.
+     */
+    private void releaseBuffers() {
+        synchronized (this) {
+            Request request;
+            while ((request = inbound.poll()) != null) {
+                request.release();
+            }
+        }
+
+        ByteBuffer pending;
+        while ((pending = outbound.poll()) != null) {
+            BufferPool.getInstance().release(pending);
+        }
+
+        // the fields are cleared so a late use fails instead of touching a reused buffer
+        BufferPool.getDirectInstance().release(netIn);
+        BufferPool.getDirectInstance().release(netOut);
+        BufferPool.getInstance().release(appIn);
+        netIn = null;
+        netOut = null;
+        appIn = null;
+    }
+
+    private static ByteBuffer enlarge(BufferPool pool, ByteBuffer buffer, int capacity) {
+        if (capacity <= buffer.capacity()) {
+            capacity = buffer.capacity() * 2;
+        }
+
+        ByteBuffer bigger = pool.acquire(capacity);
+        bigger.clear();
+        buffer.flip();
+        bigger.put(buffer);
+        pool.release(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,219 @@
+package server;
+
+import server.utils.NetworkUtils;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector based server.
+ * A single thread owns every socket and SSLEngine; complete request frames
+ * are handed to a small worker pool, so the number of open connections is
+ * not tied to the number of threads.
+ */
+public class NioServer {
+    private static final long IDLE_SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final SSLContext sslContext;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService workers;
+    private final Queue<NioConnection> wakeups = new ConcurrentLinkedQueue<>();
+    private final long idleTimeoutMillis;
+    private long lastIdleSweep = System.currentTimeMillis();
+    private volatile boolean running;
+
+    /**
+     * Create a new NIO server.
+     *
+     * @param port the port number
+     * @param workerCount the number of worker threads
+     * @param idleTimeoutMillis how long a connection may stay silent before it is closed
+     * @throws IOException if an I/O error occurs
+     */
+    public NioServer(int port, int workerCount, long idleTimeoutMillis) throws IOException {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+
+        try {
+            this.sslContext = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("Contexto SSL indisponível", e);
+        }
+
+        AtomicInteger workerId = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerCount, task -> {
+            Thread thread = new Thread(task, "nio-worker-" + workerId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.serverChannel.configureBlocking(false);
+        this.serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        System.out.println("[SERVER] Servidor NIO iniciado na porta " + port + " com " + workerCount + " workers");
+    }
+
+    /**
+     * Run the selector loop until the server is stopped.
+     */
+    public void start() {
+        running = true;
+
+        try {
+            while (running) {
+                selector.select(IDLE_SWEEP_INTERVAL_MILLIS);
+                processWakeups();
+                closeIdleConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else if (key.attachment() instanceof NioConnection) {
+                        handleKey(key, (NioConnection) key.attachment());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("[SERVER] Erro no selector: " + e.getMessage());
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop() {
+        running = false;
+        workers.shutdown();
+
+        try {
+            if (serverChannel.isOpen()) {
+                serverChannel.close();
+                System.out.println("[SERVER] Servidor fechado");
+            }
+            selector.wakeup();
+        } catch (IOException e) {
+            System.err.println("[SERVER] Erro ao fechar o servidor: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Ask the selector thread to look at a connection again.
+     * Called by workers after queueing a response or finishing a handshake task.
+     *
+     * @param connection the connection
+     */
+    void wakeup(NioConnection connection) {
+        wakeups.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task on the worker pool.
+     *
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        workers.execute(task);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, ServerConfig.isTcpNoDelay());
+
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        NetworkUtils.configureEngine(engine, ServerConfig.getTlsPacketSize());
+
+        System.out.println("[SERVER] Cliente conectado: " + channel.getRemoteAddress());
+
+        String connectionId = ConnectionManager.getInstance().open(String.valueOf(channel.getRemoteAddress()));
+        NioConnection connection = new NioConnection(this, channel, engine, connectionId);
+        try {
+            connection.register(selector);
+            engine.beginHandshake();
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Close connections that have been silent for longer than the idle timeout.
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        if (now - lastIdleSweep < IDLE_SWEEP_INTERVAL_MILLIS) {
+            return;
+        }
+        lastIdleSweep = now;
+
+        for (SelectionKey key : new ArrayList<>(selector.keys())) {
+            if (key.attachment() instanceof NioConnection) {
+                NioConnection connection = (NioConnection) key.attachment();
+                if (connection.isIdle(now, idleTimeoutMillis)) {
+                    System.out.println("[SERVER] Ligação inativa. A fechar.");
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key, NioConnection connection) {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+        } catch (IOException | CancelledKeyException e) {
+            connection.close();
+        } catch (RuntimeException e) {
+            System.err.println("[SERVER] Erro na ligação: " + e.getMessage());
+            connection.close();
+        }
+    }
+
+    private void processWakeups() {
+        NioConnection connection;
+        while ((connection = wakeups.poll()) != null) {
+            try {
+                connection.onWakeup();
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            } catch (RuntimeException e) {
+                System.err.println("[SERVER] Erro na ligação: " + e.getMessage());
+                connection.close();
+            }
+        }
+    }
+}
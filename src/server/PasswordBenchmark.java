@@ -0,0 +1,98 @@
+package server;
+
+import server.utils.ServerSecurityUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many logins with the password per second this machine can
+ * check at each hashing cost, to choose -Dmysharing.server.hashIterations or
+ * -Dmysharing.server.hashTargetMillis:
+ *
+ * java -cp build server.PasswordBenchmark [seconds] [iterations...]
+ *
+ * Every processor hashes at the same time, so the result per core includes
+ * the effect of the cores slowing each other down.
+ */
+public class PasswordBenchmark {
+    private static final int DEFAULT_SECONDS = 3;
+    private static final int[] DEFAULT_ITERATIONS = {10_000, 50_000, 100_000, 210_000, 310_000, 600_000};
+
+    public static void main(String[] args) throws InterruptedException {
+        int seconds = DEFAULT_SECONDS;
+        int[] costs = DEFAULT_ITERATIONS;
+        try {
+            if (args.length > 0) {
+                seconds = Integer.parseInt(args[0]);
+            }
+            if (args.length > 1) {
+                costs = new int[args.length - 1];
+                for (int i = 1; i < args.length; i++) {
+                    costs[i - 1] = Integer.parseInt(args[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Uso: java server.PasswordBenchmark [segundos] [iterações...]");
+            System.exit(1);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("[BENCHMARK] " + cores + " processadores, " + seconds + " s por custo");
+        System.out.printf("%-22s %10s %10s %12s %12s%n", "algoritmo", "iterações", "ms/login", "logins/s", "logins/s/core");
+
+        for (String algorithm : ServerSecurityUtils.PASSWORD_ALGORITHMS) {
+            // warm up, so the first cost is not measured before the JIT compiled the hash
+            run(algorithm, costs[0], cores, 1);
+            for (int iterations : costs) {
+                double perSecond = run(algorithm, iterations, cores, seconds);
+                System.out.printf("%-22s %10d %10.1f %12.1f %12.1f%n", algorithm, iterations,
+                        1000.0 * cores / perSecond, perSecond, perSecond / cores);
+            }
+        }
+
+        int target = ServerConfig.getHashTargetMillis();
+        System.out.println("[BENCHMARK] Custo calibrado para " + target + " ms: "
+                + PasswordPolicy.calibrate(ServerConfig.getHashAlgorithm(), target) + " iterações de "
+                + ServerConfig.getHashAlgorithm());
+    }
+
+    /**
+     * Hash passwords on every core for the given time.
+     *
+     * @return the number of hashes computed per second
+     */
+    private static double run(String algorithm, int iterations, int threads, int seconds) throws InterruptedException {
+        LongAdder count = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                byte[] salt = ServerSecurityUtils.genSalt();
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+                    while (System.nanoTime() < deadline) {
+                        ServerSecurityUtils.genSecretKey(algorithm, "benchmark", salt, iterations);
+                        count.increment();
+                    }
+                } catch (Exception e) {
+                    System.err.println("[BENCHMARK] Erro: " + e.getMessage());
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+
+        long startedAt = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        // the last hashes end after the deadline, so divide by the time really taken
+        return count.sum() / ((System.nanoTime() - startedAt) / 1e9);
+    }
+}
@@ -0,0 +1,139 @@
+package server;
+
+import server.models.User;
+import server.utils.ServerSecurityUtils;
+
+/**
+ * The cost of the password hashes written by this server.
+ *
+ * Each record of users.txt stores the algorithm and iteration count it was
+ * hashed with, so the cost can change without invalidating any account. At
+ * startup the iteration count is calibrated so one hash takes about
+ * -Dmysharing.server.hashTargetMillis on this machine, unless it is fixed
+ * with -Dmysharing.server.hashIterations. Users hashed with another cost are
+ * hashed again on their next login with the password.
+ */
+public class PasswordPolicy {
+    private static PasswordPolicy INSTANCE;
+    // never fewer than the iterations used before the cost was stored
+    private static final int MIN_ITERATIONS = User.LEGACY_ITERATIONS;
+    private static final int MAX_ITERATIONS = 10_000_000;
+    private static final int CALIBRATION_ITERATIONS = 20_000;
+    private static final int CALIBRATION_ROUNDS = 5;
+    // a stored cost this close to the current one is kept, so calibration noise
+    // from one start to the next does not hash every user again
+    private static final double REHASH_TOLERANCE = 0.25;
+
+    private final String algorithm;
+    private final int iterations;
+
+    private PasswordPolicy() {
+        this.algorithm = ServerConfig.getHashAlgorithm();
+        int fixed = ServerConfig.getHashIterations();
+        if (fixed > 0) {
+            this.iterations = Math.max(MIN_ITERATIONS, fixed);
+        } else {
+            this.iterations = calibrate(algorithm, ServerConfig.getHashTargetMillis());
+        }
+
+        System.out.println("[SECURITY] Passwords com " + algorithm + " e " + iterations + " iterações"
+                + (fixed > 0 ? "" : " (calibrado para " + ServerConfig.getHashTargetMillis() + " ms)"));
+    }
+
+    /**
+     * Get the instance of the password policy, calibrating it on first use.
+     *
+     * @return the instance
+     */
+    public synchronized static PasswordPolicy getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new PasswordPolicy();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Hash a password with the current cost.
+     *
+     * @param userId the user ID
+     * @param password the password
+     * @return the user record
+     */
+    public User hash(String userId, String password) throws Exception {
+        return ServerSecurityUtils.genSecurePassword(userId, password, algorithm, iterations);
+    }
+
+    /**
+     * Check if a user was hashed with another algorithm or with an iteration
+     * count far from the current one.
+     *
+     * @param user the user record
+     * @return true if the password should be hashed again
+     */
+    public boolean needsRehash(User user) {
+        if (!user.getAlgorithm().equals(algorithm)) {
+            return true;
+        }
+        return Math.abs(user.getIterations() - iterations) > iterations * REHASH_TOLERANCE;
+    }
+
+    /**
+     * Get the algorithm of new hashes.
+     *
+     * @return the algorithm
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the iteration count of new hashes.
+     *
+     * @return the iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Find the iteration count for which one hash takes about the target
+     * time, rounded down to a thousand.
+     *
+     * @param algorithm the algorithm
+     * @param targetMillis the target time of one hash
+     * @return the iteration count
+     */
+    static int calibrate(String algorithm, int targetMillis) {
+        double millis = measureMillis(algorithm, CALIBRATION_ITERATIONS, CALIBRATION_ROUNDS);
+        long wanted = (long) (targetMillis / millis * CALIBRATION_ITERATIONS) / 1000 * 1000;
+        return (int) Math.max(MIN_ITERATIONS, Math.min(MAX_ITERATIONS, wanted));
+    }
+
+    /**
+     * Measure the time of one hash, as the fastest of a few rounds after as
+     * many warm up rounds.
+     *
+     * @param algorithm the algorithm
+     * @param iterations the iteration count
+     * @param rounds the number of rounds measured
+     * @return the time of one hash in milliseconds
+     */
+    static double measureMillis(String algorithm, int iterations, int rounds) {
+        byte[] salt = ServerSecurityUtils.genSalt();
+        long best = Long.MAX_VALUE;
+        try {
+            for (int i = 0; i < 2 * rounds; i++) {
+                long start = System.nanoTime();
+                ServerSecurityUtils.genSecretKey(algorithm, "calibração", salt, iterations);
+                long elapsed = System.nanoTime() - start;
+                if (i >= rounds) {
+                    best = Math.min(best, elapsed);
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Erro ao calibrar as passwords: " + e.getMessage(), e);
+        }
+        return best / 1_000_000.0;
+    }
+}
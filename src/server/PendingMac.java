@@ -0,0 +1,113 @@
+package server;
+
+import server.utils.ServerSecurityUtils;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The MAC of a metadata file as it will be after a change, written next to
+ * the MAC in use before the change reaches the file. Once the change is
+ * written it replaces the MAC in use. A crash in between leaves a MAC that
+ * matches whichever version of the file is on disk, which
+ * {@link #recover(Path, Path, SecretKey)} picks at startup, so a crash never
+ * looks like the file was tampered with.
+ */
+final class PendingMac {
+    private static final String SUFFIX = ".tmp";
+
+    private final Path macFile;
+    private final Path pendingFile;
+
+    private PendingMac(Path macFile) {
+        this.macFile = macFile;
+        this.pendingFile = pathOf(macFile);
+    }
+
+    /**
+     * Write the MAC a file will have after a change. Must be called by the
+     * writer of the file, before the change is written.
+     *
+     * @param macFile the MAC file in use
+     * @param mac the MAC of the changed file
+     * @return the pending MAC
+     */
+    static PendingMac stage(Path macFile, byte[] mac) throws Exception {
+        PendingMac pending = new PendingMac(macFile);
+        ServerSecurityUtils.writeMacOnMacFile(pending.pendingFile, mac);
+        return pending;
+    }
+
+    /**
+     * Replace the MAC in use, once the change is written.
+     */
+    void commit() throws IOException {
+        Files.move(pendingFile, macFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Drop the pending MAC of a change that was undone.
+     */
+    void discard() {
+        try {
+            Files.deleteIfExists(pendingFile);
+        } catch (IOException e) {
+            System.err.println("[SERVER] Erro ao apagar MAC pendente " + pendingFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finish a change that stopped before its MAC was in place: the pending
+     * MAC is used if the file matches it, and dropped otherwise. Called at
+     * startup, before the MAC is checked.
+     *
+     * @param file the file
+     * @param macFile the MAC file in use
+     * @param key the MAC key
+     */
+    static void recover(Path file, Path macFile, SecretKey key) {
+        Path pendingFile = pathOf(macFile);
+        try {
+            if (!Files.exists(pendingFile)) {
+                return;
+            }
+
+            if (ServerSecurityUtils.verifyChainedFileMac(file, pendingFile, key)) {
+                System.out.println("[SERVER] A concluir alteração interrompida de " + file);
+                Files.move(pendingFile, macFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.delete(pendingFile);
+            }
+        } catch (Exception e) {
+            System.err.println("[SERVER] Erro ao recuperar MAC de " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replace a MAC of the whole file, written by older versions, with the
+     * MAC chained line by line that is used now, if the file matches it.
+     * Called at startup, after {@link #recover(Path, Path, SecretKey)}.
+     *
+     * @param file the file
+     * @param macFile the MAC file in use
+     * @param key the MAC key
+     */
+    static void upgrade(Path file, Path macFile, SecretKey key) {
+        try {
+            if (Files.exists(macFile) && !ServerSecurityUtils.verifyChainedFileMac(file, macFile, key)
+                    && ServerSecurityUtils.verifyFileMac(file, macFile, key)) {
+                System.out.println("[SERVER] A converter o MAC de " + file + " para um MAC por linha...");
+                ServerSecurityUtils.writeMacOnMacFile(macFile, ServerSecurityUtils.genChainedFileMac(file, key));
+            }
+        } catch (Exception e) {
+            System.err.println("[SERVER] Erro ao converter MAC de " + file + ": " + e.getMessage());
+        }
+    }
+
+    private static Path pathOf(Path macFile) {
+        return macFile.resolveSibling(macFile.getFileName() + SUFFIX);
+    }
+}
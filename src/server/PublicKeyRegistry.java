@@ -0,0 +1,205 @@
+package server;
+
+import server.utils.ServerSecurityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The certificates of the server truststore, kept in memory so a signature
+ * check does not parse the PKCS12 file (and pay its PBE and MAC work) every
+ * time.
+ *
+ * The truststore is reloaded when its size, modification time or identity
+ * change, e.g. after keytool imports the certificate of a new user. Lookups
+ * check the file at most once per check interval, so no thread is needed.
+ * Aliases that are not found are remembered until the next reload, so asking
+ * again for an unknown user neither checks the file nor logs again.
+ */
+public class PublicKeyRegistry {
+    private static PublicKeyRegistry INSTANCE;
+    private static final int MAX_MISSES = 10_000;
+
+    private final Path path = Paths.get(ServerSecurityUtils.TRUSTSTORE_PATH);
+    private final long checkIntervalNanos;
+    private final Set<String> misses = ConcurrentHashMap.newKeySet();
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private volatile long nextCheckAt;
+    // a lock rather than a monitor, so a virtual thread reading the file is not pinned
+    private final ReentrantLock refreshLock = new ReentrantLock();
+
+    private PublicKeyRegistry() {
+        checkIntervalNanos = TimeUnit.SECONDS.toNanos(ServerConfig.getTruststoreCheckSeconds());
+        refresh(System.nanoTime(), true);
+    }
+
+    /**
+     * Get the instance of the public key registry.
+     *
+     * @return the instance
+     */
+    public synchronized static PublicKeyRegistry getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new PublicKeyRegistry();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Get the public key of a user from the truststore.
+     *
+     * @param alias the alias under which the user's certificate is stored
+     * @return the public key, or null if there is no certificate for the alias
+     */
+    public PublicKey getPublicKey(String alias) {
+        Certificate certificate = getCertificate(alias);
+        return certificate == null ? null : certificate.getPublicKey();
+    }
+
+    /**
+     * Get the certificate of a user from the truststore.
+     *
+     * @param alias the alias under which the user's certificate is stored
+     * @return the certificate, or null if there is none for the alias
+     */
+    public Certificate getCertificate(String alias) {
+        if (alias == null) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if (now - nextCheckAt >= 0) {
+            refresh(now, false);
+        }
+
+        Certificate certificate = snapshot.certificates.get(alias);
+        if (certificate != null || misses.contains(alias)) {
+            return certificate;
+        }
+
+        // the certificate may have been imported since the last check
+        refresh(now, true);
+        certificate = snapshot.certificates.get(alias);
+        if (certificate == null) {
+            if (misses.size() >= MAX_MISSES) {
+                misses.clear();
+            }
+            misses.add(alias);
+            System.err.println("[SECURITY] Certificado não encontrado para o alias: " + alias);
+        }
+        return certificate;
+    }
+
+    /**
+     * Reload the truststore if it changed since it was loaded.
+     *
+     * A periodic check is skipped while another thread checks, and lookups
+     * keep using the certificates loaded; a forced check waits for it.
+     *
+     * @param now System.nanoTime()
+     * @param force true to check the file even if the check interval did not pass
+     */
+    private void refresh(long now, boolean force) {
+        if (force) {
+            refreshLock.lock();
+        } else if (!refreshLock.tryLock()) {
+            return;
+        }
+        try {
+            if (!force && now - nextCheckAt < 0) {
+                // checked by another thread meanwhile
+                return;
+            }
+            nextCheckAt = now + checkIntervalNanos;
+            reload();
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Load the truststore if it changed. Called with the refresh lock held.
+     */
+    private void reload() {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            System.err.println("[SECURITY] Erro ao ler o truststore: " + e.getMessage());
+            return;
+        }
+        if (snapshot.matches(attributes)) {
+            return;
+        }
+
+        try {
+            KeyStore trustStore = KeyStore.getInstance("PKCS12");
+            try (InputStream in = Files.newInputStream(path)) {
+                trustStore.load(in, ServerSecurityUtils.TRUSTSTORE_PASS.toCharArray());
+            }
+
+            Map<String, Certificate> certificates = new HashMap<>();
+            Enumeration<String> aliases = trustStore.aliases();
+            while (aliases.hasMoreElements()) {
+                String alias = aliases.nextElement();
+                Certificate certificate = trustStore.getCertificate(alias);
+                if (certificate != null) {
+                    certificates.put(alias, certificate);
+                }
+            }
+
+            boolean reload = snapshot != Snapshot.EMPTY;
+            snapshot = new Snapshot(Collections.unmodifiableMap(certificates), attributes);
+            misses.clear();
+            System.out.println("[SECURITY] Truststore " + (reload ? "recarregado" : "carregado") + ": "
+                    + certificates.size() + " certificados");
+        } catch (Exception e) {
+            // e.g. the file is being written, the old certificates stay in use
+            System.err.println("[SECURITY] Erro ao carregar o truststore: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The certificates loaded and the state of the file they came from.
+     */
+    private static final class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(), null);
+
+        private final Map<String, Certificate> certificates;
+        private final long size;
+        private final FileTime modified;
+        private final Object fileKey;
+
+        private Snapshot(Map<String, Certificate> certificates, BasicFileAttributes attributes) {
+            this.certificates = certificates;
+            this.size = attributes == null ? -1 : attributes.size();
+            this.modified = attributes == null ? null : attributes.lastModifiedTime();
+            this.fileKey = attributes == null ? null : attributes.fileKey();
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            return modified != null && size == attributes.size()
+                    && modified.equals(attributes.lastModifiedTime())
+                    && Objects.equals(fileKey, attributes.fileKey());
+        }
+    }
+}
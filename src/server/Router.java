@@ -2,51 +2,176 @@ package server;
 
 import server.models.*;
 import server.routes.*;
+import server.utils.FrameOutputStream;
+import server.utils.NetworkUtils;
 
 import javax.net.ssl.SSLSocket;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class Router {
     private final SSLSocket sslClientSocket;
     private final User authenticatedUser;
     private final DataInputStream in;
-    private final DataOutputStream out;
+    private final FrameOutputStream out;
+    private final String connectionId;
+    private final Executor readerExecutor;
+    private final int protocolVersion;
 
-    public Router(SSLSocket sslClientSocket, DataInputStream in, DataOutputStream out, User authenticatedUser) {
+    public Router(SSLSocket sslClientSocket, DataInputStream in, FrameOutputStream out, User authenticatedUser,
+                  String connectionId, Executor readerExecutor, int protocolVersion) {
         this.sslClientSocket = sslClientSocket;
         this.authenticatedUser = authenticatedUser;
         this.in = in;
         this.out = out;
+        this.connectionId = connectionId;
+        this.readerExecutor = readerExecutor;
+        this.protocolVersion = protocolVersion;
     }
 
+    /**
+     * Handles requests until the client disconnects, the connection stays idle
+     * for too long or the stream can no longer be trusted. The socket is
+     * always closed on return.
+     * Requests are read ahead by a second task, so a client can pipeline them;
+     * they are still handled one at a time and answered in arrival order.
+     */
     public void handleRequests() {
         System.out.println("\n[ROUTER] A aguardar por requests...");
 
-        try {
-            while (!sslClientSocket.isClosed()) {
-                try {
-                    Request request = Request.fromStream(in);
-                    //request.addHeader("USER-ID", authenticatedUser.getUserId());
-                    request.setAuthenticatedUser(authenticatedUser);
+        BlockingQueue<Inbound> pending = new ArrayBlockingQueue<>(ServerConfig.getPipelineDepth());
+        readerExecutor.execute(() -> readRequests(pending));
 
-                    System.out.println("[ROUTER] Request recebido de " + request.getAuthenticatedUser().getUserId() + ": " + request);
+        try {
+            while (true) {
+                Inbound next = pending.take();
+                if (next.failure != null) {
+                    // answers held back for this request are still owed to the client
+                    out.flush();
+                    throw next.failure;
+                }
 
-                    Response response = handleRequest(request);
-                    System.out.println("[ROUTER] Response: " + response);
+                Response response;
+                try {
+                    response = dispatch(next.request, authenticatedUser, connectionId);
+                } catch (RuntimeException e) {
+                    System.err.println("[ROUTER] Erro ao processar pedido: " + e.getMessage());
+                    response = NetworkUtils.createErrorResponse(next.request, StatusCode.INTERNAL_SERVER_ERROR);
+                } finally {
+                    next.request.release();
+                }
 
-                    out.write(response.toByteArray());
-                } catch (IOException e) {
-                    //System.err.println("[ROUTER] Erro ao processar pedido: " + e.getMessage());
+                try {
+                    response.writeTo(out, protocolVersion);
+                } finally {
+                    response.release();
                 }
+                // requests already read ahead are answered before sending
+                out.endFrame(!pending.isEmpty());
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (EOFException e) {
+            System.out.println("[ROUTER] O cliente terminou a ligação.");
+        } catch (SocketTimeoutException e) {
+            System.out.println("[ROUTER] Ligação inativa. A fechar.");
+        } catch (IOException e) {
+            System.out.println("[ROUTER] Ligação perdida: " + e.getMessage());
         } catch (Exception e) {
             System.err.println("[ROUTER] Erro ao processar pedido: " + e.getMessage());
+        } finally {
+            closeSocket();
+            releasePending(pending);
+        }
+    }
+
+    /**
+     * Releases the requests read ahead that were never handled. Each one is
+     * taken off the queue first, so the reader and this thread never release
+     * the same request.
+     *
+     * @param pending the queue of requests waiting to be handled
+     */
+    private static void releasePending(BlockingQueue<Inbound> pending) {
+        Inbound next;
+        while ((next = pending.poll()) != null) {
+            release(next);
         }
     }
 
+    /**
+     * Reads requests from the client and queues them until the stream ends.
+     * Stops early if the connection is closed while the queue is full.
+     *
+     * @param pending the queue of requests waiting to be handled
+     */
+    private void readRequests(BlockingQueue<Inbound> pending) {
+        Inbound next;
+        do {
+            try {
+                next = new Inbound(Request.fromStream(in), null);
+            } catch (IOException | RuntimeException e) {
+                next = new Inbound(null, e);
+            }
+
+            try {
+                while (!pending.offer(next, 1, TimeUnit.SECONDS)) {
+                    if (sslClientSocket.isClosed()) {
+                        release(next);
+                        return;
+                    }
+                }
+                // the handler may have drained the queue and returned meanwhile
+                if (sslClientSocket.isClosed() && pending.remove(next)) {
+                    release(next);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release(next);
+                return;
+            }
+        } while (next.failure == null);
+    }
+
+    /**
+     * Releases the request of an entry that will never be handled.
+     *
+     * @param inbound the entry
+     */
+    private static void release(Inbound inbound) {
+        if (inbound.request != null) {
+            inbound.request.release();
+        }
+    }
+
+    /**
+     * Handles a request of an authenticated user.
+     *
+     * @param request the request
+     * @param authenticatedUser the user authenticated on the connection
+     * @param connectionId the ID of the connection
+     * @return the response
+     */
+    static Response dispatch(Request request, User authenticatedUser, String connectionId) {
+        //request.addHeader("USER-ID", authenticatedUser.getUserId());
+        request.setAuthenticatedUser(authenticatedUser);
+        request.setConnectionId(connectionId);
+
+        System.out.println("[ROUTER] Request recebido de " + request.getAuthenticatedUser().getUserId() + ": " + request);
+
+        Response response = handleRequest(request);
+        System.out.println("[ROUTER] Response: " + response);
+
+        return response;
+    }
+
     /**
      * Routes the request to the appropriate handler.
      *
@@ -73,6 +198,10 @@ public class Router {
                 return new DownloadKeyFromWorkspaceHandler().handle(request);
             case "uploadkeytoworkspace":
                 return new UploadKeyToWorkspaceHandler().handle(request);
+            case "heartbeat":
+                return new HeartbeatHandler().handle(request);
+            case "integrityreport":
+                return new IntegrityReportHandler().handle(request);
             default:
                 BodyJSON body = new BodyJSON();
                 body.put("error", "Rota não encontrada");
@@ -91,4 +220,17 @@ public class Router {
             System.err.println("[SERVER] Erro ao fechar socket: " + e.getMessage());
         }
     }
+
+    /**
+     * A request read ahead, or the reason why reading stopped.
+     */
+    private static final class Inbound {
+        private final Request request;
+        private final Exception failure;
+
+        private Inbound(Request request, Exception failure) {
+            this.request = request;
+            this.failure = failure;
+        }
+    }
 }
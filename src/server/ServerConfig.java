@@ -0,0 +1,326 @@
+package server;
+
+import server.models.BinaryFrame;
+import server.models.User;
+import server.utils.FrameOutputStream;
+import server.utils.FrameOutputStream.FlushPolicy;
+import server.utils.ServerSecurityUtils;
+
+/**
+ * Server settings, read from system properties (e.g. -Dmysharing.server.mode=nio).
+ */
+public class ServerConfig {
+    public static final String MODE_THREAD = "thread";
+    public static final String MODE_VIRTUAL = "virtual";
+    public static final String MODE_NIO = "nio";
+
+    private static final String MODE_PROPERTY = "mysharing.server.mode";
+    private static final String NIO_WORKERS_PROPERTY = "mysharing.nio.workers";
+    private static final String MAX_CONNECTIONS_PROPERTY = "mysharing.server.maxConnections";
+    private static final String IDLE_TIMEOUT_PROPERTY = "mysharing.server.idleTimeout";
+    private static final String PIPELINE_DEPTH_PROPERTY = "mysharing.server.pipelineDepth";
+    private static final String PROTOCOL_PROPERTY = "mysharing.server.protocol";
+    private static final String FLUSH_PROPERTY = "mysharing.server.flush";
+    private static final String FLUSH_BATCH_PROPERTY = "mysharing.server.flushBatch";
+    private static final String TCP_NO_DELAY_PROPERTY = "mysharing.server.tcpNoDelay";
+    private static final String TLS_PACKET_SIZE_PROPERTY = "mysharing.server.tlsPacketSize";
+    private static final String VERIFY_INTERVAL_PROPERTY = "mysharing.server.verifyInterval";
+    private static final String SCRUB_RATE_PROPERTY = "mysharing.server.scrubRate";
+    private static final String SCRUB_INTERVAL_PROPERTY = "mysharing.server.scrubInterval";
+    private static final String LAYOUT_PROPERTY = "mysharing.server.layout";
+    private static final String TRUSTSTORE_CHECK_PROPERTY = "mysharing.server.truststoreCheck";
+    private static final String LOCK_IDLE_PROPERTY = "mysharing.server.lockIdle";
+    private static final String LOCK_STATS_INTERVAL_PROPERTY = "mysharing.server.lockStatsInterval";
+    private static final String TICKET_LIFETIME_PROPERTY = "mysharing.server.ticketLifetime";
+    private static final String AUTH_THREADS_PROPERTY = "mysharing.server.authThreads";
+    private static final String AUTH_QUEUE_PROPERTY = "mysharing.server.authQueue";
+    private static final String HASH_ALGORITHM_PROPERTY = "mysharing.server.hashAlgorithm";
+    private static final String HASH_ITERATIONS_PROPERTY = "mysharing.server.hashIterations";
+    private static final String HASH_TARGET_PROPERTY = "mysharing.server.hashTargetMillis";
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+    private static final int DEFAULT_PIPELINE_DEPTH = 32;
+    private static final int DEFAULT_VERIFY_INTERVAL_SECONDS = 300;
+    private static final int DEFAULT_SCRUB_RATE_MB = 16;
+    private static final int DEFAULT_SCRUB_INTERVAL_SECONDS = 3600;
+    private static final int DEFAULT_TRUSTSTORE_CHECK_SECONDS = 5;
+    private static final int DEFAULT_LOCK_IDLE_SECONDS = 60;
+    private static final int DEFAULT_LOCK_STATS_INTERVAL_SECONDS = 300;
+    private static final int DEFAULT_TICKET_LIFETIME_SECONDS = 12 * 3600;
+    private static final int DEFAULT_AUTH_QUEUE_LIMIT = 64;
+    private static final int DEFAULT_HASH_TARGET_MILLIS = 50;
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Get the connection handling mode.
+     * "thread" runs one blocking platform thread per connection, "virtual" runs
+     * the same blocking code on a virtual thread per connection, and "nio"
+     * multiplexes all connections on a selector and hands complete frames to a
+     * worker pool.
+     *
+     * @return the server mode
+     */
+    public static String getServerMode() {
+        String mode = System.getProperty(MODE_PROPERTY, MODE_THREAD).trim().toLowerCase();
+        if (!mode.equals(MODE_THREAD) && !mode.equals(MODE_VIRTUAL) && !mode.equals(MODE_NIO)) {
+            System.err.println("[SERVER] Modo inválido: " + mode + ". A usar " + MODE_THREAD);
+            return MODE_THREAD;
+        }
+
+        return mode;
+    }
+
+    /**
+     * Get the number of worker threads handling requests in NIO mode.
+     *
+     * @return the number of workers
+     */
+    public static int getNioWorkers() {
+        return getPositiveInt(NIO_WORKERS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Get the maximum number of connections served at the same time by the
+     * blocking modes. Further connections wait in the accept backlog.
+     *
+     * @return the connection cap, Integer.MAX_VALUE if unlimited
+     */
+    public static int getMaxConnections() {
+        return getPositiveInt(MAX_CONNECTIONS_PROPERTY, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get how long a connection may stay silent before the server closes it.
+     * Clients keep idle sessions open with heartbeat requests.
+     *
+     * @return the idle timeout in milliseconds
+     */
+    public static int getIdleTimeoutMillis() {
+        return getPositiveInt(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT_SECONDS) * 1000;
+    }
+
+    /**
+     * Get how many requests of one connection may be read ahead of the one
+     * being handled. Reading stops while the limit is reached.
+     *
+     * @return the pipeline depth
+     */
+    public static int getPipelineDepth() {
+        return getPositiveInt(PIPELINE_DEPTH_PROPERTY, DEFAULT_PIPELINE_DEPTH);
+    }
+
+    /**
+     * Get the highest protocol version the server agrees to at login.
+     * Clients that do not ask for a version always get version 1.
+     *
+     * @return the protocol version
+     */
+    public static int getMaxProtocolVersion() {
+        return Math.min(BinaryFrame.VERSION_2, getPositiveInt(PROTOCOL_PROPERTY, BinaryFrame.VERSION_2));
+    }
+
+    /**
+     * Get when buffered responses are sent. "idle" waits until no other
+     * request is ready to be answered, "batch" also sends every
+     * {@link #getFlushBatch()} responses, and "frame" sends each response
+     * on its own.
+     *
+     * @return the flush policy
+     */
+    public static FlushPolicy getFlushPolicy() {
+        return FlushPolicy.parse(System.getProperty(FLUSH_PROPERTY), FlushPolicy.IDLE);
+    }
+
+    /**
+     * Get how many responses the "batch" flush policy keeps at most.
+     *
+     * @return the batch size
+     */
+    public static int getFlushBatch() {
+        return getPositiveInt(FLUSH_BATCH_PROPERTY, FrameOutputStream.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Check if Nagle's algorithm is disabled. Responses are already gathered
+     * by the flush policy, so the default is to send them without delay.
+     *
+     * @return true to set TCP_NODELAY
+     */
+    public static boolean isTcpNoDelay() {
+        return !"false".equalsIgnoreCase(System.getProperty(TCP_NO_DELAY_PROPERTY, "true").trim());
+    }
+
+    /**
+     * Get the maximum TLS packet size, 0 to keep the JDK default.
+     * Smaller records reach the client sooner; bigger ones cost less.
+     *
+     * @return the packet size in bytes
+     */
+    public static int getTlsPacketSize() {
+        return getPositiveInt(TLS_PACKET_SIZE_PROPERTY, 0);
+    }
+
+    /**
+     * Get how long a verified metadata file is trusted while it does not
+     * change on disk. After this the next access checks its MAC again.
+     *
+     * @return the interval in seconds
+     */
+    public static int getVerifyIntervalSeconds() {
+        return getPositiveInt(VERIFY_INTERVAL_PROPERTY, DEFAULT_VERIFY_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Get how much the integrity scrubber may read from disk.
+     *
+     * @return the budget in bytes per second
+     */
+    public static long getScrubBytesPerSecond() {
+        return getPositiveInt(SCRUB_RATE_PROPERTY, DEFAULT_SCRUB_RATE_MB) * 1024L * 1024L;
+    }
+
+    /**
+     * Get the pause between two passes of the integrity scrubber.
+     *
+     * @return the interval in seconds
+     */
+    public static int getScrubIntervalSeconds() {
+        return getPositiveInt(SCRUB_INTERVAL_PROPERTY, DEFAULT_SCRUB_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Get the layout asked for the files of the workspaces. It is used for a
+     * new data directory; an existing one keeps its layout until migrated.
+     *
+     * @return the layout, or null if none was asked for
+     */
+    public static WorkspaceLayout getWorkspaceLayout() {
+        return WorkspaceLayout.parse(System.getProperty(LAYOUT_PROPERTY), null);
+    }
+
+    /**
+     * Get how often the server truststore is checked for changes, e.g. a
+     * certificate imported for a new user.
+     *
+     * @return the interval in seconds
+     */
+    public static int getTruststoreCheckSeconds() {
+        return getPositiveInt(TRUSTSTORE_CHECK_PROPERTY, DEFAULT_TRUSTSTORE_CHECK_SECONDS);
+    }
+
+    /**
+     * Get how long the lock of a workspace's files is kept after its last use.
+     *
+     * @return the time in seconds
+     */
+    public static int getLockIdleSeconds() {
+        return getPositiveInt(LOCK_IDLE_PROPERTY, DEFAULT_LOCK_IDLE_SECONDS);
+    }
+
+    /**
+     * Get the interval between two reports of the lock and session ticket
+     * statistics.
+     *
+     * @return the interval in seconds
+     */
+    public static int getLockStatsIntervalSeconds() {
+        return getPositiveInt(LOCK_STATS_INTERVAL_PROPERTY, DEFAULT_LOCK_STATS_INTERVAL_SECONDS);
+    }
+
+    /**
+     * Get how long a session ticket lets a client log in without its
+     * password.
+     *
+     * @return the lifetime in seconds
+     */
+    public static int getTicketLifetimeSeconds() {
+        return getPositiveInt(TICKET_LIFETIME_PROPERTY, DEFAULT_TICKET_LIFETIME_SECONDS);
+    }
+
+    /**
+     * Get the number of threads that check passwords and create new users.
+     * By default half of the processors, so logins never take every core
+     * from the transfers.
+     *
+     * @return the number of threads
+     */
+    public static int getAuthThreads() {
+        return getPositiveInt(AUTH_THREADS_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * Get how many logins may wait for an authentication thread before
+     * further logins are refused with BUSY.
+     *
+     * @return the queue limit
+     */
+    public static int getAuthQueueLimit() {
+        return getPositiveInt(AUTH_QUEUE_PROPERTY, DEFAULT_AUTH_QUEUE_LIMIT);
+    }
+
+    /**
+     * Get the key derivation algorithm of new password hashes.
+     *
+     * @return the algorithm, one of ServerSecurityUtils.PASSWORD_ALGORITHMS
+     */
+    public static String getHashAlgorithm() {
+        String algorithm = System.getProperty(HASH_ALGORITHM_PROPERTY);
+        if (algorithm == null) {
+            return User.LEGACY_ALGORITHM;
+        }
+
+        for (String known : ServerSecurityUtils.PASSWORD_ALGORITHMS) {
+            if (known.equalsIgnoreCase(algorithm.trim())) {
+                return known;
+            }
+        }
+        System.err.println("[SERVER] Algoritmo inválido: " + algorithm + ". A usar " + User.LEGACY_ALGORITHM);
+        return User.LEGACY_ALGORITHM;
+    }
+
+    /**
+     * Get the iteration count of new password hashes, if it is fixed instead
+     * of calibrated at startup.
+     *
+     * @return the iteration count, or 0 to calibrate it
+     */
+    public static int getHashIterations() {
+        return getPositiveInt(HASH_ITERATIONS_PROPERTY, 0);
+    }
+
+    /**
+     * Get how long hashing one password should take, used to calibrate the
+     * iteration count at startup.
+     *
+     * @return the time in milliseconds
+     */
+    public static int getHashTargetMillis() {
+        return getPositiveInt(HASH_TARGET_PROPERTY, DEFAULT_HASH_TARGET_MILLIS);
+    }
+
+    /**
+     * Read a positive integer property.
+     *
+     * @param property the property name
+     * @param defaultValue the value used if the property is missing or invalid
+     * @return the value
+     */
+    static int getPositiveInt(String property, int defaultValue) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+
+        System.err.println("[SERVER] Valor inválido para " + property + ": " + value);
+        return defaultValue;
+    }
+}
@@ -0,0 +1,419 @@
+package server;
+
+import server.models.User;
+import server.utils.ServerSecurityUtils;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Session tickets, handed to a client after a login with its password so it
+ * can log in again without the server hashing the password.
+ *
+ * A ticket holds the user ID, a random ID and its issue and expiry times,
+ * with a MAC under a key derived from the server key. The MAC also covers the
+ * salt of the user record, so a ticket only works for the user it was issued
+ * to and stops working if the user is removed and created again. Nothing is
+ * stored per ticket, so tickets survive a restart of the server.
+ *
+ * Tickets are revoked per user, or for every user with "*", by lines
+ * "userId:millis" in data/tickets.revoked: tickets issued before that time
+ * are refused. The file has a MAC chained line by line, in
+ * data/tickets.revoked.mac, under another key derived from the server key, so
+ * a line cannot be removed or changed to bring tickets back. If the file does
+ * not match its MAC every ticket is refused. The files are read again when
+ * they change, so revocations can be added with the server running, by
+ * whoever knows the system password:
+ *
+ * java -cp build server.SessionTicketManager revoke <userId|*>
+ */
+public class SessionTicketManager {
+    private static SessionTicketManager INSTANCE;
+    static final Path REVOKED_FILE_PATH = Path.of("data/tickets.revoked");
+    static final Path REVOKED_MAC_FILE_PATH = Path.of("data/tickets.revoked.mac");
+    static final String ALL_USERS = "*";
+    private static final String VERSION = "1";
+    private static final String TICKET_KEY_LABEL = "mysharing-session-ticket";
+    private static final String REVOCATION_KEY_LABEL = "mysharing-ticket-revocations";
+    private static final int ID_LENGTH = 16;
+    private static final long REVOCATION_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // tolerated difference between the clocks of the servers sharing a key
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final SecretKey key;
+    private final SecretKey revocationKey;
+    private final long lifetimeMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile Map<String, Long> revokedBefore = Collections.emptyMap();
+    // size and modification time of the file and of its MAC when last read
+    private volatile String revokedState;
+    private volatile long nextRevocationCheckAt;
+    // not a monitor: the file is read with it held, which would pin a virtual thread
+    private final ReentrantLock revocationLock = new ReentrantLock();
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder passwordLogins = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder revoked = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+
+    private SessionTicketManager() {
+        this.key = deriveKey(MySharingServer.getServerKey(), TICKET_KEY_LABEL);
+        this.revocationKey = deriveKey(MySharingServer.getServerKey(), REVOCATION_KEY_LABEL);
+        PendingMac.recover(REVOKED_FILE_PATH, REVOKED_MAC_FILE_PATH, revocationKey);
+        this.lifetimeMillis = TimeUnit.SECONDS.toMillis(ServerConfig.getTicketLifetimeSeconds());
+        refreshRevocations(System.nanoTime(), true);
+        startReporter(ServerConfig.getLockStatsIntervalSeconds());
+    }
+
+    /**
+     * Get the instance of the session ticket manager.
+     *
+     * @return the instance
+     */
+    public synchronized static SessionTicketManager getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new SessionTicketManager();
+        }
+
+        return INSTANCE;
+    }
+
+    /**
+     * Issue a ticket to a user that has just logged in with its password.
+     *
+     * @param user the user
+     * @return the ticket, or null if it could not be created
+     */
+    public String issue(User user) {
+        byte[] id = new byte[ID_LENGTH];
+        random.nextBytes(id);
+        long now = System.currentTimeMillis();
+        String payload = VERSION + ":" + user.getUserId() + ":" + Base64.getUrlEncoder().withoutPadding().encodeToString(id)
+                + ":" + now + ":" + (now + lifetimeMillis);
+
+        try {
+            String ticket = encode(payload.getBytes(StandardCharsets.UTF_8)) + "." + encode(mac(payload, user));
+            issued.increment();
+            return ticket;
+        } catch (Exception e) {
+            System.err.println("[TICKETS] Erro ao emitir ticket: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Check a ticket presented by a client.
+     *
+     * @param ticket the ticket
+     * @param user the user the client claims to be, null if there is no such user
+     * @return true if the ticket was issued to the user and is still valid
+     */
+    public boolean verify(String ticket, User user) {
+        String[] fields = parse(ticket);
+        if (fields == null || user == null || !fields[1].equals(user.getUserId())) {
+            invalid.increment();
+            return false;
+        }
+
+        try {
+            String payload = new String(Base64.getUrlDecoder().decode(ticket.substring(0, ticket.indexOf('.'))),
+                    StandardCharsets.UTF_8);
+            byte[] presentedMac = Base64.getUrlDecoder().decode(ticket.substring(ticket.indexOf('.') + 1));
+            if (!ServerSecurityUtils.verifyMac(mac(payload, user), presentedMac)) {
+                invalid.increment();
+                return false;
+            }
+        } catch (Exception e) {
+            invalid.increment();
+            return false;
+        }
+
+        long issuedAt = Long.parseLong(fields[3]);
+        long expiresAt = Long.parseLong(fields[4]);
+        long now = System.currentTimeMillis();
+        if (now >= expiresAt || issuedAt > now + CLOCK_SKEW_MILLIS) {
+            expired.increment();
+            return false;
+        }
+
+        if (isRevoked(user.getUserId(), issuedAt)) {
+            revoked.increment();
+            return false;
+        }
+
+        accepted.increment();
+        return true;
+    }
+
+    /**
+     * Check if a valid ticket is past half of its lifetime, so the client
+     * should be given a new one.
+     *
+     * @param ticket a ticket accepted by {@link #verify(String, User)}
+     * @return true if the ticket should be replaced
+     */
+    public boolean shouldRenew(String ticket) {
+        String[] fields = parse(ticket);
+        if (fields == null) {
+            return true;
+        }
+
+        long issuedAt = Long.parseLong(fields[3]);
+        long expiresAt = Long.parseLong(fields[4]);
+        return System.currentTimeMillis() - issuedAt > (expiresAt - issuedAt) / 2;
+    }
+
+    /**
+     * Count a login that was checked by hashing the password, to report how
+     * many logins tickets spared.
+     */
+    public void passwordLogin() {
+        passwordLogins.increment();
+    }
+
+    /**
+     * Describe the ticket statistics in one line.
+     *
+     * @return the summary
+     */
+    public String summary() {
+        long hits = accepted.sum();
+        long logins = hits + passwordLogins.sum();
+        long percent = logins == 0 ? 0 : hits * 100 / logins;
+        return logins + " logins, " + hits + " com ticket (" + percent + "%), " + issued.sum() + " emitidos, recusados: "
+                + expired.sum() + " expirados, " + revoked.sum() + " revogados, " + invalid.sum() + " inválidos";
+    }
+
+    private boolean isRevoked(String userId, long issuedAt) {
+        long now = System.nanoTime();
+        if (now - nextRevocationCheckAt >= 0) {
+            refreshRevocations(now, false);
+        }
+
+        Map<String, Long> revocations = revokedBefore;
+        Long userRevoked = revocations.get(userId);
+        Long allRevoked = revocations.get(ALL_USERS);
+        return (userRevoked != null && issuedAt <= userRevoked) || (allRevoked != null && issuedAt <= allRevoked);
+    }
+
+    /**
+     * Read the revocations again if the file changed since it was read. A
+     * periodic check is skipped while another thread checks, and tickets are
+     * checked against the revocations already read meanwhile.
+     *
+     * @param now System.nanoTime()
+     * @param force true to check the file even if it was checked recently
+     */
+    private void refreshRevocations(long now, boolean force) {
+        if (force) {
+            revocationLock.lock();
+        } else if (!revocationLock.tryLock()) {
+            return;
+        }
+        try {
+            if (!force && now - nextRevocationCheckAt < 0) {
+                return;
+            }
+            nextRevocationCheckAt = now + REVOCATION_CHECK_NANOS;
+            loadRevocations();
+        } finally {
+            revocationLock.unlock();
+        }
+    }
+
+    /**
+     * Load the revocations if the file or its MAC changed, after checking the
+     * file against its MAC. A file that does not match, or a MAC without its
+     * file, revokes every ticket until they are put back. Called with the
+     * revocation lock held.
+     */
+    private void loadRevocations() {
+        try {
+            String state = fileState(REVOKED_FILE_PATH) + "|" + fileState(REVOKED_MAC_FILE_PATH);
+            if (state.equals(revokedState)) {
+                return;
+            }
+
+            if (!Files.exists(REVOKED_FILE_PATH) && !Files.exists(REVOKED_MAC_FILE_PATH)) {
+                revokedBefore = Collections.emptyMap();
+                revokedState = state;
+                return;
+            }
+
+            if (!ServerSecurityUtils.verifyChainedFileMac(REVOKED_FILE_PATH, REVOKED_MAC_FILE_PATH, revocationKey)) {
+                revokedBefore = Collections.singletonMap(ALL_USERS, Long.MAX_VALUE);
+                revokedState = state;
+                System.err.println("[TICKETS] MAC inválido em " + REVOKED_FILE_PATH
+                        + ". Todos os tickets são recusados até o ficheiro ser reposto.");
+                return;
+            }
+
+            Map<String, Long> revocations = new HashMap<>();
+            List<String> lines = Files.readAllLines(REVOKED_FILE_PATH, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                int separator = line.lastIndexOf(':');
+                if (separator <= 0) {
+                    continue;
+                }
+                try {
+                    long millis = Long.parseLong(line.substring(separator + 1).trim());
+                    revocations.merge(line.substring(0, separator).trim(), millis, Math::max);
+                } catch (NumberFormatException e) {
+                    System.err.println("[TICKETS] Linha inválida em " + REVOKED_FILE_PATH + ": " + line);
+                }
+            }
+
+            revokedBefore = Collections.unmodifiableMap(revocations);
+            revokedState = state;
+            System.out.println("[TICKETS] Revogações carregadas: " + revocations.size() + " utilizadores");
+        } catch (Exception e) {
+            // the revocations already read stay in force
+            System.err.println("[TICKETS] Erro ao ler as revogações: " + e.getMessage());
+        }
+    }
+
+    private static String fileState(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return "-";
+        }
+        return Files.getLastModifiedTime(path) + ":" + Files.size(path);
+    }
+
+    /**
+     * Split a ticket into its fields: version, user ID, ticket ID, issue and
+     * expiry times.
+     *
+     * @return the fields, or null if the ticket is malformed
+     */
+    private static String[] parse(String ticket) {
+        if (ticket == null) {
+            return null;
+        }
+
+        int dot = ticket.indexOf('.');
+        if (dot <= 0) {
+            return null;
+        }
+
+        try {
+            String payload = new String(Base64.getUrlDecoder().decode(ticket.substring(0, dot)), StandardCharsets.UTF_8);
+            String[] fields = payload.split(":");
+            if (fields.length != 5 || !fields[0].equals(VERSION)) {
+                return null;
+            }
+            Long.parseLong(fields[3]);
+            Long.parseLong(fields[4]);
+            return fields;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] mac(String payload, User user) throws Exception {
+        return ServerSecurityUtils.genMac((payload + ":" + user.getSalt()).getBytes(StandardCharsets.UTF_8), key);
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Derive a key from the server key, one per use, so a ticket MAC is never
+     * valid as the MAC of a file or the other way round.
+     */
+    private static SecretKey deriveKey(SecretKey serverKey, String label) {
+        try {
+            byte[] bytes = ServerSecurityUtils.genMac(label.getBytes(StandardCharsets.UTF_8), serverKey);
+            return new SecretKeySpec(bytes, ServerSecurityUtils.MAC_ALGORITHM);
+        } catch (Exception e) {
+            throw new IllegalStateException("Erro ao derivar a chave dos tickets", e);
+        }
+    }
+
+    /**
+     * Append a revocation and chain its line onto the MAC of the file. The
+     * new MAC is staged before the line is written, see {@link PendingMac}.
+     * A file that does not match its MAC is left as it is, so a revocation
+     * never vouches for lines changed by someone else.
+     */
+    private static void appendRevocation(SecretKey revocationKey, String userId, long millis) throws Exception {
+        if (!Files.exists(REVOKED_FILE_PATH)) {
+            Files.createFile(REVOKED_FILE_PATH);
+            ServerSecurityUtils.writeMacOnMacFile(REVOKED_MAC_FILE_PATH,
+                    ServerSecurityUtils.genChainedFileMac(REVOKED_FILE_PATH, revocationKey));
+        } else if (!Files.exists(REVOKED_MAC_FILE_PATH)) {
+            // written by a version without the MAC
+            System.out.println("[TICKETS] A calcular o MAC de " + REVOKED_FILE_PATH);
+            ServerSecurityUtils.writeMacOnMacFile(REVOKED_MAC_FILE_PATH,
+                    ServerSecurityUtils.genChainedFileMac(REVOKED_FILE_PATH, revocationKey));
+        } else if (!ServerSecurityUtils.verifyChainedFileMac(REVOKED_FILE_PATH, REVOKED_MAC_FILE_PATH,
+                revocationKey)) {
+            throw new IOException("MAC inválido em " + REVOKED_FILE_PATH + " ou password errada");
+        }
+
+        String line = userId + ":" + millis;
+        PendingMac pendingMac = PendingMac.stage(REVOKED_MAC_FILE_PATH, ServerSecurityUtils.chainMac(
+                ServerSecurityUtils.readMacFromMacFile(REVOKED_MAC_FILE_PATH), line, revocationKey));
+        Files.writeString(REVOKED_FILE_PATH, line + "\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        pendingMac.commit();
+    }
+
+    /**
+     * Print the ticket statistics periodically, when they changed.
+     */
+    private void startReporter(int intervalSeconds) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ticket-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] reported = {0};
+        reporter.scheduleAtFixedRate(() -> {
+            long logins = accepted.sum() + passwordLogins.sum() + expired.sum() + revoked.sum() + invalid.sum();
+            if (logins != reported[0]) {
+                reported[0] = logins;
+                System.out.println("[TICKETS] " + summary());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2 || !args[0].equals("revoke")) {
+            System.err.println("Uso: java server.SessionTicketManager revoke <userId|*>");
+            System.exit(1);
+        }
+
+        // the same password the server is started with
+        System.out.print("[TICKETS] Introduza a password do sistema: ");
+        byte[] password = new Scanner(System.in).nextLine().getBytes();
+        SecretKey serverKey = new SecretKeySpec(password, 0, password.length, "AES");
+
+        try {
+            appendRevocation(deriveKey(serverKey, REVOCATION_KEY_LABEL), args[1], System.currentTimeMillis());
+            System.out.println("[TICKETS] Tickets revogados: " + args[1]);
+        } catch (Exception e) {
+            System.err.println("[TICKETS] Erro ao revogar tickets: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,645 @@
+package server;
+
+import server.models.User;
+import server.utils.MappedFile;
+import server.utils.MerkleTree;
+import server.utils.ServerSecurityUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * Persistent hash index of the users, memory-mapped so a lookup touches a
+ * few pages instead of scanning users.txt. The file is mapped in segments, so
+ * it is not bound by the 2 GB of a single mapping; the table holds up to
+ * {@link #MAX_RECORD_CAPACITY} users.
+ *
+ * The file holds a header, a Bloom filter that answers most lookups of
+ * unknown users without probing, an open-addressing table of slots, a
+ * Merkle tree over the slots, and the user records, each of fixed width.
+ *
+ * Every record carries a MAC over its user id, hash, salt and hashing cost. Each leaf of
+ * the tree is a MAC over one slot and the MAC of its record, and the root is
+ * kept in memory and, MAC'd, in a separate root file. A lookup checks the
+ * slots it probes and the record it returns against the root in O(log n),
+ * so any change to the index, including a removed or moved entry, is
+ * detected when it is used.
+ *
+ * users.txt stays the MAC-protected list of accounts and the index is derived
+ * from it. Updates are appended to users.txt, so the last line of a user is
+ * the one in use. The header remembers the size of users.txt it matches, and
+ * the index is imported again from users.txt whenever the two disagree or the
+ * stored root does not match the root file, e.g. after a crash mid-update.
+ */
+class UserIndex {
+    private static final int MAGIC = 0x4D535549; // "MSUI"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 8;
+    private static final int INITIAL_RECORD_CAPACITY = 1024;
+    // the bits of the Bloom filter are numbered with an int
+    private static final int MAX_RECORD_CAPACITY = 1 << 26;
+    private static final int BLOOM_BITS_PER_RECORD = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    // Header fields
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int RECORD_CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int SOURCE_LENGTH_OFFSET = 16;
+    private static final int SEED_OFFSET = 24;
+
+    // Record fields, each string stored as a length byte and padding
+    private static final int ID_FIELD = 64;
+    private static final int HASH_FIELD = 96;
+    private static final int SALT_FIELD = 48;
+    private static final int MAC_FIELD = 32;
+    private static final int RECORD_SIZE = 256;
+    private static final int HASH_OFFSET = ID_FIELD;
+    private static final int SALT_OFFSET = HASH_OFFSET + HASH_FIELD;
+    private static final int MAC_OFFSET = SALT_OFFSET + SALT_FIELD;
+    // code of the algorithm, 1 + its position in PASSWORD_ALGORITHMS, and the iteration count
+    private static final int ALGORITHM_OFFSET = MAC_OFFSET + MAC_FIELD;
+    private static final int ITERATIONS_OFFSET = ALGORITHM_OFFSET + 1;
+
+    // Slot values besides record number + 1
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+
+    private final Path indexPath;
+    private final Path rootPath;
+    private final SecretKey key;
+    private final ThreadLocal<Mac> macs;
+
+    private FileChannel channel;
+    private MappedFile map;
+    private int recordCapacity;
+    private int slotCapacity;
+    private int bloomBits;
+    private long bloomOffset;
+    private long slotsOffset;
+    private long treeOffset;
+    private long recordsOffset;
+    private MerkleTree tree;
+    private byte[] trustedRoot;
+    private int count;
+    private long seed;
+
+    /**
+     * Create an index over the given file. Nothing is read until {@link #open(Path)}.
+     *
+     * @param indexPath the index file
+     * @param rootPath the file holding the MAC of the tree root
+     * @param key the server key, used for the record MACs
+     */
+    UserIndex(Path indexPath, Path rootPath, SecretKey key) {
+        this.indexPath = indexPath;
+        this.rootPath = rootPath;
+        this.key = key;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance(ServerSecurityUtils.MAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Erro ao criar MAC: " + e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Map the index, importing it from users.txt if it is missing, damaged or
+     * does not match users.txt.
+     *
+     * @param usersPath the users file
+     * @throws IOException if the index cannot be read or written
+     */
+    void open(Path usersPath) throws IOException {
+        long sourceLength = Files.size(usersPath);
+
+        if (Files.exists(indexPath)) {
+            try {
+                map(indexPath);
+                if (map.getLong(SOURCE_LENGTH_OFFSET) == sourceLength && rootMatches()) {
+                    trustedRoot = tree.storedRoot();
+                    return;
+                }
+                System.out.println("[USER STORAGE] Índice de utilizadores desatualizado.");
+            } catch (IOException e) {
+                System.err.println("[USER STORAGE] Índice de utilizadores inválido: " + e.getMessage());
+            }
+            close();
+        }
+
+        importFrom(usersPath, sourceLength);
+    }
+
+    /**
+     * Import the index again from users.txt, e.g. after a change to users.txt
+     * was undone while the index was being updated.
+     *
+     * @param usersPath the users file
+     * @throws IOException if the index cannot be written
+     */
+    void rebuild(Path usersPath) throws IOException {
+        close();
+        importFrom(usersPath, Files.size(usersPath));
+    }
+
+    /**
+     * Find a user.
+     *
+     * @param userId the user ID
+     * @return the user, or null if there is no such user
+     * @throws SecurityException if a slot or record read fails its MAC
+     */
+    User get(String userId) {
+        byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(id);
+        if (!mightContain(hash)) {
+            return null;
+        }
+
+        int slot = findSlot(id, hash);
+        if (slot < 0) {
+            return null;
+        }
+
+        return readRecord(map.getInt(slotAt(slot)) - 1, userId);
+    }
+
+    /**
+     * Check if a user exists, without trusting the Bloom filter, which is
+     * not covered by the tree. Used before adding a user.
+     *
+     * @param userId the user ID
+     * @return true if the user exists
+     * @throws SecurityException if a slot read fails its MAC
+     */
+    boolean exists(String userId) {
+        byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+        return findSlot(id, hash(id)) >= 0;
+    }
+
+    /**
+     * Add users that were just appended to users.txt together, forcing the
+     * index to disk and writing the root once for all of them.
+     *
+     * @param users the users
+     * @param sourceLength the size of users.txt after the append
+     * @throws IOException if the index cannot be written
+     */
+    void addAll(List<User> users, long sourceLength) throws IOException {
+        for (User user : users) {
+            if (count == recordCapacity) {
+                grow();
+            }
+            insert(user);
+        }
+
+        map.putLong(SOURCE_LENGTH_OFFSET, sourceLength);
+        map.force();
+        writeRoot();
+    }
+
+    /**
+     * Remove a user that was just removed from users.txt.
+     *
+     * @param userId the user ID
+     * @param sourceLength the size of users.txt after the removal
+     * @throws IOException if the index cannot be written
+     */
+    void remove(String userId, long sourceLength) throws IOException {
+        byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(id, hash(id));
+        if (slot >= 0) {
+            byte[] oldLeaf = leaf(slot);
+            map.putInt(slotAt(slot), DELETED);
+            trustedRoot = tree.update(slot, oldLeaf, leaf(slot), trustedRoot);
+        }
+
+        map.putLong(SOURCE_LENGTH_OFFSET, sourceLength);
+        map.force();
+        writeRoot();
+    }
+
+    /**
+     * Replace the record of a user whose new line was just appended to
+     * users.txt, e.g. with a new password hash. The record is written over
+     * the old one, in the same slot.
+     *
+     * @param user the new record
+     * @param sourceLength the size of users.txt after the change
+     * @throws IOException if the index cannot be written
+     */
+    void update(User user, long sourceLength) throws IOException {
+        byte[] id = user.getUserId().getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(id, hash(id));
+        if (slot < 0) {
+            throw new IOException("Utilizador não existe no índice: " + user.getUserId());
+        }
+
+        replace(slot, user);
+
+        map.putLong(SOURCE_LENGTH_OFFSET, sourceLength);
+        map.force();
+        writeRoot();
+    }
+
+    /**
+     * Check if a user record can be stored: the user ID fits and the
+     * password algorithm is known.
+     *
+     * @param user the user record
+     * @return true if it can be stored
+     */
+    static boolean fits(User user) {
+        return fits(user.getUserId())
+                && ServerSecurityUtils.PASSWORD_ALGORITHMS.contains(user.getAlgorithm());
+    }
+
+    /**
+     * Check if a user ID fits in a record.
+     *
+     * @param userId the user ID
+     * @return true if it can be stored
+     */
+    static boolean fits(String userId) {
+        return userId.getBytes(StandardCharsets.UTF_8).length < ID_FIELD;
+    }
+
+    private void insert(User user) {
+        byte[] id = user.getUserId().getBytes(StandardCharsets.UTF_8);
+        long hash = hash(id);
+        int record = count;
+        writeRecord(record, user);
+
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = bloomBit(hash, i);
+            long at = bloomOffset + (bit >>> 3);
+            map.put(at, (byte) (map.get(at) | (1 << (bit & 7))));
+        }
+
+        int slot = (int) (hash & (slotCapacity - 1));
+        while (true) {
+            int value = map.getInt(slotAt(slot));
+            if (value == EMPTY || value == DELETED) {
+                break;
+            }
+            slot = (slot + 1) & (slotCapacity - 1);
+        }
+
+        // the old leaf is checked by update, so a tampered free slot is not reused
+        byte[] oldLeaf = leaf(slot);
+        map.putInt(slotAt(slot) + 4, (int) (hash >>> 32));
+        map.putInt(slotAt(slot), record + 1);
+        trustedRoot = tree.update(slot, oldLeaf, leaf(slot), trustedRoot);
+
+        count++;
+        map.putInt(COUNT_OFFSET, count);
+    }
+
+    private void replace(int slot, User user) {
+        byte[] oldLeaf = leaf(slot);
+        writeRecord(map.getInt(slotAt(slot)) - 1, user);
+        trustedRoot = tree.update(slot, oldLeaf, leaf(slot), trustedRoot);
+    }
+
+    private void writeRecord(int record, User user) {
+        long base = recordAt(record);
+        putField(base, ID_FIELD, user.getUserId().getBytes(StandardCharsets.UTF_8));
+        putField(base + HASH_OFFSET, HASH_FIELD, user.getHash().getBytes(StandardCharsets.UTF_8));
+        putField(base + SALT_OFFSET, SALT_FIELD, user.getSalt().getBytes(StandardCharsets.UTF_8));
+        map.put(base + MAC_OFFSET, recordMac(user));
+        map.put(base + ALGORITHM_OFFSET, (byte) (ServerSecurityUtils.PASSWORD_ALGORITHMS.indexOf(user.getAlgorithm()) + 1));
+        map.putInt(base + ITERATIONS_OFFSET, user.getIterations());
+    }
+
+    private int findSlot(byte[] id, long hash) {
+        int fingerprint = (int) (hash >>> 32);
+        int slot = (int) (hash & (slotCapacity - 1));
+
+        for (int probes = 0; probes < slotCapacity; probes++) {
+            verifySlot(slot);
+
+            long at = slotAt(slot);
+            int value = map.getInt(at);
+            if (value == EMPTY) {
+                return -1;
+            }
+
+            if (value != DELETED && map.getInt(at + 4) == fingerprint
+                    && idEquals(recordAt(value - 1), id)) {
+                return slot;
+            }
+            slot = (slot + 1) & (slotCapacity - 1);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Check one slot, and the MAC of the record it points to, against the root.
+     */
+    private void verifySlot(int slot) {
+        if (!tree.verify(slot, leaf(slot), trustedRoot)) {
+            throw new SecurityException("MAC inválido no índice de utilizadores, posição " + slot);
+        }
+    }
+
+    /**
+     * Compute the leaf of a slot: a MAC over its value, fingerprint and the
+     * MAC stored in its record.
+     */
+    private byte[] leaf(int slot) {
+        long at = slotAt(slot);
+        int value = map.getInt(at);
+
+        ByteBuffer data = ByteBuffer.allocate(8 + MAC_FIELD);
+        data.putInt(value).putInt(map.getInt(at + 4));
+        if (value > 0 && value <= recordCapacity) {
+            byte[] recordMac = new byte[MAC_FIELD];
+            map.get(recordAt(value - 1) + MAC_OFFSET, recordMac);
+            data.put(recordMac);
+        }
+        return macs.get().doFinal(data.array());
+    }
+
+    /**
+     * Check the root stored in the index against the root file.
+     */
+    private boolean rootMatches() throws IOException {
+        byte[] expected;
+        try {
+            expected = ServerSecurityUtils.readMacFromMacFile(rootPath);
+        } catch (Exception e) {
+            return false;
+        }
+
+        return expected != null && MessageDigest.isEqual(expected, macs.get().doFinal(tree.storedRoot()));
+    }
+
+    private void writeRoot() throws IOException {
+        Path temp = rootPath.resolveSibling(rootPath.getFileName() + ".tmp");
+        try {
+            ServerSecurityUtils.writeMacOnMacFile(temp, macs.get().doFinal(trustedRoot));
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Erro ao escrever raiz do índice: " + e.getMessage(), e);
+        }
+        Files.move(temp, rootPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean mightContain(long hash) {
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = bloomBit(hash, i);
+            if ((map.get(bloomOffset + (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int bloomBit(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return (h1 + i * h2) & (bloomBits - 1);
+    }
+
+    private User readRecord(int record, String userId) {
+        long base = recordAt(record);
+        int algorithm = map.get(base + ALGORITHM_OFFSET);
+        if (algorithm < 1 || algorithm > ServerSecurityUtils.PASSWORD_ALGORITHMS.size()) {
+            throw new SecurityException("Algoritmo inválido no índice de utilizadores: " + userId);
+        }
+        User user = new User(userId, getField(base + HASH_OFFSET), getField(base + SALT_OFFSET),
+                ServerSecurityUtils.PASSWORD_ALGORITHMS.get(algorithm - 1), map.getInt(base + ITERATIONS_OFFSET));
+
+        byte[] stored = new byte[MAC_FIELD];
+        map.get(base + MAC_OFFSET, stored);
+        if (!MessageDigest.isEqual(stored, recordMac(user))) {
+            throw new SecurityException("MAC inválido no índice de utilizadores: " + userId);
+        }
+
+        return user;
+    }
+
+    private byte[] recordMac(User user) {
+        return macs.get().doFinal(user.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private boolean idEquals(long base, byte[] id) {
+        if ((map.get(base) & 0xFF) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (map.get(base + 1 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putField(long at, int width, byte[] value) {
+        if (value.length >= width) {
+            throw new IllegalArgumentException("Campo demasiado longo para o índice: " + value.length);
+        }
+        map.put(at, (byte) value.length);
+        map.put(at + 1, value);
+    }
+
+    private String getField(long at) {
+        byte[] value = new byte[map.get(at) & 0xFF];
+        map.get(at + 1, value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private long slotAt(int slot) {
+        return slotsOffset + (long) slot * SLOT_SIZE;
+    }
+
+    private long recordAt(int record) {
+        return recordsOffset + (long) record * RECORD_SIZE;
+    }
+
+    private long hash(byte[] id) {
+        // FNV-1a with a per-index seed, then a final mix
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (byte b : id) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb53a42c6be5bL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Double the capacity, copying the records that are still in the table.
+     */
+    private void grow() throws IOException {
+        if (recordCapacity >= MAX_RECORD_CAPACITY) {
+            throw new IOException("Índice de utilizadores cheio: " + recordCapacity + " registos");
+        }
+
+        Path temp = tempPath();
+        UserIndex bigger = new UserIndex(temp, rootPath, key);
+        bigger.create(temp, recordCapacity * 2);
+
+        for (int slot = 0; slot < slotCapacity; slot++) {
+            int value = map.getInt(slotAt(slot));
+            if (value != EMPTY && value != DELETED) {
+                verifySlot(slot);
+                bigger.insert(readRecord(value - 1, getField(recordAt(value - 1))));
+            }
+        }
+        bigger.map.putLong(SOURCE_LENGTH_OFFSET, map.getLong(SOURCE_LENGTH_OFFSET));
+        bigger.map.force();
+        bigger.close();
+
+        close();
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(indexPath);
+        trustedRoot = bigger.trustedRoot;
+        writeRoot();
+        System.out.println("[USER STORAGE] Índice de utilizadores aumentado para " + recordCapacity + " registos");
+    }
+
+    private void importFrom(Path usersPath, long sourceLength) throws IOException {
+        long lines;
+        try (BufferedReader reader = Files.newBufferedReader(usersPath)) {
+            lines = reader.lines().count();
+        }
+
+        if (lines > MAX_RECORD_CAPACITY) {
+            throw new IOException("Demasiados utilizadores para o índice: " + lines);
+        }
+        int capacity = INITIAL_RECORD_CAPACITY;
+        while (capacity < lines) {
+            capacity *= 2;
+        }
+
+        Path temp = tempPath();
+        UserIndex imported = new UserIndex(temp, rootPath, key);
+        imported.create(temp, capacity);
+
+        try (BufferedReader reader = Files.newBufferedReader(usersPath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                User user = User.fromRecord(line);
+                if (user == null || !fits(user)) {
+                    System.err.println("[USER STORAGE] Formato inválido: " + line);
+                    continue;
+                }
+
+                byte[] id = user.getUserId().getBytes(StandardCharsets.UTF_8);
+                int slot = imported.findSlot(id, imported.hash(id));
+                if (slot >= 0) {
+                    // a later line of a user was appended by an update and replaces the earlier one
+                    imported.replace(slot, user);
+                    continue;
+                }
+                imported.insert(user);
+            }
+        }
+        imported.map.putLong(SOURCE_LENGTH_OFFSET, sourceLength);
+        imported.map.force();
+        imported.close();
+
+        Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(indexPath);
+        trustedRoot = imported.trustedRoot;
+        writeRoot();
+        System.out.println("[USER STORAGE] Índice de utilizadores importado: " + count + " utilizadores");
+    }
+
+    private void create(Path path, int capacity) throws IOException {
+        Files.deleteIfExists(path);
+        layout(capacity);
+        long size = recordsOffset + (long) capacity * RECORD_SIZE;
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = MappedFile.map(channel, size);
+        tree = new MerkleTree(map, treeOffset, slotCapacity);
+        seed = new SecureRandom().nextLong();
+        count = 0;
+
+        map.putInt(MAGIC_OFFSET, MAGIC);
+        map.putInt(VERSION_OFFSET, VERSION);
+        map.putInt(RECORD_CAPACITY_OFFSET, capacity);
+        map.putInt(COUNT_OFFSET, 0);
+        map.putLong(SOURCE_LENGTH_OFFSET, -1);
+        map.putLong(SEED_OFFSET, seed);
+
+        trustedRoot = tree.fill(macs.get().doFinal(new byte[8 + MAC_FIELD]));
+    }
+
+    private void map(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_SIZE) {
+            throw new IOException("Tamanho inválido");
+        }
+        map = MappedFile.map(channel, channel.size());
+
+        int capacity = map.getInt(RECORD_CAPACITY_OFFSET);
+        if (map.getInt(MAGIC_OFFSET) != MAGIC || map.getInt(VERSION_OFFSET) != VERSION
+                || capacity < INITIAL_RECORD_CAPACITY || capacity > MAX_RECORD_CAPACITY
+                || Integer.bitCount(capacity) != 1) {
+            throw new IOException("Cabeçalho inválido");
+        }
+
+        layout(capacity);
+        if (channel.size() != recordsOffset + (long) capacity * RECORD_SIZE) {
+            throw new IOException("Tamanho inválido");
+        }
+
+        tree = new MerkleTree(map, treeOffset, slotCapacity);
+        count = map.getInt(COUNT_OFFSET);
+        seed = map.getLong(SEED_OFFSET);
+        if (count < 0 || count > capacity) {
+            throw new IOException("Número de registos inválido");
+        }
+    }
+
+    private void layout(int capacity) {
+        recordCapacity = capacity;
+        slotCapacity = capacity * 2;
+        bloomBits = capacity * BLOOM_BITS_PER_RECORD;
+        bloomBits = Integer.highestOneBit(bloomBits - 1) << 1;
+        bloomOffset = HEADER_SIZE;
+        slotsOffset = bloomOffset + bloomBits / 8;
+        treeOffset = slotsOffset + (long) slotCapacity * SLOT_SIZE;
+        recordsOffset = treeOffset + MerkleTree.regionSize(slotCapacity);
+    }
+
+    private Path tempPath() {
+        return indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+    }
+
+    private void close() throws IOException {
+        map = null;
+        tree = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
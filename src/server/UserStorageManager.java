@@ -3,15 +3,24 @@ package server;
 import server.models.User;
 import server.utils.ServerSecurityUtils;
 
+import javax.crypto.SecretKey;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -21,8 +30,14 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class UserStorageManager {
     private static UserStorageManager INSTANCE;
     private static final String USERS_FILE_PATH = "data/users.txt";
+    private static final String USERS_MAC_FILE_PATH = "data/users.mac";
+    private static final String USERS_INDEX_PATH = "data/users.idx";
+    private static final String USERS_ROOT_PATH = "data/users.root";
 
     private final ReadWriteLock metaLock = new ReentrantReadWriteLock();
+    // Users hashed and waiting for the next commit, guarded by itself
+    private final List<PendingUser> pendingUsers = new ArrayList<>();
+    private UserIndex index;
 
     /**
      * Create a new user storage manager.
@@ -37,6 +52,10 @@ public class UserStorageManager {
         } catch (IOException e) {
             System.err.println("[USER STORAGE] Erro ao inicializar ficheiro de usuários: " + e.getMessage());
         }
+
+        // a change interrupted by a crash must not look like tampering
+        PendingMac.recover(Paths.get(USERS_FILE_PATH), Paths.get(USERS_MAC_FILE_PATH), MySharingServer.getServerKey());
+        PendingMac.upgrade(Paths.get(USERS_FILE_PATH), Paths.get(USERS_MAC_FILE_PATH), MySharingServer.getServerKey());
     }
 
     /**
@@ -53,76 +72,283 @@ public class UserStorageManager {
     }
 
     /**
-     * Gets a user from the file.
+     * Open the index of users.txt, importing it again if it does not match
+     * the file. Called once at startup, after the integrity of users.txt has
+     * been verified.
+     */
+    public void loadUsers() {
+        metaLock.writeLock().lock();
+        try {
+            index = new UserIndex(Paths.get(USERS_INDEX_PATH), Paths.get(USERS_ROOT_PATH),
+                    MySharingServer.getServerKey());
+            index.open(Paths.get(USERS_FILE_PATH));
+        } catch (IOException e) {
+            System.err.println("[USER STORAGE] Erro ao abrir índice de utilizadores: " + e.getMessage());
+            System.exit(1);
+        } finally {
+            metaLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets a user. Only the index entries read are verified, against the
+     * root of the index, instead of the MAC of the whole users file.
      *
      * @param userId the user ID
      * @return the user, or null if the user does not exist
      */
     public User getUser(String userId) {
+        metaLock.readLock().lock();
+        try {
+            return index.get(userId);
+        } catch (SecurityException e) {
+            compromised(e);
+            return null;
+        } finally {
+            metaLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check the users file against its MAC, if it changed outside the server
+     * since it was last checked. Runs under the read lock so it never sees a
+     * change half written.
+     */
+    void verifyIntegrity() {
         metaLock.readLock().lock();
         try {
             MySharingServer.verifyUsersMac();
+        } finally {
+            metaLock.readLock().unlock();
+        }
+    }
 
-            try (Scanner scanner = new Scanner(new File(USERS_FILE_PATH))) {
-                while (scanner.hasNextLine()) {
-                    String line = scanner.nextLine();
-                    String[] parts = line.split(":");
+    private static void compromised(SecurityException e) {
+        System.err.println("[SERVER] " + e.getMessage());
+        System.err.println("[SERVER] Sistema comprometido! A encerrar...");
+        System.exit(1);
+    }
 
-                    if (parts.length != 3) {
-                        System.err.println("[USER STORAGE] Formato inválido: " + line);
-                        continue;
-                    }
+    /**
+     * Add a user to the file. The password must already be hashed, so no
+     * hashing happens under the lock.
+     *
+     * Users added at the same time are written together: each login queues
+     * its record, and whichever thread gets the lock first appends every
+     * queued record to users.txt and the index at once, while the others
+     * wait for the lock and find their record already committed.
+     *
+     * @param record the user record
+     * @return true if the user was added, false otherwise
+     */
+    public boolean addUser(User record) {
+        if (!UserIndex.fits(record)) {
+            System.err.println("[USER STORAGE] Identificador de utilizador demasiado longo: " + record.getUserId());
+            return false;
+        }
 
-                    String username = parts[0];
-                    String hash = parts[1];
-                    String salt = parts[2];
+        PendingUser pending = new PendingUser(record);
+        synchronized (pendingUsers) {
+            pendingUsers.add(pending);
+        }
 
-                    if (username.equals(userId)) {
-                        return new User(username, hash, salt);
-                    }
+        metaLock.writeLock().lock();
+        try {
+            if (!pending.result.isDone()) {
+                List<PendingUser> batch;
+                synchronized (pendingUsers) {
+                    batch = new ArrayList<>(pendingUsers);
+                    pendingUsers.clear();
                 }
-            } catch (IOException e) {
-                System.err.println("[USER STORAGE] Erro ao carregar usuários: " + e.getMessage());
+                commitUsers(batch);
             }
+        } finally {
+            metaLock.writeLock().unlock();
+        }
 
-            return null;
+        return pending.result.join();
+    }
+
+    /**
+     * Append a batch of new users to users.txt and the index, as one commit:
+     * if any step fails, users.txt is cut back to its size before the batch
+     * and the index is imported again from it, so a retry never writes a user
+     * twice. Called with the write lock held; completes the result of every
+     * user of the batch before returning.
+     */
+    private void commitUsers(List<PendingUser> batch) {
+        try {
+            MySharingServer.verifyUsersMac();
+
+            List<PendingUser> accepted = new ArrayList<>();
+            Set<String> batchIds = new HashSet<>();
+            for (PendingUser pending : batch) {
+                String userId = pending.record.getUserId();
+                if (index.exists(userId) || !batchIds.add(userId)) {
+                    System.err.println("[USER STORAGE] Usuário já existe: " + userId);
+                    continue;
+                }
+                accepted.add(pending);
+            }
+            if (accepted.isEmpty()) {
+                return;
+            }
+
+            List<User> records = new ArrayList<>();
+            for (PendingUser pending : accepted) {
+                records.add(pending.record);
+            }
+            appendUsers(records, sourceLength -> index.addAll(records, sourceLength));
+
+            for (PendingUser pending : accepted) {
+                pending.result.complete(true);
+            }
+        } catch (SecurityException e) {
+            compromised(e);
+        } catch (Exception e) {
+            System.err.println("[USER STORAGE] Erro ao adicionar utilizadores: " + e.getMessage());
         } finally {
-            metaLock.readLock().unlock();
+            // users refused or not written
+            for (PendingUser pending : batch) {
+                pending.result.complete(false);
+            }
         }
     }
 
     /**
-     * Add a user to the file.
-     *
-     * @param user the user
-     * @param password the password
-     * @return true if the user was added, false otherwise
+     * The change of the index that goes with lines appended to users.txt.
      */
-    public boolean addUser(String user, String password) {
-        metaLock.writeLock().lock();
+    private interface IndexChange {
+        void apply(long sourceLength) throws IOException;
+    }
 
+    /**
+     * Append records to users.txt, change the index to match and put the new
+     * MAC in place, undoing the append if any of it fails. The MAC is chained
+     * line by line, so this costs O(records) whatever the number of users.
+     */
+    private void appendUsers(List<User> records, IndexChange change) throws Exception {
+        Path file = Paths.get(USERS_FILE_PATH);
+        List<String> lines = new ArrayList<>();
+        StringBuilder appended = new StringBuilder();
+        for (User record : records) {
+            lines.add(record.toString());
+            appended.append(record).append(System.lineSeparator());
+        }
+
+        long size = Files.size(file);
+        PendingMac pendingMac = stageMac(file, lines);
+        boolean indexChanged = false;
         try {
+            Files.write(file, appended.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            indexChanged = true;
+            change.apply(Files.size(file));
+            commitMac(pendingMac);
+        } catch (Exception e) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(size);
+            }
+            if (pendingMac != null) {
+                pendingMac.discard();
+            }
+            if (indexChanged) {
+                index.rebuild(file);
+            }
+            throw e;
+        }
+    }
 
-            MySharingServer.verifyUsersMac();
+    /**
+     * Stage the MAC users.txt will have after a change, before the change is
+     * written, unless the file has no MAC. Appended lines are chained onto
+     * the MAC in use, which the caller has checked, without reading the file.
+     *
+     * @param content the file whose content users.txt will have, or users.txt itself
+     * @param appended the lines appended to it, or null
+     * @return the staged MAC, or null if the file has no MAC
+     */
+    private static PendingMac stageMac(Path content, List<String> appended) throws Exception {
+        if (!MySharingServer.isUsersMacEnabled()) {
+            return null;
+        }
 
-            if (this.getUser(user) != null) {
-                System.err.println("[USER STORAGE] Usuário já existe: " + user);
-                return false;
+        SecretKey key = MySharingServer.getServerKey();
+        Path macFile = Paths.get(USERS_MAC_FILE_PATH);
+        byte[] mac = appended == null ? null : ServerSecurityUtils.readMacFromMacFile(macFile);
+        if (mac == null) {
+            mac = ServerSecurityUtils.genChainedFileMac(content, key);
+        }
+        if (appended != null) {
+            for (String line : appended) {
+                mac = ServerSecurityUtils.chainMac(mac, line, key);
             }
+        }
+        return PendingMac.stage(macFile, mac);
+    }
 
-            try {
-                String securePassword = ServerSecurityUtils.genSecurePassword(user, password);
-                try (BufferedWriter writer = new BufferedWriter(new FileWriter(USERS_FILE_PATH, true))) {
-                    writer.write(securePassword);
-                    writer.newLine();
-                }
+    /**
+     * Put the staged MAC in place once the change is written. Called with the
+     * write lock held, so the MAC is never behind the file.
+     */
+    private static void commitMac(PendingMac pendingMac) throws IOException {
+        if (pendingMac != null) {
+            pendingMac.commit();
+        }
+        MySharingServer.usersMacWritten();
+    }
 
-                MySharingServer.updateUsersMac();
-                return true;
-            } catch (Exception e) {
-                System.err.println("[USER STORAGE] Erro ao adicionar utilizador: " + e.getMessage());
+    private static void replace(File tempFile, File inputFile) throws IOException {
+        if (!tempFile.renameTo(inputFile)) {
+            Files.move(tempFile.toPath(), inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * A user waiting to be written, and whether it was, once the thread that
+     * committed its batch knows.
+     */
+    private static final class PendingUser {
+        private final User record;
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private PendingUser(User record) {
+            this.record = record;
+        }
+    }
+
+    /**
+     * Replace the record of a user, e.g. with its password hashed at a new
+     * cost. Nothing is changed if the record is no longer the one given, so
+     * a concurrent change is never overwritten.
+     *
+     * The new record is appended to users.txt, where the last line of a user
+     * is the one in use, and written over the old one in its slot of the
+     * index, so a rehash on login costs O(1) and holds the lock only for one
+     * append.
+     *
+     * @param current the record the new one was computed from
+     * @param updated the new record
+     * @return true if the record was replaced
+     */
+    public boolean updateUser(User current, User updated) {
+        metaLock.writeLock().lock();
+        try {
+
+            MySharingServer.verifyUsersMac();
+
+            User stored = index.get(current.getUserId());
+            if (stored == null || !stored.toString().equals(current.toString())) {
                 return false;
             }
+
+            appendUsers(List.of(updated), sourceLength -> index.update(updated, sourceLength));
+            return true;
+        } catch (SecurityException e) {
+            compromised(e);
+            return false;
+        } catch (Exception e) {
+            System.err.println("[USER STORAGE] Erro ao atualizar utilizador: " + e.getMessage());
+            return false;
         } finally {
             metaLock.writeLock().unlock();
         }
@@ -167,14 +393,17 @@ public class UserStorageManager {
                     return true;
                 }
 
-                // Replace original file with the new one
-                if (!tempFile.renameTo(inputFile)) {
-                    Files.move(tempFile.toPath(), inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                }
+                // Replace original file with the new one, and its MAC right after
+                PendingMac pendingMac = stageMac(tempFile.toPath(), null);
+                replace(tempFile, inputFile);
+                commitMac(pendingMac);
 
-                MySharingServer.updateUsersMac();
+                index.remove(user, Files.size(inputFile.toPath()));
                 return true;
-            } catch (IOException e) {
+            } catch (SecurityException e) {
+                compromised(e);
+                return false;
+            } catch (Exception e) {
                 System.err.println("[USER STORAGE] Erro ao remover usuário: " + e.getMessage());
                 return false;
             }
@@ -0,0 +1,680 @@
+package server;
+
+import server.utils.ServerSecurityUtils;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index of the files stored in one workspace: for each uploaded file its
+ * size, upload time, uploader and signature file, plus the key files and any
+ * other file found in the directory.
+ *
+ * An upload or delete changes the index in place, in O(log n), and must be
+ * made by the holder of the workspace's write lock. Readers use the index
+ * without locks; each file is replaced as a whole, in one write, so they never
+ * see an entry half changed.
+ *
+ * The index is saved as a snapshot with a MAC plus a log of the changes made
+ * since, one line per change. The log starts with the digest of the snapshot
+ * it applies to and every line carries a MAC chained to the previous one, so
+ * lines cannot be changed, reordered or moved to another workspace. A change
+ * only appends a line; once the log is longer than the snapshot both are
+ * folded into a new snapshot. The directory stays the source of truth: when
+ * a workspace is first used the saved index is checked against one scan of
+ * the directory, which repairs an index that a crash left behind the files.
+ *
+ * Names are escaped (%, ':', CR and LF as %XX), so any file name fits in the
+ * ':' separated fields.
+ *
+ * Snapshot example (data/workspaces.files/workspace001):
+ * F:report.pdf:1024:1714000000000:user1:report.pdf.signed.user1
+ * K:workspace001.key.user1
+ * O:notes.txt.signed.user2
+ * <base64 MAC>
+ *
+ * Log example (data/workspaces.files.log/workspace001):
+ * #<base64 SHA-256 of the snapshot>
+ * F:a%3Ab.txt:10:1714000001000:user1:-:<base64 MAC>
+ * P:report.pdf:2048:1714000002000:user2:report.pdf.signed.user2:<base64 MAC>
+ * R:notes.txt.signed.user2:<base64 MAC>
+ */
+final class WorkspaceFileIndex {
+    static final String SIGNATURE_MARK = ".signed.";
+    static final String KEY_MARK = ".key.";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOG_HEADER = "#";
+    private static final String NONE = "-";
+    // a short log is never folded, so small workspaces do not rewrite on every change
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    /**
+     * An uploaded file.
+     */
+    static final class Entry {
+        private final String name;
+        private final long size;
+        private final long uploadedAt;
+        private final String uploader;
+        private final String signature;
+
+        /**
+         * Create an entry.
+         *
+         * @param name the name of the file
+         * @param size the size in bytes
+         * @param uploadedAt the upload time in milliseconds since the epoch
+         * @param uploader the user ID of the uploader, or null if unknown
+         * @param signature the name of the signature file, or null if none
+         */
+        Entry(String name, long size, long uploadedAt, String uploader, String signature) {
+            this.name = name;
+            this.size = size;
+            this.uploadedAt = uploadedAt;
+            this.uploader = uploader;
+            this.signature = signature;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        long getUploadedAt() {
+            return uploadedAt;
+        }
+
+        String getUploader() {
+            return uploader;
+        }
+
+        String getSignature() {
+            return signature;
+        }
+    }
+
+    /**
+     * The index of a workspace that does not exist, or whose index could not
+     * be loaded. It is never saved, so it cannot be changed.
+     */
+    static final WorkspaceFileIndex EMPTY = new WorkspaceFileIndex();
+
+    private final ConcurrentSkipListMap<String, Entry> files = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+    private final ConcurrentSkipListSet<String> others = new ConcurrentSkipListSet<>();
+
+    // Where the index is saved, set once it is bound to its files. Writer only.
+    private Path path;
+    private Path logPath;
+    private SecretKey key;
+    private boolean macEnabled;
+    private byte[] chain;
+    private boolean logStarted;
+    private int snapshotRecords;
+    private int logRecords;
+
+    private WorkspaceFileIndex() {
+    }
+
+    /**
+     * Get an uploaded file.
+     *
+     * @param name the name of the file
+     * @return the entry, or null if there is no such file
+     */
+    Entry get(String name) {
+        return files.get(name);
+    }
+
+    /**
+     * Check if a file of any kind is in the workspace.
+     *
+     * @param name the name of the file
+     * @return true if it is
+     */
+    boolean contains(String name) {
+        if (files.containsKey(name) || keys.contains(name) || others.contains(name)) {
+            return true;
+        }
+
+        int mark = name.lastIndexOf(SIGNATURE_MARK);
+        if (mark <= 0) {
+            return false;
+        }
+        Entry entry = files.get(name.substring(0, mark));
+        return entry != null && name.equals(entry.signature);
+    }
+
+    /**
+     * Get the names of every file in the workspace, sorted.
+     *
+     * @return the names
+     */
+    String[] names() {
+        Set<String> sorted = new TreeSet<>(keys);
+        sorted.addAll(others);
+        for (Entry entry : files.values()) {
+            sorted.add(entry.name);
+            if (entry.signature != null) {
+                sorted.add(entry.signature);
+            }
+        }
+        return sorted.toArray(new String[0]);
+    }
+
+    /**
+     * Add or replace a file. A signature of the replaced file that is not the
+     * new one is kept as another file, since it is still in the directory.
+     *
+     * @param entry the file
+     * @throws IOException if the change cannot be saved; the index is then
+     *         left unchanged
+     */
+    void putFile(Entry entry) throws IOException {
+        append(fileLine("F", entry));
+        applyFile(entry, true);
+        compactIfLong();
+    }
+
+    /**
+     * Add or replace a file whose previous signature was deleted from the
+     * directory, so it is dropped instead of kept as another file. The entry
+     * is swapped in one change, so readers see either the old file or the
+     * new one, never neither.
+     *
+     * @param entry the file
+     * @throws IOException if the change cannot be saved; the index is then
+     *         left unchanged
+     */
+    void replaceFile(Entry entry) throws IOException {
+        append(fileLine("P", entry));
+        applyFile(entry, false);
+        compactIfLong();
+    }
+
+    /**
+     * Add a key file.
+     *
+     * @param name the name of the key file
+     * @throws IOException if the change cannot be saved; the index is then
+     *         left unchanged
+     */
+    void putKey(String name) throws IOException {
+        append("K:" + escape(name));
+        keys.add(name);
+        compactIfLong();
+    }
+
+    /**
+     * Remove a file. An uploaded file goes with its signature; a signature
+     * leaves its file unsigned.
+     *
+     * @param name the name of the file
+     * @throws IOException if the change cannot be saved; the index is then
+     *         left unchanged
+     */
+    void remove(String name) throws IOException {
+        append("R:" + escape(name));
+        applyRemove(name);
+        compactIfLong();
+    }
+
+    private void applyFile(Entry entry, boolean keepReplacedSignature) {
+        Entry replaced = files.put(entry.name, entry);
+        if (keepReplacedSignature && replaced != null && replaced.signature != null
+                && !replaced.signature.equals(entry.signature)) {
+            others.add(replaced.signature);
+        }
+        others.remove(entry.name);
+        if (entry.signature != null) {
+            others.remove(entry.signature);
+        }
+    }
+
+    private void applyRemove(String name) {
+        files.remove(name);
+        int mark = name.lastIndexOf(SIGNATURE_MARK);
+        Entry signed = mark > 0 ? files.get(name.substring(0, mark)) : null;
+        if (signed != null && name.equals(signed.signature)) {
+            files.put(signed.name, new Entry(signed.name, signed.size, signed.uploadedAt, signed.uploader, null));
+        }
+        keys.remove(name);
+        others.remove(name);
+    }
+
+    /**
+     * Build the index of a workspace directory, keeping the upload time and
+     * uploader of files that did not change since the given index was saved.
+     * Files with several signatures (written by older versions) are indexed
+     * with the newest one; the rest are kept as other files. The index is not
+     * bound to a file until it is saved.
+     *
+     * @param workspaceId the workspace ID
+     * @param dir the workspace directory
+     * @param layout the layout of the files in the directory
+     * @param saved the saved index, or null if there is none
+     * @return the index
+     */
+    static WorkspaceFileIndex scan(String workspaceId, Path dir, WorkspaceLayout layout, WorkspaceFileIndex saved)
+            throws IOException {
+        Map<String, BasicFileAttributes> found = new LinkedHashMap<>();
+        for (Path path : layout.files(dir)) {
+            found.put(path.getFileName().toString(), Files.readAttributes(path, BasicFileAttributes.class));
+        }
+
+        // newest signature of each file
+        String keyPrefix = workspaceId + KEY_MARK;
+        Map<String, String> signatures = new LinkedHashMap<>();
+        for (Map.Entry<String, BasicFileAttributes> file : found.entrySet()) {
+            String name = file.getKey();
+            int mark = name.lastIndexOf(SIGNATURE_MARK);
+            if (name.startsWith(keyPrefix) || mark <= 0 || name.length() == mark + SIGNATURE_MARK.length()) {
+                continue;
+            }
+
+            String base = name.substring(0, mark);
+            String newest = signatures.get(base);
+            if (found.containsKey(base) && (newest == null
+                    || file.getValue().lastModifiedTime().compareTo(found.get(newest).lastModifiedTime()) > 0)) {
+                signatures.put(base, name);
+            }
+        }
+
+        Set<String> indexedSignatures = new HashSet<>(signatures.values());
+        WorkspaceFileIndex index = new WorkspaceFileIndex();
+        for (Map.Entry<String, BasicFileAttributes> file : found.entrySet()) {
+            String name = file.getKey();
+            if (name.startsWith(keyPrefix)) {
+                index.keys.add(name);
+                continue;
+            }
+            if (name.contains(SIGNATURE_MARK) || name.contains(KEY_MARK)) {
+                if (!indexedSignatures.contains(name)) {
+                    index.others.add(name);
+                }
+                continue;
+            }
+
+            String signature = signatures.get(name);
+            long size = file.getValue().size();
+            Entry known = saved == null ? null : saved.get(name);
+            if (known != null && known.size == size && Objects.equals(known.signature, signature)) {
+                index.files.put(name, known);
+            } else {
+                String uploader = signature == null ? null
+                        : signature.substring(name.length() + SIGNATURE_MARK.length());
+                index.files.put(name, new Entry(name, size, file.getValue().lastModifiedTime().toMillis(),
+                        uploader, signature));
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Check if this index lists the same files as another one.
+     *
+     * @param other the other index
+     * @return true if both would be saved the same way
+     */
+    boolean sameAs(WorkspaceFileIndex other) {
+        return other != null && toLines().equals(other.toLines());
+    }
+
+    private static String fileLine(String type, Entry entry) {
+        return type + ":" + escape(entry.name) + ":" + entry.size + ":" + entry.uploadedAt + ":"
+                + (entry.uploader == null ? NONE : escape(entry.uploader)) + ":"
+                + (entry.signature == null ? NONE : escape(entry.signature));
+    }
+
+    private List<String> toLines() {
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : files.values()) {
+            lines.add(fileLine("F", entry));
+        }
+        for (String name : keys) {
+            lines.add("K:" + escape(name));
+        }
+        for (String name : others) {
+            lines.add("O:" + escape(name));
+        }
+        return lines;
+    }
+
+    /**
+     * Save the whole index as a new snapshot with its MAC, replacing the
+     * previous one in a single move, and start an empty log. Later changes
+     * are appended to that log. Must be called by the only writer of the
+     * workspace.
+     *
+     * @param path the index file
+     * @param logPath the log file
+     * @param key the server key
+     * @param macEnabled false if the administrator declined the workspaces MACs
+     */
+    void save(Path path, Path logPath, SecretKey key, boolean macEnabled) throws IOException {
+        List<String> lines = toLines();
+        String mac = "";
+        if (macEnabled) {
+            try {
+                mac = Base64.getEncoder().encodeToString(ServerSecurityUtils.genMac(
+                        String.join("\n", lines).getBytes(StandardCharsets.UTF_8), key));
+            } catch (Exception e) {
+                throw new IOException("Erro ao calcular MAC do índice de ficheiros: " + e.getMessage(), e);
+            }
+        }
+        int records = lines.size();
+        lines.add(mac);
+
+        byte[] snapshot = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+        Path pending = Path.of(path + TEMP_SUFFIX);
+        Files.write(pending, snapshot);
+        Files.move(pending, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // a log left by a crash here names the old snapshot, so load() ignores it
+        bind(path, logPath, key, macEnabled, digest(snapshot), false, records, 0);
+        startLog();
+    }
+
+    private void bind(Path path, Path logPath, SecretKey key, boolean macEnabled, byte[] chain,
+                      boolean logStarted, int snapshotRecords, int logRecords) {
+        this.path = path;
+        this.logPath = logPath;
+        this.key = key;
+        this.macEnabled = macEnabled;
+        this.chain = chain;
+        this.logStarted = logStarted;
+        this.snapshotRecords = snapshotRecords;
+        this.logRecords = logRecords;
+    }
+
+    /**
+     * Replace the log with an empty one for the snapshot, whose digest is the
+     * first link of the chain.
+     */
+    private void startLog() throws IOException {
+        Path pending = Path.of(logPath + TEMP_SUFFIX);
+        Files.write(pending, (LOG_HEADER + Base64.getEncoder().encodeToString(chain) + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        Files.move(pending, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logStarted = true;
+    }
+
+    /**
+     * Append a change to the log, before it is applied.
+     */
+    private void append(String change) throws IOException {
+        if (path == null) {
+            throw new IOException("Índice de ficheiros não carregado");
+        }
+        if (!logStarted) {
+            startLog();
+        }
+
+        byte[] next = link(chain, change, key, macEnabled);
+        String mac = macEnabled ? Base64.getEncoder().encodeToString(next) : "";
+        Files.write(logPath, (change + ":" + mac + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        chain = next;
+        logRecords++;
+    }
+
+    /**
+     * Fold the log into a new snapshot once it is longer than the snapshot,
+     * after a change is applied. A snapshot that cannot be written only
+     * leaves the log longer.
+     */
+    private void compactIfLong() {
+        if (logRecords <= Math.max(MIN_COMPACT_RECORDS, snapshotRecords)) {
+            return;
+        }
+
+        try {
+            save(path, logPath, key, macEnabled);
+        } catch (IOException e) {
+            System.err.println("[FILE STORAGE] Erro ao compactar índice de ficheiros: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read a saved index, snapshot and log, and check them against their
+     * MACs. A log that belongs to an older snapshot, left by a crash while
+     * the snapshot was replaced, is ignored, and a last line cut short by a
+     * crash is dropped. Must be called by the only writer of the workspace.
+     *
+     * @param path the index file
+     * @param logPath the log file
+     * @param key the server key
+     * @param macEnabled false if the administrator declined the workspaces MACs
+     * @return the index, bound to its file, or null if it is missing,
+     *         malformed or does not match its MACs
+     */
+    static WorkspaceFileIndex load(Path path, Path logPath, SecretKey key, boolean macEnabled) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        byte[] snapshot = Files.readAllBytes(path);
+        List<String> lines = new ArrayList<>(Arrays.asList(
+                new String(snapshot, StandardCharsets.UTF_8).split("\r?\n", -1)));
+        if (lines.size() > 1 && lines.get(lines.size() - 1).isEmpty()) {
+            lines.remove(lines.size() - 1);
+        }
+        String mac = lines.remove(lines.size() - 1);
+
+        if (macEnabled) {
+            try {
+                byte[] expected = ServerSecurityUtils.genMac(
+                        String.join("\n", lines).getBytes(StandardCharsets.UTF_8), key);
+                if (!ServerSecurityUtils.verifyMac(expected, Base64.getDecoder().decode(mac))) {
+                    return null;
+                }
+            } catch (IllegalArgumentException e) {
+                return null;
+            } catch (Exception e) {
+                throw new IOException("Erro ao verificar MAC do índice de ficheiros: " + e.getMessage(), e);
+            }
+        }
+
+        WorkspaceFileIndex index = new WorkspaceFileIndex();
+        try {
+            for (String line : lines) {
+                String[] parts = line.split(":", -1);
+                if (parts.length == 6 && parts[0].equals("F")) {
+                    index.files.put(unescape(parts[1]), parseEntry(parts));
+                } else if (parts.length == 2 && parts[0].equals("K")) {
+                    index.keys.add(unescape(parts[1]));
+                } else if (parts.length == 2 && parts[0].equals("O")) {
+                    index.others.add(unescape(parts[1]));
+                } else {
+                    return null;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        index.bind(path, logPath, key, macEnabled, digest(snapshot), false, lines.size(), 0);
+        if (!index.replay()) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Apply the log of the snapshot to the index. Once done, {@link #chain}
+     * holds the last link and new changes can be appended to the log.
+     *
+     * @return false if the log was tampered with
+     */
+    private boolean replay() throws IOException {
+        if (!Files.exists(logPath)) {
+            return true;
+        }
+
+        byte[] log = Files.readAllBytes(logPath);
+        int end = log.length;
+        while (end > 0 && log[end - 1] != '\n') {
+            end--;
+        }
+        String[] lines = new String(log, 0, end, StandardCharsets.UTF_8).split("\n");
+        if (end == 0 || !lines[0].equals(LOG_HEADER + Base64.getEncoder().encodeToString(chain))) {
+            // written for an older snapshot, which already has its changes
+            return true;
+        }
+
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int split = line.lastIndexOf(':');
+            if (split < 0) {
+                return false;
+            }
+            String change = line.substring(0, split);
+            byte[] next = link(chain, change, key, macEnabled);
+            try {
+                if (macEnabled && !ServerSecurityUtils.verifyMac(next,
+                        Base64.getDecoder().decode(line.substring(split + 1)))) {
+                    return false;
+                }
+                if (!apply(change.split(":", -1))) {
+                    return false;
+                }
+            } catch (IllegalArgumentException e) {
+                return false;
+            } catch (Exception e) {
+                throw new IOException("Erro ao verificar MAC do índice de ficheiros: " + e.getMessage(), e);
+            }
+            chain = next;
+            logRecords++;
+        }
+
+        if (end < log.length) {
+            // a line cut short by a crash, new changes go after the last whole one
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        logStarted = true;
+        return true;
+    }
+
+    private boolean apply(String[] parts) {
+        if (parts.length == 6 && (parts[0].equals("F") || parts[0].equals("P"))) {
+            applyFile(parseEntry(parts), parts[0].equals("F"));
+        } else if (parts.length == 2 && parts[0].equals("K")) {
+            keys.add(unescape(parts[1]));
+        } else if (parts.length == 2 && parts[0].equals("R")) {
+            applyRemove(unescape(parts[1]));
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private static Entry parseEntry(String[] parts) {
+        // NumberFormatException is an IllegalArgumentException, handled by the callers
+        return new Entry(unescape(parts[1]), Long.parseLong(parts[2]), Long.parseLong(parts[3]),
+                NONE.equals(parts[4]) ? null : unescape(parts[4]), NONE.equals(parts[5]) ? null : unescape(parts[5]));
+    }
+
+    /**
+     * Compute the next link of the log chain: the MAC of the previous link
+     * and the change, or their digest when MACs are off.
+     */
+    private static byte[] link(byte[] previous, String change, SecretKey key, boolean macEnabled)
+            throws IOException {
+        byte[] bytes = change.getBytes(StandardCharsets.UTF_8);
+        byte[] data = Arrays.copyOf(previous, previous.length + bytes.length);
+        System.arraycopy(bytes, 0, data, previous.length, bytes.length);
+        if (!macEnabled) {
+            return digest(data);
+        }
+
+        try {
+            return ServerSecurityUtils.genMac(data, key);
+        } catch (Exception e) {
+            throw new IOException("Erro ao calcular MAC do índice de ficheiros: " + e.getMessage(), e);
+        }
+    }
+
+    private static byte[] digest(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static String escape(String name) {
+        StringBuilder escaped = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '%' || c == ':' || c == '\n' || c == '\r') {
+                if (escaped == null) {
+                    escaped = new StringBuilder(name.length() + 8).append(name, 0, i);
+                }
+                escaped.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                        .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+            } else if (escaped != null) {
+                escaped.append(c);
+            }
+        }
+        return escaped == null ? name : escaped.toString();
+    }
+
+    /**
+     * Undo {@link #escape(String)}.
+     *
+     * @throws IllegalArgumentException if the name is not validly escaped
+     */
+    static String unescape(String field) {
+        int percent = field.indexOf('%');
+        if (percent < 0) {
+            return field;
+        }
+
+        StringBuilder name = new StringBuilder(field.length()).append(field, 0, percent);
+        for (int i = percent; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c != '%') {
+                name.append(c);
+                continue;
+            }
+            if (i + 2 >= field.length()) {
+                throw new IllegalArgumentException("Nome inválido: " + field);
+            }
+            int high = Character.digit(field.charAt(i + 1), 16);
+            int low = Character.digit(field.charAt(i + 2), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Nome inválido: " + field);
+            }
+            name.append((char) (high << 4 | low));
+            i += 2;
+        }
+        return name.toString();
+    }
+}
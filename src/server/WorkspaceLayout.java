@@ -0,0 +1,151 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * How the files of a workspace are laid out in its directory.
+ *
+ * A file and its signatures always share a directory, since their bucket is
+ * the name of the file. The layout of the data directory is stored in
+ * data/workspaces.layout and changed only by {@link LayoutMigrator}.
+ */
+public enum WorkspaceLayout {
+    /** Every file directly in data/workspaces/<id>/. */
+    FLAT,
+    /**
+     * Files in two levels of 256 subdirectories picked by a hash of the name
+     * (data/workspaces/<id>/3f/a2/<name>), so no directory grows past a few
+     * files per bucket even with millions of files in a workspace.
+     */
+    FANOUT;
+
+    static final Path LAYOUT_FILE_PATH = Path.of("data/workspaces.layout");
+    // Written while a migration runs, so a server never starts on half moved files
+    static final String MIGRATING_PREFIX = "migrating:";
+
+    /**
+     * Parse a layout name, case insensitive.
+     *
+     * @param value the name, may be null
+     * @param defaultLayout the layout used if the name is missing or invalid
+     * @return the layout
+     */
+    public static WorkspaceLayout parse(String value, WorkspaceLayout defaultLayout) {
+        if (value == null) {
+            return defaultLayout;
+        }
+
+        try {
+            return valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[FILE STORAGE] Layout inválido: " + value + ". A usar " + defaultLayout);
+            return defaultLayout;
+        }
+    }
+
+    /**
+     * Get the path of a file of a workspace.
+     *
+     * @param dir the workspace directory
+     * @param name the name of the file
+     * @return the path
+     */
+    Path resolve(Path dir, String name) {
+        if (this == FLAT) {
+            return dir.resolve(name);
+        }
+
+        int bucket = bucket(name);
+        return dir.resolve(String.format("%02x", bucket >>> 8)).resolve(String.format("%02x", bucket & 0xff))
+                .resolve(name);
+    }
+
+    /**
+     * Get the path of a new file of a workspace, creating its subdirectories
+     * if needed.
+     *
+     * @param dir the workspace directory
+     * @param name the name of the file
+     * @return the path
+     */
+    Path prepare(Path dir, String name) throws IOException {
+        Path path = resolve(dir, name);
+        if (this != FLAT) {
+            Files.createDirectories(path.getParent());
+        }
+        return path;
+    }
+
+    /**
+     * Find every file of a workspace.
+     *
+     * @param dir the workspace directory
+     * @return the paths of the files, in no particular order
+     */
+    List<Path> files(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return files;
+        }
+
+        try (Stream<Path> paths = Files.find(dir, this == FLAT ? 1 : 3,
+                (path, attributes) -> attributes.isRegularFile()
+                        && path.getNameCount() - dir.getNameCount() == (this == FLAT ? 1 : 3))) {
+            paths.forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * Pick the bucket of a file: 16 bits of the CRC-32 of its name, without
+     * the signature suffix so signatures land next to the file they sign.
+     */
+    private static int bucket(String name) {
+        int mark = name.lastIndexOf(WorkspaceFileIndex.SIGNATURE_MARK);
+        String base = mark > 0 ? name.substring(0, mark) : name;
+
+        CRC32 crc = new CRC32();
+        crc.update(base.getBytes(StandardCharsets.UTF_8));
+        return (int) (crc.getValue() & 0xffff);
+    }
+
+    /**
+     * Read the layout of the data directory.
+     *
+     * @return the layout, FLAT if none was recorded, or null if a migration
+     *         was interrupted
+     */
+    static WorkspaceLayout read() throws IOException {
+        if (!Files.exists(LAYOUT_FILE_PATH)) {
+            return FLAT;
+        }
+
+        String value = Files.readString(LAYOUT_FILE_PATH, StandardCharsets.UTF_8).trim();
+        if (value.startsWith(MIGRATING_PREFIX)) {
+            return null;
+        }
+        return parse(value, FLAT);
+    }
+
+    /**
+     * Record the layout of the data directory, or that a migration to it is
+     * running.
+     *
+     * @param layout the layout
+     * @param migrating true while files are being moved to it
+     */
+    static void write(WorkspaceLayout layout, boolean migrating) throws IOException {
+        Path pending = Path.of(LAYOUT_FILE_PATH + ".tmp");
+        Files.writeString(pending, (migrating ? MIGRATING_PREFIX : "") + layout.name().toLowerCase() + "\n",
+                StandardCharsets.UTF_8);
+        Files.move(pending, LAYOUT_FILE_PATH, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -70,7 +70,7 @@ public class WorkspaceManager {
             SecretKey aesKey = new SecretKeySpec(tmp.getEncoded(), "AES");
 
             // Cifrar a chave AES com RSA/OAEP com a public key do owner
-            PublicKey ownerPub = ServerSecurityUtils.getUserPublicKeyFromTruststore(userId);
+            PublicKey ownerPub = PublicKeyRegistry.getInstance().getPublicKey(userId);
             Cipher rsaCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
             rsaCipher.init(Cipher.ENCRYPT_MODE, ownerPub);
             byte[] encryptedKey = rsaCipher.doFinal(aesKey.getEncoded());
@@ -174,6 +174,26 @@ public class WorkspaceManager {
         return false;
     }
 
+    /**
+     * Upload a file and its signature to a workspace
+     *
+     * @param userId the id of the uploader, who signed the file
+     * @param workspaceId the id of the workspace
+     * @param file the file
+     * @param fileName the name of the file
+     * @param signatureFile the signature of the file
+     * @return true if the file was uploaded, false otherwise
+     */
+    public boolean uploadSignedFile(String userId, String workspaceId, File file, String fileName,
+                                    File signatureFile) {
+        Workspace ws = fsm.getWorkspace(workspaceId);
+        if (ws == null || !ws.hasMember(userId)) {
+            return false;
+        }
+
+        return fsm.uploadSignedFile(workspaceId, file, fileName, signatureFile, userId);
+    }
+
     /**
      * List the workspaces for a user
      *
@@ -0,0 +1,231 @@
+package server.models;
+
+import server.utils.BufferPool;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary wire format (protocol version 2).
+ *
+ * <pre>
+ * REQUEST                                  RESPONSE
+ * size[4]                                  size[4]
+ * version[1] = 2                           version[1] = 2
+ * format[1]                                format[1]
+ * id[16]                                   id[16]
+ * routeLength[1] route[n]                  status[2]
+ * headerCount[1] headers                   headerCount[1] headers
+ * body[size - ...]                         body[size - ...]
+ *
+ * header: keyId[1] (0 = keyLength[1] key[n]) valueLength[2] value[n]
+ * </pre>
+ *
+ * Version 1 frames start with the ASCII UUID right after the size, so the
+ * version byte alone tells both formats apart.
+ */
+public final class BinaryFrame {
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+
+    private static final int ID_LENGTH = 16;
+    private static final byte FORMAT_JSON = 1;
+    private static final byte FORMAT_RAW = 2;
+    private static final int LITERAL_KEY = 0;
+
+    // Smallest possible frame: size + version + format + id + header count
+    public static final int MIN_LENGTH = RequestConstants.SIZE_LENGTH + 1 + 1 + ID_LENGTH + 1;
+
+    // Header keys sent as a single byte. Only append to this list.
+    private static final String[] HEADER_KEYS = {
+            null,
+            "FILE-ID",
+            "CHUNK-ID",
+            "TYPE",
+            "SIGNATURE-FILE-ID",
+            "PROTOCOL"
+    };
+    private static final Map<String, Integer> HEADER_IDS = new HashMap<>();
+
+    static {
+        for (int i = 1; i < HEADER_KEYS.length; i++) {
+            HEADER_IDS.put(HEADER_KEYS[i], i);
+        }
+    }
+
+    private BinaryFrame() {
+    }
+
+    /**
+     * Check if a frame is in version 2.
+     *
+     * @param frame the frame, positioned at its size field
+     * @return true if the frame is in version 2
+     */
+    public static boolean isVersion2(ByteBuffer frame) {
+        return frame.remaining() > RequestConstants.SIZE_LENGTH
+                && frame.get(frame.position() + RequestConstants.SIZE_LENGTH) == VERSION_2;
+    }
+
+    /**
+     * Encode everything before the body of a request into a pooled buffer.
+     *
+     * @param bodySize the size of the body that will follow
+     * @param room how many more bytes the buffer must hold after the head
+     * @return the buffer, positioned after the head
+     */
+    static ByteBuffer encodeRequestHead(String id, BodyFormat format, String route, Map<String, String> headers,
+                                        int bodySize, int room) {
+        byte[] routeBytes = route.getBytes(StandardCharsets.UTF_8);
+        checkLength(routeBytes.length, 0xFF);
+        int headSize = MIN_LENGTH + 1 + routeBytes.length + headersLength(headers);
+
+        ByteBuffer buffer = BufferPool.getInstance().acquire(headSize + room);
+        try {
+            putStart(buffer, headSize + bodySize, format, id);
+            buffer.put((byte) routeBytes.length);
+            buffer.put(routeBytes);
+            putHeaders(buffer, headers);
+        } catch (RuntimeException e) {
+            BufferPool.getInstance().release(buffer);
+            throw e;
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Encode everything before the body of a response into a pooled buffer.
+     *
+     * @param bodySize the size of the body that will follow
+     * @param room how many more bytes the buffer must hold after the head
+     * @return the buffer, positioned after the head
+     */
+    static ByteBuffer encodeResponseHead(String id, BodyFormat format, StatusCode status, Map<String, String> headers,
+                                         int bodySize, int room) {
+        int headSize = MIN_LENGTH + 2 + headersLength(headers);
+
+        ByteBuffer buffer = BufferPool.getInstance().acquire(headSize + room);
+        try {
+            putStart(buffer, headSize + bodySize, format, id);
+            buffer.putShort((short) status.getCode());
+            putHeaders(buffer, headers);
+        } catch (RuntimeException e) {
+            BufferPool.getInstance().release(buffer);
+            throw e;
+        }
+
+        return buffer;
+    }
+
+    // The readers below consume the frame field by field, in wire order,
+    // starting right after the size field.
+
+    static BodyFormat getFormat(ByteBuffer frame) {
+        frame.get(); // version
+        byte format = frame.get();
+        if (format == FORMAT_JSON) {
+            return BodyFormat.JSON;
+        }
+        if (format == FORMAT_RAW) {
+            return BodyFormat.RAW;
+        }
+
+        throw new IllegalArgumentException("Formato inválido: " + format);
+    }
+
+    static String getId(ByteBuffer frame) {
+        return new UUID(frame.getLong(), frame.getLong()).toString();
+    }
+
+    static String getRoute(ByteBuffer frame) {
+        int length = frame.get() & 0xFF;
+        return getString(frame, length);
+    }
+
+    static Map<String, String> getHeaders(ByteBuffer frame) {
+        int count = frame.get() & 0xFF;
+        Map<String, String> headers = new HashMap<>(count * 2);
+
+        for (int i = 0; i < count; i++) {
+            int keyId = frame.get() & 0xFF;
+            String key;
+            if (keyId == LITERAL_KEY) {
+                key = getString(frame, frame.get() & 0xFF);
+            } else if (keyId < HEADER_KEYS.length) {
+                key = HEADER_KEYS[keyId];
+            } else {
+                throw new IllegalArgumentException("Header desconhecido: " + keyId);
+            }
+
+            headers.put(key, getString(frame, frame.getShort() & 0xFFFF));
+        }
+
+        return headers;
+    }
+
+    private static void putStart(ByteBuffer buffer, int size, BodyFormat format, String id) {
+        UUID uuid = UUID.fromString(id);
+
+        buffer.putInt(size);
+        buffer.put((byte) VERSION_2);
+        buffer.put(format == BodyFormat.RAW ? FORMAT_RAW : FORMAT_JSON);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static int headersLength(Map<String, String> headers) {
+        int length = 0;
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            length += 1 + 2 + entry.getValue().length();
+            if (!HEADER_IDS.containsKey(entry.getKey())) {
+                length += 1 + entry.getKey().length();
+            }
+        }
+
+        return length;
+    }
+
+    private static void putHeaders(ByteBuffer buffer, Map<String, String> headers) {
+        if (headers.size() > 0xFF) {
+            throw new IllegalArgumentException("Demasiados headers: " + headers.size());
+        }
+
+        buffer.put((byte) headers.size());
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            Integer keyId = HEADER_IDS.get(entry.getKey());
+            if (keyId != null) {
+                buffer.put(keyId.byteValue());
+            } else {
+                checkLength(entry.getKey().length(), 0xFF);
+                buffer.put((byte) LITERAL_KEY);
+                buffer.put((byte) entry.getKey().length());
+                buffer.put(entry.getKey().getBytes(StandardCharsets.US_ASCII));
+            }
+
+            checkLength(entry.getValue().length(), 0xFFFF);
+            buffer.putShort((short) entry.getValue().length());
+            buffer.put(entry.getValue().getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static void checkLength(int length, int max) {
+        if (length > max) {
+            throw new IllegalArgumentException("Campo demasiado longo: " + length);
+        }
+    }
+
+    private static String getString(ByteBuffer frame, int length) {
+        if (length > frame.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        String value = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return value;
+    }
+}
@@ -1,5 +1,9 @@
 package server.models;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
 public abstract class Body {
     /**
      * Returns the size of the body in bytes.
@@ -14,4 +18,27 @@ public abstract class Body {
      * @return The body format.
      */
     public abstract BodyFormat getFormat();
+
+    /**
+     * Writes the body to a stream.
+     *
+     * @param out the stream
+     * @throws IOException if an I/O error occurs
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Puts the body into a buffer with at least {@link #getSize()} bytes left.
+     *
+     * @param target the buffer
+     * @throws IOException if an I/O error occurs
+     */
+    public abstract void writeTo(ByteBuffer target) throws IOException;
+
+    /**
+     * Gives back pooled memory held by the body. The body must not be used
+     * afterwards. Does nothing for bodies that hold no pooled memory.
+     */
+    public void release() {
+    }
 }
\ No newline at end of file
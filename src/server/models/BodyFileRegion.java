@@ -0,0 +1,94 @@
+package server.models;
+
+import server.utils.BufferPool;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A raw body read from a region of a file only while it is being written,
+ * one TLS record at a time. Used to send file chunks without holding them
+ * in memory.
+ */
+public class BodyFileRegion extends Body {
+    private static final int PIECE_LENGTH = RequestConstants.MAX_INLINE_BODY_LENGTH;
+
+    private final Path path;
+    private final long position;
+    private final int length;
+
+    /**
+     * Creates a body for a region of a file. Near the end of the file the
+     * region is shorter.
+     *
+     * @param path the file
+     * @param position the start of the region
+     * @param maxLength the maximum size of the region
+     * @throws IOException if the file cannot be read
+     */
+    public BodyFileRegion(Path path, long position, int maxLength) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.length = (int) Math.max(0, Math.min(maxLength, channel.size() - position));
+        }
+        this.path = path;
+        this.position = position;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer piece = BufferPool.getInstance().acquire(Math.min(length, PIECE_LENGTH));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long next = position;
+            long end = position + length;
+            while (next < end) {
+                piece.clear();
+                piece.limit((int) Math.min(piece.limit(), end - next));
+                readFully(channel, piece, next);
+                out.write(piece.array(), piece.arrayOffset(), piece.position());
+                next += piece.position();
+            }
+        } finally {
+            BufferPool.getInstance().release(piece);
+        }
+    }
+
+    @Override
+    public void writeTo(ByteBuffer target) throws IOException {
+        ByteBuffer region = target.duplicate();
+        region.limit(region.position() + length);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            readFully(channel, region, position);
+        }
+        target.position(region.position());
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                // the file shrank after the frame size was announced
+                throw new EOFException("Ficheiro alterado durante o envio: " + position);
+            }
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return length;
+    }
+
+    @Override
+    public BodyFormat getFormat() {
+        return BodyFormat.RAW;
+    }
+
+    @Override
+    public String toString() {
+        return path.getFileName() + "[" + position + "+" + length + "]";
+    }
+}
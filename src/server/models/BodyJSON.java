@@ -2,6 +2,9 @@ package server.models;
 
 import server.utils.JSONParser;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
@@ -93,6 +96,16 @@ public class BodyJSON extends Body {
         return BodyFormat.JSON;
     }
 
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void writeTo(ByteBuffer target) {
+        target.put(toString().getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Checks if the JSON body contains the given key.
      *
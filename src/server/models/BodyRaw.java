@@ -1,34 +1,185 @@
 package server.models;
 
+import server.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
 /**
  * Represents a raw binary body for a Request or Response.
+ * Bodies made with {@link #wrap} share the caller's array instead of copying
+ * it. A body read from a pooled frame adopts the frame, which goes back to
+ * the pool on {@link #release()} and may then be reused for another frame,
+ * so the body must not be used after it is released.
  */
 public class BodyRaw extends Body {
+    private static final byte[] EMPTY = new byte[0];
+
     private final byte[] data;
+    private final int offset;
+    private final int length;
+    private ByteBuffer pooled;
 
     /**
      * Creates an empty raw body.
      */
     public BodyRaw() {
-        this.data = new byte[0];
+        this(EMPTY, 0, 0);
     }
 
     /**
-     * Creates a raw body with binary data.
+     * Creates a raw body with a copy of binary data.
      *
      * @param data the binary data
      */
     public BodyRaw(byte[] data) {
-        this.data = data.clone();
+        this(data.clone(), 0, data.length);
+    }
+
+    private BodyRaw(byte[] data, int offset, int length) {
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Creates a raw body over a region of an array, without copying it.
+     * The caller must not change the region afterwards.
+     *
+     * @param data the array
+     * @param offset the start of the body
+     * @param length the size of the body
+     * @return a BodyRaw object
+     */
+    public static BodyRaw wrap(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException("Região inválida: " + offset + "+" + length);
+        }
+
+        return new BodyRaw(data, offset, length);
     }
 
     /**
-     * Returns the binary data.
+     * Creates a raw body over a whole array, without copying it.
+     * The caller must not change the array afterwards.
+     *
+     * @param data the array
+     * @return a BodyRaw object
+     */
+    public static BodyRaw wrap(byte[] data) {
+        return new BodyRaw(data, 0, data.length);
+    }
+
+    /**
+     * Returns a copy of the binary data.
      *
      * @return the binary data
      */
     public byte[] toBytes() {
-        return data.clone();
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return copy;
+    }
+
+    /**
+     * Returns a read-only view of the binary data, positioned at its start.
+     *
+     * @return the view
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(data, offset, length);
+    }
+
+    @Override
+    public void writeTo(ByteBuffer target) {
+        target.put(data, offset, length);
+    }
+
+    /**
+     * Writes the binary data to a channel (e.g. a socket).
+     *
+     * @param channel the channel
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = asByteBuffer();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the binary data to a file at the given position, without
+     * moving the channel's own position.
+     *
+     * @param channel the file channel
+     * @param position the position in the file
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = asByteBuffer();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads a region of a file straight into a new body, without moving the
+     * channel's own position. Near the end of the file the body is shorter.
+     *
+     * @param channel the file channel
+     * @param position the position in the file
+     * @param maxLength the maximum number of bytes to read
+     * @return a BodyRaw object
+     * @throws IOException if an I/O error occurs
+     */
+    public static BodyRaw readFrom(FileChannel channel, long position, int maxLength) throws IOException {
+        int length = (int) Math.max(0, Math.min(maxLength, channel.size() - position));
+        ByteBuffer buffer = BufferPool.getInstance().acquire(length);
+        try {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            BufferPool.getInstance().release(buffer);
+            throw e;
+        }
+
+        BodyRaw body = new BodyRaw(buffer.array(), buffer.arrayOffset(), buffer.position());
+        body.adopt(buffer);
+        return body;
+    }
+
+    /**
+     * Makes the body responsible for the pooled buffer its data lives in,
+     * so the buffer goes back to the pool when the body is released.
+     *
+     * @param buffer the pooled buffer
+     */
+    void adopt(ByteBuffer buffer) {
+        if (pooled != null) {
+            throw new IllegalStateException("O corpo já tem um buffer do pool");
+        }
+        this.pooled = buffer;
+    }
+
+    @Override
+    public void release() {
+        if (pooled != null) {
+            BufferPool.getInstance().release(pooled);
+            pooled = null;
+        }
     }
 
     /**
@@ -48,7 +199,7 @@ public class BodyRaw extends Body {
      */
     @Override
     public int getSize() {
-        return data.length;
+        return length;
     }
 
     @Override
@@ -1,11 +1,13 @@
 package server.models;
 
 import server.exceptions.InvalidRequestException;
+import server.utils.BufferPool;
 import server.utils.JSONParser;
-import server.utils.NetworkUtils;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
@@ -21,6 +23,7 @@ public class Request {
     private final Body body;
     private final Map<String, String> headers;
     private User authenticatedUser;
+    private String connectionId;
 
     /**
      * Creates a new request.
@@ -191,6 +194,24 @@ public class Request {
         return authenticatedUser;
     }
 
+    /**
+     * Sets the ID of the connection the request arrived on.
+     *
+     * @param connectionId the connection ID
+     */
+    public void setConnectionId(String connectionId) {
+        this.connectionId = connectionId;
+    }
+
+    /**
+     * Gets the ID of the connection the request arrived on.
+     *
+     * @return the connection ID
+     */
+    public String getConnectionId() {
+        return connectionId;
+    }
+
     /**
      * Reads a request from the input stream.
      *
@@ -199,28 +220,102 @@ public class Request {
      * @throws IOException if an I/O error occurs
      */
     public static Request fromStream(DataInputStream in) throws IOException {
-        byte[] sizeBytes = new byte[RequestConstants.SIZE_LENGTH];
-        in.readFully(sizeBytes);
-        int size = NetworkUtils.byteArrayToInt(sizeBytes);
+        int size = in.readInt();
+        checkFrameSize(size);
+
+        ByteBuffer frame = BufferPool.getInstance().acquire(size);
+        try {
+            frame.putInt(size);
+            in.readFully(frame.array(), frame.arrayOffset() + RequestConstants.SIZE_LENGTH,
+                    size - RequestConstants.SIZE_LENGTH);
+            frame.position(0);
+        } catch (IOException e) {
+            BufferPool.getInstance().release(frame);
+            throw e;
+        }
+
+        return fromPooledBuffer(frame);
+    }
 
-        byte[] uuidBytes = new byte[RequestConstants.UUID_LENGTH];
-        in.readFully(uuidBytes);
-        String uuid = new String(uuidBytes, StandardCharsets.UTF_8).trim();
+    /**
+     * Reads a request from a frame taken from the {@link BufferPool}.
+     * A raw body keeps pointing into the frame, which then goes back to the
+     * pool with {@link #release()}; otherwise it is released right away.
+     *
+     * @param frame the frame, positioned at its size field
+     * @return the request
+     */
+    public static Request fromPooledBuffer(ByteBuffer frame) {
+        Request request;
+        try {
+            request = fromBuffer(frame);
+        } catch (RuntimeException e) {
+            BufferPool.getInstance().release(frame);
+            throw e;
+        }
 
-        byte[] formatBytes = new byte[RequestConstants.FORMAT_LENGTH];
-        in.readFully(formatBytes);
-        BodyFormat format = BodyFormat.fromString(new String(formatBytes, StandardCharsets.UTF_8).trim());
+        if (request.body instanceof BodyRaw) {
+            ((BodyRaw) request.body).adopt(frame);
+        } else {
+            BufferPool.getInstance().release(frame);
+        }
 
-        byte[] contentBytes = new byte[size - RequestConstants.HEADER_LENGTH];
-        in.readFully(contentBytes);
+        return request;
+    }
 
-        int separatorPos = findSeparatorPosition(contentBytes);
+    /**
+     * Reads a request from a buffer holding one complete frame, size field included.
+     * The buffer is consumed from its position to its limit.
+     *
+     * @param frame the frame
+     * @return the request
+     */
+    public static Request fromBuffer(ByteBuffer frame) {
+        if (!frame.hasArray()) {
+            byte[] copy = new byte[frame.remaining()];
+            frame.get(copy);
+            frame = ByteBuffer.wrap(copy);
+        }
+
+        boolean version2 = BinaryFrame.isVersion2(frame);
+        int size = frame.getInt();
+        checkFrameSize(size);
+        if (frame.remaining() != size - RequestConstants.SIZE_LENGTH) {
+            throw new InvalidRequestException("Tamanho inválido: " + size);
+        }
+
+        Request request = version2 ? fromBinaryFrame(frame) : fromTextFrame(frame, size);
+        frame.position(frame.limit());
+
+        return request;
+    }
+
+    /**
+     * Reads a version 1 (text) frame positioned after its size field.
+     */
+    private static Request fromTextFrame(ByteBuffer frame, int size) {
+        if (size < RequestConstants.HEADER_LENGTH) {
+            throw new InvalidRequestException("Tamanho inválido: " + size);
+        }
+
+        byte[] bytes = frame.array();
+        int offset = frame.arrayOffset() + frame.position();
+        int end = offset + frame.remaining();
+
+        String uuid = new String(bytes, offset, RequestConstants.UUID_LENGTH, StandardCharsets.UTF_8).trim();
+        offset += RequestConstants.UUID_LENGTH;
+
+        BodyFormat format = BodyFormat.fromString(
+                new String(bytes, offset, RequestConstants.FORMAT_LENGTH, StandardCharsets.UTF_8).trim());
+        offset += RequestConstants.FORMAT_LENGTH;
+
+        int separatorPos = findSeparatorPosition(bytes, offset, end);
         if (separatorPos == -1) {
             throw new InvalidRequestException("Formato inválido: separador não encontrado");
         }
 
         // Headers e a rota estão antes do separador
-        String headersAndRoute = new String(contentBytes, 0, separatorPos, StandardCharsets.UTF_8);
+        String headersAndRoute = new String(bytes, offset, separatorPos - offset, StandardCharsets.UTF_8);
         String[] lines = headersAndRoute.split("\n");
 
         // A ultima linha sem : é a rota
@@ -242,22 +337,44 @@ public class Request {
             }
         }
 
-        Body body;
+        int bodyStart = separatorPos + 2;
+        Body body = readBody(format, bytes, bodyStart, end - bodyStart);
+
+        return create(uuid, format, route, headers, body);
+    }
+
+    /**
+     * Reads a version 2 (binary) frame positioned after its size field.
+     */
+    private static Request fromBinaryFrame(ByteBuffer frame) {
+        try {
+            BodyFormat format = BinaryFrame.getFormat(frame);
+            String uuid = BinaryFrame.getId(frame);
+            String route = BinaryFrame.getRoute(frame);
+            Map<String, String> headers = BinaryFrame.getHeaders(frame);
+            Body body = readBody(format, frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+
+            return create(uuid, format, route, headers, body);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new InvalidRequestException("Frame inválido: " + e.getMessage());
+        }
+    }
+
+    private static Body readBody(BodyFormat format, byte[] bytes, int offset, int length) {
         // Extrai o corpo da requisição com base no formato
         if (format == BodyFormat.JSON) {
-            int bodyStart = separatorPos + 2;
-            String bodyJson = new String(contentBytes, bodyStart, contentBytes.length - bodyStart, StandardCharsets.UTF_8);
-            body = BodyJSON.fromMap(JSONParser.deserialize(bodyJson));
+            String bodyJson = new String(bytes, offset, length, StandardCharsets.UTF_8);
+            return BodyJSON.fromMap(JSONParser.deserialize(bodyJson));
         } else if (format == BodyFormat.RAW) {
-            int bodyStart = separatorPos + 2;
-            int bodyLength = contentBytes.length - bodyStart;
-            byte[] bodyData = new byte[bodyLength];
-            System.arraycopy(contentBytes, bodyStart, bodyData, 0, bodyLength);
-            body = new BodyRaw(bodyData);
-        } else {
-            throw new InvalidRequestException("Formato inválido: " + format);
+            // the body points into the frame and adopts it when the frame is pooled,
+            // so it must not be read after release()
+            return BodyRaw.wrap(bytes, offset, length);
         }
 
+        throw new InvalidRequestException("Formato inválido: " + format);
+    }
+
+    private static Request create(String uuid, BodyFormat format, String route, Map<String, String> headers, Body body) {
         Request request = new Request(uuid, format, route, body);
 
         // Adiciona os headers ao request
@@ -269,25 +386,132 @@ public class Request {
     }
 
     /**
-     * Converts the request to a byte array for transmission.
+     * Checks that a frame size read from the wire is acceptable.
+     *
+     * @param size the frame size, size field included
+     * @throws InvalidRequestException if the size is out of bounds
+     */
+    public static void checkFrameSize(int size) {
+        if (size < BinaryFrame.MIN_LENGTH || size > RequestConstants.MAX_FRAME_LENGTH) {
+            throw new InvalidRequestException("Tamanho inválido: " + size);
+        }
+    }
+
+    /**
+     * Gives back the pooled memory held by the request body. The body must
+     * not be used afterwards.
+     */
+    public void release() {
+        body.release();
+    }
+
+    /**
+     * Converts the request to a byte array for transmission, in version 1.
      *
      * @return Byte array representing the request
      */
     public byte[] toByteArray() {
-        byte[] bodyBytes;
+        return toByteArray(BinaryFrame.VERSION_1);
+    }
 
-        try {
-            if (format == BodyFormat.JSON) {
-                bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
-            } else if (format == BodyFormat.RAW) {
-                bodyBytes = ((BodyRaw) body).toBytes();
-            } else {
-                throw new InvalidRequestException("Formato inválido: " + format);
+    /**
+     * Converts the request to a byte array for transmission.
+     *
+     * @param version the protocol version agreed for the connection
+     * @return Byte array representing the request
+     */
+    public byte[] toByteArray(int version) {
+        ByteBuffer frame = encode(version);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        BufferPool.getInstance().release(frame);
+
+        return bytes;
+    }
+
+    /**
+     * Writes the request to a stream, in version 1.
+     *
+     * @param out the stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, BinaryFrame.VERSION_1);
+    }
+
+    /**
+     * Writes the request to a stream.
+     *
+     * @param out the stream
+     * @param version the protocol version agreed for the connection
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(OutputStream out, int version) throws IOException {
+        int bodySize = body.getSize();
+        if (bodySize <= RequestConstants.MAX_INLINE_BODY_LENGTH) {
+            // small frames go out in a single write
+            ByteBuffer frame = encode(version);
+            try {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            } finally {
+                BufferPool.getInstance().release(frame);
             }
-        } catch (ClassCastException e) {
+            return;
+        }
+
+        // the head and the body are written back to back, without a frame copy
+        ByteBuffer head = encodeHead(version, bodySize, 0);
+        try {
+            out.write(head.array(), head.arrayOffset(), head.position());
+        } finally {
+            BufferPool.getInstance().release(head);
+        }
+        body.writeTo(out);
+    }
+
+    /**
+     * Encodes the request into a buffer taken from the {@link BufferPool}.
+     * The caller must release the buffer once it has been sent.
+     *
+     * @param version the protocol version agreed for the connection
+     * @return the frame, positioned at its start
+     */
+    public ByteBuffer encode(int version) {
+        int bodySize = body.getSize();
+        ByteBuffer frame = encodeHead(version, bodySize, bodySize);
+        try {
+            body.writeTo(frame);
+        } catch (IOException | RuntimeException e) {
+            BufferPool.getInstance().release(frame);
+            throw new InvalidRequestException("Corpo inválido: " + e.getMessage());
+        }
+
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes everything before the body into a buffer taken from the
+     * {@link BufferPool}.
+     *
+     * @param version the protocol version agreed for the connection
+     * @param bodySize the size of the body that will follow
+     * @param room how many more bytes the buffer must hold after the head
+     * @return the buffer, positioned after the head
+     */
+    private ByteBuffer encodeHead(int version, int bodySize, int room) {
+        if (body.getFormat() != format) {
             throw new InvalidRequestException("Corpo inválido: " + body);
         }
 
+        if (version == BinaryFrame.VERSION_2) {
+            try {
+                return BinaryFrame.encodeRequestHead(uuid, format, route, headers, bodySize, room);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidRequestException("Request inválido: " + e.getMessage());
+            }
+        }
+
         // Cria uma string com os headers
         StringBuilder headersBuilder = new StringBuilder();
         for (Map.Entry<String, String> entry : headers.entrySet()) {
@@ -299,26 +523,28 @@ public class Request {
 
         String routePart = headersBuilder.toString() + route + "\n\n";
         byte[] routeBytes = routePart.getBytes(StandardCharsets.UTF_8);
+        int headSize = RequestConstants.HEADER_LENGTH + routeBytes.length;
 
-        ByteBuffer buffer = ByteBuffer.allocate(this.getSize());
-        buffer.putInt(this.getSize()); // Size
+        ByteBuffer buffer = BufferPool.getInstance().acquire(headSize + room);
+        buffer.putInt(headSize + bodySize); // Size
         buffer.put(uuid.getBytes(StandardCharsets.UTF_8)); // UUID
         buffer.put(format.toString().getBytes(StandardCharsets.UTF_8)); // Format
         buffer.put(routeBytes); // Headers + Route com separadores
-        buffer.put(bodyBytes); // Body
 
-        return buffer.array();
+        return buffer;
     }
 
     /**
      * Find the position of the separator "\n\n" in a byte array.
      *
      * @param bytes the byte array
+     * @param from the first index to search
+     * @param to the index after the last byte to search
      * @return the position of the separator, or -1 if not found
      */
-    private static int findSeparatorPosition(byte[] bytes) {
+    private static int findSeparatorPosition(byte[] bytes, int from, int to) {
         // Look for "\n\n" sequence
-        for (int i = 0; i < bytes.length - 1; i++) {
+        for (int i = from; i < to - 1; i++) {
             if (bytes[i] == '\n' && bytes[i+1] == '\n') {
                 return i;
             }
@@ -333,7 +559,17 @@ public class Request {
      * @return true if valid, false otherwise
      */
     private boolean isValidHeader(String s) {
-        return s.matches("^[a-zA-Z0-9-]+$");
+        // same as s.matches("[a-zA-Z0-9-]+"), without compiling a pattern for every header
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -7,4 +7,10 @@ public class RequestConstants {
 
     // Header size: size + uuid + format
     public static final int HEADER_LENGTH = SIZE_LENGTH + UUID_LENGTH + FORMAT_LENGTH;
+
+    // Largest frame accepted from the wire: a 64 KB chunk plus headers fits with plenty of room
+    public static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+
+    // Bodies up to one TLS record are sent in the same write as the frame head
+    public static final int MAX_INLINE_BODY_LENGTH = 16 * 1024;
 }
\ No newline at end of file
@@ -1,14 +1,16 @@
 package server.models;
 
 import server.exceptions.InvalidResponseException;
+import server.utils.BufferPool;
 import server.utils.JSONParser;
 import server.utils.NetworkUtils;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -195,33 +197,88 @@ public class Response {
     public static Response fromStream(DataInputStream in) throws IOException {
         // Read size (first 4 bytes)
         int size = in.readInt();
+        if (size < BinaryFrame.MIN_LENGTH || size > RequestConstants.MAX_FRAME_LENGTH) {
+            throw new InvalidResponseException("Tamanho inválido: " + size);
+        }
+
+        ByteBuffer frame = BufferPool.getInstance().acquire(size);
+        Response response;
+        try {
+            frame.putInt(size);
+            in.readFully(frame.array(), frame.arrayOffset() + RequestConstants.SIZE_LENGTH,
+                    size - RequestConstants.SIZE_LENGTH);
+            frame.position(0);
+            response = fromBuffer(frame);
+        } catch (IOException | RuntimeException e) {
+            BufferPool.getInstance().release(frame);
+            throw e;
+        }
+
+        // A raw body keeps pointing into the frame until it is released
+        if (response.body instanceof BodyRaw) {
+            ((BodyRaw) response.body).adopt(frame);
+        } else {
+            BufferPool.getInstance().release(frame);
+        }
+
+        return response;
+    }
+
+    /**
+     * Reads a response from a buffer holding one complete frame, in either
+     * protocol version.
+     *
+     * @param frame the frame, positioned at its size field
+     * @return the response
+     */
+    public static Response fromBuffer(ByteBuffer frame) {
+        boolean version2 = BinaryFrame.isVersion2(frame);
+        int size = frame.getInt();
+        if (frame.remaining() != size - RequestConstants.SIZE_LENGTH) {
+            throw new InvalidResponseException("Tamanho inválido: " + size);
+        }
+
+        if (version2) {
+            try {
+                BodyFormat format = BinaryFrame.getFormat(frame);
+                String uuid = BinaryFrame.getId(frame);
+                StatusCode status = StatusCode.fromCode(frame.getShort() & 0xFFFF);
+                Map<String, String> headers = BinaryFrame.getHeaders(frame);
+
+                return create(uuid, status, format, headers,
+                        frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new InvalidResponseException("Frame inválido: " + e.getMessage());
+            }
+        }
+
+        int headerSize = RequestConstants.SIZE_LENGTH + RequestConstants.UUID_LENGTH + RequestConstants.FORMAT_LENGTH;
+        if (size < headerSize) {
+            throw new InvalidResponseException("Tamanho inválido: " + size);
+        }
+
+        byte[] bytes = frame.array();
+        int offset = frame.arrayOffset() + frame.position();
 
         // Read uuid (36 bytes)
-        byte[] uuidBytes = new byte[RequestConstants.UUID_LENGTH];
-        in.readFully(uuidBytes);
-        String uuid = new String(uuidBytes, StandardCharsets.UTF_8);
+        String uuid = new String(bytes, offset, RequestConstants.UUID_LENGTH, StandardCharsets.UTF_8);
+        offset += RequestConstants.UUID_LENGTH;
 
         // Read format
-        byte[] formatBytes = new byte[RequestConstants.FORMAT_LENGTH];
-        in.readFully(formatBytes);
-        String formatStr = new String(formatBytes, StandardCharsets.UTF_8);
+        String formatStr = new String(bytes, offset, RequestConstants.FORMAT_LENGTH, StandardCharsets.UTF_8);
         BodyFormat format = BodyFormat.fromString(formatStr);
+        offset += RequestConstants.FORMAT_LENGTH;
 
-        // Calculate body content size
-        int headerSize = 4 + RequestConstants.UUID_LENGTH + RequestConstants.FORMAT_LENGTH;
-        int contentSize = size - headerSize;
-
-        // Read the content (headers, status and body)
-        byte[] contentBytes = new byte[contentSize];
-        in.readFully(contentBytes);
+        // The content (headers, status and body)
+        int end = offset + size - headerSize;
 
-        int separatorPos = findSeparatorPosition(contentBytes);
+        int separatorPos = findSeparatorPosition(bytes, offset, end);
         if (separatorPos == -1) {
             throw new InvalidResponseException("Formato inválido: separador não encontrado");
         }
 
         // Headers and status are before the separator
-        String headersAndStatus = new String(contentBytes, 0, separatorPos, StandardCharsets.UTF_8);
+        String headersAndStatus = new String(bytes, offset, separatorPos - offset, StandardCharsets.UTF_8);
         String[] lines = headersAndStatus.split("\n");
 
         // The last line without a colon is the status
@@ -244,18 +301,22 @@ public class Response {
         }
 
         StatusCode status = StatusCode.fromCode(Integer.parseInt(statusStr));
+        int bodyStart = separatorPos + 2;
+
+        return create(uuid, status, format, headers, bytes, bodyStart, end - bodyStart);
+    }
 
+    private static Response create(String uuid, StatusCode status, BodyFormat format, Map<String, String> headers,
+                                   byte[] bytes, int bodyStart, int bodyLength) {
         // Extract body based on format
         Body body;
-        int bodyStart = separatorPos + 2;
         if (format == BodyFormat.JSON) {
-            String bodyJson = new String(contentBytes, bodyStart, contentBytes.length - bodyStart, StandardCharsets.UTF_8);
+            String bodyJson = new String(bytes, bodyStart, bodyLength, StandardCharsets.UTF_8);
             body = BodyJSON.fromMap(JSONParser.deserialize(bodyJson));
         } else if (format == BodyFormat.RAW) {
-            int bodyLength = contentBytes.length - bodyStart;
-            byte[] bodyData = new byte[bodyLength];
-            System.arraycopy(contentBytes, bodyStart, bodyData, 0, bodyLength);
-            body = new BodyRaw(bodyData);
+            // the body points into the frame and adopts it when the frame is pooled,
+            // so it must not be read after release()
+            body = BodyRaw.wrap(bytes, bodyStart, bodyLength);
         } else {
             throw new InvalidResponseException("Formato inválido: " + format);
         }
@@ -271,14 +332,16 @@ public class Response {
     }
 
     /**
-     * Find the position of the separator "\n\n" in a byte array.
+     * Find the position of the separator "\n\n" in a region of a byte array.
      *
      * @param bytes the byte array
+     * @param from the start of the region
+     * @param to the end of the region (exclusive)
      * @return the position of the separator, or -1 if not found
      */
-    private static int findSeparatorPosition(byte[] bytes) {
+    private static int findSeparatorPosition(byte[] bytes, int from, int to) {
         // Look for "\n\n" sequence
-        for (int i = 0; i < bytes.length - 1; i++) {
+        for (int i = from; i < to - 1; i++) {
             if (bytes[i] == '\n' && bytes[i+1] == '\n') {
                 return i;
             }
@@ -293,29 +356,134 @@ public class Response {
      * @return true if valid, false otherwise
      */
     private boolean isValidHeader(String s) {
-        return s.matches("^[a-zA-Z0-9-]+$");
+        // same as s.matches("[a-zA-Z0-9-]+"), without compiling a pattern for every header
+        if (s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-')) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Converts the response to a byte array for transmission.
+     * Gives back the pooled memory held by the response body. The body must
+     * not be used afterwards.
+     */
+    public void release() {
+        body.release();
+    }
+
+    /**
+     * Converts the response to a byte array for transmission, in version 1.
      *
      * @return Byte array representing the response
      */
     public byte[] toByteArray() {
-        byte[] bodyBytes;
+        return toByteArray(BinaryFrame.VERSION_1);
+    }
 
-        try {
-            if (format == BodyFormat.JSON) {
-                bodyBytes = body.toString().getBytes(StandardCharsets.UTF_8);
-            } else if (format == BodyFormat.RAW) {
-                bodyBytes = ((BodyRaw) body).toBytes();
-            } else {
-                throw new InvalidResponseException("Formato inválido: " + format);
+    /**
+     * Converts the response to a byte array for transmission.
+     *
+     * @param version the protocol version agreed for the connection
+     * @return Byte array representing the response
+     */
+    public byte[] toByteArray(int version) {
+        ByteBuffer frame = encode(version);
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        BufferPool.getInstance().release(frame);
+
+        return bytes;
+    }
+
+    /**
+     * Writes the response to a stream, in version 1.
+     *
+     * @param out the stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(out, BinaryFrame.VERSION_1);
+    }
+
+    /**
+     * Writes the response to a stream.
+     *
+     * @param out the stream
+     * @param version the protocol version agreed for the connection
+     * @throws IOException if an I/O error occurs
+     */
+    public void writeTo(OutputStream out, int version) throws IOException {
+        int bodySize = body.getSize();
+        if (bodySize <= RequestConstants.MAX_INLINE_BODY_LENGTH) {
+            // small frames go out in a single write
+            ByteBuffer frame = encode(version);
+            try {
+                out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            } finally {
+                BufferPool.getInstance().release(frame);
             }
-        } catch (ClassCastException e) {
+            return;
+        }
+
+        // the head and the body are written back to back, without a frame copy
+        ByteBuffer head = encodeHead(version, bodySize, 0);
+        try {
+            out.write(head.array(), head.arrayOffset(), head.position());
+        } finally {
+            BufferPool.getInstance().release(head);
+        }
+        body.writeTo(out);
+    }
+
+    /**
+     * Encodes the response into a buffer taken from the {@link BufferPool}.
+     * The caller must release the buffer once it has been sent.
+     *
+     * @param version the protocol version agreed for the connection
+     * @return the frame, positioned at its start
+     */
+    public ByteBuffer encode(int version) {
+        int bodySize = body.getSize();
+        ByteBuffer frame = encodeHead(version, bodySize, bodySize);
+        try {
+            body.writeTo(frame);
+        } catch (IOException | RuntimeException e) {
+            BufferPool.getInstance().release(frame);
+            throw new InvalidResponseException("Corpo inválido: " + e.getMessage());
+        }
+
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Encodes everything before the body into a buffer taken from the
+     * {@link BufferPool}.
+     *
+     * @param version the protocol version agreed for the connection
+     * @param bodySize the size of the body that will follow
+     * @param room how many more bytes the buffer must hold after the head
+     * @return the buffer, positioned after the head
+     */
+    private ByteBuffer encodeHead(int version, int bodySize, int room) {
+        if (body.getFormat() != format) {
             throw new InvalidResponseException("Corpo inválido: " + body);
         }
 
+        if (version == BinaryFrame.VERSION_2) {
+            try {
+                return BinaryFrame.encodeResponseHead(uuid, format, status, headers, bodySize, room);
+            } catch (IllegalArgumentException e) {
+                throw new InvalidResponseException("Resposta inválida: " + e.getMessage());
+            }
+        }
+
         // Create a string with the headers
         StringBuilder headersBuilder = new StringBuilder();
         for (Map.Entry<String, String> entry : headers.entrySet()) {
@@ -327,15 +495,15 @@ public class Response {
 
         String statusPart = headersBuilder.toString() + status.getCode() + "\n\n";
         byte[] statusBytes = statusPart.getBytes(StandardCharsets.UTF_8);
+        int headSize = RequestConstants.HEADER_LENGTH + statusBytes.length;
 
-        ByteBuffer buffer = ByteBuffer.allocate(getSize());
-        buffer.putInt(getSize()); // Size
+        ByteBuffer buffer = BufferPool.getInstance().acquire(headSize + room);
+        buffer.putInt(headSize + bodySize); // Size
         buffer.put(uuid.getBytes(StandardCharsets.UTF_8)); // UUID
         buffer.put(format.toString().getBytes(StandardCharsets.UTF_8)); // Format
         buffer.put(statusBytes); // Headers + Status with separators
-        buffer.put(bodyBytes); // Body
 
-        return buffer.array();
+        return buffer;
     }
 
     @Override
@@ -13,7 +13,8 @@ public enum StatusCode {
     OK(603),
     NOPERM(604),
     NOWS(605),
-    NOUSER(606)
+    NOUSER(606),
+    BUSY(607)
 
     ;
 
@@ -1,21 +1,67 @@
 package server.models;
 
 public class User {
+    /** Algorithm of the records written before the cost was stored. */
+    public static final String LEGACY_ALGORITHM = "PBKDF2WithHmacSHA256";
+    /** Iteration count of the records written before the cost was stored. */
+    public static final int LEGACY_ITERATIONS = 10000;
+
     private final String userId;
     private final String hash;
     private final String salt;
+    private final String algorithm;
+    private final int iterations;
 
     /**
-     * Create a new user.
+     * Create a new user hashed with the cost used before it was stored.
      *
      * @param userId the user ID
      * @param hash the user password+salt hash
      * @param salt the user password salt
      */
     public User(String userId, String hash, String salt) {
+        this(userId, hash, salt, LEGACY_ALGORITHM, LEGACY_ITERATIONS);
+    }
+
+    /**
+     * Create a new user.
+     *
+     * @param userId the user ID
+     * @param hash the user password+salt hash
+     * @param salt the user password salt
+     * @param algorithm the key derivation algorithm of the hash
+     * @param iterations the iteration count of the hash
+     */
+    public User(String userId, String hash, String salt, String algorithm, int iterations) {
         this.userId = userId;
         this.hash = hash;
         this.salt = salt;
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Parse a line of users.txt, either "userId:hash:salt" as written before
+     * the cost was stored or "userId:hash:salt:algorithm:iterations".
+     *
+     * @param line the line
+     * @return the user, or null if the line is malformed
+     */
+    public static User fromRecord(String line) {
+        String[] parts = line.split(":");
+        if (parts.length == 3) {
+            return new User(parts[0], parts[1], parts[2]);
+        }
+        if (parts.length != 5) {
+            return null;
+        }
+
+        try {
+            int iterations = Integer.parseInt(parts[4]);
+            return iterations > 0 ? new User(parts[0], parts[1], parts[2], parts[3], iterations) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     /**
@@ -45,8 +91,26 @@ public class User {
         return salt;
     }
 
+    /**
+     * Get the key derivation algorithm of the password hash.
+     *
+     * @return the algorithm, e.g. PBKDF2WithHmacSHA256
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Get the iteration count of the password hash.
+     *
+     * @return the iteration count
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
     @Override
     public String toString() {
-        return userId + ":" + hash + ":" + salt;
+        return userId + ":" + hash + ":" + salt + ":" + algorithm + ":" + iterations;
     }
 }
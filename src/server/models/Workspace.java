@@ -1,26 +1,42 @@
 package server.models;
 
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
- * Represents a workspace.
+ * Represents a workspace. Instances are never changed after creation;
+ * adding a member produces a new workspace.
  */
 public class Workspace {
     private final String id;
     private final String ownerUsername;
-    private final List<String> members;
+    private final Set<String> members;
 
     /**
      * Create a new workspace.
      *
      * @param id the id of the workspace
      * @param ownerUsername the username of the owner
-     * @param members the list of members
+     * @param members the members, in the order they joined
      */
-    public Workspace(String id, String ownerUsername, List<String> members) {
+    public Workspace(String id, String ownerUsername, Collection<String> members) {
         this.id = id;
         this.ownerUsername = ownerUsername;
-        this.members = members;
+        this.members = Collections.unmodifiableSet(new LinkedHashSet<>(members));
+    }
+
+    /**
+     * Create a copy of this workspace with one more member.
+     *
+     * @param username the username of the new member
+     * @return the new workspace
+     */
+    public Workspace withMember(String username) {
+        Set<String> newMembers = new LinkedHashSet<>(members);
+        newMembers.add(username);
+        return new Workspace(id, ownerUsername, newMembers);
     }
 
     /**
@@ -42,11 +58,23 @@ public class Workspace {
     }
 
     /**
-     * Get the list of members.
+     * Create a copy of this workspace without one member.
+     *
+     * @param username the username of the member leaving
+     * @return the new workspace
+     */
+    public Workspace withoutMember(String username) {
+        Set<String> newMembers = new LinkedHashSet<>(members);
+        newMembers.remove(username);
+        return new Workspace(id, ownerUsername, newMembers);
+    }
+
+    /**
+     * Get the members, in the order they joined.
      *
-     * @return the list of members
+     * @return the members
      */
-    public List<String> getMembers() {
+    public Set<String> getMembers() {
         return members;
     }
 
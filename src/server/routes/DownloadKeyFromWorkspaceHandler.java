@@ -5,14 +5,13 @@ import server.models.*;
 import server.utils.NetworkUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class DownloadKeyFromWorkspaceHandler implements RouteHandler{
-    private static final Map<String, FileDownloadSession> downloadSessions = new HashMap<>();
+    private static final Map<String, FileDownloadSession> downloadSessions = new ConcurrentHashMap<>();
     private static final int CHUNK_SIZE = 1024 * 64; //64 KB
 
     @Override
@@ -97,7 +96,8 @@ public class DownloadKeyFromWorkspaceHandler implements RouteHandler{
         int totalChunks = (int) Math.ceil((double) file.length() / chunkSize);
         initBody.put("chunks", String.valueOf(totalChunks));
 
-        FileDownloadSession session = new FileDownloadSession(fileId, filename, file.length(), file.getPath(), user.getUserId(), workspaceId);
+        FileDownloadSession session = new FileDownloadSession(fileId, filename, file.length(), file.getPath(), user.getUserId(), workspaceId,
+                request.getConnectionId());
         downloadSessions.put(fileId, session);
 
         return new Response(
@@ -140,25 +140,20 @@ public class DownloadKeyFromWorkspaceHandler implements RouteHandler{
 
         // Step 2: Send file chunks
         File file = new File(session.filePath);
-        try (FileInputStream fileIn = new FileInputStream(file)) {
-            byte[] buffer = new byte[CHUNK_SIZE];
-
+        try {
             // 1. Get the file
             // 2. Get the right chunk to send to the client (chunkId * CHUNK_SIZE), starting from 0
             // 3. Send the chunk to the client
 
             long offset = (long) chunkId * CHUNK_SIZE;
-            fileIn.skip(offset);
-            int bytesRead = fileIn.read(buffer);
-            byte[] chunkData = new byte[bytesRead];
-            System.arraycopy(buffer, 0, chunkData, 0, bytesRead);
+            // read from the file only while the response is written
+            BodyFileRegion chunkBody = new BodyFileRegion(file.toPath(), offset, CHUNK_SIZE);
 
             int totalChunks = (int) Math.ceil((double) file.length() / CHUNK_SIZE);
             session.nextExpectedChunk++;
             if (session.nextExpectedChunk == totalChunks) {
                 session.isComplete = true;
             }
-            BodyRaw chunkBody = new BodyRaw(chunkData);
             Response chunkResponse = new Response(
                     request.getUUID(),
                     StatusCode.OK,
@@ -214,6 +209,15 @@ public class DownloadKeyFromWorkspaceHandler implements RouteHandler{
 
 
 
+    /**
+     * Releases the download sessions of a connection that has closed.
+     *
+     * @param connectionId the connection ID
+     */
+    public static void releaseSessions(String connectionId) {
+        downloadSessions.values().removeIf(session -> connectionId.equals(session.connectionId));
+    }
+
     /**
      * Represents a file upload session.
      */
@@ -227,6 +231,7 @@ public class DownloadKeyFromWorkspaceHandler implements RouteHandler{
         private boolean isComplete = false;
         private String ownerUserId = null;
         private String workspaceId = null;
+        private final String connectionId;
 
         public FileDownloadSession(
                 String fileId,
@@ -234,7 +239,8 @@ public class DownloadKeyFromWorkspaceHandler implements RouteHandler{
                 long totalSize,
                 String filePath,
                 String ownerUserId,
-                String workspaceId
+                String workspaceId,
+                String connectionId
         ) {
             this.fileId = fileId;
             this.fileName = fileName;
@@ -242,6 +248,7 @@ public class DownloadKeyFromWorkspaceHandler implements RouteHandler{
             this.filePath = filePath;
             this.ownerUserId = ownerUserId;
             this.workspaceId = workspaceId;
+            this.connectionId = connectionId;
 
         }
 
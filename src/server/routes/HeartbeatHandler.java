@@ -0,0 +1,16 @@
+package server.routes;
+
+import server.models.*;
+
+public class HeartbeatHandler implements RouteHandler {
+
+    @Override
+    public Response handle(Request request) {
+        return new Response(
+                request.getUUID(),
+                StatusCode.OK,
+                BodyFormat.JSON,
+                new BodyJSON()
+        );
+    }
+}
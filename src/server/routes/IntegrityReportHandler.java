@@ -0,0 +1,44 @@
+package server.routes;
+
+import server.IntegrityScrubber;
+import server.WorkspaceManager;
+import server.models.*;
+import server.utils.NetworkUtils;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+public class IntegrityReportHandler implements RouteHandler {
+
+    @Override
+    public Response handle(Request request) {
+        try {
+            User user = request.getAuthenticatedUser();
+            Set<String> workspaceIds = new HashSet<>(Arrays.asList(
+                    WorkspaceManager.getInstance().listWorkspaces(user.getUserId())));
+
+            // only the problems of workspaces the user can see are reported
+            IntegrityScrubber scrubber = IntegrityScrubber.getInstance();
+            Instant lastPass = scrubber.getLastPass();
+
+            BodyJSON responseBody = new BodyJSON();
+            responseBody.put("running", String.valueOf(scrubber.isRunning()));
+            responseBody.put("passes", String.valueOf(scrubber.getPasses()));
+            responseBody.put("lastPass", lastPass == null ? "-" : lastPass.toString());
+            responseBody.put("checkedFiles", String.valueOf(scrubber.getCheckedFiles()));
+            responseBody.put("checkedBytes", String.valueOf(scrubber.getCheckedBytes()));
+            responseBody.put("problems", scrubber.getProblems(workspaceIds).toString());
+
+            return new Response(
+                    request.getUUID(),
+                    StatusCode.OK,
+                    BodyFormat.JSON,
+                    responseBody
+            );
+        } catch (Exception e) {
+            return NetworkUtils.createErrorResponse(request, "Erro ao obter relatório de integridade: " + e.getMessage());
+        }
+    }
+}
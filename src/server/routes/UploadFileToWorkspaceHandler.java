@@ -1,6 +1,7 @@
 package server.routes;
 
 import client.ClientSecurityUtils;
+import server.PublicKeyRegistry;
 import server.WorkspaceManager;
 import server.models.*;
 import server.utils.InputUtils;
@@ -15,16 +16,16 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.PublicKey;
 import java.security.cert.Certificate;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 import server.utils.ServerSecurityUtils;
 
 public class UploadFileToWorkspaceHandler implements RouteHandler {
     private static final String TEMP_DIR = "data/temp_files";
-    private static final Map<String, FileUploadSession> uploadSessions = new HashMap<>();
+    private static final Map<String, FileUploadSession> uploadSessions = new ConcurrentHashMap<>();
 
     public UploadFileToWorkspaceHandler() {
         try {
@@ -134,7 +135,8 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
                 fileSize,
                 tempFilePath,
                 user.getUserId(),
-                workspaceId
+                workspaceId,
+                request.getConnectionId()
         );
         uploadSessions.put(fileId, session);
 
@@ -183,11 +185,10 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
 
         try {
             BodyRaw body = request.getBodyRaw();
-            byte[] data = body.toBytes();
 
-            session.file.seek(session.receivedBytes);
-            session.file.write(data);
-            session.receivedBytes += data.length;
+            // written from the request frame, no intermediate copy
+            body.writeTo(session.file.getChannel(), session.receivedBytes);
+            session.receivedBytes += body.getSize();
             session.nextExpectedChunk++;
 
             BodyJSON responseBody = new BodyJSON();
@@ -269,7 +270,8 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
                 fileSize,
                 tempFilePath,
                 user.getUserId(),
-                workspaceId
+                workspaceId,
+                request.getConnectionId()
         );
         uploadSessions.put(signatureFileId, session);
 
@@ -313,11 +315,10 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
 
         try {
             BodyRaw body = request.getBodyRaw();
-            byte[] data = body.toBytes();
 
-            signatureSession.file.seek(signatureSession.receivedBytes);
-            signatureSession.file.write(data);
-            signatureSession.receivedBytes += data.length;
+            // written from the request frame, no intermediate copy
+            body.writeTo(signatureSession.file.getChannel(), signatureSession.receivedBytes);
+            signatureSession.receivedBytes += body.getSize();
             signatureSession.nextExpectedChunk++;
 
             BodyJSON responseBody = new BodyJSON();
@@ -372,7 +373,7 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
             session.isComplete = true;
             signatureSession.isComplete = true;
 
-            PublicKey publicKey = ServerSecurityUtils.getUserPublicKeyFromTruststore(user.getUserId());
+            PublicKey publicKey = PublicKeyRegistry.getInstance().getPublicKey(user.getUserId());
             if (publicKey == null) {
                 return NetworkUtils.createErrorResponse(request, "Chave pública não encontrada");
             }
@@ -386,22 +387,18 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
             // move file and signature to workspace directory
             File file = new File(session.tempFilePath);
             File signatureFile = new File(signatureSession.tempFilePath);
-            String signatureFileName = signatureSession.fileName;
             String fileName = session.fileName;
 
             BodyJSON responseBody = new BodyJSON();
             responseBody.put("fileId", fileId);
             responseBody.put("status", "file uploaded");
 
-            boolean success = workspaceManager.uploadFile(user.getUserId(), session.workspaceId, file, fileName);
+            // the file and its signature are moved and indexed together
+            boolean success = workspaceManager.uploadSignedFile(user.getUserId(), session.workspaceId,
+                    file, fileName, signatureFile);
             if (!success) {
                 return NetworkUtils.createErrorResponse(request, "Erro ao mover ficheiro para o workspace");
             }
-            
-            boolean successSignature = workspaceManager.uploadFile(user.getUserId(), session.workspaceId, signatureFile, signatureFileName);
-            if (!successSignature) {
-                return NetworkUtils.createErrorResponse(request, "Erro ao mover ficheiro de assinatura para o workspace");
-            }
 
             uploadSessions.remove(fileId);
             uploadSessions.remove(signatureFileId);
@@ -417,6 +414,22 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
     }
 
 
+    /**
+     * Releases the upload sessions of a connection that has closed.
+     *
+     * @param connectionId the connection ID
+     */
+    public static void releaseSessions(String connectionId) {
+        uploadSessions.values().removeIf(session -> {
+            if (!connectionId.equals(session.connectionId)) {
+                return false;
+            }
+
+            session.discard();
+            return true;
+        });
+    }
+
     /**
      * Removes files that are not part of an active upload session. (Orphaned files)
      */
@@ -471,6 +484,7 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
         private boolean isComplete = false;
         private String ownerUserId = null;
         private String workspaceId = null;
+        private final String connectionId;
 
         public FileUploadSession(
                 String fileId,
@@ -478,7 +492,8 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
                 long totalSize,
                 String tempFilePath,
                 String ownerUserId,
-                String workspaceId
+                String workspaceId,
+                String connectionId
         ) {
             this.fileId = fileId;
             this.fileName = fileName;
@@ -486,6 +501,7 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
             this.tempFilePath = tempFilePath;
             this.ownerUserId = ownerUserId;
             this.workspaceId = workspaceId;
+            this.connectionId = connectionId;
 
             try {
                 this.file = new RandomAccessFile(tempFilePath, "rw");
@@ -494,6 +510,23 @@ public class UploadFileToWorkspaceHandler implements RouteHandler {
             }
         }
 
+        /**
+         * Closes the temporary file and deletes it.
+         */
+        private void discard() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("[FILE UPLOAD HANDLER] Erro ao fechar ficheiro temporário: " + e.getMessage());
+            }
+
+            try {
+                Files.deleteIfExists(Paths.get(tempFilePath));
+            } catch (IOException e) {
+                System.err.println("[FILE UPLOAD HANDLER] Erro ao remover ficheiro temporário: " + e.getMessage());
+            }
+        }
+
         /**
          * Checks if a user is the owner of the file upload session.
          *
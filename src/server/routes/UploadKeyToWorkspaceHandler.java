@@ -12,14 +12,14 @@ import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 public class UploadKeyToWorkspaceHandler implements RouteHandler {
     private static final String TEMP_DIR = "data/temp_files";
-    private static final Map<String, FileUploadSession> uploadSessions = new HashMap<>();
+    private static final Map<String, FileUploadSession> uploadSessions = new ConcurrentHashMap<>();
 
     public UploadKeyToWorkspaceHandler() {
         try {
@@ -118,7 +118,8 @@ public class UploadKeyToWorkspaceHandler implements RouteHandler {
                 fileSize,
                 tempFilePath,
                 user.getUserId(),
-                workspaceId
+                workspaceId,
+                request.getConnectionId()
         );
         uploadSessions.put(fileId, session);
 
@@ -167,11 +168,10 @@ public class UploadKeyToWorkspaceHandler implements RouteHandler {
 
         try {
             BodyRaw body = request.getBodyRaw();
-            byte[] data = body.toBytes();
 
-            session.file.seek(session.receivedBytes);
-            session.file.write(data);
-            session.receivedBytes += data.length;
+            // written from the request frame, no intermediate copy
+            body.writeTo(session.file.getChannel(), session.receivedBytes);
+            session.receivedBytes += body.getSize();
             session.nextExpectedChunk++;
 
             BodyJSON responseBody = new BodyJSON();
@@ -262,6 +262,22 @@ public class UploadKeyToWorkspaceHandler implements RouteHandler {
         }
     }
 
+    /**
+     * Releases the upload sessions of a connection that has closed.
+     *
+     * @param connectionId the connection ID
+     */
+    public static void releaseSessions(String connectionId) {
+        uploadSessions.values().removeIf(session -> {
+            if (!connectionId.equals(session.connectionId)) {
+                return false;
+            }
+
+            session.discard();
+            return true;
+        });
+    }
+
     /**
      * Removes files that are not part of an active upload session. (Orphaned files)
      */
@@ -315,6 +331,7 @@ public class UploadKeyToWorkspaceHandler implements RouteHandler {
         private boolean isComplete = false;
         private String ownerUserId = null;
         private String workspaceId = null;
+        private final String connectionId;
 
         public FileUploadSession(
                 String fileId,
@@ -322,7 +339,8 @@ public class UploadKeyToWorkspaceHandler implements RouteHandler {
                 long totalSize,
                 String tempFilePath,
                 String ownerUserId,
-                String workspaceId
+                String workspaceId,
+                String connectionId
         ) {
             this.fileId = fileId;
             this.fileName = fileName;
@@ -330,6 +348,7 @@ public class UploadKeyToWorkspaceHandler implements RouteHandler {
             this.tempFilePath = tempFilePath;
             this.ownerUserId = ownerUserId;
             this.workspaceId = workspaceId;
+            this.connectionId = connectionId;
 
             try {
                 this.file = new RandomAccessFile(tempFilePath, "rw");
@@ -338,6 +357,23 @@ public class UploadKeyToWorkspaceHandler implements RouteHandler {
             }
         }
 
+        /**
+         * Closes the temporary file and deletes it.
+         */
+        private void discard() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                System.err.println("[FILE UPLOAD HANDLER] Erro ao fechar ficheiro temporário: " + e.getMessage());
+            }
+
+            try {
+                Files.deleteIfExists(Paths.get(tempFilePath));
+            } catch (IOException e) {
+                System.err.println("[FILE UPLOAD HANDLER] Erro ao remover ficheiro temporário: " + e.getMessage());
+            }
+        }
+
         /**
          * Checks if a user is the owner of the file upload session.
          *
@@ -0,0 +1,283 @@
+package server.utils;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reusable buffers for frames and file chunks, so steady transfers stop
+ * producing garbage. Buffers come in power-of-two size classes from 1 KB
+ * to 1 MB; bigger requests are allocated normally and never pooled.
+ *
+ * A buffer taken with {@link #acquire(int)} must be handed back with
+ * {@link #release(ByteBuffer)} exactly once, and not used afterwards.
+ * A buffer released again while it is still in the pool is always refused,
+ * so it is never handed to two owners. With -Dmysharing.bufferPool.debug=true
+ * the pool also reports buffers that were garbage collected without being
+ * released, and buffers released twice after being dropped or taken again.
+ */
+public final class BufferPool {
+    private static final String DEBUG_PROPERTY = "mysharing.bufferPool.debug";
+    private static final int MIN_CLASS_SHIFT = 10; // 1 KB
+    private static final int MAX_CLASS_SHIFT = 20; // 1 MB
+    private static final int MAX_RETAINED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+    private static final int MIN_RETAINED_PER_CLASS = 4;
+    private static final int MAX_RETAINED_PER_CLASS = 64;
+
+    private static final boolean DEBUG = Boolean.getBoolean(DEBUG_PROPERTY);
+    private static final BufferPool HEAP = new BufferPool(false);
+    private static final BufferPool DIRECT = new BufferPool(true);
+
+    static {
+        if (DEBUG) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println(HEAP.getStats());
+                System.out.println(DIRECT.getStats());
+            }));
+        }
+    }
+
+    private final boolean direct;
+    private final SizeClass[] classes = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder doubleReleases = new LongAdder();
+
+    // Debug mode only
+    private final Map<Integer, List<Allocation>> outstanding = new HashMap<>();
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+    private BufferPool(boolean direct) {
+        this.direct = direct;
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+        }
+    }
+
+    /**
+     * Get the pool of heap buffers, used for frames and chunks.
+     *
+     * @return the heap pool
+     */
+    public static BufferPool getInstance() {
+        return HEAP;
+    }
+
+    /**
+     * Get the pool of direct buffers, used for socket I/O.
+     *
+     * @return the direct pool
+     */
+    public static BufferPool getDirectInstance() {
+        return DIRECT;
+    }
+
+    /**
+     * Take a buffer with room for at least the given size.
+     * It is positioned at 0 with its limit at the requested size; clear()
+     * or compact() may expose the rest of the size class.
+     *
+     * @param size the number of bytes needed
+     * @return the buffer
+     */
+    public ByteBuffer acquire(int size) {
+        SizeClass sizeClass = sizeClassFor(size);
+        if (sizeClass == null) {
+            unpooled.increment();
+            return allocate(size);
+        }
+
+        ByteBuffer buffer = sizeClass.take();
+        if (buffer != null) {
+            hits.increment();
+            buffer.clear();
+        } else {
+            misses.increment();
+            buffer = allocate(sizeClass.size);
+        }
+
+        if (DEBUG) {
+            track(buffer);
+        }
+
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. Buffers that do not belong to a size
+     * class are left to the garbage collector.
+     *
+     * @param buffer the buffer, may be null
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.isDirect() != direct) {
+            return;
+        }
+
+        SizeClass sizeClass = sizeClassFor(buffer.capacity());
+        if (sizeClass == null || sizeClass.size != buffer.capacity()) {
+            return;
+        }
+
+        if (DEBUG && !untrack(buffer)) {
+            new IllegalStateException("[BUFFER] Buffer libertado duas vezes ou não pertence ao pool")
+                    .printStackTrace();
+            return;
+        }
+
+        synchronized (sizeClass) {
+            // pooling it twice would hand the same buffer to two owners
+            if (sizeClass.pooled.contains(buffer)) {
+                doubleReleases.increment();
+                new IllegalStateException("[BUFFER] Buffer libertado duas vezes").printStackTrace();
+                return;
+            }
+
+            if (sizeClass.free.size() >= sizeClass.maxRetained) {
+                dropped.increment();
+                return;
+            }
+
+            sizeClass.free.addFirst(buffer);
+            sizeClass.pooled.add(buffer);
+        }
+    }
+
+    /**
+     * Get a one-line summary of the pool usage.
+     *
+     * @return the summary
+     */
+    public String getStats() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        long retainedBytes = 0;
+        for (SizeClass sizeClass : classes) {
+            synchronized (sizeClass) {
+                retainedBytes += (long) sizeClass.free.size() * sizeClass.size;
+            }
+        }
+
+        return "[BUFFER] " + (direct ? "direct" : "heap")
+                + ": pedidos=" + total
+                + " acertos=" + hitCount
+                + " (" + (total == 0 ? 0 : hitCount * 100 / total) + "%)"
+                + " fora do pool=" + unpooled.sum()
+                + " descartados=" + dropped.sum()
+                + " fugas=" + leaks.sum()
+                + " duplos=" + doubleReleases.sum()
+                + " retidos=" + retainedBytes / 1024 + "KB";
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private SizeClass sizeClassFor(int size) {
+        if (size > classes[classes.length - 1].size) {
+            return null;
+        }
+
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+        return classes[Math.max(0, shift - MIN_CLASS_SHIFT)];
+    }
+
+    private void track(ByteBuffer buffer) {
+        reportLeaks();
+
+        Allocation allocation = new Allocation(buffer, collected);
+        synchronized (outstanding) {
+            outstanding.computeIfAbsent(allocation.identity, k -> new ArrayList<>(1)).add(allocation);
+        }
+    }
+
+    private boolean untrack(ByteBuffer buffer) {
+        int identity = System.identityHashCode(buffer);
+        synchronized (outstanding) {
+            List<Allocation> allocations = outstanding.get(identity);
+            if (allocations == null) {
+                return false;
+            }
+
+            for (int i = 0; i < allocations.size(); i++) {
+                if (allocations.get(i).get() == buffer) {
+                    allocations.remove(i).clear();
+                    if (allocations.isEmpty()) {
+                        outstanding.remove(identity);
+                    }
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private void reportLeaks() {
+        Object reference;
+        while ((reference = collected.poll()) != null) {
+            Allocation allocation = (Allocation) reference;
+            boolean leaked;
+            synchronized (outstanding) {
+                List<Allocation> allocations = outstanding.get(allocation.identity);
+                leaked = allocations != null && allocations.remove(allocation);
+                if (allocations != null && allocations.isEmpty()) {
+                    outstanding.remove(allocation.identity);
+                }
+            }
+
+            if (leaked) {
+                leaks.increment();
+                System.err.println("[BUFFER] Buffer nunca libertado, obtido em:");
+                allocation.trace.printStackTrace();
+            }
+        }
+    }
+
+    private static class SizeClass {
+        private final int size;
+        private final int maxRetained;
+        // Both guarded by the size class; buffers compare by content, so the
+        // buffers in the pool are known by identity
+        private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+        private final Set<ByteBuffer> pooled = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        private SizeClass(int size) {
+            this.size = size;
+            this.maxRetained = Math.max(MIN_RETAINED_PER_CLASS,
+                    Math.min(MAX_RETAINED_PER_CLASS, MAX_RETAINED_BYTES_PER_CLASS / size));
+        }
+
+        private synchronized ByteBuffer take() {
+            ByteBuffer buffer = free.pollFirst();
+            if (buffer != null) {
+                pooled.remove(buffer);
+            }
+            return buffer;
+        }
+    }
+
+    private static class Allocation extends WeakReference<ByteBuffer> {
+        private final int identity;
+        private final Throwable trace = new Throwable();
+
+        private Allocation(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.identity = System.identityHashCode(buffer);
+        }
+    }
+}
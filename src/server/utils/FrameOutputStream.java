@@ -0,0 +1,167 @@
+package server.utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Socket output that gathers small writes into full TLS records.
+ * Bytes are only sent when the buffer fills or when the flush policy says
+ * so at the end of a frame, so a frame head and its body, or several
+ * pipelined frames, can share one record and one syscall.
+ */
+public class FrameOutputStream extends DataOutputStream {
+    // Largest TLS record payload, less the room SSLSocket keeps for the TLS 1.3
+    // record overhead: a full 16 KB write goes out as a record and a tiny one
+    public static final int DEFAULT_BUFFER_SIZE = 16 * 1024 - 64;
+    public static final int DEFAULT_BATCH_SIZE = 8;
+
+    /**
+     * When buffered frames are sent.
+     */
+    public enum FlushPolicy {
+        /** After every frame. */
+        FRAME,
+        /** When no other frame follows right away, or every batch of frames. */
+        BATCH,
+        /** Only when no other frame follows right away. */
+        IDLE;
+
+        /**
+         * Parse a policy name, case insensitive.
+         *
+         * @param value the name, may be null
+         * @param defaultPolicy the policy used if the name is missing or invalid
+         * @return the policy
+         */
+        public static FlushPolicy parse(String value, FlushPolicy defaultPolicy) {
+            if (value == null) {
+                return defaultPolicy;
+            }
+
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("[NETWORK] Política de flush inválida: " + value + ". A usar " + defaultPolicy);
+                return defaultPolicy;
+            }
+        }
+    }
+
+    private final FlushPolicy policy;
+    private final int batchSize;
+    private int framesSinceFlush = 0;
+
+    /**
+     * Create a new frame output stream.
+     *
+     * @param out the socket output
+     * @param policy when to send buffered frames
+     * @param bufferSize the buffer size, ideally one TLS record
+     * @param batchSize how many frames the BATCH policy keeps at most
+     */
+    public FrameOutputStream(OutputStream out, FlushPolicy policy, int bufferSize, int batchSize) {
+        super(new CoalescingStream(out, bufferSize));
+        this.policy = policy;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Mark the end of a frame and send buffered bytes if the policy asks for it.
+     *
+     * @param moreComing true if the caller knows another frame follows right away
+     * @throws IOException if an I/O error occurs
+     */
+    public void endFrame(boolean moreComing) throws IOException {
+        framesSinceFlush++;
+
+        boolean send;
+        switch (policy) {
+            case FRAME:
+                send = true;
+                break;
+            case BATCH:
+                send = !moreComing || framesSinceFlush >= batchSize;
+                break;
+            default:
+                send = !moreComing;
+                break;
+        }
+
+        if (send) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        framesSinceFlush = 0;
+        super.flush();
+    }
+
+    /**
+     * Fixed-size buffer in front of the socket. Writes that find the buffer
+     * empty and span whole buffers skip it.
+     */
+    private static class CoalescingStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer;
+        private int count = 0;
+
+        private CoalescingStream(OutputStream out, int bufferSize) {
+            this.out = out;
+            this.buffer = new byte[Math.max(512, bufferSize)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushBuffer();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count == 0 && len >= buffer.length) {
+                int direct = len - len % buffer.length;
+                out.write(b, off, direct);
+                off += direct;
+                len -= direct;
+            }
+
+            while (len > 0) {
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == buffer.length) {
+                    flushBuffer();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBuffer();
+            } finally {
+                out.close();
+            }
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                out.write(buffer, 0, count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package server.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wait and hold time histograms of a kind of lock, e.g. the file locks of
+ * all workspaces. Times go into power of two buckets of microseconds, so
+ * recording one costs a few additions and the percentiles are exact to a
+ * factor of two.
+ *
+ * Every instance is kept in a registry, and the reporter prints all of them
+ * to the log, so operators can see which locks are contended.
+ */
+public class LockStats {
+    private static final List<LockStats> REGISTRY = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService reporter;
+
+    private final String name;
+    private final Histogram waits = new Histogram();
+    private final Histogram holds = new Histogram();
+
+    private LockStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Create the statistics of a kind of lock and add them to the registry.
+     *
+     * @param name the name shown in reports
+     * @return the statistics
+     */
+    public static LockStats register(String name) {
+        LockStats stats = new LockStats(name);
+        REGISTRY.add(stats);
+        return stats;
+    }
+
+    /**
+     * Get the statistics of every kind of lock.
+     *
+     * @return the statistics, in registration order
+     */
+    public static List<LockStats> all() {
+        return new ArrayList<>(REGISTRY);
+    }
+
+    /**
+     * Print the statistics of every kind of lock used since the last report,
+     * periodically, on a daemon thread. Later calls do nothing.
+     *
+     * @param intervalSeconds the interval between reports
+     */
+    public synchronized static void startReporter(int intervalSeconds) {
+        if (reporter != null) {
+            return;
+        }
+
+        reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "lock-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<LockStats, Long> reported = new HashMap<>();
+        reporter.scheduleAtFixedRate(() -> {
+            for (LockStats stats : all()) {
+                long samples = stats.samples();
+                Long previous = reported.put(stats, samples);
+                if (previous == null ? samples > 0 : samples != previous) {
+                    System.out.println("[LOCKS] " + stats.summary());
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Record that a lock was acquired.
+     *
+     * @param waitStart System.nanoTime() before trying to acquire it
+     * @return System.nanoTime() now, to be passed to {@link #released(long)}
+     */
+    public long acquired(long waitStart) {
+        long now = System.nanoTime();
+        waits.record(now - waitStart);
+        return now;
+    }
+
+    /**
+     * Record that a lock was released.
+     *
+     * @param acquiredAt the value returned by {@link #acquired(long)}
+     */
+    public void released(long acquiredAt) {
+        holds.record(System.nanoTime() - acquiredAt);
+    }
+
+    /**
+     * Get the number of samples recorded, to tell if anything changed.
+     *
+     * @return the number of acquisitions
+     */
+    public long samples() {
+        return waits.count();
+    }
+
+    /**
+     * Describe the statistics in one line.
+     *
+     * @return the summary
+     */
+    public String summary() {
+        return name + ": " + waits.count() + " aquisições, espera " + waits.summary()
+                + ", posse " + holds.summary();
+    }
+
+    /**
+     * Histogram of durations in power of two buckets of microseconds.
+     */
+    private static final class Histogram {
+        private static final int BUCKETS = 40;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Bucket 0 holds durations under 1 µs and bucket i durations under 2^i µs.
+         */
+        private void record(long nanos) {
+            long micros = Math.max(0, nanos) / 1000;
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets[bucket].increment();
+            if (nanos > max.get()) {
+                max.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        private long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Get the upper bound of the bucket holding the given percentile.
+         */
+        private long percentileMicros(long[] counts, long total, double percentile) {
+            long rank = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (counts.length - 1);
+        }
+
+        private String summary() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            if (total == 0) {
+                return "-";
+            }
+
+            return "p50<" + percentileMicros(counts, total, 0.50) + "µs"
+                    + " p99<" + percentileMicros(counts, total, 0.99) + "µs"
+                    + " máx " + max.get() / 1000 + "µs";
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package server.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file mapped in memory as a run of fixed-size segments, so it can be
+ * larger than the 2 GB a single MappedByteBuffer can address. Positions are
+ * longs.
+ *
+ * Each segment also maps the first {@link #MAX_ITEM_SIZE} bytes of the next
+ * one, so a value that starts in a segment is read and written whole through
+ * that segment. The overlapping pages are shared with the next mapping, so
+ * both always see the same bytes.
+ */
+public final class MappedFile {
+    /** The largest value that can be read or written in one call. */
+    public static final int MAX_ITEM_SIZE = 4096;
+
+    private static final int SEGMENT_SHIFT = 30; // 1 GB
+
+    private final MappedByteBuffer[] segments;
+    private final int segmentShift;
+    private final long segmentMask;
+    private final long size;
+
+    private MappedFile(MappedByteBuffer[] segments, int segmentShift, long size) {
+        this.segments = segments;
+        this.segmentShift = segmentShift;
+        this.segmentMask = (1L << segmentShift) - 1;
+        this.size = size;
+    }
+
+    /**
+     * Map a file for reading and writing, growing it to the given size.
+     *
+     * @param channel the file, open for reading and writing
+     * @param size the size to map
+     * @return the mapping
+     * @throws IOException if the file cannot be mapped
+     */
+    public static MappedFile map(FileChannel channel, long size) throws IOException {
+        return map(channel, size, SEGMENT_SHIFT);
+    }
+
+    /**
+     * Map a file with segments of a given size, e.g. small ones in tests.
+     *
+     * @param channel the file, open for reading and writing
+     * @param size the size to map
+     * @param segmentShift the log2 of the segment size
+     * @return the mapping
+     * @throws IOException if the file cannot be mapped
+     */
+    static MappedFile map(FileChannel channel, long size, int segmentShift) throws IOException {
+        if ((1L << segmentShift) < MAX_ITEM_SIZE || (1L << segmentShift) + MAX_ITEM_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Tamanho de segmento inválido: " + segmentShift);
+        }
+
+        long segmentSize = 1L << segmentShift;
+        int count = (int) Math.max(1, (size + segmentSize - 1) >>> segmentShift);
+        MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i << segmentShift;
+            long length = Math.min(segmentSize + MAX_ITEM_SIZE, size - start);
+            segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+        }
+        return new MappedFile(segments, segmentShift, size);
+    }
+
+    /**
+     * Get the size of the mapping.
+     *
+     * @return the size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    public byte get(long position) {
+        return segment(position).get(offset(position));
+    }
+
+    public void put(long position, byte value) {
+        segment(position).put(offset(position), value);
+    }
+
+    public int getInt(long position) {
+        return segment(position).getInt(offset(position));
+    }
+
+    public void putInt(long position, int value) {
+        segment(position).putInt(offset(position), value);
+    }
+
+    public long getLong(long position) {
+        return segment(position).getLong(offset(position));
+    }
+
+    public void putLong(long position, long value) {
+        segment(position).putLong(offset(position), value);
+    }
+
+    /**
+     * Read bytes into an array, filling it.
+     *
+     * @param position the position of the first byte
+     * @param dst the array, at most {@link #MAX_ITEM_SIZE} long
+     */
+    public void get(long position, byte[] dst) {
+        view(position, dst.length).get(dst);
+    }
+
+    /**
+     * Write the bytes of an array.
+     *
+     * @param position the position of the first byte
+     * @param src the array, at most {@link #MAX_ITEM_SIZE} long
+     */
+    public void put(long position, byte[] src) {
+        view(position, src.length).put(src);
+    }
+
+    /**
+     * Write the changes to the storage device.
+     */
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private ByteBuffer view(long position, int length) {
+        if (length > MAX_ITEM_SIZE) {
+            throw new IllegalArgumentException("Valor demasiado grande: " + length);
+        }
+        ByteBuffer view = segment(position).duplicate();
+        view.position(offset(position));
+        return view;
+    }
+
+    private MappedByteBuffer segment(long position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Posição inválida: " + position);
+        }
+        return segments[(int) (position >>> segmentShift)];
+    }
+
+    private int offset(long position) {
+        return (int) (position & segmentMask);
+    }
+}
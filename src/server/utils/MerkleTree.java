@@ -0,0 +1,150 @@
+package server.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Binary hash tree stored in a region of a mapped file, laid out as an
+ * implicit heap: node 1 is the root and node i has children 2i and 2i + 1, so
+ * leaf j is node leafCount + j.
+ *
+ * The file is not trusted. Only the root kept by the caller is, so a leaf
+ * is checked by hashing it up to the root with the siblings on its path, in
+ * O(log n), and an update first checks the old path before writing the new one.
+ */
+public class MerkleTree {
+    public static final int HASH_LENGTH = 32;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final MappedFile nodes;
+    private final long offset;
+    private final int leafCount;
+
+    /**
+     * Create a tree over a region of a mapped file.
+     *
+     * @param nodes the mapped file
+     * @param offset the start of the region
+     * @param leafCount the number of leaves, a power of two
+     */
+    public MerkleTree(MappedFile nodes, long offset, int leafCount) {
+        if (Integer.bitCount(leafCount) != 1) {
+            throw new IllegalArgumentException("Número de folhas inválido: " + leafCount);
+        }
+        this.nodes = nodes;
+        this.offset = offset;
+        this.leafCount = leafCount;
+    }
+
+    /**
+     * Get the size of the region holding a tree.
+     *
+     * @param leafCount the number of leaves
+     * @return the size in bytes
+     */
+    public static long regionSize(int leafCount) {
+        return 2L * leafCount * HASH_LENGTH;
+    }
+
+    /**
+     * Fill the tree with equal leaves. Every node of a level is the same, so
+     * only one hash per level is computed.
+     *
+     * @param leaf the hash of every leaf
+     * @return the root
+     */
+    public byte[] fill(byte[] leaf) {
+        byte[] level = leaf;
+        for (int first = leafCount; first >= 1; first /= 2) {
+            for (int node = first; node < 2 * first; node++) {
+                write(node, level);
+            }
+            level = hash(level, level);
+        }
+        return read(1);
+    }
+
+    /**
+     * Get the root stored in the file. It must be checked against a trusted
+     * copy before being used.
+     *
+     * @return the stored root
+     */
+    public byte[] storedRoot() {
+        return read(1);
+    }
+
+    /**
+     * Check a leaf against the trusted root.
+     *
+     * @param leaf the leaf index
+     * @param leafHash the expected hash of the leaf
+     * @param trustedRoot the trusted root
+     * @return true if the path from the leaf leads to the root
+     */
+    public boolean verify(int leaf, byte[] leafHash, byte[] trustedRoot) {
+        return MessageDigest.isEqual(pathRoot(leaf, leafHash), trustedRoot);
+    }
+
+    /**
+     * Replace a leaf and the nodes above it, after checking the old leaf.
+     *
+     * @param leaf the leaf index
+     * @param oldHash the current hash of the leaf
+     * @param newHash the new hash of the leaf
+     * @param trustedRoot the trusted root
+     * @return the new root
+     * @throws SecurityException if the old path does not lead to the root
+     */
+    public byte[] update(int leaf, byte[] oldHash, byte[] newHash, byte[] trustedRoot) {
+        if (!verify(leaf, oldHash, trustedRoot)) {
+            throw new SecurityException("Caminho da árvore de hashes inválido na folha " + leaf);
+        }
+
+        int node = leafCount + leaf;
+        byte[] current = newHash;
+        write(node, current);
+        while (node > 1) {
+            byte[] sibling = read(node ^ 1);
+            current = (node & 1) == 0 ? hash(current, sibling) : hash(sibling, current);
+            node >>>= 1;
+            write(node, current);
+        }
+        return current;
+    }
+
+    private byte[] pathRoot(int leaf, byte[] leafHash) {
+        int node = leafCount + leaf;
+        byte[] current = leafHash;
+        while (node > 1) {
+            byte[] sibling = read(node ^ 1);
+            current = (node & 1) == 0 ? hash(current, sibling) : hash(sibling, current);
+            node >>>= 1;
+        }
+        return current;
+    }
+
+    private static byte[] hash(byte[] left, byte[] right) {
+        MessageDigest digest = DIGEST.get();
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    private byte[] read(int node) {
+        byte[] value = new byte[HASH_LENGTH];
+        nodes.get(offset + (long) node * HASH_LENGTH, value);
+        return value;
+    }
+
+    private void write(int node, byte[] value) {
+        nodes.put(offset + (long) node * HASH_LENGTH, value);
+    }
+}
@@ -2,7 +2,18 @@ package server.utils;
 
 import server.models.*;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
 public class NetworkUtils {
+    private static final long REQUEST_ID_PREFIX = new SecureRandom().nextLong();
+    private static final AtomicLong REQUEST_COUNTER = new AtomicLong();
+
     /**
      * Convert byte array to integer.
      *
@@ -29,12 +40,46 @@ public class NetworkUtils {
     }
 
     /**
-     * Generate a random UUID.
+     * Apply the socket and TLS record settings to a connection.
+     *
+     * @param socket the socket
+     * @param tcpNoDelay true to disable Nagle's algorithm
+     * @param tlsPacketSize the maximum TLS packet size, 0 to keep the default
+     * @throws SocketException if an option cannot be set
+     */
+    public static void configureSocket(SSLSocket socket, boolean tcpNoDelay, int tlsPacketSize) throws SocketException {
+        socket.setTcpNoDelay(tcpNoDelay);
+        if (tlsPacketSize > 0) {
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setMaximumPacketSize(tlsPacketSize);
+            socket.setSSLParameters(parameters);
+        }
+    }
+
+    /**
+     * Apply the TLS record settings to an SSL engine.
+     *
+     * @param engine the engine
+     * @param tlsPacketSize the maximum TLS packet size, 0 to keep the default
+     */
+    public static void configureEngine(SSLEngine engine, int tlsPacketSize) {
+        if (tlsPacketSize > 0) {
+            SSLParameters parameters = engine.getSSLParameters();
+            parameters.setMaximumPacketSize(tlsPacketSize);
+            engine.setSSLParameters(parameters);
+        }
+    }
+
+    /**
+     * Generate an ID to match a request with its response.
+     * A counter under a random per-process prefix is unique enough for that
+     * and much cheaper than a random UUID. It is still written in UUID form,
+     * so it fits both protocol versions.
      *
-     * @return the UUID
+     * @return the ID
      */
-    public static String randomUUID() {
-        return java.util.UUID.randomUUID().toString();
+    public static String newRequestId() {
+        return new UUID(REQUEST_ID_PREFIX, REQUEST_COUNTER.incrementAndGet()).toString();
     }
 
     /**
@@ -1,23 +1,29 @@
 package server.utils;
 
+import server.models.User;
+
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.*;
-import java.security.cert.Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Base64;
+import java.util.List;
 
 public class ServerSecurityUtils {
     private static final int SALT_LENGTH = 16;
     private static final int HASH_LENGTH = 256;
     public static final int DEFAULT_ITERATION_COUNT = 10000;
+    // Key derivation algorithms accepted for passwords, in the order of their codes in the user index
+    public static final List<String> PASSWORD_ALGORITHMS = List.of("PBKDF2WithHmacSHA256", "PBKDF2WithHmacSHA512");
     public static final String MAC_ALGORITHM = "HmacSHA256";
     public static final String TRUSTSTORE_PATH = "server_keys/server.truststore";
     public static final String TRUSTSTORE_PASS = "123456";
@@ -32,34 +38,49 @@ public class ServerSecurityUtils {
 
     public static SecretKey genSecretKey(String password, byte[] salt, int iterationCount)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return genSecretKey(User.LEGACY_ALGORITHM, password, salt, iterationCount);
+    }
+
+    public static SecretKey genSecretKey(String algorithm, String password, byte[] salt, int iterationCount)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
         PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterationCount, HASH_LENGTH);
-        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        SecretKeyFactory skf = SecretKeyFactory.getInstance(algorithm);
         return skf.generateSecret(spec);
     }
 
-    public static String genSecurePassword(String userId, String password)
+    /**
+     * Hash a password with a new salt.
+     *
+     * @param userId the user ID
+     * @param password the password
+     * @param algorithm the key derivation algorithm, one of PASSWORD_ALGORITHMS
+     * @param iterations the iteration count
+     * @return the user record
+     */
+    public static User genSecurePassword(String userId, String password, String algorithm, int iterations)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
         byte[] salt = genSalt();
-        SecretKey secretKey = genSecretKey(password, salt, DEFAULT_ITERATION_COUNT);
+        SecretKey secretKey = genSecretKey(algorithm, password, salt, iterations);
         String hashString = Base64.getEncoder().encodeToString(secretKey.getEncoded());
         String saltString = Base64.getEncoder().encodeToString(salt);
-        return userId + ":" + hashString + ":" + saltString;
+        return new User(userId, hashString, saltString, algorithm, iterations);
     }
 
-    public static boolean verifyPassword(String inputPassword, String storedUser)
+    /**
+     * Check a password against a user record, with the algorithm and
+     * iteration count stored in the record.
+     *
+     * @param inputPassword the password
+     * @param storedUser the user record
+     * @return true if the password matches
+     */
+    public static boolean verifyPassword(String inputPassword, User storedUser)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
-        String[] parts = storedUser.split(":");
-        if (parts.length != 3) {
-            throw new IllegalArgumentException("Password tem que ter formato: userId:hash:salt");
-        }
+        byte[] storedHash = Base64.getDecoder().decode(storedUser.getHash());
+        byte[] salt = Base64.getDecoder().decode(storedUser.getSalt());
 
-        String storedHashB64 = parts[1];
-        String saltB64 = parts[2];
-
-        byte[] storedHash = Base64.getDecoder().decode(storedHashB64);
-        byte[] salt = Base64.getDecoder().decode(saltB64);
-
-        SecretKey secretKey = genSecretKey(inputPassword, salt, DEFAULT_ITERATION_COUNT);
+        SecretKey secretKey = genSecretKey(storedUser.getAlgorithm(), inputPassword, salt,
+                storedUser.getIterations());
         byte[] inputHash = secretKey.getEncoded();
         return MessageDigest.isEqual(inputHash, storedHash);
     }
@@ -76,8 +97,16 @@ public class ServerSecurityUtils {
         return MessageDigest.isEqual(expectedMac, actualMac);
     }
 
+    /**
+     * Write a MAC file atomically, so a crash never leaves it half written.
+     *
+     * @param filePath the MAC file
+     * @param mac the MAC
+     */
     public static void writeMacOnMacFile(Path filePath, byte[] mac) throws Exception {
-        Files.write(filePath, Base64.getEncoder().encode(mac));
+        Path temp = filePath.resolveSibling(filePath.getFileName() + ".part");
+        Files.write(temp, Base64.getEncoder().encode(mac));
+        Files.move(temp, filePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     public static byte[] readMacFromMacFile(Path filePath) throws Exception {
@@ -109,33 +138,57 @@ public class ServerSecurityUtils {
     }
 
     /**
-     * Retrieves the public key for a given user alias from the server truststore.
+     * Compute the MAC of a file chained line by line: the MAC of each line
+     * covers the MAC of the line before it and the line, starting from the
+     * MAC of nothing. Appending a line then only needs the MAC of the last
+     * one, see {@link #chainMac(byte[], String, SecretKey)}, yet the last MAC
+     * still covers every line and their order.
      *
-     * @param alias the alias under which the user's certificate is stored in the truststore
-     * @return the PublicKey if found, or null if not found or on error
+     * @param filePath the file
+     * @param key the MAC key
+     * @return the MAC of the last line
      */
-    public static PublicKey getUserPublicKeyFromTruststore(String alias) {
-        try {
-            KeyStore trustStore = KeyStore.getInstance("PKCS12");
-            try (FileInputStream fis = new FileInputStream(TRUSTSTORE_PATH)) {
-                trustStore.load(fis, TRUSTSTORE_PASS.toCharArray());
-            }
-
-            // Lookup the certificate for the given alias
-            Certificate cert = trustStore.getCertificate(alias);
-            if (cert == null) {
-                System.err.println("[SECURITY UTILS] Certificado não encontrado para o alias: " + alias);
-                return null;
+    public static byte[] genChainedFileMac(Path filePath, SecretKey key) throws Exception {
+        if (!Files.exists(filePath)) {
+            throw new IllegalArgumentException("Ficheiro nao encontrado: " + filePath);
+        }
+        byte[] chain = genMac(new byte[0], key);
+        try (BufferedReader reader = Files.newBufferedReader(filePath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                chain = chainMac(chain, line, key);
             }
+        }
+        return chain;
+    }
 
-            // Return the public key from the certificate
-            return cert.getPublicKey();
+    /**
+     * Compute the chained MAC of a file once a line is appended to it.
+     *
+     * @param previous the chained MAC of the file
+     * @param line the line, without its line break
+     * @param key the MAC key
+     * @return the chained MAC of the file with the line
+     */
+    public static byte[] chainMac(byte[] previous, String line, SecretKey key)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(key);
+        mac.update(previous);
+        return mac.doFinal(line.getBytes(StandardCharsets.UTF_8));
+    }
 
-        } catch (Exception e) {
-            System.err.println("[SECURITY UTILS] Erro ao obter a chave pública do truststore: " + e.getMessage());
-            e.printStackTrace();
-            return null;
+    public static boolean verifyChainedFileMac(Path filePath, Path macFilePath, SecretKey key)
+            throws Exception {
+        if (!Files.exists(filePath) || !Files.exists(macFilePath)) {
+            return false;
         }
+        byte[] expectedMac = readMacFromMacFile(macFilePath);
+        if (expectedMac == null) {
+            throw new IllegalArgumentException("MAC nao encontrado no ficheiro: " + macFilePath);
+        }
+        byte[] actualMac = genChainedFileMac(filePath, key);
+        return verifyMac(expectedMac, actualMac);
     }
 
     //TODO this is from the SecutityUtils class found in the client, but it was neede in the server
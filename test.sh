@@ -0,0 +1,18 @@
+# Compilar o programa e os testes
+rm -rf build-test/
+mkdir -p build-test
+
+javac -encoding UTF-8 -d build-test $(find src test -name '*.java') || exit 1
+
+# Correr cada classe de teste
+failed=0
+for test in $(cd test && find . -name '*Test.java' | sed 's|^\./||; s|\.java$||; s|/|.|g'); do
+    java -ea -cp build-test "$test" || failed=1
+done
+
+rm -rf build-test/
+if [ $failed -ne 0 ]; then
+    echo "Testes falharam!"
+    exit 1
+fi
+echo "Testes concluídos!"
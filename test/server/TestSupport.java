@@ -0,0 +1,47 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Helpers shared by the tests, which run as plain main methods with -ea.
+ */
+public final class TestSupport {
+    private TestSupport() {
+    }
+
+    /**
+     * Fail the test with the given message unless the condition holds.
+     *
+     * @param condition what the test expects
+     * @param message   what went wrong otherwise
+     */
+    public static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Create a temporary directory, deleted with everything in it when the
+     * test ends.
+     *
+     * @param prefix the start of the directory name
+     * @return the directory
+     * @throws IOException if it cannot be created
+     */
+    public static Path tempDir(String prefix) throws IOException {
+        Path dir = Files.createTempDirectory(prefix);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            } catch (IOException ignored) {
+                // left for the system to clean up
+            }
+        }));
+        return dir;
+    }
+}
@@ -0,0 +1,156 @@
+package server;
+
+import server.models.User;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static server.TestSupport.check;
+import static server.TestSupport.tempDir;
+
+/**
+ * Checks the user index: import from users.txt, changes, growth, reopening
+ * and the detection of changes made to the file.
+ */
+public class UserIndexTest {
+    private static final SecretKey KEY = new SecretKeySpec("segredo".getBytes(StandardCharsets.UTF_8), "AES");
+
+    public static void main(String[] args) throws Exception {
+        importAndChange();
+        growAndReopen();
+        tamperedRecord();
+        System.out.println("[TEST] UserIndexTest: OK");
+    }
+
+    private static void importAndChange() throws IOException {
+        Fixture fixture = new Fixture(List.of(user("ana", 1), user("rui", 2), user("ana", 3)));
+        UserIndex index = fixture.open();
+
+        check(index.get("ana").getHash().equals("hash3"), "a última linha de um utilizador ganha");
+        check(index.get("rui") != null && index.get("ze") == null, "procura");
+
+        User eva = user("eva", 4);
+        long length = fixture.append(eva);
+        index.addAll(List.of(eva), length);
+        check(index.exists("eva") && index.get("eva").getSalt().equals("salt4"), "utilizador acrescentado");
+
+        User updated = new User("rui", "novo", "sal", "PBKDF2WithHmacSHA512", 20000);
+        length = fixture.append(updated);
+        index.update(updated, length);
+        User rui = index.get("rui");
+        check(rui.getHash().equals("novo") && rui.getIterations() == 20000
+                && rui.getAlgorithm().equals("PBKDF2WithHmacSHA512"), "utilizador alterado");
+
+        // the appended line replaces the old one when the index is imported again
+        Files.delete(fixture.index);
+        index = fixture.open();
+        check(index.get("rui").getHash().equals("novo"), "alteração importada de novo");
+
+        index.remove("ana", length);
+        check(index.get("ana") == null && !index.exists("ana"), "utilizador removido");
+        check(index.get("eva") != null, "outros utilizadores mantidos");
+    }
+
+    private static void growAndReopen() throws IOException {
+        Fixture fixture = new Fixture(List.of());
+        UserIndex index = fixture.open();
+
+        // past the initial capacity of 1024 records, in a few batches
+        for (int batch = 0; batch < 5; batch++) {
+            List<User> users = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                users.add(user("u" + batch + "_" + i, i));
+            }
+            index.addAll(users, fixture.append(users.toArray(new User[0])));
+        }
+        for (int i = 0; i < 500; i += 49) {
+            check(index.get("u4_" + i) != null && index.get("u0_" + i) != null, "procura depois de crescer");
+        }
+
+        UserIndex reopened = fixture.open();
+        check(reopened.get("u2_321").getHash().equals("hash321"), "índice reaberto");
+        check(reopened.get("u9_0") == null, "utilizador inexistente");
+    }
+
+    private static void tamperedRecord() throws IOException {
+        Fixture fixture = new Fixture(List.of(user("ana", 1), user("rui", 2)));
+        fixture.open();
+
+        // change one byte of a password hash, somewhere in the records
+        byte[] target = "hash2".getBytes(StandardCharsets.UTF_8);
+        byte[] data = Files.readAllBytes(fixture.index);
+        int at = indexOf(data, target);
+        check(at > 0, "registo encontrado");
+        try (FileChannel channel = FileChannel.open(fixture.index, StandardOpenOption.WRITE)) {
+            channel.write(java.nio.ByteBuffer.wrap(new byte[]{'X'}), at);
+        }
+
+        // the header and the root still match, so the index is used as it is
+        UserIndex index = fixture.open();
+        check(index.get("ana") != null, "registo intacto");
+        try {
+            index.get("rui");
+            check(false, "registo alterado aceite");
+        } catch (SecurityException expected) {
+            // detected on use
+        }
+    }
+
+    private static User user(String userId, int n) {
+        return new User(userId, "hash" + n, "salt" + n, "PBKDF2WithHmacSHA256", 10000);
+    }
+
+    private static int indexOf(byte[] data, byte[] target) {
+        outer:
+        for (int i = 0; i + target.length <= data.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A users.txt with its index and root files.
+     */
+    private static final class Fixture {
+        private final Path users;
+        private final Path index;
+        private final Path root;
+
+        private Fixture(List<User> initial) throws IOException {
+            Path dir = tempDir("userindex");
+            this.users = dir.resolve("users.txt");
+            this.index = dir.resolve("users.idx");
+            this.root = dir.resolve("users.root");
+            Files.createFile(users);
+            append(initial.toArray(new User[0]));
+        }
+
+        private long append(User... added) throws IOException {
+            StringBuilder lines = new StringBuilder();
+            for (User user : added) {
+                lines.append(user).append('\n');
+            }
+            Files.write(users, lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            return Files.size(users);
+        }
+
+        private UserIndex open() throws IOException {
+            UserIndex userIndex = new UserIndex(index, root, KEY);
+            userIndex.open(users);
+            return userIndex;
+        }
+    }
+}
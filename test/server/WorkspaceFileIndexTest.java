@@ -0,0 +1,196 @@
+package server;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static server.TestSupport.check;
+import static server.TestSupport.tempDir;
+
+/**
+ * Checks the parsing of the saved file index: escaped names, the change log,
+ * its MAC chain and compaction.
+ */
+public class WorkspaceFileIndexTest {
+    private static final SecretKey KEY = new SecretKeySpec("segredo".getBytes(StandardCharsets.UTF_8), "AES");
+
+    public static void main(String[] args) throws Exception {
+        escapeRoundTrip();
+        snapshotRoundTrip();
+        logReplay();
+        replaceDropsOldSignature();
+        tamperedLog();
+        tornLastLine();
+        staleLog();
+        compaction();
+        emptyIsReadOnly();
+        System.out.println("[TEST] WorkspaceFileIndexTest: OK");
+    }
+
+    private static void escapeRoundTrip() {
+        for (String name : List.of("a.txt", "a:b.txt", "100%.txt", "%3A", "line\nbreak\r.txt", "")) {
+            String escaped = WorkspaceFileIndex.escape(name);
+            check(!escaped.contains(":") && !escaped.contains("\n"), "campo escapado: " + escaped);
+            check(WorkspaceFileIndex.unescape(escaped).equals(name), "ida e volta: " + name);
+        }
+        check(WorkspaceFileIndex.escape("a:b").equals("a%3Ab"), "escape de ':'");
+
+        for (String field : List.of("%", "%4", "%zz", "a%G0")) {
+            try {
+                WorkspaceFileIndex.unescape(field);
+                check(false, "escape inválido aceite: " + field);
+            } catch (IllegalArgumentException expected) {
+                // rejected
+            }
+        }
+    }
+
+    private static void snapshotRoundTrip() throws IOException {
+        Fixture fixture = new Fixture("a:b.txt", "100%.txt", "a:b.txt.signed.user1", "ws.key.user1", "stray.signed.x");
+        WorkspaceFileIndex index = fixture.scanAndSave();
+
+        WorkspaceFileIndex loaded = fixture.load();
+        check(loaded != null, "índice guardado não carregou");
+        check(loaded.sameAs(index), "índice carregado é diferente");
+        check("a:b.txt.signed.user1".equals(loaded.get("a:b.txt").getSignature()), "assinatura com ':'");
+        check(loaded.contains("ws.key.user1") && loaded.contains("stray.signed.x"), "chaves e outros");
+    }
+
+    private static void logReplay() throws IOException {
+        Fixture fixture = new Fixture("a.txt", "b.txt");
+        WorkspaceFileIndex index = fixture.scanAndSave();
+
+        index.putFile(new WorkspaceFileIndex.Entry("c:d.txt", 7, 1000, "user1", "c:d.txt.signed.user1"));
+        index.putKey("ws.key.user2");
+        index.remove("a.txt");
+        index.remove("c:d.txt.signed.user1");
+
+        check(lines(fixture.log).size() == 5, "uma linha por alteração");
+        WorkspaceFileIndex loaded = fixture.load();
+        check(loaded != null && loaded.sameAs(index), "log reaplicado é diferente");
+        check(loaded.get("a.txt") == null, "remoção reaplicada");
+        check(loaded.get("c:d.txt").getSignature() == null, "remoção da assinatura reaplicada");
+
+        // the loaded index goes on appending to the same chain
+        loaded.putKey("ws.key.user3");
+        WorkspaceFileIndex again = fixture.load();
+        check(again != null && again.contains("ws.key.user3"), "alteração depois de recarregar");
+    }
+
+    private static void replaceDropsOldSignature() throws IOException {
+        Fixture fixture = new Fixture("a.txt", "a.txt.signed.user1");
+        WorkspaceFileIndex index = fixture.scanAndSave();
+
+        index.replaceFile(new WorkspaceFileIndex.Entry("a.txt", 9, 1000, "user2", "a.txt.signed.user2"));
+        check(lines(fixture.log).size() == 2, "uma linha por substituição");
+        check(!index.contains("a.txt.signed.user1"), "assinatura antiga mantida");
+        check("a.txt.signed.user2".equals(index.get("a.txt").getSignature()), "assinatura nova");
+
+        WorkspaceFileIndex loaded = fixture.load();
+        check(loaded != null && loaded.sameAs(index), "substituição reaplicada é diferente");
+    }
+
+    private static void tamperedLog() throws IOException {
+        Fixture fixture = new Fixture("a.txt");
+        WorkspaceFileIndex index = fixture.scanAndSave();
+        index.putFile(new WorkspaceFileIndex.Entry("b.txt", 10, 1000, null, null));
+        index.putFile(new WorkspaceFileIndex.Entry("c.txt", 20, 2000, null, null));
+
+        List<String> lines = lines(fixture.log);
+        Files.write(fixture.log, List.of(lines.get(0), lines.get(1).replace(":10:", ":11:"), lines.get(2)));
+        check(fixture.load() == null, "linha alterada aceite");
+
+        Files.write(fixture.log, List.of(lines.get(0), lines.get(2), lines.get(1)));
+        check(fixture.load() == null, "linhas trocadas aceites");
+    }
+
+    private static void tornLastLine() throws IOException {
+        Fixture fixture = new Fixture("a.txt");
+        WorkspaceFileIndex index = fixture.scanAndSave();
+        index.putKey("ws.key.user1");
+        Files.write(fixture.log, "F:cut".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        WorkspaceFileIndex loaded = fixture.load();
+        check(loaded != null && loaded.sameAs(index), "linha cortada não ignorada");
+        loaded.putKey("ws.key.user2");
+        WorkspaceFileIndex again = fixture.load();
+        check(again != null && again.contains("ws.key.user2"), "alteração depois da linha cortada");
+    }
+
+    private static void staleLog() throws IOException {
+        Fixture fixture = new Fixture("a.txt");
+        WorkspaceFileIndex index = fixture.scanAndSave();
+        index.putKey("ws.key.user1");
+        byte[] oldLog = Files.readAllBytes(fixture.log);
+
+        // a crash after the new snapshot and before its log leaves the old log
+        index.save(fixture.path, fixture.log, KEY, true);
+        Files.write(fixture.log, oldLog);
+        WorkspaceFileIndex loaded = fixture.load();
+        check(loaded != null && loaded.sameAs(index), "log antigo reaplicado");
+        loaded.putKey("ws.key.user2");
+        check(fixture.load().contains("ws.key.user2"), "log recomeçado");
+    }
+
+    private static void compaction() throws IOException {
+        Fixture fixture = new Fixture("a.txt");
+        WorkspaceFileIndex index = fixture.scanAndSave();
+        for (int i = 0; i < 200; i++) {
+            index.putFile(new WorkspaceFileIndex.Entry("f" + i, i, i, null, null));
+        }
+
+        check(lines(fixture.log).size() < 100, "log não compactado: " + lines(fixture.log).size());
+        check(lines(fixture.path).size() > 100, "snapshot não compactado");
+        WorkspaceFileIndex loaded = fixture.load();
+        check(loaded != null && loaded.sameAs(index), "compactação perdeu alterações");
+    }
+
+    private static void emptyIsReadOnly() {
+        try {
+            WorkspaceFileIndex.EMPTY.putKey("ws.key.user1");
+            check(false, "índice vazio alterado");
+        } catch (IOException expected) {
+            // never saved, so never changed
+        }
+        check(!WorkspaceFileIndex.EMPTY.contains("ws.key.user1"), "índice vazio alterado");
+    }
+
+    private static List<String> lines(Path path) throws IOException {
+        return Files.readAllLines(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A workspace directory with some empty files and where to save its index.
+     */
+    private static final class Fixture {
+        private final Path dir;
+        private final Path path;
+        private final Path log;
+
+        private Fixture(String... names) throws IOException {
+            Path root = tempDir("fileindex");
+            this.dir = Files.createDirectory(root.resolve("ws"));
+            this.path = root.resolve("index");
+            this.log = root.resolve("index.log");
+            for (String name : Arrays.asList(names)) {
+                Files.write(dir.resolve(name), new byte[0]);
+            }
+        }
+
+        private WorkspaceFileIndex scanAndSave() throws IOException {
+            WorkspaceFileIndex index = WorkspaceFileIndex.scan("ws", dir, WorkspaceLayout.FLAT, null);
+            index.save(path, log, KEY, true);
+            return index;
+        }
+
+        private WorkspaceFileIndex load() throws IOException {
+            return WorkspaceFileIndex.load(path, log, KEY, true);
+        }
+    }
+}
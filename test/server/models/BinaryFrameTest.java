@@ -0,0 +1,263 @@
+package server.models;
+
+import server.exceptions.InvalidRequestException;
+import server.exceptions.InvalidResponseException;
+import server.utils.NetworkUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static server.TestSupport.check;
+
+/**
+ * Checks both wire formats: round trips of requests and responses, the
+ * detection of the version of a frame, known and literal header keys, and
+ * the limits on lengths and frame sizes.
+ */
+public class BinaryFrameTest {
+    private static final int[] VERSIONS = {BinaryFrame.VERSION_1, BinaryFrame.VERSION_2};
+
+    public static void main(String[] args) throws Exception {
+        requestRoundTrip();
+        responseRoundTrip();
+        streamRoundTrip();
+        versionDetection();
+        knownAndLiteralHeaders();
+        lengthLimits();
+        frameSizeLimits();
+        malformedFrames();
+        System.out.println("[TEST] BinaryFrameTest: OK");
+    }
+
+    private static void requestRoundTrip() {
+        for (int version : VERSIONS) {
+            BodyJSON json = new BodyJSON();
+            json.put("workspaceId", "diogo_ws1");
+            json.put("fileName", "relatório final.txt");
+            Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "uploadfiletoworkspace", json);
+            request.addHeader("TYPE", "INIT");
+            request.addHeader("X-CUSTOM", "abc-123");
+
+            Request decoded = Request.fromBuffer(ByteBuffer.wrap(request.toByteArray(version)));
+            check(decoded.getUUID().equals(request.getUUID()), "id, versão " + version);
+            check(decoded.getRoute().equals("uploadfiletoworkspace"), "rota, versão " + version);
+            check(decoded.getFormat() == BodyFormat.JSON, "formato, versão " + version);
+            check(decoded.getHeaders().equals(request.getHeaders()), "headers, versão " + version);
+            check("relatório final.txt".equals(decoded.getBodyJSON().get("fileName")), "corpo JSON, versão " + version);
+
+            byte[] data = new byte[70_000];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            Request raw = new Request(NetworkUtils.newRequestId(), BodyFormat.RAW, "uploadfiletoworkspace",
+                    BodyRaw.wrap(data));
+            raw.addHeader("CHUNK-ID", "3");
+            Request decodedRaw = Request.fromBuffer(ByteBuffer.wrap(raw.toByteArray(version)));
+            check(Arrays.equals(decodedRaw.getBodyRaw().toBytes(), data), "corpo RAW, versão " + version);
+            check("3".equals(decodedRaw.getHeader("CHUNK-ID")), "header de chunk, versão " + version);
+
+            Request empty = new Request(NetworkUtils.newRequestId(), BodyFormat.RAW, "heartbeat", new BodyRaw());
+            check(Request.fromBuffer(ByteBuffer.wrap(empty.toByteArray(version))).getBodyRaw().getSize() == 0,
+                    "corpo vazio, versão " + version);
+        }
+    }
+
+    private static void responseRoundTrip() {
+        for (int version : VERSIONS) {
+            for (StatusCode status : StatusCode.values()) {
+                BodyJSON json = new BodyJSON();
+                json.put("message", "ok: " + status);
+                Response response = new Response(NetworkUtils.newRequestId(), status, BodyFormat.JSON, json);
+                response.addHeader("PROTOCOL", "2");
+
+                Response decoded = Response.fromBuffer(ByteBuffer.wrap(response.toByteArray(version)));
+                check(decoded.getStatus() == status, "estado " + status + ", versão " + version);
+                check(decoded.getUUID().equals(response.getUUID()), "id, versão " + version);
+                check("2".equals(decoded.getHeader("PROTOCOL")), "header, versão " + version);
+                check(("ok: " + status).equals(decoded.getBodyJSON().get("message")), "corpo, versão " + version);
+            }
+
+            byte[] data = "bytes\n\nque parecem um separador".getBytes(StandardCharsets.UTF_8);
+            Response raw = new Response(NetworkUtils.newRequestId(), StatusCode.OK, BodyFormat.RAW, BodyRaw.wrap(data));
+            Response decodedRaw = Response.fromBuffer(ByteBuffer.wrap(raw.toByteArray(version)));
+            check(Arrays.equals(decodedRaw.getBodyRaw().toBytes(), data), "corpo RAW, versão " + version);
+        }
+    }
+
+    private static void streamRoundTrip() throws IOException {
+        for (int version : VERSIONS) {
+            byte[] data = new byte[64 * 1024];
+            Arrays.fill(data, (byte) 7);
+            Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.RAW, "uploadfiletoworkspace",
+                    BodyRaw.wrap(data));
+            Response response = new Response(request.getUUID(), StatusCode.OK, BodyFormat.RAW, BodyRaw.wrap(data));
+
+            // the body lives in a pooled frame until it is released
+            Request readRequest = Request.fromStream(stream(request.toByteArray(version)));
+            check(Arrays.equals(readRequest.getBodyRaw().toBytes(), data), "pedido lido do stream, versão " + version);
+            readRequest.release();
+            Response readResponse = Response.fromStream(stream(response.toByteArray(version)));
+            check(Arrays.equals(readResponse.getBodyRaw().toBytes(), data), "resposta lida do stream, versão " + version);
+            readResponse.release();
+        }
+    }
+
+    private static void versionDetection() {
+        Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "heartbeat", new BodyJSON());
+        check(!BinaryFrame.isVersion2(ByteBuffer.wrap(request.toByteArray(BinaryFrame.VERSION_1))), "v1 como v2");
+        check(BinaryFrame.isVersion2(ByteBuffer.wrap(request.toByteArray(BinaryFrame.VERSION_2))), "v2 como v1");
+        check(!BinaryFrame.isVersion2(ByteBuffer.wrap(new byte[4])), "frame só com o tamanho");
+
+        // detection looks at the frame from its position, not from the start of the array
+        byte[] frame = request.toByteArray(BinaryFrame.VERSION_2);
+        ByteBuffer shifted = ByteBuffer.allocate(frame.length + 3);
+        shifted.position(3);
+        shifted.put(frame);
+        shifted.position(3);
+        check(BinaryFrame.isVersion2(shifted), "v2 numa posição diferente de 0");
+    }
+
+    private static void knownAndLiteralHeaders() {
+        Request known = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "heartbeat", new BodyJSON());
+        known.addHeader("FILE-ID", "abc");
+        Request literal = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "heartbeat", new BodyJSON());
+        literal.addHeader("FILE-XX", "abc");
+
+        byte[] knownFrame = known.toByteArray(BinaryFrame.VERSION_2);
+        byte[] literalFrame = literal.toByteArray(BinaryFrame.VERSION_2);
+        // a known key is one byte, a literal one a zero, its length and the key
+        check(literalFrame.length - knownFrame.length == 1 + "FILE-XX".length(), "tamanho dos headers");
+        check(!contains(knownFrame, "FILE-ID"), "header conhecido escrito por extenso");
+        check(contains(literalFrame, "FILE-XX"), "header literal não escrito");
+
+        check("abc".equals(Request.fromBuffer(ByteBuffer.wrap(knownFrame)).getHeader("FILE-ID")), "header conhecido");
+        check("abc".equals(Request.fromBuffer(ByteBuffer.wrap(literalFrame)).getHeader("FILE-XX")), "header literal");
+    }
+
+    private static void lengthLimits() {
+        String longRoute = "r".repeat(256);
+        expectInvalidRequest(() -> new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, longRoute, new BodyJSON())
+                .toByteArray(BinaryFrame.VERSION_2), "rota com mais de 255 bytes");
+        String maxRoute = "r".repeat(255);
+        Request atLimit = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, maxRoute, new BodyJSON());
+        check(Request.fromBuffer(ByteBuffer.wrap(atLimit.toByteArray(BinaryFrame.VERSION_2))).getRoute().equals(maxRoute),
+                "rota com 255 bytes");
+
+        expectInvalidRequest(() -> header("X", "v".repeat(0x10000)).toByteArray(BinaryFrame.VERSION_2),
+                "valor com mais de 65535 bytes");
+        Request longValue = header("X", "v".repeat(0xFFFF));
+        check(Request.fromBuffer(ByteBuffer.wrap(longValue.toByteArray(BinaryFrame.VERSION_2)))
+                .getHeader("X").length() == 0xFFFF, "valor com 65535 bytes");
+
+        expectInvalidRequest(() -> header("K".repeat(256), "v").toByteArray(BinaryFrame.VERSION_2),
+                "chave literal com mais de 255 bytes");
+
+        Request many = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "heartbeat", new BodyJSON());
+        for (int i = 0; i < 256; i++) {
+            many.addHeader("H" + i, "v");
+        }
+        expectInvalidRequest(() -> many.toByteArray(BinaryFrame.VERSION_2), "mais de 255 headers");
+
+        // version 1 has no such limits
+        check(Request.fromBuffer(ByteBuffer.wrap(many.toByteArray(BinaryFrame.VERSION_1))).getHeaders().size() == 256,
+                "256 headers na versão 1");
+    }
+
+    private static void frameSizeLimits() {
+        expectInvalidRequest(() -> Request.checkFrameSize(BinaryFrame.MIN_LENGTH - 1), "frame abaixo do mínimo");
+        expectInvalidRequest(() -> Request.checkFrameSize(RequestConstants.MAX_FRAME_LENGTH + 1), "frame acima do máximo");
+        Request.checkFrameSize(BinaryFrame.MIN_LENGTH);
+        Request.checkFrameSize(RequestConstants.MAX_FRAME_LENGTH);
+
+        // the size is checked before the frame is read
+        ByteBuffer huge = ByteBuffer.allocate(8);
+        huge.putInt(Integer.MAX_VALUE);
+        expectInvalidRequest(() -> {
+            try {
+                Request.fromStream(stream(huge.array()));
+            } catch (IOException e) {
+                throw new AssertionError("frame enorme lido: " + e);
+            }
+        }, "tamanho enorme no stream");
+        try {
+            ByteBuffer negative = ByteBuffer.allocate(8);
+            negative.putInt(-1);
+            Response.fromStream(stream(negative.array()));
+            check(false, "resposta com tamanho negativo aceite");
+        } catch (InvalidResponseException | IOException expected) {
+            // rejected
+        }
+    }
+
+    private static void malformedFrames() {
+        Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "heartbeat", new BodyJSON());
+        request.addHeader("FILE-ID", "abc");
+
+        for (int version : VERSIONS) {
+            byte[] frame = request.toByteArray(version);
+            byte[] cut = Arrays.copyOf(frame, frame.length - 1);
+            expectInvalidRequest(() -> Request.fromBuffer(ByteBuffer.wrap(cut)), "frame cortado, versão " + version);
+        }
+
+        byte[] frame = request.toByteArray(BinaryFrame.VERSION_2);
+        int route = RequestConstants.SIZE_LENGTH + 1 + 1 + 16;
+        int headers = route + 1 + "heartbeat".length();
+
+        byte[] badFormat = frame.clone();
+        badFormat[RequestConstants.SIZE_LENGTH + 1] = 9;
+        expectInvalidRequest(() -> Request.fromBuffer(ByteBuffer.wrap(badFormat)), "formato desconhecido");
+
+        byte[] longRoute = frame.clone();
+        longRoute[route] = (byte) 0xFF;
+        expectInvalidRequest(() -> Request.fromBuffer(ByteBuffer.wrap(longRoute)), "rota para lá do frame");
+
+        byte[] unknownKey = frame.clone();
+        check(unknownKey[headers] == 1 && unknownKey[headers + 1] == 1, "posição do header FILE-ID");
+        unknownKey[headers + 1] = 99;
+        expectInvalidRequest(() -> Request.fromBuffer(ByteBuffer.wrap(unknownKey)), "id de header desconhecido");
+
+        byte[] noSeparator = "sem separador".getBytes(StandardCharsets.UTF_8);
+        Request v1 = new Request(NetworkUtils.newRequestId(), BodyFormat.RAW, "heartbeat", new BodyRaw());
+        byte[] v1Frame = v1.toByteArray(BinaryFrame.VERSION_1);
+        // replace everything after the fixed fields, separator included
+        ByteBuffer broken = ByteBuffer.allocate(RequestConstants.HEADER_LENGTH + noSeparator.length);
+        broken.putInt(broken.capacity());
+        broken.put(v1Frame, RequestConstants.SIZE_LENGTH, RequestConstants.UUID_LENGTH + RequestConstants.FORMAT_LENGTH);
+        broken.put(noSeparator);
+        broken.flip();
+        expectInvalidRequest(() -> Request.fromBuffer(broken), "versão 1 sem separador");
+    }
+
+    private static Request header(String key, String value) {
+        Request request = new Request(NetworkUtils.newRequestId(), BodyFormat.JSON, "heartbeat", new BodyJSON());
+        request.addHeader(key, value);
+        return request;
+    }
+
+    private static DataInputStream stream(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static boolean contains(byte[] bytes, String text) {
+        byte[] needle = text.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i + needle.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + needle.length, needle, 0, needle.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void expectInvalidRequest(Runnable action, String message) {
+        try {
+            action.run();
+        } catch (InvalidRequestException expected) {
+            return;
+        }
+        throw new AssertionError("aceite: " + message);
+    }
+}
@@ -0,0 +1,102 @@
+package server.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static server.TestSupport.check;
+
+/**
+ * Checks MappedFile across segment boundaries and the Merkle tree kept in it.
+ */
+public class MerkleTreeTest {
+    // 4 KB segments, so small files already span many of them
+    private static final int SEGMENT_SHIFT = 12;
+
+    public static void main(String[] args) throws Exception {
+        valuesAcrossSegments();
+        treeOverSegments();
+        System.out.println("[TEST] MerkleTreeTest: OK");
+    }
+
+    private static void valuesAcrossSegments() throws IOException {
+        try (FileChannel channel = open()) {
+            long size = 5 * (1L << SEGMENT_SHIFT) + 100;
+            MappedFile file = MappedFile.map(channel, size, SEGMENT_SHIFT);
+            check(channel.size() == size, "ficheiro com o tamanho pedido");
+
+            long boundary = 2 * (1L << SEGMENT_SHIFT);
+            file.putLong(boundary - 3, 0x0102030405060708L);
+            check(file.getLong(boundary - 3) == 0x0102030405060708L, "long entre segmentos");
+            file.putInt(boundary - 2, 42);
+            check(file.getInt(boundary - 2) == 42, "int entre segmentos");
+
+            byte[] value = new byte[300];
+            Arrays.fill(value, (byte) 7);
+            file.put(boundary - 100, value);
+            byte[] read = new byte[300];
+            file.get(boundary - 100, read);
+            check(Arrays.equals(value, read), "bytes entre segmentos");
+            // the part past the boundary is seen through the next segment as well
+            check(file.get(boundary + 10) == 7, "segmentos partilham as páginas");
+
+            file.put(size - 1, (byte) 9);
+            check(file.get(size - 1) == 9, "último byte");
+            try {
+                file.get(size);
+                check(false, "posição fora do ficheiro aceite");
+            } catch (IndexOutOfBoundsException expected) {
+                // rejected
+            }
+        }
+    }
+
+    private static void treeOverSegments() throws Exception {
+        int leaves = 256;
+        long offset = 100; // nodes not aligned with the segments
+        try (FileChannel channel = open()) {
+            MappedFile file = MappedFile.map(channel, offset + MerkleTree.regionSize(leaves), SEGMENT_SHIFT);
+            MerkleTree tree = new MerkleTree(file, offset, leaves);
+
+            byte[] empty = leaf(-1);
+            byte[] root = tree.fill(empty);
+            check(Arrays.equals(root, tree.storedRoot()), "raiz guardada");
+            for (int i = 0; i < leaves; i += 37) {
+                check(tree.verify(i, empty, root), "folha vazia " + i);
+            }
+
+            for (int i = 0; i < leaves; i += 5) {
+                root = tree.update(i, empty, leaf(i), root);
+            }
+            check(Arrays.equals(root, tree.storedRoot()), "raiz depois das alterações");
+            check(tree.verify(10, leaf(10), root), "folha alterada");
+            check(!tree.verify(10, empty, root), "folha antiga aceite");
+            check(!tree.verify(11, leaf(11), root), "folha errada aceite");
+
+            // a node changed in the file breaks every path through it
+            long node = offset + (long) (leaves + 20) * MerkleTree.HASH_LENGTH;
+            file.put(node, (byte) (file.get(node) ^ 1));
+            check(!tree.verify(21, empty, root), "irmão alterado aceite");
+            try {
+                tree.update(21, empty, leaf(21), root);
+                check(false, "alteração sobre caminho inválido aceite");
+            } catch (SecurityException expected) {
+                // rejected
+            }
+        }
+    }
+
+    private static byte[] leaf(int i) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(Integer.toString(i).getBytes());
+    }
+
+    private static FileChannel open() throws IOException {
+        Path path = Files.createTempFile("mapped", ".bin");
+        path.toFile().deleteOnExit();
+        return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+}